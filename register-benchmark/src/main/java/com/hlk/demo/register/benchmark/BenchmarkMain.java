@@ -0,0 +1,39 @@
+package com.hlk.demo.register.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 压测的入口，参数跟JMH自己的命令行一样
+ *
+ * 没有指定结果格式的话，默认把结果写成JSON（jmh-result.json），
+ * 两次构建的结果可以用ResultComparator对比
+ *
+ * 运行方式：
+ * java -jar target/benchmarks.jar                                   跑全部压测
+ * java -jar target/benchmarks.jar Heartbeat -p instanceCount=100000 只跑心跳、只跑10万个服务实例
+ * java -cp target/benchmarks.jar com.hlk.demo.register.benchmark.ResultComparator 旧结果.json 新结果.json
+ *
+ * @author huanglk
+ */
+public class BenchmarkMain {
+
+    /**
+     * 默认的结果文件
+     */
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.add("-rf");
+            arguments.add("json");
+            if (!arguments.contains("-rff")) {
+                arguments.add("-rff");
+                arguments.add(DEFAULT_RESULT_FILE);
+            }
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,58 @@
+package com.hlk.demo.register.benchmark;
+
+import com.hlk.demo.register.server.HeartbeatCounter;
+import com.hlk.demo.register.server.SelfProtectionPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 心跳计数器和自我保护机制的压测
+ *
+ * 每次心跳都要累加一次计数器，多线程累加的竞争是重点；
+ * 自我保护机制的检查要把最近一分钟的格子加起来，看的是单次的开销
+ *
+ * @author huanglk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dregister.server.log.level=OFF")
+public class CounterBenchmark {
+
+    @Benchmark
+    @Threads(1)
+    public void increment() {
+        HeartbeatCounter.getInstance().increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void increment4Threads() {
+        HeartbeatCounter.getInstance().increment();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void incrementMaxThreads() {
+        HeartbeatCounter.getInstance().increment();
+    }
+
+    @Benchmark
+    public long latestMinuteHeartbeats() {
+        return HeartbeatCounter.getInstance().get();
+    }
+
+    @Benchmark
+    public Boolean selfProtectionCheck() {
+        return SelfProtectionPolicy.getInstance().isEnable();
+    }
+}
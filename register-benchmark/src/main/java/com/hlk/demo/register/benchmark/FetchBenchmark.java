@@ -0,0 +1,57 @@
+package com.hlk.demo.register.benchmark;
+
+import com.hlk.demo.register.server.Applications;
+import com.hlk.demo.register.server.DeltaRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 拉取全量、增量注册表的压测
+ *
+ * 不走缓存的版本每次都从注册表里重新构造一遍，看的是注册表大小对构造耗时的影响；
+ * 走缓存的版本看的是响应缓存命中时的开销
+ *
+ * @author huanglk
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dregister.server.log.level=OFF"})
+public class FetchBenchmark {
+
+    /**
+     * 增量注册表里带多少个变更
+     */
+    private static final long DELTA_CHANGES = 100L;
+
+    @Benchmark
+    public Applications fetchFull(RegistryState state) {
+        return state.registry.getApplications();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Applications fetchFullCached(RegistryState state) {
+        return state.responseCache.getApplications();
+    }
+
+    @Benchmark
+    public DeltaRegistry fetchDelta(RegistryState state) {
+        return state.registry.getDeltaRegistry(state.registry.getVersion() - DELTA_CHANGES);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public DeltaRegistry fetchDeltaCached(RegistryState state) {
+        return state.responseCache.getDeltaRegistry(state.registry.getVersion() - DELTA_CHANGES);
+    }
+}
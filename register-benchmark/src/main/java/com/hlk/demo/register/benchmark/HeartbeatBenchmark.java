@@ -0,0 +1,91 @@
+package com.hlk.demo.register.benchmark;
+
+import com.hlk.demo.register.server.HeartbeatRequest;
+import com.hlk.demo.register.server.HeartbeatResponse;
+import com.hlk.demo.register.server.RegisterServerController;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 心跳续约的压测
+ *
+ * 分别压ServiceRegistry.renew和完整的controller心跳（续约 + 心跳计数），
+ * 线程数分1个、4个、cpu核数三档，看锁的竞争对吞吐量的影响
+ *
+ * @author huanglk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dregister.server.log.level=OFF"})
+public class HeartbeatBenchmark {
+
+    /**
+     * 每个线程自己的心跳请求，不同线程之间不共享
+     */
+    @State(Scope.Thread)
+    public static class HeartbeatState {
+
+        RegisterServerController controller;
+        HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+
+        @Setup
+        public void setUp() {
+            controller = new RegisterServerController();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean renew(RegistryState state) {
+        return renewRandom(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean renew4Threads(RegistryState state) {
+        return renewRandom(state);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean renewMaxThreads(RegistryState state) {
+        return renewRandom(state);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public HeartbeatResponse heartbeat(RegistryState state, HeartbeatState heartbeatState) {
+        return heartbeatRandom(state, heartbeatState);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public HeartbeatResponse heartbeatMaxThreads(RegistryState state, HeartbeatState heartbeatState) {
+        return heartbeatRandom(state, heartbeatState);
+    }
+
+    private static boolean renewRandom(RegistryState state) {
+        int index = state.randomInstance();
+        return state.registry.renew(state.serviceNames[index], state.serviceInstanceIds[index]);
+    }
+
+    private static HeartbeatResponse heartbeatRandom(RegistryState state, HeartbeatState heartbeatState) {
+        int index = state.randomInstance();
+        heartbeatState.heartbeatRequest.setServiceName(state.serviceNames[index]);
+        heartbeatState.heartbeatRequest.setServiceInstanceId(state.serviceInstanceIds[index]);
+        return heartbeatState.controller.heartbeat(heartbeatState.heartbeatRequest);
+    }
+}
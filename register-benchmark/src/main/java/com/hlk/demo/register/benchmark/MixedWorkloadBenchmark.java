@@ -0,0 +1,74 @@
+package com.hlk.demo.register.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读多写少的混合压测，用来看注册表的扩展曲线
+ *
+ * 模拟大量服务实例在发送心跳时查找注册表，同时有少量注册、下线：
+ * 每1000次操作里有10次是写（先下线再重新注册同一个服务实例，注册表的大小保持不变），其他都是按id查找服务实例
+ * 线程数分1、2、4、8个和cpu核数几档，各档的吞吐量放在一起就是扩展曲线
+ *
+ * @author huanglk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dregister.server.log.level=OFF"})
+public class MixedWorkloadBenchmark {
+
+    /**
+     * 每1000次操作里有多少次是写操作（下线+注册）
+     */
+    private static final int WRITES_PER_THOUSAND = 10;
+
+    @Benchmark
+    @Threads(1)
+    public boolean mixed(RegistryState state) {
+        return readOrWrite(state);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean mixed2Threads(RegistryState state) {
+        return readOrWrite(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean mixed4Threads(RegistryState state) {
+        return readOrWrite(state);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean mixed8Threads(RegistryState state) {
+        return readOrWrite(state);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean mixedMaxThreads(RegistryState state) {
+        return readOrWrite(state);
+    }
+
+    private static boolean readOrWrite(RegistryState state) {
+        int index = state.randomInstance();
+        if (ThreadLocalRandom.current().nextInt(1000) < WRITES_PER_THOUSAND) {
+            state.registry.remove(state.serviceNames[index], state.serviceInstanceIds[index]);
+            return state.registry.register(state.newServiceInstance(index));
+        }
+        return state.registry.getServiceInstance(state.serviceNames[index], state.serviceInstanceIds[index]) != null;
+    }
+}
@@ -0,0 +1,46 @@
+package com.hlk.demo.register.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务注册的压测
+ *
+ * 注册的都是已经存在的服务实例（相当于服务实例重启之后重新注册），注册表的大小在压测过程中保持不变；
+ * 每次注册都会推进版本号、写最近变更队列、让响应缓存失效，这些都算在里面
+ *
+ * @author huanglk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dregister.server.log.level=OFF"})
+public class RegisterBenchmark {
+
+    @Benchmark
+    @Threads(1)
+    public boolean register(RegistryState state) {
+        return state.registry.register(state.newServiceInstance(state.randomInstance()));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean register4Threads(RegistryState state) {
+        return state.registry.register(state.newServiceInstance(state.randomInstance()));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean registerMaxThreads(RegistryState state) {
+        return state.registry.register(state.newServiceInstance(state.randomInstance()));
+    }
+}
@@ -0,0 +1,82 @@
+package com.hlk.demo.register.benchmark;
+
+import com.hlk.demo.register.server.ResponseCache;
+import com.hlk.demo.register.server.ServiceInstance;
+import com.hlk.demo.register.server.ServiceRegistry;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 压测用的注册表，按照参数注册好指定数量的服务实例
+ *
+ * 注册表是单例，存储引擎在第一次用到的时候就选好了，所以每组参数都要在一个新的JVM里跑，
+ * 压测类上的@Fork保证了这一点（JMH每组参数都会重新fork）
+ *
+ * @author huanglk
+ */
+@State(Scope.Benchmark)
+public class RegistryState {
+
+    /**
+     * 每个服务的实例数量
+     */
+    public static final int INSTANCES_PER_SERVICE = 100;
+
+    /**
+     * 注册表里的服务实例总数
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int instanceCount;
+    /**
+     * 存储引擎，heap、offheap或者sharded
+     */
+    @Param({"heap", "offheap", "sharded"})
+    public String store;
+
+    public ServiceRegistry registry;
+    public ResponseCache responseCache;
+    /**
+     * 提前拼好的服务名称和服务实例id，下标是服务实例的编号，压测的时候不用再拼字符串
+     */
+    public String[] serviceNames;
+    public String[] serviceInstanceIds;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("register.server.store", store);
+        if (System.getProperty("register.server.store.capacity") == null) {
+            System.setProperty("register.server.store.capacity", String.valueOf(instanceCount));
+        }
+        registry = ServiceRegistry.getInstance();
+        responseCache = ResponseCache.getInstance();
+
+        serviceNames = new String[instanceCount];
+        serviceInstanceIds = new String[instanceCount];
+        for (int i = 0; i < instanceCount; i++) {
+            serviceNames[i] = "SERVICE-" + (i / INSTANCES_PER_SERVICE);
+            serviceInstanceIds[i] = serviceNames[i] + "-" + i;
+            registry.register(newServiceInstance(i));
+        }
+    }
+
+    /**
+     * 随机挑一个服务实例
+     */
+    public int randomInstance() {
+        return ThreadLocalRandom.current().nextInt(instanceCount);
+    }
+
+    public ServiceInstance newServiceInstance(int index) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceNames[index]);
+        serviceInstance.setServiceInstanceId(serviceInstanceIds[index]);
+        serviceInstance.setHostname("host-" + (index % 10000));
+        serviceInstance.setIp("10." + (index >>> 16 & 0xFF) + "." + (index >>> 8 & 0xFF) + "." + (index & 0xFF));
+        serviceInstance.setPort(8000 + index % 1000);
+        return serviceInstance;
+    }
+}
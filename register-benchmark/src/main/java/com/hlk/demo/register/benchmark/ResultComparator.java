@@ -0,0 +1,226 @@
+package com.hlk.demo.register.benchmark;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 对比两次压测的JSON结果，按压测方法 + 线程数 + 参数一一对应，打印分数的变化
+ *
+ * 吞吐量越大越好、平均耗时越小越好，变化超过阈值（默认5%）的标记成变好或者变差，
+ * 有变差的话进程的退出码是1，可以直接放到构建脚本里
+ *
+ * 运行方式：java -cp benchmarks.jar com.hlk.demo.register.benchmark.ResultComparator 旧结果.json 新结果.json [阈值百分比]
+ *
+ * @author huanglk
+ */
+public class ResultComparator {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("用法：ResultComparator 旧结果.json 新结果.json [阈值百分比]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(new File(args[0]));
+        Map<String, Result> current = read(new File(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 5.0;
+
+        int regressions = 0;
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.println(String.format("%-90s %14s -> %14.3f %-8s 新增", entry.getKey(), "-", now.score, now.unit));
+                continue;
+            }
+            double change = (now.score - before.score) / before.score * 100.0;
+            // 平均耗时这种模式，分数变大是变差
+            boolean higherIsBetter = "thrpt".equals(now.mode);
+            String verdict = "";
+            if (Math.abs(change) >= threshold) {
+                boolean better = higherIsBetter == change > 0;
+                verdict = better ? "变好" : "变差";
+                if (!better) {
+                    regressions++;
+                }
+            }
+            System.out.println(String.format("%-90s %14.3f -> %14.3f %-8s %+7.1f%% %s",
+                    entry.getKey(), before.score, now.score, now.unit, change, verdict));
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.println(String.format("%-90s 没有新的结果", key));
+            }
+        }
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * 读一个JMH的JSON结果文件，key是压测方法 + 线程数 + 参数
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Result> read(File file) throws Exception {
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        List<Object> entries = (List<Object>) new JsonParser(json).parse();
+        Map<String, Result> results = new TreeMap<>();
+        for (Object item : entries) {
+            Map<String, Object> entry = (Map<String, Object>) item;
+            // 去掉包名，只留下压测类.方法
+            String benchmark = (String) entry.get("benchmark");
+            int methodSeparator = benchmark.lastIndexOf('.');
+            StringBuilder key = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', methodSeparator - 1) + 1));
+            key.append(" threads=").append(((Number) entry.get("threads")).intValue());
+            Map<String, Object> params = (Map<String, Object>) entry.get("params");
+            if (params != null) {
+                for (Map.Entry<String, Object> param : new TreeMap<>(params).entrySet()) {
+                    key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            Map<String, Object> primaryMetric = (Map<String, Object>) entry.get("primaryMetric");
+            Result result = new Result();
+            result.mode = (String) entry.get("mode");
+            result.score = ((Number) primaryMetric.get("score")).doubleValue();
+            result.unit = (String) primaryMetric.get("scoreUnit");
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+
+    private static class Result {
+        String mode;
+        double score;
+        String unit;
+    }
+
+    /**
+     * 够读JMH结果文件用的JSON解析，对象解析成Map，数组解析成List，数字解析成Double
+     */
+    private static class JsonParser {
+
+        private final String json;
+        private int position;
+
+        JsonParser(String json) {
+            this.json = json;
+        }
+
+        Object parse() {
+            skipWhitespace();
+            char c = json.charAt(position);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<>();
+                position++;
+                skipWhitespace();
+                if (json.charAt(position) == '}') {
+                    position++;
+                    return object;
+                }
+                while (true) {
+                    skipWhitespace();
+                    String name = parseString();
+                    skipWhitespace();
+                    expect(':');
+                    object.put(name, parse());
+                    skipWhitespace();
+                    if (json.charAt(position++) == '}') {
+                        return object;
+                    }
+                }
+            }
+            if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                position++;
+                skipWhitespace();
+                if (json.charAt(position) == ']') {
+                    position++;
+                    return array;
+                }
+                while (true) {
+                    array.add(parse());
+                    skipWhitespace();
+                    if (json.charAt(position++) == ']') {
+                        return array;
+                    }
+                }
+            }
+            if (c == '"') {
+                return parseString();
+            }
+            if (json.startsWith("true", position)) {
+                position += 4;
+                return Boolean.TRUE;
+            }
+            if (json.startsWith("false", position)) {
+                position += 5;
+                return Boolean.FALSE;
+            }
+            if (json.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            int start = position;
+            while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+                position++;
+            }
+            return Double.parseDouble(json.substring(start, position));
+        }
+
+        private String parseString() {
+            expect('"');
+            StringBuilder builder = new StringBuilder();
+            while (true) {
+                char c = json.charAt(position++);
+                if (c == '"') {
+                    return builder.toString();
+                }
+                if (c == '\\') {
+                    char escaped = json.charAt(position++);
+                    switch (escaped) {
+                        case 'n':
+                            builder.append('\n');
+                            break;
+                        case 't':
+                            builder.append('\t');
+                            break;
+                        case 'r':
+                            builder.append('\r');
+                            break;
+                        case 'b':
+                            builder.append('\b');
+                            break;
+                        case 'f':
+                            builder.append('\f');
+                            break;
+                        case 'u':
+                            builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                            position += 4;
+                            break;
+                        default:
+                            builder.append(escaped);
+                            break;
+                    }
+                } else {
+                    builder.append(c);
+                }
+            }
+        }
+
+        private void expect(char expected) {
+            if (json.charAt(position) != expected) {
+                throw new IllegalArgumentException("JSON格式不对，位置" + position + "应该是" + expected);
+            }
+            position++;
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
@@ -12,6 +12,14 @@ public class Applications {
 
 	private Map<String, Map<String, ServiceInstance>> registry = 
 			new HashMap<String, Map<String, ServiceInstance>>();  
+	/**
+	 * 这份注册表对应的服务端注册表版本号
+	 */
+	private Long version = 0L;
+	/**
+	 * 本地维护的每个服务的指纹，合并增量的时候跟着更新，不在网络上传输
+	 */
+	private Map<String, Long> fingerprints = new HashMap<String, Long>();
 
 	public Applications() {
 		
@@ -27,5 +35,17 @@ public class Applications {
 	public void setRegistry(Map<String, Map<String, ServiceInstance>> registry) {
 		this.registry = registry;
 	}
+	public Long getVersion() {
+		return version;
+	}
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+	public Map<String, Long> getFingerprints() {
+		return fingerprints;
+	}
+	public void setFingerprints(Map<String, Long> fingerprints) {
+		this.fingerprints = fingerprints;
+	}
 	
 }
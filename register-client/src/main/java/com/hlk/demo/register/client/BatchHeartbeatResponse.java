@@ -0,0 +1,35 @@
+package com.hlk.demo.register.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量心跳响应
+ * @author huanglk
+ *
+ */
+public class BatchHeartbeatResponse {
+
+	/**
+	 * 每个服务实例的心跳结果：SUCCESS、FAILURE，顺序跟请求里的一致
+	 */
+	private List<String> statuses = new ArrayList<String>();
+	/**
+	 * 续约成功的服务实例数量
+	 */
+	private int successCount;
+	
+	public List<String> getStatuses() {
+		return statuses;
+	}
+	public void setStatuses(List<String> statuses) {
+		this.statuses = statuses;
+	}
+	public int getSuccessCount() {
+		return successCount;
+	}
+	public void setSuccessCount(int successCount) {
+		this.successCount = successCount;
+	}
+	
+}
@@ -1,8 +1,12 @@
 package com.hlk.demo.register.client;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicStampedReference;
 
@@ -13,9 +17,9 @@ import java.util.concurrent.atomic.AtomicStampedReference;
  */
 public class CachedServiceRegistry {
     /**
-     * 服务注册表拉取间隔时间
+     * 监听注册表变更的超时时间，没有变更的话服务端最多挂住请求这么久
      */
-    private static final Long SERVICE_REGISTRY_FETCH_INTERVAL = 30 * 1000L;
+    private static final Long SERVICE_REGISTRY_WATCH_TIMEOUT = 30 * 1000L;
     /**
      * 客户端缓存的所有的服务实例的信息
      */
@@ -45,11 +49,18 @@ public class CachedServiceRegistry {
      */
     private AtomicLong applicationsVersion = new AtomicLong(0L);
 
+    /**
+     * 订阅的服务名称，本地只缓存这几个服务，为空的话就是所有服务
+     */
+    private List<String> subscribedServiceNames;
+
     public CachedServiceRegistry(RegisterClient registerClient,
-                                 HttpSender httpSender) {
+                                 HttpSender httpSender,
+                                 List<String> subscribedServiceNames) {
         this.fetchDeltaRegistryWorker = new FetchDeltaRegistryWorker();
         this.registerClient = registerClient;
         this.httpSender = httpSender;
+        this.subscribedServiceNames = subscribedServiceNames;
         this.applications = new AtomicStampedReference<Applications>(new Applications(), 0);
     }
 
@@ -111,7 +122,12 @@ public class CachedServiceRegistry {
      */
     private void fetchFullRegistry() {
         Long expectedVersion = applicationsVersion.get(); // version = 0
-        Applications fetchedApplications = httpSender.fetchFullRegistry();
+        Applications fetchedApplications = fetchFullRegistryIfModified();
+        // 服务端的注册表跟本地的版本一样，不用替换
+        if (fetchedApplications == null) {
+            return;
+        }
+        computeFingerprints(fetchedApplications);
 
         if(applicationsVersion.compareAndSet(expectedVersion, expectedVersion + 1)) { // version = 1
             while(true) {
@@ -126,9 +142,36 @@ public class CachedServiceRegistry {
     }
 
 
+    /**
+     * 拉取全量注册表，本地注册表的版本号跟服务端一样的话返回null
+     *
+     * 没有订阅部分服务的话走压缩过的全量注册表，带上本地的版本号，没有变化的话服务端响应是空的；
+     * 订阅了部分服务的话数据量本来就不大，还是走原来的接口
+     * 校对不一致、增量有断层的时候本地的数据已经不可信了，不能走这里，要无条件重新拉
+     */
+    private Applications fetchFullRegistryIfModified() {
+        if (subscribedServiceNames == null || subscribedServiceNames.isEmpty()) {
+            return httpSender.fetchCompressedFullRegistry(applications.getReference().getVersion());
+        }
+        return httpSender.fetchFullRegistry(subscribedServiceNames);
+    }
+
+    /**
+     * 无条件拉取全量注册表，没有订阅部分服务的话还是走压缩过的全量注册表，版本号传-1
+     */
+    private Applications fetchFullRegistryUnconditionally() {
+        if (subscribedServiceNames == null || subscribedServiceNames.isEmpty()) {
+            return httpSender.fetchCompressedFullRegistry(-1L);
+        }
+        return httpSender.fetchFullRegistry(subscribedServiceNames);
+    }
+
     /**
      * 增量拉取注册表的后台线程
      *
+     * 不再是每隔30秒拉一次，而是一直挂着一个监听请求：服务端有了本地版本号之后的变更就马上响应，
+     * 没有变更的话服务端等到超时再响应一个空的增量，客户端收到响应之后马上发起下一次监听
+     *
      * @author huanglk
      */
     private class FetchDeltaRegistryWorker extends Thread {
@@ -136,13 +179,27 @@ public class CachedServiceRegistry {
         public void run() {
             while (registerClient.isRunning()) {
                 try {
-                    Thread.sleep(SERVICE_REGISTRY_FETCH_INTERVAL);
-
-                    // 拉取回来的是最近3分钟变化的服务实例
                     // 先拉了一个增量注册表，发现跟本地合并之后，条数不对
                     Long expectedVersion = applicationsVersion.get();
-                    DeltaRegistry deltaRegistry = httpSender.fetchDeltaRegistry();
+                    // 只拉本地注册表版本号之后的变更
+                    long localVersion = applications.getReference().getVersion();
+                    WatchRequest watchRequest = new WatchRequest();
+                    watchRequest.setSinceVersion(localVersion);
+                    watchRequest.setTimeout(SERVICE_REGISTRY_WATCH_TIMEOUT);
+                    watchRequest.setServiceNames(subscribedServiceNames);
+                    DeltaRegistry deltaRegistry = httpSender.watch(watchRequest);
+                    // 超时了，这段时间里注册表没有变更
+                    if (!deltaRegistry.getGap() && deltaRegistry.getVersion() == localVersion) {
+                        continue;
+                    }
                     if(applicationsVersion.compareAndSet(expectedVersion, expectedVersion + 1)) {
+                        // 服务端已经把本地版本号之后的一部分变更摘除掉了，增量合并不上，直接拉全量
+                        // 本地的版本号已经接不上了，不能带着它问服务端有没有变化，不然拿到的是null，
+                        // 下一次监听还是从同一个版本号开始，马上又是断层
+                        if (deltaRegistry.getGap()) {
+                            replaceApplications(fetchFullRegistryUnconditionally());
+                            continue;
+                        }
                         // 一类是注册，一类是删除
                         // 如果是注册的话，就判断一下这个服务实例是否在这个本地缓存的注册表中
                         // 如果不在的话，就放到本地缓存注册表里去
@@ -165,9 +222,18 @@ public class CachedServiceRegistry {
     /**
      * 校对调整注册表
      *
+     * 服务端给了指纹的话，比对本地合并完增量之后的指纹，对不上的话再按服务比对指纹，
+     * 只重新拉取指纹不一样的那几个服务；一增一减这种数量对得上、内容对不上的情况也能发现
+     * 老版本的服务端没有指纹，还是比对服务实例的数量，对不上就重新拉全量注册表
+     *
      * @param deltaRegistry
      */
     private void reconcileRegistry(DeltaRegistry deltaRegistry) {
+        if (deltaRegistry.getFingerprint() != null) {
+            reconcileFingerprints(deltaRegistry.getFingerprint());
+            return;
+        }
+
         Map<String, Map<String, ServiceInstance>> registry =
                 applications.getReference().getRegistry();
 
@@ -180,18 +246,116 @@ public class CachedServiceRegistry {
 
         if (!serverSideTotalCount.equals(clientSideTotalCount)) {
             // 重新拉取全量注册表进行纠正
-            Applications fetchedApplications = httpSender.fetchFullRegistry();
-            while (true) {
-                Applications expectedApplications = applications.getReference();
-                int expectedStamp = applications.getStamp();
-                if(applications.compareAndSet(expectedApplications, fetchedApplications,
-                        expectedStamp, expectedStamp + 1)) {
-                    break;
+            replaceApplications(httpSender.fetchFullRegistry(subscribedServiceNames));
+        }
+    }
+
+    /**
+     * 按服务比对指纹，只重新拉取不一致的服务
+     *
+     * @param serverSideFingerprint 服务端的指纹
+     */
+    private void reconcileFingerprints(long serverSideFingerprint) {
+        long clientSideFingerprint = 0L;
+        for (Long fingerprint : applications.getReference().getFingerprints().values()) {
+            clientSideFingerprint += fingerprint;
+        }
+        if (clientSideFingerprint == serverSideFingerprint) {
+            return;
+        }
+
+        // 服务端的指纹可能比这次增量更新一点，多拉几个刚刚变过的服务也没关系，下一次增量会再合并一遍
+        Map<String, Long> serverSideFingerprints =
+                httpSender.fetchServiceFingerprints(subscribedServiceNames).getFingerprints();
+        Map<String, Long> clientSideFingerprints = applications.getReference().getFingerprints();
+        Set<String> serviceNames = new HashSet<String>(serverSideFingerprints.keySet());
+        serviceNames.addAll(clientSideFingerprints.keySet());
+
+        List<String> mismatchedServiceNames = new ArrayList<String>();
+        for (String serviceName : serviceNames) {
+            Long serverSide = serverSideFingerprints.get(serviceName);
+            Long clientSide = clientSideFingerprints.get(serviceName);
+            if (!(serverSide == null ? clientSide == null : serverSide.equals(clientSide))) {
+                mismatchedServiceNames.add(serviceName);
+            }
+        }
+        if (mismatchedServiceNames.isEmpty()) {
+            return;
+        }
+
+        System.out.println("本地缓存的注册表跟服务端不一致，重新拉取这几个服务：" + mismatchedServiceNames);
+        replaceServices(mismatchedServiceNames, httpSender.fetchFullRegistry(mismatchedServiceNames));
+    }
+
+    /**
+     * 用拉取回来的这几个服务替换掉本地缓存里的这几个服务，其他服务不动
+     *
+     * @param serviceNames        要替换的服务
+     * @param fetchedApplications 拉取回来的这几个服务的注册表
+     */
+    private void replaceServices(List<String> serviceNames, Applications fetchedApplications) {
+        synchronized (applications) {
+            Map<String, Map<String, ServiceInstance>> registry =
+                    applications.getReference().getRegistry();
+            Map<String, Long> fingerprints = applications.getReference().getFingerprints();
+            for (String serviceName : serviceNames) {
+                Map<String, ServiceInstance> fetched = fetchedApplications.getRegistry().get(serviceName);
+                if (fetched == null || fetched.isEmpty()) {
+                    registry.remove(serviceName);
+                    fingerprints.remove(serviceName);
+                } else {
+                    registry.put(serviceName, new HashMap<String, ServiceInstance>(fetched));
+                    fingerprints.put(serviceName, RegistryFingerprint.fingerprint(fetched));
                 }
             }
         }
     }
 
+    /**
+     * 算出注册表里每个服务的指纹
+     *
+     * @param applications
+     */
+    private void computeFingerprints(Applications applications) {
+        Map<String, Long> fingerprints = new HashMap<String, Long>();
+        for (Map.Entry<String, Map<String, ServiceInstance>> entry : applications.getRegistry().entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                fingerprints.put(entry.getKey(), RegistryFingerprint.fingerprint(entry.getValue()));
+            }
+        }
+        applications.setFingerprints(fingerprints);
+    }
+
+    /**
+     * 服务的指纹加上一个增量，加完是0的话说明服务已经没有服务实例了
+     */
+    private void addFingerprint(Map<String, Long> fingerprints, String serviceName, long fingerprintDelta) {
+        Long fingerprint = fingerprints.get(serviceName);
+        long updated = (fingerprint == null ? 0L : fingerprint) + fingerprintDelta;
+        if (updated == 0L) {
+            fingerprints.remove(serviceName);
+        } else {
+            fingerprints.put(serviceName, updated);
+        }
+    }
+
+    /**
+     * 用拉取回来的全量注册表替换掉本地缓存的注册表
+     *
+     * @param fetchedApplications
+     */
+    private void replaceApplications(Applications fetchedApplications) {
+        computeFingerprints(fetchedApplications);
+        while (true) {
+            Applications expectedApplications = applications.getReference();
+            int expectedStamp = applications.getStamp();
+            if(applications.compareAndSet(expectedApplications, fetchedApplications,
+                    expectedStamp, expectedStamp + 1)) {
+                break;
+            }
+        }
+    }
+
     /**
      * 合并增量注册表到本地缓存注册表里去
      *
@@ -201,6 +365,7 @@ public class CachedServiceRegistry {
         synchronized (applications) {
             Map<String, Map<String, ServiceInstance>> registry =
                     applications.getReference().getRegistry();
+            Map<String, Long> fingerprints = applications.getReference().getFingerprints();
 
             LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue =
                     deltaRegistry.getRecentlyChangedQueue();
@@ -217,22 +382,27 @@ public class CachedServiceRegistry {
                         registry.put(serviceName, serviceInstanceMap);
                     }
 
-                    ServiceInstance serviceInstance = serviceInstanceMap.get(serviceInstanceId);
-                    if (serviceInstance == null) {
-                        serviceInstanceMap.put(serviceInstanceId,
-                                recentlyChangedItem.serviceInstance);
-                    }
+                    // 重复注册的话用新的服务实例信息覆盖掉老的，跟服务端保持一致
+                    ServiceInstance previous = serviceInstanceMap.put(serviceInstanceId,
+                            recentlyChangedItem.serviceInstance);
+                    addFingerprint(fingerprints, serviceName, RegistryFingerprint.hash(recentlyChangedItem.serviceInstance)
+                            - (previous == null ? 0L : RegistryFingerprint.hash(previous)));
                 }
 
                 // 如果是删除操作的话
                 else if (ServiceInstanceOperation.REMOVE.equals(
                         recentlyChangedItem.serviceInstanceOperation)) {
                     Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
-                    if (serviceInstanceMap != null) {
-                        serviceInstanceMap.remove(serviceInstanceId);
+                    ServiceInstance removed = serviceInstanceMap == null
+                            ? null : serviceInstanceMap.remove(serviceInstanceId);
+                    if (removed != null) {
+                        addFingerprint(fingerprints, serviceName, -RegistryFingerprint.hash(removed));
                     }
                 }
             }
+
+            // 合并完之后，本地注册表就跟上了服务端的这个版本
+            applications.getReference().setVersion(deltaRegistry.getVersion());
         }
     }
 
@@ -290,7 +460,7 @@ public class CachedServiceRegistry {
         /**
          * 删除
          */
-        public static final String REMOVE = "REMOVE";
+        public static final String REMOVE = "remove";
 
     }
 
@@ -13,6 +13,18 @@ public class DeltaRegistry {
 
 	private LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue;
 	private Long serviceInstanceTotalCount;
+	/**
+	 * 增量注册表对应的注册表版本号，下一次从这个版本号开始拉增量
+	 */
+	private Long version;
+	/**
+	 * 给出的版本号之后的变更是否有一部分已经被服务端摘除了，是的话需要重新拉全量注册表
+	 */
+	private Boolean gap = false;
+	/**
+	 * 这个版本号的注册表（只订阅了部分服务的话就是这几个服务）的指纹，老版本的服务端没有
+	 */
+	private Long fingerprint;
 	
 	public DeltaRegistry(LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue,
                          Long serviceInstanceTotalCount) {
@@ -32,5 +44,23 @@ public class DeltaRegistry {
 	public void setServiceInstanceTotalCount(Long serviceInstanceTotalCount) {
 		this.serviceInstanceTotalCount = serviceInstanceTotalCount;
 	}
+	public Long getVersion() {
+		return version;
+	}
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+	public Boolean getGap() {
+		return gap;
+	}
+	public void setGap(Boolean gap) {
+		this.gap = gap;
+	}
+	public Long getFingerprint() {
+		return fingerprint;
+	}
+	public void setFingerprint(Long fingerprint) {
+		this.fingerprint = fingerprint;
+	}
 	
 }
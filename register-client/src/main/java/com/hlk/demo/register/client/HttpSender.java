@@ -1,7 +1,10 @@
 package com.hlk.demo.register.client;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import com.hlk.demo.register.client.CachedServiceRegistry.RecentlyChangedServiceInstance;
 
@@ -45,11 +48,30 @@ public class HttpSender {
 	}
 
 
+	/**
+	 * 发送批量心跳请求
+	 * @param request
+	 * @return
+	 */
+	public BatchHeartbeatResponse batchHeartbeat(BatchHeartbeatRequest request) { 
+		System.out.println("批量发送心跳，服务实例数量：" + request.getHeartbeatRequests().size());  
+		
+		BatchHeartbeatResponse response = new BatchHeartbeatResponse();
+		for (int i = 0; i < request.getHeartbeatRequests().size(); i++) {
+			response.getStatuses().add(HeartbeatResponse.SUCCESS);
+		}
+		response.setSuccessCount(request.getHeartbeatRequests().size());
+		
+		return response;
+	}
+
+
 	/**
 	 * 拉取服务注册表
+	 * @param serviceNames 订阅的服务名称，服务端只返回这几个服务，为空的话就是所有服务
 	 * @return
 	 */
-	public Applications fetchFullRegistry() {
+	public Applications fetchFullRegistry(List<String> serviceNames) {
 		Map<String, Map<String, ServiceInstance>> registry =
 				new HashMap<String, Map<String, ServiceInstance>>();
 
@@ -63,18 +85,38 @@ public class HttpSender {
 		Map<String, ServiceInstance> serviceInstances = new HashMap<String, ServiceInstance>();
 		serviceInstances.put("FINANCE-SERVICE-192.168.31.207:9000", serviceInstance);
 
-		registry.put("FINANCE-SERVICE", serviceInstances);
+		if (isSubscribed(serviceNames, "FINANCE-SERVICE")) {
+			registry.put("FINANCE-SERVICE", serviceInstances);
+		}
 
 		System.out.println("拉取注册表：" + registry);
 
-		return new Applications(registry);
+		Applications applications = new Applications(registry);
+		applications.setVersion(1L);
+		return applications;
+	}
+
+	/**
+	 * 拉取gzip压缩过的全量注册表
+	 * 服务端响应的是MessageCodec.encodeCompressedApplications()压缩过的数据，
+	 * 手上的版本号跟服务端一样的话响应是空的，不用再下载一遍
+	 * @param version 手上的全量注册表的版本号，没有的话传-1
+	 * @return 服务端的全量注册表没有变化的话返回null
+	 */
+	public Applications fetchCompressedFullRegistry(long version) {
+		Applications applications = fetchFullRegistry(new ArrayList<String>());
+		byte[] response = applications.getVersion() == version
+				? new byte[0] : MessageCodec.encodeCompressedApplications(applications);
+		System.out.println("拉取压缩过的全量注册表，本地版本号：" + version + "，响应" + response.length + "字节");
+		return MessageCodec.decodeCompressedApplications(ByteBuffer.wrap(response));
 	}
 
 	/**
 	 * 增量拉取服务注册表
+	 * @param request 本地已经拿到的注册表版本号，以及订阅的服务名称
 	 * @return
 	 */
-	public DeltaRegistry fetchDeltaRegistry() {
+	public DeltaRegistry fetchDeltaRegistry(FetchDeltaRegistryRequest request) {
 		LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue =
 				new LinkedList<RecentlyChangedServiceInstance>();
 
@@ -90,15 +132,94 @@ public class HttpSender {
 				System.currentTimeMillis(),
 				"register");
 
-		recentlyChangedQueue.add(recentlyChangedItem);
+		if (isSubscribed(request.getServiceNames(), "ORDER-SERVICE")) {
+			recentlyChangedQueue.add(recentlyChangedItem);
+		}
 
 		System.out.println("拉取增量注册表：" + recentlyChangedQueue);
 
 		DeltaRegistry deltaRegistry = new DeltaRegistry(recentlyChangedQueue, 2L);
+		deltaRegistry.setVersion(request.getSinceVersion() + 1);
 
 		return deltaRegistry;
 	}
 
+	/**
+	 * 拉取每个服务的指纹
+	 * @param serviceNames 订阅的服务名称，为空的话就是所有服务
+	 * @return
+	 */
+	public ServiceFingerprints fetchServiceFingerprints(List<String> serviceNames) {
+		Applications applications = fetchFullRegistry(serviceNames);
+
+		Map<String, Long> fingerprints = new HashMap<String, Long>();
+		for (Map.Entry<String, Map<String, ServiceInstance>> entry : applications.getRegistry().entrySet()) {
+			fingerprints.put(entry.getKey(), RegistryFingerprint.fingerprint(entry.getValue()));
+		}
+
+		System.out.println("拉取服务的指纹：" + fingerprints);
+
+		return new ServiceFingerprints(applications.getVersion(), fingerprints);
+	}
+
+	/**
+	 * 按条件查询一个服务的服务实例
+	 * 服务端用索引找出满足条件的服务实例，响应里只带上查询里指定的字段
+	 * @param query 查询条件
+	 * @return
+	 */
+	public ServiceInstanceQueryResult queryServiceInstances(ServiceInstanceQuery query) {
+		byte[] request = MessageCodec.encodeServiceInstanceQuery(query);
+
+		// 模拟服务端：这个服务在两个机房各有一个服务实例
+		ServiceInstanceQueryResult result = new ServiceInstanceQueryResult();
+		result.setVersion(1L);
+		result.setServiceName(query.getServiceName());
+		result.setFields(query.getFields());
+		for (int i = 1; i <= 2; i++) {
+			ServiceInstance serviceInstance = new ServiceInstance();
+			serviceInstance.setServiceName(query.getServiceName());
+			serviceInstance.setHostname("order-service-0" + i);
+			serviceInstance.setIp("192.168.31.20" + i);
+			serviceInstance.setPort(9000);
+			serviceInstance.setServiceInstanceId(query.getServiceName() + "-192.168.31.20" + i + ":9000");
+			serviceInstance.setZone("zone-" + (i == 1 ? "a" : "b"));
+			serviceInstance.setVersion("1.0");
+			if (query.matches(serviceInstance)) {
+				result.getServiceInstances().add(serviceInstance);
+			}
+		}
+		byte[] response = MessageCodec.encodeServiceInstanceQueryResult(result);
+
+		System.out.println("按条件查询服务实例：" + query + "，请求" + request.length + "字节，响应" + response.length + "字节");
+		return MessageCodec.decodeServiceInstanceQueryResult(ByteBuffer.wrap(response));
+	}
+
+	/**
+	 * 监听注册表的变更
+	 * 服务端会挂住这个请求，注册表比本地的版本号新了才响应，一直没有变更的话等到超时再响应
+	 * @param request 监听请求
+	 * @return 本地版本号之后的增量注册表，超时的话里面没有变更
+	 */
+	public DeltaRegistry watch(WatchRequest request) throws InterruptedException {
+		System.out.println("监听注册表变更，本地版本号：" + request.getSinceVersion());
+
+		// 模拟服务端挂住请求，过了一会儿注册表有了变更
+		Thread.sleep(Math.min(request.getTimeout(), 1000L));
+
+		FetchDeltaRegistryRequest fetchDeltaRegistryRequest = new FetchDeltaRegistryRequest();
+		fetchDeltaRegistryRequest.setSinceVersion(request.getSinceVersion());
+		fetchDeltaRegistryRequest.setServiceNames(request.getServiceNames());
+		return fetchDeltaRegistry(fetchDeltaRegistryRequest);
+	}
+
+	/**
+	 * 是否订阅了这个服务
+	 */
+	private boolean isSubscribed(List<String> serviceNames, String serviceName) {
+		return serviceNames.isEmpty() || serviceNames.contains(serviceName);
+	}
+
 	/**
 	 * 服务下线
 	 * @param serviceName 服务名称
@@ -0,0 +1,986 @@
+package com.hlk.demo.register.client;
+
+import com.hlk.demo.register.client.CachedServiceRegistry.RecentlyChangedServiceInstance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 消息体的二进制编解码，register-server里有一份一样的实现，两边的格式要保持一致
+ *
+ * 整数：无符号varint，7位一组，小端，最高位表示后面还有没有字节；可能是负数的long先做zigzag
+ * 字符串：varint(utf-8字节数 + 1) + utf-8字节，0表示null
+ * 服务名称、变更操作这种在一个消息里反复出现的字符串走字符串表：
+ *     varint 0表示null，1表示新字符串（后面跟一个字符串，同时按出现顺序编号），n>=2表示引用第n-2个字符串
+ * ip地址：合法的ipv4地址写1字节标记4 + 4字节的int，其他的写1字节标记0 + 字符串
+ * 状态：1字节，1是success，2是failure，0是null，3后面跟一个字符串
+ * 服务实例的属性：1字节的标志位，低2位是服务实例的状态，另外3位表示后面有没有机房、版本标签、元数据，
+ *     机房和版本标签走字符串表，元数据是varint(个数) + 每一项的key（字符串表）和value；
+ *     没有机房、版本标签、元数据的UP的服务实例只多1个字节。注册请求的属性放在最后，老的客户端可以不带
+ * 查询服务实例的结果：每个服务实例只写查询里指定的那几个字段
+ * 压缩过的全量注册表：整个全量注册表的编码结果再做一次gzip
+ *
+ * 解码直接在传进来的ByteBuffer上读，不会先把消息体拷贝成byte[]，
+ * 字符串直接从ByteBuffer底层的数组构造
+ *
+ * @author huanglk
+ */
+public class MessageCodec {
+
+    private static final String SUCCESS = "success";
+    private static final String FAILURE = "failure";
+
+    private static final byte STATUS_NULL = 0;
+    private static final byte STATUS_SUCCESS = 1;
+    private static final byte STATUS_FAILURE = 2;
+    private static final byte STATUS_OTHER = 3;
+
+    private static final byte IP_STRING = 0;
+    private static final byte IP_V4 = 4;
+
+    private static final int ATTRIBUTE_STATUS_MASK = 0x03;
+    private static final int ATTRIBUTE_ZONE = 0x04;
+    private static final int ATTRIBUTE_VERSION = 0x08;
+    private static final int ATTRIBUTE_METADATA = 0x10;
+
+    /**
+     * 解码出来的服务名称在整个进程里共用一个String对象，
+     * 服务名称的数量是有限的，超过这个数量就不再缓存了，防止异常数据把内存撑爆
+     */
+    private static final int MAX_INTERNED_STRINGS = 64 * 1024;
+    private static final ConcurrentHashMap<String, String> INTERNED_STRINGS = new ConcurrentHashMap<>();
+
+    public static byte[] encodeRegisterRequest(RegisterRequest request) {
+        Output output = new Output(64);
+        output.writeInternedString(request.getServiceName());
+        output.writeIp(request.getIp());
+        output.writeString(request.getHostname());
+        output.writeVarInt(request.getPort());
+        output.writeString(request.getServiceInstanceId());
+        writeAttributes(output, request.getStatus(), request.getZone(), request.getVersion(), request.getMetadata());
+        return output.toByteArray();
+    }
+
+    public static RegisterRequest decodeRegisterRequest(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        RegisterRequest request = new RegisterRequest();
+        request.setServiceName(input.readInternedString());
+        request.setIp(input.readIp());
+        request.setHostname(input.readString());
+        request.setPort(input.readVarInt());
+        request.setServiceInstanceId(input.readString());
+        if (input.hasRemaining()) {
+            readAttributes(input, request);
+        }
+        return request;
+    }
+
+    public static byte[] encodeRegisterResponse(RegisterResponse response) {
+        Output output = new Output(24);
+        output.writeStatus(response.getStatus());
+        // 被限流的时候才带上建议的重试间隔
+        if (response.getRetryAfter() > 0) {
+            output.writeVarLong(response.getRetryAfter());
+        }
+        return output.toByteArray();
+    }
+
+    public static RegisterResponse decodeRegisterResponse(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        RegisterResponse response = new RegisterResponse();
+        response.setStatus(input.readStatus());
+        if (input.hasRemaining()) {
+            response.setRetryAfter(input.readVarLong());
+        }
+        return response;
+    }
+
+    public static byte[] encodeHeartbeatRequest(HeartbeatRequest request) {
+        Output output = new Output(48);
+        output.writeInternedString(request.getServiceName());
+        output.writeString(request.getServiceInstanceId());
+        return output.toByteArray();
+    }
+
+    public static HeartbeatRequest decodeHeartbeatRequest(ByteBuffer buffer) {
+        return readHeartbeatRequest(new Input(buffer));
+    }
+
+    public static byte[] encodeHeartbeatResponse(HeartbeatResponse response) {
+        Output output = new Output(8);
+        output.writeStatus(response.getStatus());
+        return output.toByteArray();
+    }
+
+    public static HeartbeatResponse decodeHeartbeatResponse(ByteBuffer buffer) {
+        HeartbeatResponse response = new HeartbeatResponse();
+        response.setStatus(new Input(buffer).readStatus());
+        return response;
+    }
+
+    public static byte[] encodeBatchHeartbeatRequest(BatchHeartbeatRequest request) {
+        List<HeartbeatRequest> heartbeatRequests = request.getHeartbeatRequests();
+        Output output = new Output(16 + heartbeatRequests.size() * 32);
+        output.writeVarInt(heartbeatRequests.size());
+        for (HeartbeatRequest heartbeatRequest : heartbeatRequests) {
+            output.writeInternedString(heartbeatRequest.getServiceName());
+            output.writeString(heartbeatRequest.getServiceInstanceId());
+        }
+        return output.toByteArray();
+    }
+
+    public static BatchHeartbeatRequest decodeBatchHeartbeatRequest(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        int count = input.readCount();
+        List<HeartbeatRequest> heartbeatRequests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            heartbeatRequests.add(readHeartbeatRequest(input));
+        }
+        return new BatchHeartbeatRequest(heartbeatRequests);
+    }
+
+    public static byte[] encodeBatchHeartbeatResponse(BatchHeartbeatResponse response) {
+        List<String> statuses = response.getStatuses();
+        Output output = new Output(16 + statuses.size());
+        output.writeVarInt(response.getSuccessCount());
+        output.writeVarInt(statuses.size());
+        for (String status : statuses) {
+            output.writeStatus(status);
+        }
+        return output.toByteArray();
+    }
+
+    public static BatchHeartbeatResponse decodeBatchHeartbeatResponse(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        BatchHeartbeatResponse response = new BatchHeartbeatResponse();
+        response.setSuccessCount(input.readVarInt());
+        int count = input.readCount();
+        List<String> statuses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            statuses.add(input.readStatus());
+        }
+        response.setStatuses(statuses);
+        return response;
+    }
+
+    public static byte[] encodeApplications(Applications applications) {
+        Map<String, Map<String, ServiceInstance>> registry = applications.getRegistry();
+        Output output = new Output(256);
+        output.writeVarLong(applications.getVersion());
+        output.writeVarInt(registry.size());
+        for (Map.Entry<String, Map<String, ServiceInstance>> entry : registry.entrySet()) {
+            output.writeInternedString(entry.getKey());
+            output.writeVarInt(entry.getValue().size());
+            for (ServiceInstance serviceInstance : entry.getValue().values()) {
+                writeServiceInstance(output, serviceInstance);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    public static Applications decodeApplications(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        long version = input.readVarLong();
+        int serviceCount = input.readCount();
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>(serviceCount * 4 / 3 + 1);
+        for (int i = 0; i < serviceCount; i++) {
+            String serviceName = input.readInternedString();
+            int instanceCount = input.readCount();
+            Map<String, ServiceInstance> serviceInstanceMap = new HashMap<>(instanceCount * 4 / 3 + 1);
+            for (int j = 0; j < instanceCount; j++) {
+                ServiceInstance serviceInstance = readServiceInstance(input);
+                serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+            }
+            registry.put(serviceName, serviceInstanceMap);
+        }
+        Applications applications = new Applications(registry);
+        applications.setVersion(version);
+        return applications;
+    }
+
+    public static byte[] encodeDeltaRegistry(DeltaRegistry deltaRegistry) {
+        LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue = deltaRegistry.getRecentlyChangedQueue();
+        Output output = new Output(32 + recentlyChangedQueue.size() * 64);
+        output.writeVarLong(deltaRegistry.getVersion());
+        output.writeBoolean(deltaRegistry.getGap());
+        output.writeVarLong(deltaRegistry.getServiceInstanceTotalCount());
+        output.writeVarInt(recentlyChangedQueue.size());
+        for (RecentlyChangedServiceInstance recentlyChangedItem : recentlyChangedQueue) {
+            // 客户端的变更记录里没有每一条变更的版本号，这个字段只有服务端会填
+            output.writeVarLong(0L);
+            output.writeVarLong(recentlyChangedItem.changedTimestamp);
+            output.writeInternedString(recentlyChangedItem.serviceInstanceOperation);
+            writeServiceInstance(output, recentlyChangedItem.serviceInstance);
+        }
+        // 指纹放在最后，没有指纹的话就不写
+        if (deltaRegistry.getFingerprint() != null) {
+            output.writeLong(deltaRegistry.getFingerprint());
+        }
+        return output.toByteArray();
+    }
+
+    public static DeltaRegistry decodeDeltaRegistry(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        long version = input.readVarLong();
+        boolean gap = input.readBoolean();
+        long totalCount = input.readVarLong();
+        int count = input.readCount();
+        LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            // 每一条变更的版本号，客户端只用整个增量注册表的版本号，这里跳过
+            input.readVarLong();
+            long changedTimestamp = input.readVarLong();
+            String serviceInstanceOperation = input.readInternedString();
+            ServiceInstance serviceInstance = readServiceInstance(input);
+            recentlyChangedQueue.add(new RecentlyChangedServiceInstance(
+                    serviceInstance, changedTimestamp, serviceInstanceOperation));
+        }
+        DeltaRegistry deltaRegistry = new DeltaRegistry(recentlyChangedQueue, totalCount);
+        deltaRegistry.setVersion(version);
+        deltaRegistry.setGap(gap);
+        if (input.hasRemaining()) {
+            deltaRegistry.setFingerprint(input.readLong());
+        }
+        return deltaRegistry;
+    }
+
+    /**
+     * 拉取全量注册表的请求：客户端订阅的服务名称，消息体为空表示所有服务
+     */
+    public static byte[] encodeServiceNames(List<String> serviceNames) {
+        Output output = new Output(4 + serviceNames.size() * 24);
+        writeServiceNames(output, serviceNames);
+        return output.toByteArray();
+    }
+
+    public static List<String> decodeServiceNames(ByteBuffer buffer) {
+        return readServiceNames(new Input(buffer));
+    }
+
+    /**
+     * 拉取增量注册表的请求，只有版本号没有服务名称的消息体跟encodeLong()编码出来的一样
+     */
+    public static byte[] encodeFetchDeltaRegistryRequest(FetchDeltaRegistryRequest request) {
+        Output output = new Output(16 + request.getServiceNames().size() * 24);
+        output.writeZigZagLong(request.getSinceVersion());
+        writeServiceNames(output, request.getServiceNames());
+        return output.toByteArray();
+    }
+
+    public static FetchDeltaRegistryRequest decodeFetchDeltaRegistryRequest(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        FetchDeltaRegistryRequest request = new FetchDeltaRegistryRequest();
+        request.setSinceVersion(input.readZigZagLong());
+        request.setServiceNames(readServiceNames(input));
+        return request;
+    }
+
+    public static byte[] encodeWatchRequest(WatchRequest request) {
+        Output output = new Output(24 + request.getServiceNames().size() * 24);
+        output.writeZigZagLong(request.getSinceVersion());
+        output.writeVarLong(request.getTimeout());
+        writeServiceNames(output, request.getServiceNames());
+        return output.toByteArray();
+    }
+
+    public static WatchRequest decodeWatchRequest(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        WatchRequest request = new WatchRequest();
+        request.setSinceVersion(input.readZigZagLong());
+        request.setTimeout(input.readVarLong());
+        request.setServiceNames(readServiceNames(input));
+        return request;
+    }
+
+    public static byte[] encodeServiceFingerprints(ServiceFingerprints serviceFingerprints) {
+        Map<String, Long> fingerprints = serviceFingerprints.getFingerprints();
+        Output output = new Output(16 + fingerprints.size() * 32);
+        output.writeVarLong(serviceFingerprints.getVersion());
+        output.writeVarInt(fingerprints.size());
+        for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+            output.writeInternedString(entry.getKey());
+            output.writeLong(entry.getValue());
+        }
+        return output.toByteArray();
+    }
+
+    public static ServiceFingerprints decodeServiceFingerprints(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        long version = input.readVarLong();
+        int count = input.readCount();
+        Map<String, Long> fingerprints = new HashMap<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            fingerprints.put(input.readInternedString(), input.readLong());
+        }
+        return new ServiceFingerprints(version, fingerprints);
+    }
+
+    /**
+     * 全量注册表的编码结果再做一次gzip
+     */
+    public static byte[] encodeCompressedApplications(Applications applications) {
+        byte[] encoded = encodeApplications(applications);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(encoded);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return 消息体是空的表示服务端的全量注册表跟客户端手上的一样，返回null
+     */
+    public static Applications decodeCompressedApplications(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        byte[] compressed = new byte[buffer.remaining()];
+        buffer.get(compressed);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.length * 4);
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] chunk = new byte[8192];
+            int length;
+            while ((length = gzip.read(chunk)) > 0) {
+                bytes.write(chunk, 0, length);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("非法的压缩注册表", e);
+        }
+        return decodeApplications(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    public static byte[] encodeServiceInstanceQuery(ServiceInstanceQuery query) {
+        Output output = new Output(64);
+        output.writeInternedString(query.getServiceName());
+        output.writeByte(query.getStatus());
+        output.writeString(query.getZone());
+        output.writeString(query.getVersion());
+        writeMetadata(output, query.getMetadata());
+        output.writeVarInt(query.getFields());
+        return output.toByteArray();
+    }
+
+    public static ServiceInstanceQuery decodeServiceInstanceQuery(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        ServiceInstanceQuery query = new ServiceInstanceQuery();
+        query.setServiceName(input.readInternedString());
+        query.setStatus(input.readByte());
+        query.setZone(input.readString());
+        query.setVersion(input.readString());
+        query.setMetadata(readMetadata(input));
+        query.setFields(input.readVarInt());
+        return query;
+    }
+
+    /**
+     * 每个服务实例只写查询里指定的字段，服务名称在整个结果的开头写一次
+     */
+    public static byte[] encodeServiceInstanceQueryResult(ServiceInstanceQueryResult result) {
+        List<ServiceInstance> serviceInstances = result.getServiceInstances();
+        int fields = result.getFields();
+        Output output = new Output(32 + serviceInstances.size() * Integer.bitCount(fields) * 8);
+        output.writeVarLong(result.getVersion());
+        output.writeInternedString(result.getServiceName());
+        output.writeVarInt(fields);
+        output.writeVarInt(serviceInstances.size());
+        for (ServiceInstance serviceInstance : serviceInstances) {
+            if ((fields & ServiceInstanceQuery.FIELD_SERVICE_INSTANCE_ID) != 0) {
+                output.writeString(serviceInstance.getServiceInstanceId());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_IP) != 0) {
+                output.writeIp(serviceInstance.getIp());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_PORT) != 0) {
+                output.writeVarInt(serviceInstance.getPort());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_HOSTNAME) != 0) {
+                output.writeString(serviceInstance.getHostname());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_STATUS) != 0) {
+                output.writeByte(serviceInstance.getStatus());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_ZONE) != 0) {
+                output.writeInternedString(serviceInstance.getZone());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_VERSION) != 0) {
+                output.writeInternedString(serviceInstance.getVersion());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_METADATA) != 0) {
+                writeMetadata(output, serviceInstance.getMetadata());
+            }
+        }
+        return output.toByteArray();
+    }
+
+    public static ServiceInstanceQueryResult decodeServiceInstanceQueryResult(ByteBuffer buffer) {
+        Input input = new Input(buffer);
+        ServiceInstanceQueryResult result = new ServiceInstanceQueryResult();
+        result.setVersion(input.readVarLong());
+        String serviceName = input.readInternedString();
+        result.setServiceName(serviceName);
+        int fields = input.readVarInt();
+        result.setFields(fields);
+        int count = input.readCount();
+        List<ServiceInstance> serviceInstances = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ServiceInstance serviceInstance = new ServiceInstance();
+            serviceInstance.setServiceName(serviceName);
+            if ((fields & ServiceInstanceQuery.FIELD_SERVICE_INSTANCE_ID) != 0) {
+                serviceInstance.setServiceInstanceId(input.readString());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_IP) != 0) {
+                serviceInstance.setIp(input.readIp());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_PORT) != 0) {
+                serviceInstance.setPort(input.readVarInt());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_HOSTNAME) != 0) {
+                serviceInstance.setHostname(input.readString());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_STATUS) != 0) {
+                serviceInstance.setStatus(input.readByte());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_ZONE) != 0) {
+                serviceInstance.setZone(input.readInternedString());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_VERSION) != 0) {
+                serviceInstance.setVersion(input.readInternedString());
+            }
+            if ((fields & ServiceInstanceQuery.FIELD_METADATA) != 0) {
+                serviceInstance.setMetadata(readMetadata(input));
+            }
+            serviceInstances.add(serviceInstance);
+        }
+        result.setServiceInstances(serviceInstances);
+        return result;
+    }
+
+    /**
+     * 编码一个可能是负数的long，比如拉增量注册表时的版本号-1
+     */
+    public static byte[] encodeLong(long value) {
+        Output output = new Output(10);
+        output.writeZigZagLong(value);
+        return output.toByteArray();
+    }
+
+    public static long decodeLong(ByteBuffer buffer) {
+        return new Input(buffer).readZigZagLong();
+    }
+
+    public static byte[] encodeString(String value) {
+        Output output = new Output(value == null ? 1 : value.length() + 5);
+        output.writeString(value);
+        return output.toByteArray();
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        return new Input(buffer).readString();
+    }
+
+    /**
+     * 把ipv4地址打包成一个int
+     *
+     * @param ip ip地址
+     * @return 打包后的int，不是规范的点分十进制ipv4地址（比如有前导0、段数不对、超过255）就返回null
+     */
+    public static Integer packIpv4(String ip) {
+        if (ip == null || ip.length() < 7 || ip.length() > 15) {
+            return null;
+        }
+        int packed = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || ++dots > 3) {
+                    return null;
+                }
+                packed = (packed << 8) | octet;
+                octet = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                // 有前导0的话解出来的字符串跟原来的不一样，不打包
+                if (digits > 0 && octet == 0) {
+                    return null;
+                }
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        if (digits == 0 || dots != 3) {
+            return null;
+        }
+        return (packed << 8) | octet;
+    }
+
+    public static String unpackIpv4(int packed) {
+        return new StringBuilder(15)
+                .append((packed >>> 24) & 0xFF).append('.')
+                .append((packed >>> 16) & 0xFF).append('.')
+                .append((packed >>> 8) & 0xFF).append('.')
+                .append(packed & 0xFF)
+                .toString();
+    }
+
+    private static HeartbeatRequest readHeartbeatRequest(Input input) {
+        HeartbeatRequest request = new HeartbeatRequest();
+        request.setServiceName(input.readInternedString());
+        request.setServiceInstanceId(input.readString());
+        return request;
+    }
+
+    /**
+     * 服务名称列表，为空的话不写任何东西，所以可以直接追加在老的消息体后面
+     */
+    private static void writeServiceNames(Output output, List<String> serviceNames) {
+        if (serviceNames.isEmpty()) {
+            return;
+        }
+        output.writeVarInt(serviceNames.size());
+        for (String serviceName : serviceNames) {
+            output.writeInternedString(serviceName);
+        }
+    }
+
+    private static List<String> readServiceNames(Input input) {
+        if (!input.hasRemaining()) {
+            return new ArrayList<>();
+        }
+        int count = input.readCount();
+        List<String> serviceNames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            serviceNames.add(input.readInternedString());
+        }
+        return serviceNames;
+    }
+
+    private static void writeServiceInstance(Output output, ServiceInstance serviceInstance) {
+        output.writeInternedString(serviceInstance.getServiceName());
+        output.writeIp(serviceInstance.getIp());
+        output.writeString(serviceInstance.getHostname());
+        output.writeVarInt(serviceInstance.getPort());
+        output.writeString(serviceInstance.getServiceInstanceId());
+        writeAttributes(output, serviceInstance.getStatus(), serviceInstance.getZone(),
+                serviceInstance.getVersion(), serviceInstance.getMetadata());
+    }
+
+    private static ServiceInstance readServiceInstance(Input input) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(input.readInternedString());
+        serviceInstance.setIp(input.readIp());
+        serviceInstance.setHostname(input.readString());
+        serviceInstance.setPort(input.readVarInt());
+        serviceInstance.setServiceInstanceId(input.readString());
+        readAttributes(input, serviceInstance);
+        return serviceInstance;
+    }
+
+    private static void writeAttributes(Output output, byte status, String zone, String version,
+                                        Map<String, String> metadata) {
+        boolean hasMetadata = metadata != null && !metadata.isEmpty();
+        output.writeByte((status & ATTRIBUTE_STATUS_MASK)
+                | (zone != null ? ATTRIBUTE_ZONE : 0)
+                | (version != null ? ATTRIBUTE_VERSION : 0)
+                | (hasMetadata ? ATTRIBUTE_METADATA : 0));
+        if (zone != null) {
+            output.writeInternedString(zone);
+        }
+        if (version != null) {
+            output.writeInternedString(version);
+        }
+        if (hasMetadata) {
+            writeMetadata(output, metadata);
+        }
+    }
+
+    private static void readAttributes(Input input, ServiceInstance serviceInstance) {
+        int flags = input.readByte();
+        serviceInstance.setStatus(attributeStatus(flags));
+        if ((flags & ATTRIBUTE_ZONE) != 0) {
+            serviceInstance.setZone(input.readInternedString());
+        }
+        if ((flags & ATTRIBUTE_VERSION) != 0) {
+            serviceInstance.setVersion(input.readInternedString());
+        }
+        if ((flags & ATTRIBUTE_METADATA) != 0) {
+            serviceInstance.setMetadata(readMetadata(input));
+        }
+    }
+
+    private static void readAttributes(Input input, RegisterRequest request) {
+        int flags = input.readByte();
+        request.setStatus(attributeStatus(flags));
+        if ((flags & ATTRIBUTE_ZONE) != 0) {
+            request.setZone(input.readInternedString());
+        }
+        if ((flags & ATTRIBUTE_VERSION) != 0) {
+            request.setVersion(input.readInternedString());
+        }
+        if ((flags & ATTRIBUTE_METADATA) != 0) {
+            request.setMetadata(readMetadata(input));
+        }
+    }
+
+    /**
+     * 属性里的状态只有两位，有一个值不是合法的状态，坏掉的日志或者伪造的请求不能把它放进注册表
+     */
+    private static byte attributeStatus(int flags) {
+        int status = flags & ATTRIBUTE_STATUS_MASK;
+        if (status >= ServiceInstanceStatus.COUNT) {
+            throw new IllegalArgumentException("非法的服务实例状态：" + status);
+        }
+        return (byte) status;
+    }
+
+    /**
+     * 元数据的key种类不多，走字符串表；value原样写
+     */
+    private static void writeMetadata(Output output, Map<String, String> metadata) {
+        output.writeVarInt(metadata.size());
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            output.writeInternedString(entry.getKey());
+            output.writeString(entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMetadata(Input input) {
+        int count = input.readCount();
+        Map<String, String> metadata = new HashMap<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            metadata.put(input.readInternedString(), input.readString());
+        }
+        return metadata;
+    }
+
+    private static String intern(String value) {
+        String interned = INTERNED_STRINGS.get(value);
+        if (interned != null) {
+            return interned;
+        }
+        if (INTERNED_STRINGS.size() >= MAX_INTERNED_STRINGS) {
+            return value;
+        }
+        interned = INTERNED_STRINGS.putIfAbsent(value, value);
+        return interned == null ? value : interned;
+    }
+
+    /**
+     * 消息体的输出缓冲区，自己管理一个可以扩容的byte[]
+     */
+    static class Output {
+
+        private byte[] bytes;
+        private int position = 0;
+        /**
+         * 这个消息里已经写过的字符串和它们的编号
+         */
+        private Map<String, Integer> stringTable;
+
+        Output(int initialCapacity) {
+            this.bytes = new byte[Math.max(initialCapacity, 8)];
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[position++] = (byte) value;
+        }
+
+        void writeBoolean(Boolean value) {
+            writeByte(value != null && value ? 1 : 0);
+        }
+
+        /**
+         * 定长的8个字节，哈希这种随机的64位数用varint编码反而更长
+         */
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[position++] = (byte) value;
+        }
+
+        void writeVarLong(Long value) {
+            writeVarLong(value == null ? 0L : value.longValue());
+        }
+
+        void writeVarLong(long value) {
+            long remaining = value;
+            ensureCapacity(10);
+            while ((remaining & ~0x7FL) != 0) {
+                bytes[position++] = (byte) ((remaining & 0x7F) | 0x80);
+                remaining >>>= 7;
+            }
+            bytes[position++] = (byte) remaining;
+        }
+
+        void writeZigZagLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            int length = value.length();
+            // 先假设全是ascii，直接写，碰到非ascii字符再退回到标准的utf-8编码
+            ensureCapacity(5 + length);
+            int lengthPosition = position;
+            int lengthBytes = varIntSize(length + 1);
+            int start = lengthPosition + lengthBytes;
+            int i = 0;
+            for (; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                bytes[start + i] = (byte) c;
+            }
+            if (i == length) {
+                writeVarInt(length + 1);
+                position = start + length;
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(utf8.length + 1);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, position, utf8.length);
+            position += utf8.length;
+        }
+
+        void writeInternedString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            if (stringTable == null) {
+                stringTable = new HashMap<>();
+            }
+            Integer index = stringTable.get(value);
+            if (index != null) {
+                writeVarInt(index + 2);
+                return;
+            }
+            stringTable.put(value, stringTable.size());
+            writeVarInt(1);
+            writeString(value);
+        }
+
+        void writeIp(String ip) {
+            Integer packed = packIpv4(ip);
+            if (packed == null) {
+                writeByte(IP_STRING);
+                writeString(ip);
+                return;
+            }
+            ensureCapacity(5);
+            int value = packed;
+            bytes[position++] = IP_V4;
+            bytes[position++] = (byte) (value >>> 24);
+            bytes[position++] = (byte) (value >>> 16);
+            bytes[position++] = (byte) (value >>> 8);
+            bytes[position++] = (byte) value;
+        }
+
+        void writeStatus(String status) {
+            if (status == null) {
+                writeByte(STATUS_NULL);
+            } else if (SUCCESS.equals(status)) {
+                writeByte(STATUS_SUCCESS);
+            } else if (FAILURE.equals(status)) {
+                writeByte(STATUS_FAILURE);
+            } else {
+                writeByte(STATUS_OTHER);
+                writeString(status);
+            }
+        }
+
+        int size() {
+            return position;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, position);
+        }
+
+        private void ensureCapacity(int required) {
+            if (position + required > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + required));
+            }
+        }
+
+        private static int varIntSize(int value) {
+            int size = 1;
+            while ((value & ~0x7F) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * 消息体的输入，直接在ByteBuffer上读
+     */
+    static class Input {
+
+        private final ByteBuffer buffer;
+        /**
+         * 这个消息里已经读到的字符串，按出现的顺序编号
+         */
+        private List<String> stringTable;
+
+        Input(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        boolean hasRemaining() {
+            return buffer.hasRemaining();
+        }
+
+        long readLong() {
+            return buffer.getLong();
+        }
+
+        boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        byte readByte() {
+            return buffer.get();
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("非法的varint");
+        }
+
+        /**
+         * 读一个元素个数，校验一下不能超过剩下的字节数，防止异常数据导致分配超大的集合
+         */
+        int readCount() {
+            int count = readVarInt();
+            if (count < 0 || count > buffer.remaining()) {
+                throw new IllegalArgumentException("非法的元素个数：" + count);
+            }
+            return count;
+        }
+
+        long readVarLong() {
+            long value = 0L;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("非法的varlong");
+        }
+
+        long readZigZagLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > buffer.remaining()) {
+                throw new IllegalArgumentException("非法的字符串长度：" + length);
+            }
+            String value;
+            if (buffer.hasArray()) {
+                value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                byte[] utf8 = new byte[length];
+                buffer.get(utf8);
+                value = new String(utf8, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+
+        String readInternedString() {
+            int tag = readVarInt();
+            if (tag == 0) {
+                return null;
+            }
+            if (stringTable == null) {
+                stringTable = new ArrayList<>();
+            }
+            if (tag == 1) {
+                String value = intern(readString());
+                stringTable.add(value);
+                return value;
+            }
+            int index = tag - 2;
+            if (index >= stringTable.size()) {
+                throw new IllegalArgumentException("非法的字符串表编号：" + index);
+            }
+            return stringTable.get(index);
+        }
+
+        String readIp() {
+            byte tag = buffer.get();
+            if (tag == IP_V4) {
+                return unpackIpv4(buffer.getInt());
+            }
+            return readString();
+        }
+
+        String readStatus() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case STATUS_NULL:
+                    return null;
+                case STATUS_SUCCESS:
+                    return SUCCESS;
+                case STATUS_FAILURE:
+                    return FAILURE;
+                default:
+                    return readString();
+            }
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.hlk.demo.register.client;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * 在服务上被创建和启动，负责跟register-server进行通信
@@ -13,7 +17,17 @@ public class RegisterClient {
     public static final String IP = "192.168.31.207";
     public static final String HOSTNAME = "inventory01";
     public static final int PORT = 9000;
+    /**
+     * 服务实例所在的机房和发布的版本，调用方可以按这两个条件查询服务实例
+     */
+    public static final String ZONE = "zone-a";
+    public static final String VERSION = "1.0";
     private static final Long HEARTBEAT_INTERVAL = 30 * 1000L;
+    /**
+     * 这个服务会调用的服务，本地只缓存这几个服务的注册表
+     */
+    public static final List<String> SUBSCRIBED_SERVICE_NAMES = Collections.unmodifiableList(
+            Arrays.asList("ORDER-SERVICE", "FINANCE-SERVICE"));
     /**
      * 服务实例id
      */
@@ -39,6 +53,7 @@ public class RegisterClient {
         this.serviceInstanceId = UUID.randomUUID().toString().replace("-", "");
         this.httpSender = new HttpSender();
         this.heartbeatWorker = new HeartbeatWorker();
+        this.registry = new CachedServiceRegistry(this, httpSender, SUBSCRIBED_SERVICE_NAMES);
         this.isRunning = true;
     }
 
@@ -85,6 +100,17 @@ public class RegisterClient {
         return isRunning;
     }
 
+    /**
+     * 按条件查询一个服务的服务实例，比如只找同机房的UP的服务实例，
+     * 只需要少数几个服务实例的时候不用拉取、缓存整个服务的注册表
+     *
+     * @param query 查询条件，以及响应里要带上的字段
+     * @return
+     */
+    public ServiceInstanceQueryResult queryServiceInstances(ServiceInstanceQuery query) {
+        return httpSender.queryServiceInstances(query);
+    }
+
     /**
      * 服务注册线程
      *
@@ -103,8 +129,23 @@ public class RegisterClient {
             registerRequest.setHostname(HOSTNAME);
             registerRequest.setPort(PORT);
             registerRequest.setServiceInstanceId(serviceInstanceId);
+            registerRequest.setStatus(ServiceInstanceStatus.UP);
+            registerRequest.setZone(ZONE);
+            registerRequest.setVersion(VERSION);
 
             RegisterResponse registerResponse = httpSender.register(registerRequest);
+            // 大规模发布的时候register-server会限流，按照它建议的间隔再加一点随机的抖动重试，
+            // 免得被限流的服务实例又在同一时刻一起涌过去
+            while (isRunning && RegisterResponse.THROTTLED.equals(registerResponse.getStatus())) {
+                try {
+                    Thread.sleep(registerResponse.getRetryAfter()
+                            + ThreadLocalRandom.current().nextLong(registerResponse.getRetryAfter() + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                registerResponse = httpSender.register(registerRequest);
+            }
 
             System.out.println("服务注册的结果是：" + registerResponse.getStatus() + "......");
         }
@@ -1,5 +1,8 @@
 package com.hlk.demo.register.client;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 注册请求
  * @author huanglk
@@ -11,6 +14,22 @@ public class RegisterRequest {
     private String hostname;
     private int port;
     private String serviceInstanceId;
+    /**
+     * 状态，ServiceInstanceStatus里的常量，状态变了就用新的状态再注册一次
+     */
+    private byte status = ServiceInstanceStatus.UP;
+    /**
+     * 机房
+     */
+    private String zone;
+    /**
+     * 版本标签
+     */
+    private String version;
+    /**
+     * 元数据
+     */
+    private Map<String, String> metadata = new HashMap<>();
 
     public String getServiceName() {
         return serviceName;
@@ -52,6 +71,38 @@ public class RegisterRequest {
         this.serviceInstanceId = serviceInstanceId;
     }
 
+    public byte getStatus() {
+        return status;
+    }
+
+    public void setStatus(byte status) {
+        this.status = status;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    public void setMetadata(Map<String, String> metadata) {
+        this.metadata = metadata;
+    }
+
     @Override
     public String toString() {
         final StringBuffer sb = new StringBuffer("RegisterRequest{");
@@ -60,6 +111,10 @@ public class RegisterRequest {
         sb.append(", hostname='").append(hostname).append('\'');
         sb.append(", port=").append(port);
         sb.append(", serviceInstanceId='").append(serviceInstanceId).append('\'');
+        sb.append(", status=").append(ServiceInstanceStatus.toString(status));
+        sb.append(", zone='").append(zone).append('\'');
+        sb.append(", version='").append(version).append('\'');
+        sb.append(", metadata=").append(metadata);
         sb.append('}');
         return sb.toString();
     }
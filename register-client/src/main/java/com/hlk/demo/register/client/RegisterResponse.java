@@ -9,8 +9,16 @@ public class RegisterResponse {
 
     public static final String SUCCESS = "success";
     public static final String FAILURE = "failure";
+    /**
+     * 注册请求太多被register-server限流了，过retryAfter毫秒之后再重试
+     */
+    public static final String THROTTLED = "throttled";
 
     private String status;
+    /**
+     * 被限流的时候，register-server建议多少毫秒之后重试
+     */
+    private long retryAfter;
 
     public String getStatus() {
         return status;
@@ -19,4 +27,12 @@ public class RegisterResponse {
     public void setStatus(String status) {
         this.status = status;
     }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(long retryAfter) {
+        this.retryAfter = retryAfter;
+    }
 }
@@ -0,0 +1,92 @@
+package com.hlk.demo.register.client;
+
+import java.util.Map;
+
+/**
+ * 注册表的指纹
+ *
+ * 每个服务实例按照它的内容（服务名称、服务实例id、ip、hostname、端口，以及状态、机房、版本标签、元数据）算一个64位的哈希，
+ * 一个服务的指纹就是它所有服务实例的哈希之和，整个注册表的指纹就是所有服务的指纹之和（都是模2^64的加法）
+ * 加法跟顺序无关，注册的时候加上新的哈希、下线的时候减掉老的哈希就能增量维护，不用遍历整个注册表
+ *
+ * 客户端和服务端用的是同一个算法，客户端合并完增量之后算出来的指纹跟服务端的指纹对不上，
+ * 说明本地缓存跟服务端不一致，再按服务比对指纹，只重新拉取指纹不一样的服务
+ *
+ * @author huanglk
+ */
+public class RegistryFingerprint {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private RegistryFingerprint() {
+
+    }
+
+    /**
+     * 计算一个服务实例的哈希
+     *
+     * @param serviceInstance 服务实例
+     * @return
+     */
+    public static long hash(ServiceInstance serviceInstance) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, serviceInstance.getServiceName());
+        hash = hash(hash, serviceInstance.getServiceInstanceId());
+        hash = hash(hash, serviceInstance.getIp());
+        hash = hash(hash, serviceInstance.getHostname());
+        hash = (hash ^ serviceInstance.getPort()) * FNV_PRIME;
+        // 没有属性的服务实例（老的客户端注册的）跟以前的哈希一样
+        Map<String, String> metadata = serviceInstance.getMetadata();
+        if (serviceInstance.getStatus() != ServiceInstanceStatus.UP || serviceInstance.getZone() != null
+                || serviceInstance.getVersion() != null || !metadata.isEmpty()) {
+            hash = (hash ^ serviceInstance.getStatus()) * FNV_PRIME;
+            hash = hash(hash, serviceInstance.getZone());
+            hash = hash(hash, serviceInstance.getVersion());
+            // 元数据是map，每一项单独算哈希再相加，跟遍历顺序无关
+            long metadataHash = 0L;
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                metadataHash += mix(hash(hash(FNV_OFFSET_BASIS, entry.getKey()), entry.getValue()));
+            }
+            hash = (hash ^ metadataHash) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * 计算一个服务的指纹
+     *
+     * @param serviceInstances 这个服务的所有服务实例
+     * @return
+     */
+    public static long fingerprint(Map<String, ServiceInstance> serviceInstances) {
+        long fingerprint = 0L;
+        for (ServiceInstance serviceInstance : serviceInstances.values()) {
+            fingerprint += hash(serviceInstance);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * 字符串前面先混入长度，("ab", "c")和("a", "bc")的哈希就不一样了
+     */
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return (hash ^ -1L) * FNV_PRIME;
+        }
+        hash = (hash ^ value.length()) * FNV_PRIME;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * FNV的低位分布不够均匀，再打散一次，相加的时候不容易互相抵消
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,49 @@
+package com.hlk.demo.register.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 每个服务的指纹
+ * @author huanglk
+ *
+ */
+public class ServiceFingerprints {
+
+	/**
+	 * 这些指纹对应的注册表版本号
+	 */
+	private Long version = 0L;
+	/**
+	 * key是服务名称，value是这个服务的指纹，没有服务实例的服务不在里面
+	 */
+	private Map<String, Long> fingerprints = new HashMap<String, Long>();
+
+	public ServiceFingerprints() {
+		
+	}
+	
+	public ServiceFingerprints(Long version, Map<String, Long> fingerprints) {
+		this.version = version;
+		this.fingerprints = fingerprints;
+	}
+	
+	public Long getVersion() {
+		return version;
+	}
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+	public Map<String, Long> getFingerprints() {
+		return fingerprints;
+	}
+	public void setFingerprints(Map<String, Long> fingerprints) {
+		this.fingerprints = fingerprints;
+	}
+
+	@Override
+	public String toString() {
+		return "ServiceFingerprints [version=" + version + ", fingerprints=" + fingerprints + "]";
+	}
+
+}
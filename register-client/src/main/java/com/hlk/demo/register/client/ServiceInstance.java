@@ -1,9 +1,12 @@
 package com.hlk.demo.register.client;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * 代表了一个服务实例
  * 里面包含了一个服务实例的所有信息
- * 比如说服务名称、ip地址、hostname、端口号、服务实例id
+ * 比如说服务名称、ip地址、hostname、端口号、服务实例id，以及状态、机房、版本标签、元数据这些属性
  * 
  * @author huanglk
  *
@@ -30,6 +33,22 @@ public class ServiceInstance {
 	 * 服务实例id
 	 */
 	private String serviceInstanceId;
+	/**
+	 * 状态，ServiceInstanceStatus里的常量
+	 */
+	private byte status = ServiceInstanceStatus.UP;
+	/**
+	 * 机房
+	 */
+	private String zone;
+	/**
+	 * 版本标签
+	 */
+	private String version;
+	/**
+	 * 元数据，大部分服务实例都没有，没有的时候是null，不用每个服务实例都占一个空的map
+	 */
+	private Map<String, String> metadata;
 	
 	public String getServiceName() {
 		return serviceName;
@@ -61,11 +80,36 @@ public class ServiceInstance {
 	public void setServiceInstanceId(String serviceInstanceId) {
 		this.serviceInstanceId = serviceInstanceId;
 	}
+	public byte getStatus() {
+		return status;
+	}
+	public void setStatus(byte status) {
+		this.status = status;
+	}
+	public String getZone() {
+		return zone;
+	}
+	public void setZone(String zone) {
+		this.zone = zone;
+	}
+	public String getVersion() {
+		return version;
+	}
+	public void setVersion(String version) {
+		this.version = version;
+	}
+	public Map<String, String> getMetadata() {
+		return metadata == null ? Collections.<String, String>emptyMap() : metadata;
+	}
+	public void setMetadata(Map<String, String> metadata) {
+		this.metadata = metadata == null || metadata.isEmpty() ? null : metadata;
+	}
 	
 	@Override
 	public String toString() {
 		return "ServiceInstance [serviceName=" + serviceName + ", ip=" + ip + ", hostname=" + hostname + ", port="
-				+ port + ", serviceInstanceId=" + serviceInstanceId + "]";
+				+ port + ", serviceInstanceId=" + serviceInstanceId + ", status=" + ServiceInstanceStatus.toString(status)
+				+ ", zone=" + zone + ", version=" + version + ", metadata=" + getMetadata() + "]";
 	}
 	
 }
@@ -0,0 +1,131 @@
+package com.hlk.demo.register.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 按条件查询一个服务的服务实例
+ *
+ * 状态、机房、版本标签、元数据都是可选的条件，没有设置的不限制，设置了的都要满足，
+ * 比如“ORDER-SERVICE在zone-a机房里状态是UP的2.0版本的服务实例”；
+ * fields是响应里每个服务实例要带上的字段，比如只要ip和端口的话，其他字段就不用编码、传输了
+ * @author huanglk
+ *
+ */
+public class ServiceInstanceQuery {
+
+	/**
+	 * 不限制状态
+	 */
+	public static final byte ANY_STATUS = -1;
+
+	public static final int FIELD_SERVICE_INSTANCE_ID = 1;
+	public static final int FIELD_IP = 1 << 1;
+	public static final int FIELD_PORT = 1 << 2;
+	public static final int FIELD_HOSTNAME = 1 << 3;
+	public static final int FIELD_STATUS = 1 << 4;
+	public static final int FIELD_ZONE = 1 << 5;
+	public static final int FIELD_VERSION = 1 << 6;
+	public static final int FIELD_METADATA = 1 << 7;
+	/**
+	 * 调用一个服务实例只需要ip和端口
+	 */
+	public static final int FIELD_ADDRESS = FIELD_IP | FIELD_PORT;
+	public static final int FIELD_ALL = 0xFF;
+
+	/**
+	 * 服务名称，必须有
+	 */
+	private String serviceName;
+	/**
+	 * 服务实例的状态，ServiceInstanceStatus里的常量，ANY_STATUS表示不限制
+	 */
+	private byte status = ANY_STATUS;
+	/**
+	 * 机房，null表示不限制
+	 */
+	private String zone;
+	/**
+	 * 版本标签，null表示不限制
+	 */
+	private String version;
+	/**
+	 * 元数据里必须有这些key，而且value要一样
+	 */
+	private Map<String, String> metadata = new HashMap<String, String>();
+	/**
+	 * 响应里要带上的字段，FIELD_开头的常量按位或起来
+	 */
+	private int fields = FIELD_ALL;
+
+	/**
+	 * 服务实例是不是满足查询条件，不看服务名称
+	 * @param serviceInstance 服务实例
+	 * @return
+	 */
+	public boolean matches(ServiceInstance serviceInstance) {
+		if (status != ANY_STATUS && status != serviceInstance.getStatus()) {
+			return false;
+		}
+		if (zone != null && !zone.equals(serviceInstance.getZone())) {
+			return false;
+		}
+		if (version != null && !version.equals(serviceInstance.getVersion())) {
+			return false;
+		}
+		if (!metadata.isEmpty()) {
+			Map<String, String> actual = serviceInstance.getMetadata();
+			for (Map.Entry<String, String> entry : metadata.entrySet()) {
+				if (!Objects.equals(entry.getValue(), actual.get(entry.getKey()))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public String getServiceName() {
+		return serviceName;
+	}
+	public void setServiceName(String serviceName) {
+		this.serviceName = serviceName;
+	}
+	public byte getStatus() {
+		return status;
+	}
+	public void setStatus(byte status) {
+		this.status = status;
+	}
+	public String getZone() {
+		return zone;
+	}
+	public void setZone(String zone) {
+		this.zone = zone;
+	}
+	public String getVersion() {
+		return version;
+	}
+	public void setVersion(String version) {
+		this.version = version;
+	}
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+	public void setMetadata(Map<String, String> metadata) {
+		this.metadata = metadata;
+	}
+	public int getFields() {
+		return fields;
+	}
+	public void setFields(int fields) {
+		this.fields = fields;
+	}
+
+	@Override
+	public String toString() {
+		return "ServiceInstanceQuery [serviceName=" + serviceName + ", status=" + ServiceInstanceStatus.toString(status)
+				+ ", zone=" + zone + ", version=" + version + ", metadata=" + metadata + ", fields=" + fields + "]";
+	}
+
+}
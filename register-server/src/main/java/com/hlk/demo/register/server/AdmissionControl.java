@@ -0,0 +1,210 @@
+package com.hlk.demo.register.server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 注册请求的准入控制
+ *
+ * 大规模发布的时候几秒钟里会涌进来几千个注册请求，每个注册都要改注册表、写最近变更队列、让响应缓存失效，
+ * 工作线程全被注册占满的话，心跳就排不上队，心跳超时又会触发摘除，雪上加霜
+ *
+ * 所以注册请求要先过三道关，任何一道没过就直接返回THROTTLED，并告诉客户端多久之后重试：
+ * 1、每个服务一个令牌桶，一个服务在滚动发布不会把其他服务的注册额度用光
+ * 2、全局一个令牌桶，限制整个节点每秒处理的注册数量
+ * 3、同时在处理的注册请求数量不超过一个上限（默认是cpu核数的一半），剩下的工作线程始终留给心跳和下线
+ *
+ * 心跳和下线不限流；其他节点转发过来的注册也不限流，它们在源节点上已经被放行过了，这里再拒绝的话节点之间就不一致了
+ *
+ * 每个服务的令牌桶数量有硬上限，到了上限之后最多每秒清理一次：先丢掉已经满了的桶，还太多的话再丢掉攒下令牌最多的桶；
+ * 两次清理之间新来的服务共用一个溢出桶，不会每来一个新服务就遍历一遍所有的桶
+ *
+ * 可以通过下面的参数调整，速率小于等于0表示不限：
+ * -Dregister.server.admission.register.rate=5000              全局每秒的注册数量
+ * -Dregister.server.admission.register.burst=5000             全局的突发数量
+ * -Dregister.server.admission.service.rate=500                每个服务每秒的注册数量
+ * -Dregister.server.admission.service.burst=1000              每个服务的突发数量
+ * -Dregister.server.admission.register.concurrency=cpu核数/2   同时处理的注册请求数量
+ *
+ * @author huanglk
+ */
+public class AdmissionControl {
+
+    /**
+     * 每个服务的令牌桶数量上限
+     */
+    static final int MAX_SERVICE_BUCKETS = 16 * 1024;
+    /**
+     * 清理之后最多留下这么多个桶，给接下来的新服务腾出位置
+     */
+    static final int SERVICE_BUCKETS_AFTER_CLEANUP = MAX_SERVICE_BUCKETS * 7 / 8;
+    /**
+     * 令牌桶数量到了上限之后，最多多久清理一次
+     */
+    private static final long CLEANUP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * 同时处理的注册请求太多的时候，建议客户端多久之后重试，毫秒
+     */
+    static final long CONCURRENCY_RETRY_AFTER = 100L;
+
+    private static AdmissionControl instance = new AdmissionControl();
+
+    private final TokenBucket globalBucket;
+    private final double serviceRate;
+    private final int serviceBurst;
+    private final Map<String, TokenBucket> serviceBuckets = new ConcurrentHashMap<>();
+    /**
+     * 令牌桶数量到了上限、还没到下一次清理的时候，新来的服务共用这个桶
+     */
+    private final TokenBucket overflowBucket;
+    /**
+     * 上一次清理令牌桶的时间，System.nanoTime()
+     */
+    private final AtomicLong latestCleanupNanos = new AtomicLong(System.nanoTime() - CLEANUP_INTERVAL_NANOS);
+    private final Semaphore registerPermits;
+
+    private AdmissionControl() {
+        double globalRate = Double.parseDouble(System.getProperty("register.server.admission.register.rate", "5000"));
+        globalBucket = globalRate > 0 ? new TokenBucket(globalRate,
+                Integer.getInteger("register.server.admission.register.burst", 5000)) : null;
+        serviceRate = Double.parseDouble(System.getProperty("register.server.admission.service.rate", "500"));
+        serviceBurst = Integer.getInteger("register.server.admission.service.burst", 1000);
+        overflowBucket = serviceRate > 0 ? new TokenBucket(serviceRate, serviceBurst) : null;
+        int concurrency = Integer.getInteger("register.server.admission.register.concurrency",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        registerPermits = concurrency > 0 ? new Semaphore(concurrency) : null;
+    }
+
+    public static AdmissionControl getInstance() {
+        return instance;
+    }
+
+    /**
+     * 注册请求能不能放行，放行了的话处理完一定要调用registerCompleted()
+     *
+     * @param serviceName 服务名称
+     * @return 0表示放行；大于0表示被限流了，值是建议客户端多少毫秒之后重试
+     */
+    public long tryAdmitRegister(String serviceName) {
+        TokenBucket serviceBucket = serviceBucket(serviceName);
+        if (serviceBucket != null) {
+            long wait = serviceBucket.tryAcquire();
+            if (wait > 0) {
+                return throttled(wait);
+            }
+        }
+        if (globalBucket != null) {
+            long wait = globalBucket.tryAcquire();
+            if (wait > 0) {
+                // 这次注册没有放行，服务自己的令牌还回去
+                if (serviceBucket != null) {
+                    serviceBucket.release();
+                }
+                return throttled(wait);
+            }
+        }
+        if (registerPermits != null && !registerPermits.tryAcquire()) {
+            if (serviceBucket != null) {
+                serviceBucket.release();
+            }
+            if (globalBucket != null) {
+                globalBucket.release();
+            }
+            RegistryMetrics.getInstance().registerThrottled();
+            return CONCURRENCY_RETRY_AFTER;
+        }
+        return 0L;
+    }
+
+    /**
+     * 放行的注册请求处理完了
+     */
+    public void registerCompleted() {
+        if (registerPermits != null) {
+            registerPermits.release();
+        }
+    }
+
+    /**
+     * 当前每个服务的令牌桶数量，不算溢出桶
+     */
+    int getServiceBucketCount() {
+        return serviceBuckets.size();
+    }
+
+    private TokenBucket serviceBucket(String serviceName) {
+        if (serviceRate <= 0 || serviceName == null) {
+            return null;
+        }
+        TokenBucket bucket = serviceBuckets.get(serviceName);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (serviceBuckets.size() >= MAX_SERVICE_BUCKETS && !cleanupServiceBuckets()) {
+            return overflowBucket;
+        }
+        TokenBucket newBucket = new TokenBucket(serviceRate, serviceBurst);
+        bucket = serviceBuckets.putIfAbsent(serviceName, newBucket);
+        if (bucket != null) {
+            return bucket;
+        }
+        // 几个线程同时放进了新的桶，超过上限的那几个退回去用溢出桶
+        if (serviceBuckets.size() > MAX_SERVICE_BUCKETS) {
+            serviceBuckets.remove(serviceName, newBucket);
+            return overflowBucket;
+        }
+        return newBucket;
+    }
+
+    /**
+     * 清理令牌桶，同一时刻只有一个线程在清理，距离上一次清理不到CLEANUP_INTERVAL_NANOS的话什么都不做
+     *
+     * @return 有没有清理
+     */
+    private boolean cleanupServiceBuckets() {
+        long now = System.nanoTime();
+        long latest = latestCleanupNanos.get();
+        if (now - latest < CLEANUP_INTERVAL_NANOS || !latestCleanupNanos.compareAndSet(latest, now)) {
+            return false;
+        }
+
+        // 满了的桶跟新建的没有区别，丢掉不影响限流
+        long[] arrivalTimes = new long[serviceBuckets.size()];
+        int count = 0;
+        Iterator<TokenBucket> iterator = serviceBuckets.values().iterator();
+        while (iterator.hasNext()) {
+            TokenBucket bucket = iterator.next();
+            if (bucket.isFull()) {
+                iterator.remove();
+            } else if (count < arrivalTimes.length) {
+                arrivalTimes[count++] = bucket.getTheoreticalArrivalTime() - now;
+            }
+        }
+
+        // 还是太多的话，丢掉攒下令牌最多的那些桶，也就是最近注册得最少的服务，它们重新建桶多拿到的令牌最少
+        int excess = serviceBuckets.size() - SERVICE_BUCKETS_AFTER_CLEANUP;
+        if (excess > 0 && count > 0) {
+            Arrays.sort(arrivalTimes, 0, count);
+            long threshold = arrivalTimes[Math.min(excess, count) - 1];
+            iterator = serviceBuckets.values().iterator();
+            while (iterator.hasNext() && excess > 0) {
+                if (iterator.next().getTheoreticalArrivalTime() - now <= threshold) {
+                    iterator.remove();
+                    excess--;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long throttled(long waitNanos) {
+        RegistryMetrics.getInstance().registerThrottled();
+        // 向上取整，至少1毫秒
+        return Math.max(1L, TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+}
@@ -0,0 +1,162 @@
+package com.hlk.demo.register.server;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+
+/**
+ * 注册请求准入控制的测试类
+ *
+ * 1、令牌桶：桶空了之后返回的等待时间就是下一个令牌到达的时间，还回去的令牌马上就能再拿到
+ * 2、被服务的令牌桶拒绝的时候，建议的重试时间向上取整到毫秒
+ * 3、同时处理的注册数量满了的时候返回固定的重试时间，已经拿到的服务令牌要还回去；
+ *    注册失败了也要释放并发额度，不然失败几次之后所有注册都会被拒绝
+ * 4、每个服务的令牌桶数量不会超过上限，到了上限之后最多每秒清理一次，两次清理之间新来的服务共用溢出桶
+ *
+ * 准入控制是单例，参数在第一次用到的时候读，所以要在main方法一开始设置好：
+ * 每个服务100秒补一个令牌、突发2个，不限全局速率，同时只处理1个注册
+ *
+ * 运行方式：java com.hlk.demo.register.server.AdmissionControlTest
+ *
+ * @author huanglk
+ */
+public class AdmissionControlTest {
+
+    /**
+     * 每个服务的令牌间隔，毫秒，测试的时候桶不会自己补满
+     */
+    private static final long SERVICE_INTERVAL = 100 * 1000L;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("register.server.admission.service.rate", "0.01");
+        System.setProperty("register.server.admission.service.burst", "2");
+        System.setProperty("register.server.admission.register.rate", "0");
+        System.setProperty("register.server.admission.register.concurrency", "1");
+        PrintStream stdout = TestSupport.silenceStdout();
+
+        testTokenBucket();
+        testRetryAfter();
+        testConcurrency();
+        testServiceBucketLimit();
+
+        stdout.println("准入控制校验通过");
+    }
+
+    private static void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        check(bucket.tryAcquire() == 0L, "满的桶拿令牌");
+        check(!bucket.isFull(), "拿过令牌的桶还是满的");
+        long wait = bucket.tryAcquire();
+        check(wait > TimeUnit.MILLISECONDS.toNanos(90) && wait <= TimeUnit.MILLISECONDS.toNanos(100),
+                "桶空了之后的等待时间：" + wait);
+        // 没拿到令牌不会推后理论到达时间
+        long theoreticalArrivalTime = bucket.getTheoreticalArrivalTime();
+        bucket.tryAcquire();
+        check(bucket.getTheoreticalArrivalTime() == theoreticalArrivalTime, "没拿到令牌推后了理论到达时间");
+
+        bucket.release();
+        check(bucket.getTheoreticalArrivalTime() == theoreticalArrivalTime - TimeUnit.MILLISECONDS.toNanos(100),
+                "还回去的令牌");
+        check(bucket.tryAcquire() == 0L, "还回去的令牌马上就能拿到");
+    }
+
+    private static void testRetryAfter() {
+        AdmissionControl admissionControl = AdmissionControl.getInstance();
+        check(admit(admissionControl, "RETRY") == 0L && admit(admissionControl, "RETRY") == 0L, "突发的两个令牌");
+        long retryAfter = admissionControl.tryAdmitRegister("RETRY");
+        check(retryAfter > SERVICE_INTERVAL - 1000L && retryAfter <= SERVICE_INTERVAL,
+                "服务令牌桶空了之后的重试时间：" + retryAfter);
+        // 被拒绝的注册不会占用令牌，再来一次要等的时间不会变长
+        check(admissionControl.tryAdmitRegister("RETRY") <= retryAfter, "被拒绝之后的重试时间变长了");
+    }
+
+    private static void testConcurrency() {
+        AdmissionControl admissionControl = AdmissionControl.getInstance();
+        check(admissionControl.tryAdmitRegister("CONCURRENCY-A") == 0L, "第一个注册");
+        check(admissionControl.tryAdmitRegister("CONCURRENCY-B") == AdmissionControl.CONCURRENCY_RETRY_AFTER,
+                "并发额度满了之后的重试时间");
+        admissionControl.registerCompleted();
+        // 没放行的注册已经把服务令牌还回去了，突发的两个令牌都还在
+        check(admit(admissionControl, "CONCURRENCY-B") == 0L && admit(admissionControl, "CONCURRENCY-B") == 0L,
+                "并发额度满了的时候服务令牌没有还回去");
+
+        // 注册失败（元数据是null，拷贝的时候空指针）也要释放并发额度
+        RegisterServerController controller = new RegisterServerController();
+        PrintStream stderr = System.err;
+        System.setErr(System.out);
+        try {
+            for (int i = 0; i < 3; i++) {
+                RegisterRequest registerRequest = newRegisterRequest("FAILURE-" + i);
+                registerRequest.setMetadata(null);
+                RegisterResponse registerResponse = controller.register(registerRequest);
+                check(RegisterResponse.FAILURE.equals(registerResponse.getStatus()),
+                        "注册失败之后的响应：" + registerResponse.getStatus());
+            }
+        } finally {
+            System.setErr(stderr);
+        }
+        RegisterResponse registerResponse = controller.register(newRegisterRequest("SUCCESS"));
+        check(RegisterResponse.SUCCESS.equals(registerResponse.getStatus()),
+                "注册失败之后并发额度没有释放：" + registerResponse.getStatus());
+    }
+
+    private static void testServiceBucketLimit() throws InterruptedException {
+        AdmissionControl admissionControl = AdmissionControl.getInstance();
+        int filled = fill(admissionControl, 0);
+
+        // 到了上限之后第一个新服务触发清理：没有满的桶，丢掉攒下令牌最多的那些
+        long cleanupTime = System.nanoTime();
+        check(admit(admissionControl, "NEW-0") == 0L, "清理之后的新服务");
+        check(admissionControl.getServiceBucketCount() == AdmissionControl.SERVICE_BUCKETS_AFTER_CLEANUP + 1,
+                "清理之后的令牌桶数量：" + admissionControl.getServiceBucketCount());
+
+        // 一秒之内又到了上限，新来的服务共用溢出桶，溢出桶也只有两个令牌
+        fill(admissionControl, filled);
+        check(admit(admissionControl, "NEW-1") == 0L && admit(admissionControl, "NEW-2") == 0L, "溢出桶的令牌");
+        long retryAfter = admissionControl.tryAdmitRegister("NEW-3");
+        check(System.nanoTime() - cleanupTime < TimeUnit.SECONDS.toNanos(1), "一秒之内没有填满令牌桶");
+        check(retryAfter > 0L, "溢出桶空了之后放行了新服务");
+        check(admissionControl.getServiceBucketCount() == AdmissionControl.MAX_SERVICE_BUCKETS,
+                "两次清理之间的令牌桶数量：" + admissionControl.getServiceBucketCount());
+
+        // 过了一秒才会再清理一次
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(TimeUnit.SECONDS.toNanos(1) - (System.nanoTime() - cleanupTime)) + 50L);
+        check(admit(admissionControl, "NEW-4") == 0L, "又一次清理之后的新服务");
+        check(admissionControl.getServiceBucketCount() == AdmissionControl.SERVICE_BUCKETS_AFTER_CLEANUP + 1,
+                "又一次清理之后的令牌桶数量：" + admissionControl.getServiceBucketCount());
+    }
+
+    /**
+     * 不停地加新服务，直到令牌桶数量到了上限，每个服务都拿走一个令牌，桶不是满的，清理的时候不会直接丢掉
+     *
+     * @return 下一个服务的序号
+     */
+    private static int fill(AdmissionControl admissionControl, int next) {
+        while (admissionControl.getServiceBucketCount() < AdmissionControl.MAX_SERVICE_BUCKETS) {
+            check(admit(admissionControl, "FILL-" + next++) == 0L, "新服务没有放行");
+        }
+        return next;
+    }
+
+    /**
+     * 过一次准入控制，放行了的话马上当作处理完了
+     */
+    private static long admit(AdmissionControl admissionControl, String serviceName) {
+        long retryAfter = admissionControl.tryAdmitRegister(serviceName);
+        if (retryAfter == 0L) {
+            admissionControl.registerCompleted();
+        }
+        return retryAfter;
+    }
+
+    private static RegisterRequest newRegisterRequest(String serviceName) {
+        RegisterRequest registerRequest = new RegisterRequest();
+        registerRequest.setServiceName(serviceName);
+        registerRequest.setServiceInstanceId(serviceName + "-1");
+        registerRequest.setHostname("host-1");
+        registerRequest.setIp("10.0.0.1");
+        registerRequest.setPort(8000);
+        return registerRequest;
+    }
+}
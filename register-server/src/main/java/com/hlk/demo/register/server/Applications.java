@@ -12,6 +12,10 @@ public class Applications {
 
 	private Map<String, Map<String, ServiceInstance>> registry
 			= new HashMap<String, Map<String, ServiceInstance>>();
+	/**
+	 * 这份注册表对应的版本号
+	 */
+	private Long version = 0L;
 
 	public Applications() {
 		
@@ -27,5 +31,11 @@ public class Applications {
 	public void setRegistry(Map<String, Map<String, ServiceInstance>> registry) {
 		this.registry = registry;
 	}
+	public Long getVersion() {
+		return version;
+	}
+	public void setVersion(Long version) {
+		this.version = version;
+	}
 	
 }
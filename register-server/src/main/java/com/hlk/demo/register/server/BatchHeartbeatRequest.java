@@ -0,0 +1,51 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量心跳请求
+ * 一台机器上跑着很多服务实例的时候，把它们的心跳合并成一个请求发送
+ * @author huanglk
+ *
+ */
+public class BatchHeartbeatRequest {
+
+	/**
+	 * 每个服务实例的心跳，也就是（服务名称，服务实例id）
+	 */
+	private List<HeartbeatRequest> heartbeatRequests = new ArrayList<HeartbeatRequest>();
+
+	public BatchHeartbeatRequest() {
+		
+	}
+	
+	public BatchHeartbeatRequest(List<HeartbeatRequest> heartbeatRequests) {
+		this.heartbeatRequests = heartbeatRequests;
+	}
+	
+	/**
+	 * 添加一个服务实例的心跳
+	 * @param serviceName 服务名称
+	 * @param serviceInstanceId 服务实例id
+	 */
+	public void add(String serviceName, String serviceInstanceId) {
+		HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+		heartbeatRequest.setServiceName(serviceName);
+		heartbeatRequest.setServiceInstanceId(serviceInstanceId);
+		heartbeatRequests.add(heartbeatRequest);
+	}
+
+	public List<HeartbeatRequest> getHeartbeatRequests() {
+		return heartbeatRequests;
+	}
+	public void setHeartbeatRequests(List<HeartbeatRequest> heartbeatRequests) {
+		this.heartbeatRequests = heartbeatRequests;
+	}
+	
+	@Override
+	public String toString() {
+		return "BatchHeartbeatRequest [heartbeatRequests=" + heartbeatRequests + "]";
+	}
+	
+}
@@ -0,0 +1,34 @@
+package com.hlk.demo.register.server;
+
+/**
+ * gzip压缩过的全量注册表，跟着全量注册表的版本号一起缓存在响应缓存里
+ *
+ * 版本号就是客户端拿来判断注册表有没有变化的标签：
+ * 客户端拉取的时候带上手上的版本号，跟这里的一样就不用再下载一遍
+ *
+ * @author huanglk
+ */
+public class CompressedApplications {
+
+    /**
+     * 全量注册表的版本号
+     */
+    private final long version;
+    /**
+     * 压缩过的全量注册表，直接作为响应的消息体发出去，不能修改
+     */
+    private final byte[] payload;
+
+    public CompressedApplications(Applications applications) {
+        this.version = applications.getVersion();
+        this.payload = MessageCodec.encodeCompressedApplications(applications);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
@@ -0,0 +1,332 @@
+package com.hlk.demo.register.server;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 注册表事件的异步日志
+ *
+ * 以前每次心跳、每次存活检查都要在调用线程里拼字符串再System.out.println，
+ * println里有一把锁，几千个服务实例同时心跳的时候，线程都排队等在控制台上
+ *
+ * 现在调用线程只做两件事：
+ * 1、按照事件类型的日志级别和采样率判断要不要记，不记的话到这里就返回了，几个纳秒
+ * 2、要记的话在一个无锁的环形缓冲区里抢一个槽位，把事件的字段（都是引用和long，不拼字符串）填进去
+ * 拼字符串、格式化时间、写控制台都在后台线程里批量做
+ *
+ * 环形缓冲区是预先分配好的，多个线程CAS抢序号，后台线程按序号顺序消费；
+ * 缓冲区满了就直接丢掉新的事件，只记一个丢弃的数量，不会让注册表的操作等日志
+ *
+ * 事件的消息是一个常量模板，里面的{}在后台线程里替换成事件带的数值
+ *
+ * 全局的日志级别通过-Dregister.server.log.level指定，默认INFO
+ *
+ * @author huanglk
+ */
+public class EventLogger {
+
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int OFF = 3;
+
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "OFF"};
+
+    /**
+     * 环形缓冲区的大小，必须是2的幂
+     */
+    private static final int CAPACITY = 16 * 1024;
+    private static final int MASK = CAPACITY - 1;
+    /**
+     * 报告丢弃数量的间隔
+     */
+    private static final long DROPPED_REPORT_INTERVAL = 1000L;
+    /**
+     * 没有事件的时候后台线程最多睡多久，有新的事件会被叫醒，
+     * 醒过来只是为了把上一次报告之后丢掉的数量报出去
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(DROPPED_REPORT_INTERVAL);
+
+    private static EventLogger instance = new EventLogger();
+
+    /**
+     * 每种事件类型的日志级别，低于这个级别的事件不记
+     */
+    private final int[] levels = new int[EventType.COUNT];
+    /**
+     * 每种事件类型的采样率
+     */
+    private final int[] sampleRates = new int[EventType.COUNT];
+
+    private final Event[] ring = new Event[CAPACITY];
+    /**
+     * 下一个要分配出去的序号
+     */
+    private final AtomicLong tail = new AtomicLong(0L);
+    /**
+     * 下一个要消费的序号，只有后台线程会写
+     */
+    private volatile long head = 0L;
+    private final LongAdder dropped = new LongAdder();
+    private final Writer writer = new Writer();
+    private volatile boolean running = true;
+
+    private EventLogger() {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event(i - CAPACITY);
+        }
+        int defaultLevel = parseLevel(System.getProperty("register.server.log.level"), INFO);
+        for (int type = 0; type < EventType.COUNT; type++) {
+            String name = EventType.NAMES[type].toLowerCase();
+            levels[type] = parseLevel(System.getProperty("register.server.log.level." + name), defaultLevel);
+            sampleRates[type] = Math.max(1, Integer.getInteger("register.server.log.sample." + name,
+                    EventType.DEFAULT_SAMPLE_RATES[type]));
+        }
+
+        writer.setDaemon(true);
+        writer.setName("EventLogWriter");
+        writer.start();
+        // 进程退出的时候把缓冲区里剩下的事件写完
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                running = false;
+                LockSupport.unpark(writer);
+                try {
+                    writer.join(1000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    public static EventLogger getInstance() {
+        return instance;
+    }
+
+    /**
+     * 记一个跟服务实例有关的事件
+     *
+     * @param type              事件类型
+     * @param level             日志级别
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例id
+     * @param value             事件带的数值，会替换掉消息模板里的{}
+     * @param message           消息模板，必须是常量，不要在调用的地方拼字符串
+     */
+    public void log(int type, int level, String serviceName, String serviceInstanceId, long value, String message) {
+        if (!isLoggable(type, level)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        // 序号比head小一圈以内，这个槽位上一轮的事件已经被后台线程消费掉了
+        Event event = ring[(int) sequence & MASK];
+        event.timestamp = System.currentTimeMillis();
+        event.type = type;
+        event.level = level;
+        event.serviceName = serviceName;
+        event.serviceInstanceId = serviceInstanceId;
+        event.value = value;
+        event.message = message;
+        event.published = sequence;
+        // 后台线程空闲的时候才需要叫醒，忙的时候这里只是读一个volatile
+        if (writer.waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * 记一个跟服务实例无关的事件
+     */
+    public void log(int type, int level, long value, String message) {
+        log(type, level, null, null, value, message);
+    }
+
+    /**
+     * 记一个跟服务实例无关、也不带数值的事件，消息可以是拼好的字符串，只在不频繁的地方用
+     */
+    public void log(int type, int level, String message) {
+        log(type, level, null, null, 0L, message);
+    }
+
+    /**
+     * 这种事件这个级别要不要记，调用的地方要拼字符串的话先用这个判断一下
+     */
+    public boolean isLoggable(int type, int level) {
+        if (level < levels[type]) {
+            return false;
+        }
+        int sampleRate = sampleRates[type];
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * 运行时调整一种事件类型的日志级别
+     */
+    public void setLevel(int type, int level) {
+        levels[type] = level;
+    }
+
+    /**
+     * 运行时调整一种事件类型的采样率
+     */
+    public void setSampleRate(int type, int sampleRate) {
+        sampleRates[type] = Math.max(1, sampleRate);
+    }
+
+    /**
+     * 因为缓冲区满了丢掉的事件数量
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private static int parseLevel(String level, int defaultLevel) {
+        if (level == null) {
+            return defaultLevel;
+        }
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(level.trim())) {
+                return i;
+            }
+        }
+        return defaultLevel;
+    }
+
+    /**
+     * 环形缓冲区里的一个槽位，一直复用
+     */
+    private static class Event {
+
+        /**
+         * 这个槽位上已经填好的事件的序号，后台线程看到序号对上了才会去读其他字段
+         */
+        volatile long published;
+        long timestamp;
+        int type;
+        int level;
+        String serviceName;
+        String serviceInstanceId;
+        long value;
+        String message;
+
+        Event(long published) {
+            this.published = published;
+        }
+    }
+
+    /**
+     * 把事件格式化之后写到控制台的后台线程
+     */
+    private class Writer extends Thread {
+
+        /**
+         * 后台线程正在等新的事件，填好事件的线程要叫醒它
+         */
+        private volatile boolean waiting = false;
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        private final StringBuilder builder = new StringBuilder(64 * 1024);
+        private long reportedDropped = 0L;
+        private long latestDroppedReportTimestamp = 0L;
+
+        @Override
+        public void run() {
+            while (true) {
+                int written = drain();
+                reportDropped();
+                if (written == 0) {
+                    if (!running) {
+                        break;
+                    }
+                    // 先标记再检查一次，填好事件的线程要么看到标记来叫醒，要么事件在这次检查里被看到
+                    waiting = true;
+                    if (ring[(int) head & MASK].published != head && running) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    waiting = false;
+                }
+            }
+        }
+
+        /**
+         * 把已经填好的事件一口气写出去
+         *
+         * @return 写出去的事件数量
+         */
+        private int drain() {
+            int written = 0;
+            long sequence = head;
+            Event event = ring[(int) sequence & MASK];
+            // 序号已经分配出去了但是还没填好的话，等下一轮再写，保证按序号的顺序输出
+            while (event.published == sequence && written < CAPACITY) {
+                format(event);
+                event.serviceName = null;
+                event.serviceInstanceId = null;
+                event.message = null;
+                head = ++sequence;
+                written++;
+                event = ring[(int) sequence & MASK];
+            }
+            if (written > 0) {
+                // 每次都取当前的System.out，压测的时候替换掉的标准输出也能生效
+                PrintStream out = System.out;
+                out.print(builder);
+                out.flush();
+                builder.setLength(0);
+            }
+            return written;
+        }
+
+        private void format(Event event) {
+            builder.append(dateFormat.format(new Date(event.timestamp)))
+                    .append(' ').append(LEVEL_NAMES[event.level])
+                    .append(' ').append(EventType.NAMES[event.type]);
+            if (event.serviceName != null) {
+                builder.append(" service=").append(event.serviceName);
+            }
+            if (event.serviceInstanceId != null) {
+                builder.append(" instance=").append(event.serviceInstanceId);
+            }
+            builder.append(' ');
+            String message = event.message;
+            int placeholder = message == null ? -1 : message.indexOf("{}");
+            if (placeholder < 0) {
+                builder.append(message);
+            } else {
+                builder.append(message, 0, placeholder)
+                        .append(event.value)
+                        .append(message, placeholder + 2, message.length());
+            }
+            builder.append('\n');
+        }
+
+        private void reportDropped() {
+            long currentTime = System.currentTimeMillis();
+            if (currentTime - latestDroppedReportTimestamp < DROPPED_REPORT_INTERVAL) {
+                return;
+            }
+            latestDroppedReportTimestamp = currentTime;
+            long total = dropped.sum();
+            if (total > reportedDropped) {
+                System.out.println(dateFormat.format(new Date(currentTime)) + " WARN SERVER 日志缓冲区满了，丢掉了"
+                        + (total - reportedDropped) + "条事件");
+                reportedDropped = total;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.hlk.demo.register.server;
+
+/**
+ * 注册表事件的类型，每种类型可以单独设置日志级别和采样率
+ *
+ * 通过-Dregister.server.log.level.类型名=DEBUG设置级别，-Dregister.server.log.sample.类型名=100设置采样率，
+ * 类型名是下面的名字转成小写，比如renew
+ *
+ * @author huanglk
+ */
+public class EventType {
+
+    /**
+     * 服务注册
+     */
+    public static final int REGISTER = 0;
+    /**
+     * 服务下线、摘除
+     */
+    public static final int REMOVE = 1;
+    /**
+     * 心跳续约，默认不打印，打开之后也默认只采样百分之一
+     */
+    public static final int RENEW = 2;
+    /**
+     * 摘除之前检查服务实例是否存活
+     */
+    public static final int ALIVE_CHECK = 3;
+    /**
+     * 自我保护机制的检查
+     */
+    public static final int SELF_PROTECTION = 4;
+    /**
+     * 对等节点之间的复制
+     */
+    public static final int REPLICATION = 5;
+    /**
+     * 快照、变更日志、恢复
+     */
+    public static final int PERSISTENCE = 6;
+    /**
+     * 服务器启动、网络
+     */
+    public static final int SERVER = 7;
+
+    /**
+     * 类型的数量
+     */
+    static final int COUNT = 8;
+
+    /**
+     * 打印出来的类型名
+     */
+    static final String[] NAMES = {
+            "REGISTER", "REMOVE", "RENEW", "ALIVE_CHECK", "SELF_PROTECTION", "REPLICATION", "PERSISTENCE", "SERVER"
+    };
+
+    /**
+     * 默认的采样率，n表示n条里打印1条
+     */
+    static final int[] DEFAULT_SAMPLE_RATES = {1, 1, 100, 1, 1, 1, 1, 1};
+
+    private EventType() {
+
+    }
+}
@@ -0,0 +1,40 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 拉取增量注册表的请求
+ * @author huanglk
+ *
+ */
+public class FetchDeltaRegistryRequest {
+
+	/**
+	 * 客户端已经拿到的注册表版本号，小于0表示拉取最近变更队列里所有的变更
+	 */
+	private long sinceVersion;
+	/**
+	 * 客户端订阅的服务名称，只返回这几个服务的变更，为空的话就是所有服务
+	 */
+	private List<String> serviceNames = new ArrayList<String>();
+
+	public long getSinceVersion() {
+		return sinceVersion;
+	}
+	public void setSinceVersion(long sinceVersion) {
+		this.sinceVersion = sinceVersion;
+	}
+	public List<String> getServiceNames() {
+		return serviceNames;
+	}
+	public void setServiceNames(List<String> serviceNames) {
+		this.serviceNames = serviceNames;
+	}
+
+	@Override
+	public String toString() {
+		return "FetchDeltaRegistryRequest [sinceVersion=" + sinceVersion + ", serviceNames=" + serviceNames + "]";
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.hlk.demo.register.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 堆内的服务实例存储，也是默认的存储引擎
+ *
+ * Map：key是服务名称，value是这个服务的所有的服务实例
+ * Map<String, ServiceInstance>：key是服务实例id，value是服务实例的信息
+ *
+ * 读操作完全基于ConcurrentHashMap，不加锁；契约的过期交给契约时间轮
+ *
+ * @author huanglk
+ */
+public class HeapServiceInstanceStore implements ServiceInstanceStore {
+
+    private final Map<String, Map<String, ServiceInstance>> registry = new ConcurrentHashMap<>();
+    private final LeaseTimingWheel leaseTimingWheel = LeaseTimingWheel.getInstance();
+
+    @Override
+    public ServiceInstance put(ServiceInstance serviceInstance) {
+        String serviceName = serviceInstance.getServiceName();
+        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+        if (serviceInstanceMap == null) {
+            serviceInstanceMap = new ConcurrentHashMap<>();
+            registry.put(serviceName, serviceInstanceMap);
+        }
+        ServiceInstance previous = serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+        // 把契约挂到时间轮上，过期了就会被摘除；被覆盖掉的服务实例在时间轮上的契约到期的时候会被丢掉
+        leaseTimingWheel.schedule(serviceInstance);
+        return previous;
+    }
+
+    @Override
+    public ServiceInstance get(String serviceName, String serviceInstanceId) {
+        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+        if (serviceInstanceMap == null) {
+            return null;
+        }
+        return serviceInstanceMap.get(serviceInstanceId);
+    }
+
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId) {
+        ServiceInstance serviceInstance = get(serviceName, serviceInstanceId);
+        if (serviceInstance == null) {
+            return false;
+        }
+        serviceInstance.renew();
+        return true;
+    }
+
+    @Override
+    public ServiceInstance remove(String serviceName, String serviceInstanceId) {
+        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+        if (serviceInstanceMap == null) {
+            return null;
+        }
+        return serviceInstanceMap.remove(serviceInstanceId);
+    }
+
+    @Override
+    public Collection<String> getServiceNames() {
+        return registry.keySet();
+    }
+
+    @Override
+    public Map<String, ServiceInstance> getServiceInstances(String serviceName) {
+        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+        return serviceInstanceMap == null ? null : new HashMap<>(serviceInstanceMap);
+    }
+
+    @Override
+    public int getServiceInstanceCount(String serviceName) {
+        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+        return serviceInstanceMap == null ? 0 : serviceInstanceMap.size();
+    }
+
+    @Override
+    public void forEach(ServiceInstanceVisitor visitor) {
+        for (Map<String, ServiceInstance> serviceInstanceMap : registry.values()) {
+            for (ServiceInstance serviceInstance : serviceInstanceMap.values()) {
+                visitor.visit(serviceInstance);
+            }
+        }
+    }
+
+    @Override
+    public void collectExpired(long now, Collection<ServiceInstance> expired) {
+        leaseTimingWheel.advance(now, expired);
+    }
+
+    @Override
+    public boolean isExpired(ServiceInstance serviceInstance) {
+        // 已经下线或者被重新注册了，时间轮里的这个契约就作废了
+        if (get(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId()) != serviceInstance) {
+            return false;
+        }
+        // 等待摘除的时候又发送了心跳，重新挂到时间轮上去
+        if (serviceInstance.isAlive()) {
+            leaseTimingWheel.schedule(serviceInstance);
+            return false;
+        }
+        return true;
+    }
+}
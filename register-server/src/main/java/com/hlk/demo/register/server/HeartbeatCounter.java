@@ -1,14 +1,26 @@
 package com.hlk.demo.register.server;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 心跳测量计数器
+ *
+ * 以前是一个AtomicLong，后台线程每分钟把它清零一次，
+ * 所以自我保护机制读到的值会从一整分钟的心跳次数一下子掉到0
+ *
+ * 现在换成了滑动窗口：每一秒一个格子，一共60个格子，环形复用
+ * 读的时候把最近60秒的格子加起来，得到的就是平滑的最近一分钟心跳次数，也不需要清零的后台线程了
+ *
  * @author huanglk
  *
  */
 public class HeartbeatCounter {
 
+    /**
+     * 滑动窗口的秒数
+     */
+    private static final int WINDOW_SECONDS = 60;
 
     /**
      * 单例实例
@@ -16,20 +28,13 @@ public class HeartbeatCounter {
     private static HeartbeatCounter instance = new HeartbeatCounter();
 
     /**
-     * 最近一分钟的心跳次数
-     */
-    private AtomicLong latestMinuteHeartbeatRate = new AtomicLong(0L);
-   // private LongAdder latestMinuteHeartbeatRate = new LongAdder();
-    /**
-     * 最近一分钟的时间戳
+     * 每一秒一个格子
      */
-    private long latestMinuteTimestamp = System.currentTimeMillis();
-
+    private final AtomicReferenceArray<Bucket> buckets =
+            new AtomicReferenceArray<Bucket>(WINDOW_SECONDS);
 
     private HeartbeatCounter(){
-        Daemon daemon = new Daemon();
-        daemon.setDaemon(true);
-        daemon.start();
+
     }
     /**
      * 获取单例实例
@@ -41,48 +46,75 @@ public class HeartbeatCounter {
     /**
      * 增加一次最近一分钟的心跳次数
      */
-    public  void increment(){
-        // 这个synchronized上锁，性能其实是很差的
-        // 因为可能会有很多的线程，不断的接受到心跳的请求，就会来增加心跳次数
-        // 多线程卡在这里，一个一个排队
-        // 依次上锁，累加1，再次释放锁，会有一个问题
-
+    public void increment(){
         // 如果你的服务实例很多的话，1万个服务实例，每秒可能都有很多个请求过来更新心跳
-        // 如果在这里加了synchronized的话，会影响并发的性能
-        // 换成了AtomicLong原子类之后，不加锁，无锁化，CAS操作，保证原子性，还可以多线程并发
-        latestMinuteHeartbeatRate.incrementAndGet();
-        //latestMinuteHeartbeatRate.increment();
+        // AtomicLong在很多线程同时CAS同一个值的时候，会有大量的CAS失败重试
+        // LongAdder内部是分段的多个cell，不同的线程累加到不同的cell上，读的时候再加起来
+        // 所以累加的时候基本没有竞争
+        currentBucket().count.increment();
     }
 
     /**
-     * 获取最近一分钟的心跳次数
+     * 增加多次最近一分钟的心跳次数，批量心跳的时候用
+     * @param count 心跳次数
      */
-    public /**synchronized*/ long get() {
-        return latestMinuteHeartbeatRate.get();
-        //return latestMinuteHeartbeatRate.longValue();
+    public void increment(long count) {
+        if (count > 0) {
+            currentBucket().count.add(count);
+        }
     }
 
-    private class Daemon extends Thread {
+    /**
+     * 获取最近一分钟的心跳次数
+     */
+    public long get() {
+        long currentSecond = System.currentTimeMillis() / 1000;
+        long total = 0L;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null
+                    && bucket.second > currentSecond - WINDOW_SECONDS
+                    && bucket.second <= currentSecond) {
+                total += bucket.count.sum();
+            }
+        }
+        return total;
+    }
 
-        @Override
-        public void run() {
-            while(true) {
-                try {
-                    long currentTime = System.currentTimeMillis();
-                    if(currentTime - latestMinuteTimestamp > 60 * 1000) {
-                        while(true) {
-                            Long expectedValue = latestMinuteHeartbeatRate.get();
-                            if(latestMinuteHeartbeatRate.compareAndSet(expectedValue, 0L)) {
-                                break;
-                            }
-                        }
-                    }
-                    Thread.sleep(1000);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+    /**
+     * 获取当前这一秒的格子，格子里还是上一圈的数据的话就换一个新的
+     */
+    private Bucket currentBucket() {
+        long currentSecond = System.currentTimeMillis() / 1000;
+        int index = (int) (currentSecond % WINDOW_SECONDS);
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            // 别的线程的时钟可能稍微快一点，已经换成了下一圈的格子，直接累加上去就行了
+            if (bucket != null && bucket.second >= currentSecond) {
+                return bucket;
+            }
+            Bucket newBucket = new Bucket(currentSecond);
+            if (buckets.compareAndSet(index, bucket, newBucket)) {
+                return newBucket;
             }
         }
+    }
+
+    /**
+     * 一秒钟的心跳次数
+     */
+    private static class Bucket {
+        /**
+         * 这个格子对应的是哪一秒
+         */
+        final long second;
+        /**
+         * 这一秒的心跳次数
+         */
+        final LongAdder count = new LongAdder();
 
+        Bucket(long second) {
+            this.second = second;
+        }
     }
 }
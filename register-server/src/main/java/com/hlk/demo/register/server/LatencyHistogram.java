@@ -0,0 +1,131 @@
+package com.hlk.demo.register.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 耗时直方图，思路跟HdrHistogram一样
+ *
+ * 按照2的幂把数值分成一个个区间，每个区间再平均分成32个格子，
+ * 所以不管是几百纳秒还是几秒，落到的格子的宽度都不超过数值本身的1/32，算分位数的误差在3%左右；
+ * 64以内的数值一个数值一个格子，是精确的
+ *
+ * 记录一次就是算一下格子的下标再对这个格子做一次原子加，不加锁、不分配对象，可以一直开着；
+ * 格子一共一千多个，一个直方图十几KB
+ *
+ * 记录的是启动以来累计的分布，不会清零
+ *
+ * @author huanglk
+ */
+public class LatencyHistogram {
+
+    /**
+     * 每个区间分成2^5=32个格子
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * 最大的long落在第57个区间的最后一个格子上
+     */
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0L);
+
+    /**
+     * 记录一个数值，小于0的当成0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        total.add(value);
+        // 最大值绝大多数时候都不会变，先读一下，真的变大了才CAS
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * 拍一个快照，之后的记录不影响快照
+     * 拍快照的时候还在记录的话，各个格子之间不是严格同一时刻的，对统计来说没有关系
+     */
+    public Snapshot snapshot() {
+        long[] copied = new long[BUCKET_COUNT];
+        long count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copied[i] = counts.get(i);
+            count += copied[i];
+        }
+        return new Snapshot(copied, count, total.sum(), max.get());
+    }
+
+    static int indexOf(long value) {
+        int shift = Math.max(0, Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * 格子里最大的数值，分位数报告的是这个值，只会偏大不会偏小
+     */
+    static long highestValueOf(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long subBucket = index - (shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * 直方图的快照
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0L : total / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * 分位数
+         *
+         * @param percentile 0到100之间，比如99.9
+         * @return 至少有percentile%的记录小于等于这个值
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0));
+            long seen = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
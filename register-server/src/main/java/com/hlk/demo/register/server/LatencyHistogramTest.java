@@ -0,0 +1,99 @@
+package com.hlk.demo.register.server;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+
+/**
+ * 耗时直方图的测试类
+ *
+ * 先校验格子的划分是连续的、每个数值都落在自己的格子里，
+ * 再拿一批长尾分布的随机数算分位数，跟排好序的精确结果比，误差不能超过格子的宽度；
+ * 最后压测多线程记录的吞吐量
+ *
+ * 运行方式：java com.hlk.demo.register.server.LatencyHistogramTest [每个线程记录的次数]
+ *
+ * @author huanglk
+ */
+public class LatencyHistogramTest {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+        testBuckets();
+        testPercentiles();
+        System.out.println("耗时直方图校验通过");
+
+        testThroughput(iterations);
+    }
+
+    private static void testBuckets() {
+        long[] values = {0L, 1L, 63L, 64L, 65L, 95L, 96L, 127L, 128L, 1000L, 123456789L,
+                1L << 40, (1L << 40) - 1, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            check(LatencyHistogram.highestValueOf(index) >= value
+                    && (index == 0 || LatencyHistogram.highestValueOf(index - 1) < value), "格子：" + value);
+        }
+        for (int index = 1; index <= LatencyHistogram.indexOf(Long.MAX_VALUE); index++) {
+            long lowest = LatencyHistogram.highestValueOf(index - 1) + 1;
+            check(LatencyHistogram.indexOf(lowest) == index
+                    && LatencyHistogram.indexOf(LatencyHistogram.highestValueOf(index)) == index, "格子的边界：" + index);
+        }
+    }
+
+    private static void testPercentiles() {
+        Random random = new Random(42L);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[200000];
+        for (int i = 0; i < values.length; i++) {
+            // 大部分是几微秒，少数是几毫秒到几百毫秒的长尾
+            values[i] = i % 100 == 0 ? (long) (random.nextDouble() * 500000000L) : 1000L + random.nextInt(20000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        check(snapshot.getCount() == values.length, "次数：" + snapshot.getCount());
+        check(snapshot.getMax() == values[values.length - 1], "最大值：" + snapshot.getMax());
+        double[] percentiles = {50.0, 90.0, 99.0, 99.9, 100.0};
+        for (double percentile : percentiles) {
+            long expected = values[(int) Math.ceil(values.length * percentile / 100.0) - 1];
+            long actual = snapshot.getValueAtPercentile(percentile);
+            check(actual >= expected && actual <= expected + expected / 32 + 1,
+                    "分位数" + percentile + "：" + actual + "，精确值：" + expected);
+        }
+    }
+
+    private static void testThroughput(final int iterations) throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    long value = 1000L;
+                    for (int j = 0; j < iterations; j++) {
+                        histogram.record(value);
+                        value = value * 6364136223846793005L + 1442695040888963407L;
+                        value = 500L + ((value >>> 40) & 0xFFFF);
+                    }
+                }
+            };
+        }
+        long startTime = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        long total = (long) iterations * threadCount;
+        check(histogram.snapshot().getCount() == total, "多线程记录的次数");
+        System.out.println(threadCount + "个线程记录" + total + "次：" + (total * 1000000000L / elapsed)
+                + "次/秒，平均" + (elapsed * threadCount / total) + "纳秒");
+    }
+}
@@ -0,0 +1,182 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 服务实例契约过期的分层时间轮
+ *
+ * 第0层每一格是1秒，一共64格；往上每一层的一格就是下一层转一整圈的时间
+ * 契约按照过期时间挂到对应层的格子上，时间轮每走一格，
+ * 上层到期的格子会把里面的契约重新往下层挂，第0层到期的格子里就是过期的契约
+ *
+ * 服务实例续约的时候只会更新自己的心跳时间，不会碰时间轮，
+ * 等到它所在的格子到期的时候再看一下真正的过期时间，没过期就按照新的过期时间重新挂上去，
+ * 所以续约是O(1)的，每个契约在一个续约周期里最多被重新挂一次
+ *
+ * 时间轮只会被ServiceAliveMonitor的后台线程推进，其他线程只能通过schedule()把契约丢进来
+ *
+ * @author huanglk
+ */
+public class LeaseTimingWheel {
+
+    /**
+     * 第0层每一格的时间跨度
+     */
+    private static final long TICK_MS = 1000L;
+    /**
+     * 每一层的格子数
+     */
+    private static final int WHEEL_SIZE = 64;
+    /**
+     * 时间轮的层数
+     */
+    private static final int LEVELS = 4;
+
+    /**
+     * 单例实例
+     */
+    private static LeaseTimingWheel instance = new LeaseTimingWheel();
+
+    /**
+     * 等待挂到时间轮上的契约，注册线程往里放，后台线程推进时间轮的时候取出来
+     */
+    private final ConcurrentLinkedQueue<ServiceInstance> scheduleQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * 每一层的格子
+     */
+    private final List<List<ServiceInstance>> buckets = new ArrayList<>();
+    /**
+     * 每一层一格的时间跨度
+     */
+    private final long[] tickMs = new long[LEVELS];
+    /**
+     * 时间轮当前走到的时间，是TICK_MS的整数倍
+     */
+    private long currentTime = 0L;
+    /**
+     * 时间轮上挂着的契约数量
+     */
+    private int size = 0;
+
+    /**
+     * 只有测试会单独建时间轮，用自己推进的时间代替系统时间
+     */
+    LeaseTimingWheel() {
+        long tick = TICK_MS;
+        for (int level = 0; level < LEVELS; level++) {
+            tickMs[level] = tick;
+            tick *= WHEEL_SIZE;
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                buckets.add(new ArrayList<ServiceInstance>());
+            }
+        }
+    }
+
+    public static LeaseTimingWheel getInstance() {
+        return instance;
+    }
+
+    /**
+     * 把一个服务实例的契约挂到时间轮上，任何线程都可以调用
+     *
+     * @param serviceInstance 服务实例
+     */
+    public void schedule(ServiceInstance serviceInstance) {
+        scheduleQueue.offer(serviceInstance);
+    }
+
+    /**
+     * 把时间轮推进到指定的时间，只能由一个线程调用
+     *
+     * @param now     当前时间
+     * @param expired 到期的契约会放到这里面去
+     */
+    public void advance(long now, Collection<ServiceInstance> expired) {
+        if (currentTime == 0L) {
+            currentTime = now - now % TICK_MS;
+        }
+
+        ServiceInstance serviceInstance;
+        while ((serviceInstance = scheduleQueue.poll()) != null) {
+            add(serviceInstance, expired);
+        }
+
+        while (currentTime + TICK_MS <= now) {
+            currentTime += TICK_MS;
+            // 从上往下，先把上层到期的格子往下层挂
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if (currentTime % tickMs[level] == 0) {
+                    for (ServiceInstance item : takeBucket(level, currentTime / tickMs[level])) {
+                        size--;
+                        add(item, expired);
+                    }
+                }
+            }
+            // 第0层到期的格子里，就是过期时间在当前时间之前的契约
+            for (ServiceInstance item : takeBucket(0, currentTime / TICK_MS)) {
+                size--;
+                add(item, expired);
+            }
+        }
+    }
+
+    /**
+     * 时间轮上挂着的契约数量
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 按照契约的过期时间挂到对应的格子上，已经过期的直接放到expired里
+     */
+    private void add(ServiceInstance serviceInstance, Collection<ServiceInstance> expired) {
+        long deadline = serviceInstance.getLeaseExpirationTime();
+        if (deadline <= currentTime) {
+            expired.add(serviceInstance);
+            return;
+        }
+
+        // 第0层向上取整，保证格子到期的时候契约一定已经过期了
+        long slotTime = (deadline + TICK_MS - 1) / TICK_MS * TICK_MS;
+        if (slotTime - currentTime <= tickMs[0] * WHEEL_SIZE) {
+            putBucket(0, slotTime / TICK_MS, serviceInstance);
+            return;
+        }
+
+        for (int level = 1; level < LEVELS; level++) {
+            if (deadline - currentTime < tickMs[level] * WHEEL_SIZE) {
+                putBucket(level, deadline / tickMs[level], serviceInstance);
+                return;
+            }
+        }
+
+        // 超出了最上层的范围，先挂到最上层最远的那一格，到时候再往下挂
+        int top = LEVELS - 1;
+        putBucket(top, (currentTime + tickMs[top] * (WHEEL_SIZE - 1)) / tickMs[top], serviceInstance);
+    }
+
+    private void putBucket(int level, long slot, ServiceInstance serviceInstance) {
+        buckets.get(level * WHEEL_SIZE + (int) (slot % WHEEL_SIZE)).add(serviceInstance);
+        size++;
+    }
+
+    /**
+     * 把一个格子里的契约整个取出来，格子换成一个新的空列表
+     * 处理过程中重新挂回同一个格子的契约会等到下一圈
+     */
+    private List<ServiceInstance> takeBucket(int level, long slot) {
+        int index = level * WHEEL_SIZE + (int) (slot % WHEEL_SIZE);
+        List<ServiceInstance> bucket = buckets.get(index);
+        if (bucket.isEmpty()) {
+            return bucket;
+        }
+        buckets.set(index, new ArrayList<ServiceInstance>());
+        return bucket;
+    }
+}
@@ -0,0 +1,192 @@
+package com.hlk.demo.register.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+import static com.hlk.demo.register.server.TestSupport.newServiceInstance;
+
+/**
+ * 契约过期时间轮的测试类
+ *
+ * 时间轮的时间是推进的时候传进去的，心跳时间也是手动设置的，整个测试用的是一个假的时钟，不用真的等
+ * 1、到期之前续约了的契约不会过期，格子到期的时候按新的过期时间重新挂上去，时间轮上不会多出一份
+ * 2、一直没有续约的契约，在过期时间之后一格之内被报告过期
+ * 3、过期时间很远的契约先挂在上层，一层一层往下挂，最后还是在过期时间之后一格之内过期
+ * 4、一批随机的契约随机续约，每个都在自己真正的过期时间之后一格之内过期，并且只报告一次
+ *
+ * 运行方式：java com.hlk.demo.register.server.LeaseTimingWheelTest [契约数量]
+ *
+ * @author huanglk
+ */
+public class LeaseTimingWheelTest {
+
+    /**
+     * 第0层一格的时间跨度
+     */
+    private static final long TICK_MS = 1000L;
+    /**
+     * 假时钟的起点，故意不在整秒上
+     */
+    private static final long START = 1700000000123L;
+
+    public static void main(String[] args) {
+        int leases = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        PrintStream stdout = TestSupport.silenceStdout();
+        testRenewedLease();
+        testExpiredLease();
+        testCascade();
+        testRandomLeases(leases);
+
+        stdout.println("契约过期时间轮校验通过");
+    }
+
+    private static void testRenewedLease() {
+        LeaseTimingWheel wheel = new LeaseTimingWheel();
+        List<ServiceInstance> expired = new ArrayList<>();
+        ServiceInstance serviceInstance = newServiceInstance(0, 0);
+        serviceInstance.setLatestHeartbeatTime(START);
+        wheel.advance(START, expired);
+        wheel.schedule(serviceInstance);
+
+        // 每隔30秒续约一次，走了10分钟都不会过期，时间轮上一直只有这一个契约
+        long now = START;
+        for (int i = 0; i < 20; i++) {
+            now += 30 * 1000L;
+            advanceBy(wheel, now - 30 * 1000L, now, 100L, expired);
+            check(expired.isEmpty(), "续约了的契约过期了：" + (now - START));
+            check(wheel.size() == 1, "续约之后时间轮上的契约数量：" + wheel.size());
+            serviceInstance.setLatestHeartbeatTime(now);
+        }
+
+        // 不再续约，在最后一次续约的90秒之后过期
+        long expiredAt = advanceUntilExpired(wheel, now, expired);
+        long deadline = now + ServiceInstance.NOT_ALIVE_PERIOD;
+        check(expired.size() == 1 && expired.get(0) == serviceInstance, "停止续约之后没有过期");
+        check(expiredAt >= deadline && expiredAt < deadline + TICK_MS, "停止续约之后过期的时间：" + (expiredAt - deadline));
+        check(wheel.size() == 0, "过期之后时间轮上还有契约");
+    }
+
+    private static void testExpiredLease() {
+        LeaseTimingWheel wheel = new LeaseTimingWheel();
+        List<ServiceInstance> expired = new ArrayList<>();
+        wheel.advance(START, expired);
+        // 心跳时间各不相同，过期时间落在一格里的不同位置上
+        for (int i = 0; i < 10; i++) {
+            ServiceInstance serviceInstance = newServiceInstance(0, i);
+            serviceInstance.setLatestHeartbeatTime(START + i * 137L);
+            wheel.schedule(serviceInstance);
+        }
+        long now = START;
+        while (expired.size() < 10) {
+            now += 10L;
+            int before = expired.size();
+            wheel.advance(now, expired);
+            for (int i = before; i < expired.size(); i++) {
+                long deadline = expired.get(i).getLeaseExpirationTime();
+                check(now >= deadline && now < deadline + TICK_MS + 10L,
+                        "没有续约的契约过期的时间：" + (now - deadline));
+            }
+            check(now - START < 200 * 1000L, "没有续约的契约一直没有过期");
+        }
+
+        // 挂上来的时候已经过期了一格的契约，下一次推进就报告
+        ServiceInstance stale = newServiceInstance(0, 100);
+        stale.setLatestHeartbeatTime(now - ServiceInstance.NOT_ALIVE_PERIOD - TICK_MS);
+        wheel.schedule(stale);
+        expired.clear();
+        wheel.advance(now, expired);
+        check(expired.size() == 1 && expired.get(0) == stale, "已经过期的契约");
+    }
+
+    private static void testCascade() {
+        // 过期时间分别落在第1层、第2层、第3层的范围里，还有一个超出了最上层的范围
+        long[] delays = {10 * 60 * 1000L, 5 * 60 * 60 * 1000L, 30L * 24 * 60 * 60 * 1000L,
+                250L * 24 * 60 * 60 * 1000L};
+        for (long delay : delays) {
+            LeaseTimingWheel wheel = new LeaseTimingWheel();
+            List<ServiceInstance> expired = new ArrayList<>();
+            wheel.advance(START, expired);
+            ServiceInstance serviceInstance = newServiceInstance(0, 0);
+            serviceInstance.setLatestHeartbeatTime(START + delay - ServiceInstance.NOT_ALIVE_PERIOD);
+            wheel.schedule(serviceInstance);
+
+            long deadline = START + delay;
+            // 快到期之前一大步推进过去，中间上层的格子一格一格往下挂
+            wheel.advance(deadline - 2 * TICK_MS, expired);
+            check(expired.isEmpty() && wheel.size() == 1, "还没到期的契约过期了：" + delay);
+            long expiredAt = advanceUntilExpired(wheel, deadline - 2 * TICK_MS, expired);
+            check(expired.size() == 1 && expiredAt >= deadline && expiredAt < deadline + TICK_MS,
+                    "上层的契约过期的时间：" + delay + "，" + (expiredAt - deadline));
+        }
+    }
+
+    private static void testRandomLeases(int leases) {
+        LeaseTimingWheel wheel = new LeaseTimingWheel();
+        List<ServiceInstance> expired = new ArrayList<>();
+        Random random = new Random(42L);
+        wheel.advance(START, expired);
+
+        List<ServiceInstance> alive = new ArrayList<>();
+        for (int i = 0; i < leases; i++) {
+            ServiceInstance serviceInstance = newServiceInstance(i % 10, i);
+            // 心跳时间只会往后走，一开始的心跳都在起点之前，续约的时候总是比它新
+            serviceInstance.setLatestHeartbeatTime(START - random.nextInt(60 * 1000));
+            wheel.schedule(serviceInstance);
+            alive.add(serviceInstance);
+        }
+
+        Map<ServiceInstance, Long> expiredAt = new HashMap<>();
+        long step = 250L;
+        long now = START;
+        while (!alive.isEmpty()) {
+            now += step;
+            // 每一步随机挑一些还活着的契约续约，一部分契约一直续约到一半的时候才停
+            for (int i = 0; i < 20; i++) {
+                ServiceInstance serviceInstance = alive.get(random.nextInt(alive.size()));
+                if (now - START < 10 * 60 * 1000L && now < serviceInstance.getLeaseExpirationTime()) {
+                    serviceInstance.setLatestHeartbeatTime(now);
+                }
+            }
+            expired.clear();
+            wheel.advance(now, expired);
+            for (ServiceInstance serviceInstance : expired) {
+                long deadline = serviceInstance.getLeaseExpirationTime();
+                check(expiredAt.put(serviceInstance, now) == null, "重复报告过期：" + serviceInstance);
+                check(now >= deadline && now < deadline + TICK_MS + step,
+                        "随机契约过期的时间：" + (now - deadline));
+                alive.remove(serviceInstance);
+            }
+            check(now - START < 20 * 60 * 1000L, "随机契约一直没有过期：" + alive.size());
+        }
+        check(expiredAt.size() == leases && wheel.size() == 0, "随机契约的数量：" + expiredAt.size());
+    }
+
+    /**
+     * 按固定的步长把时间轮从from推进到to
+     */
+    private static void advanceBy(LeaseTimingWheel wheel, long from, long to, long step,
+                                  List<ServiceInstance> expired) {
+        for (long now = from + step; now <= to; now += step) {
+            wheel.advance(now, expired);
+        }
+    }
+
+    /**
+     * 每次推进10毫秒，直到有契约过期
+     *
+     * @return 报告过期的时间
+     */
+    private static long advanceUntilExpired(LeaseTimingWheel wheel, long now, List<ServiceInstance> expired) {
+        while (expired.isEmpty()) {
+            now += 10L;
+            wheel.advance(now, expired);
+        }
+        return now;
+    }
+}
@@ -0,0 +1,361 @@
+package com.hlk.demo.register.server;
+
+import com.hlk.demo.register.server.ServiceRegistry.RecentlyChangedServiceInstance;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+import static com.hlk.demo.register.server.TestSupport.newServiceInstance;
+import static com.hlk.demo.register.server.TestSupport.same;
+
+/**
+ * MessageCodec的测试类
+ *
+ * 先校验各种消息编码再解码之后跟原来一样，再压测心跳、批量心跳、全量注册表的编解码吞吐量
+ *
+ * 运行方式：java com.hlk.demo.register.server.MessageCodecTest [每项压测的次数]
+ *
+ * @author huanglk
+ */
+public class MessageCodecTest {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        testRoundTrip();
+        System.out.println("编解码校验通过");
+
+        testThroughput(iterations);
+    }
+
+    private static void testRoundTrip() {
+        RegisterRequest registerRequest = new RegisterRequest();
+        registerRequest.setServiceName("ORDER-SERVICE");
+        registerRequest.setIp("192.168.31.207");
+        registerRequest.setHostname("order-service-01");
+        registerRequest.setPort(9000);
+        registerRequest.setServiceInstanceId("ORDER-SERVICE-192.168.31.207:9000");
+        RegisterRequest decodedRegisterRequest = MessageCodec.decodeRegisterRequest(
+                ByteBuffer.wrap(MessageCodec.encodeRegisterRequest(registerRequest)));
+        check(registerRequest.toString().equals(decodedRegisterRequest.toString()), "注册请求");
+
+        // 不规范的ipv4地址、ipv6地址、中文、null都要原样解出来
+        String[] ips = {"0.0.0.0", "255.255.255.255", "10.0.0.1", "192.168.31.1207", "010.0.0.1",
+                "1.2.3", "1.2.3.4.5", "::1", "fe80::1%eth0", "", null};
+        for (String ip : ips) {
+            registerRequest.setIp(ip);
+            registerRequest.setHostname(ip == null ? "订单服务" : null);
+            decodedRegisterRequest = MessageCodec.decodeRegisterRequest(
+                    ByteBuffer.wrap(MessageCodec.encodeRegisterRequest(registerRequest)));
+            check(registerRequest.toString().equals(decodedRegisterRequest.toString()), "ip地址：" + ip);
+        }
+
+        // 老的客户端不带属性，去掉最后一个标志位字节就是老的消息体
+        byte[] encodedRegisterRequest = MessageCodec.encodeRegisterRequest(registerRequest);
+        decodedRegisterRequest = MessageCodec.decodeRegisterRequest(
+                ByteBuffer.wrap(encodedRegisterRequest, 0, encodedRegisterRequest.length - 1));
+        check(registerRequest.toString().equals(decodedRegisterRequest.toString()), "不带属性的注册请求");
+        // 标志位里的状态只有两位，超出已有状态的那个值要拒绝
+        encodedRegisterRequest[encodedRegisterRequest.length - 1] = (byte) ServiceInstanceStatus.COUNT;
+        try {
+            MessageCodec.decodeRegisterRequest(ByteBuffer.wrap(encodedRegisterRequest));
+            check(false, "非法的服务实例状态");
+        } catch (IllegalArgumentException e) {
+            // 解码失败，调用方返回错误或者停止重放
+        }
+        for (int ipKind = 0; ipKind < 3; ipKind++) {
+            ServiceInstance serviceInstance = newServiceInstance(1, 5, ipKind);
+            MessageCodec.Output output = new MessageCodec.Output(64);
+            MessageCodec.writeServiceInstance(output, serviceInstance);
+            ServiceInstance decodedServiceInstance = MessageCodec.readServiceInstance(
+                    new MessageCodec.Input(output.toByteBuffer()));
+            check(same(serviceInstance, decodedServiceInstance)
+                    && decodedServiceInstance.isIpv4() == (ipKind == 0), "服务实例的ip地址：" + serviceInstance.getIp());
+        }
+        registerRequest.setStatus(ServiceInstanceStatus.OUT_OF_SERVICE);
+        registerRequest.setZone("zone-a");
+        registerRequest.setVersion("2.0.1");
+        registerRequest.getMetadata().put("weight", "100");
+        registerRequest.getMetadata().put("区域", "华东");
+        decodedRegisterRequest = MessageCodec.decodeRegisterRequest(
+                ByteBuffer.wrap(MessageCodec.encodeRegisterRequest(registerRequest)));
+        // 元数据的map容量不一样，toString()的顺序可能不一样，单独比
+        check(registerRequest.getMetadata().equals(decodedRegisterRequest.getMetadata())
+                && decodedRegisterRequest.getStatus() == ServiceInstanceStatus.OUT_OF_SERVICE
+                && "zone-a".equals(decodedRegisterRequest.getZone())
+                && "2.0.1".equals(decodedRegisterRequest.getVersion())
+                && registerRequest.getServiceInstanceId().equals(decodedRegisterRequest.getServiceInstanceId()),
+                "带属性的注册请求");
+
+        for (String status : new String[]{RegisterResponse.SUCCESS, RegisterResponse.FAILURE, "throttled", null}) {
+            HeartbeatResponse heartbeatResponse = new HeartbeatResponse();
+            heartbeatResponse.setStatus(status);
+            HeartbeatResponse decodedHeartbeatResponse = MessageCodec.decodeHeartbeatResponse(
+                    ByteBuffer.wrap(MessageCodec.encodeHeartbeatResponse(heartbeatResponse)));
+            check(TestSupport.equals(status, decodedHeartbeatResponse.getStatus()), "心跳响应：" + status);
+        }
+
+        for (String status : new String[]{RegisterResponse.SUCCESS, RegisterResponse.THROTTLED, null}) {
+            RegisterResponse registerResponse = new RegisterResponse();
+            registerResponse.setStatus(status);
+            registerResponse.setRetryAfter(RegisterResponse.THROTTLED.equals(status) ? 1500L : 0L);
+            RegisterResponse decodedRegisterResponse = MessageCodec.decodeRegisterResponse(
+                    ByteBuffer.wrap(MessageCodec.encodeRegisterResponse(registerResponse)));
+            check(TestSupport.equals(status, decodedRegisterResponse.getStatus())
+                    && registerResponse.getRetryAfter() == decodedRegisterResponse.getRetryAfter(), "注册响应：" + status);
+        }
+
+        BatchHeartbeatRequest batchHeartbeatRequest = newBatchHeartbeatRequest(500);
+        BatchHeartbeatRequest decodedBatchHeartbeatRequest = MessageCodec.decodeBatchHeartbeatRequest(
+                ByteBuffer.wrap(MessageCodec.encodeBatchHeartbeatRequest(batchHeartbeatRequest)));
+        check(batchHeartbeatRequest.toString().equals(decodedBatchHeartbeatRequest.toString()), "批量心跳请求");
+
+        BatchHeartbeatResponse batchHeartbeatResponse = new BatchHeartbeatResponse();
+        batchHeartbeatResponse.getStatuses().add(HeartbeatResponse.SUCCESS);
+        batchHeartbeatResponse.getStatuses().add(HeartbeatResponse.FAILURE);
+        batchHeartbeatResponse.setSuccessCount(1);
+        BatchHeartbeatResponse decodedBatchHeartbeatResponse = MessageCodec.decodeBatchHeartbeatResponse(
+                ByteBuffer.wrap(MessageCodec.encodeBatchHeartbeatResponse(batchHeartbeatResponse)));
+        check(decodedBatchHeartbeatResponse.getSuccessCount() == 1
+                && batchHeartbeatResponse.getStatuses().equals(decodedBatchHeartbeatResponse.getStatuses()), "批量心跳响应");
+
+        Applications applications = newApplications(20, 50);
+        Applications decodedApplications = MessageCodec.decodeApplications(
+                ByteBuffer.wrap(MessageCodec.encodeApplications(applications)));
+        check(applications.getVersion().equals(decodedApplications.getVersion())
+                && applications.getRegistry().keySet().equals(decodedApplications.getRegistry().keySet()), "全量注册表");
+        for (Map.Entry<String, Map<String, ServiceInstance>> entry : applications.getRegistry().entrySet()) {
+            Map<String, ServiceInstance> decodedServiceInstanceMap = decodedApplications.getRegistry().get(entry.getKey());
+            for (ServiceInstance serviceInstance : entry.getValue().values()) {
+                ServiceInstance decodedServiceInstance = decodedServiceInstanceMap.get(serviceInstance.getServiceInstanceId());
+                check(same(serviceInstance, decodedServiceInstance), "全量注册表：" + serviceInstance);
+            }
+        }
+        Applications decompressedApplications = MessageCodec.decodeCompressedApplications(
+                ByteBuffer.wrap(MessageCodec.encodeCompressedApplications(applications)));
+        check(Arrays.equals(MessageCodec.encodeApplications(decodedApplications),
+                MessageCodec.encodeApplications(decompressedApplications)), "压缩过的全量注册表");
+        check(MessageCodec.decodeCompressedApplications(ByteBuffer.allocate(0)) == null, "全量注册表没有变化");
+
+        LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue = new LinkedList<>();
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            recentlyChangedQueue.add(new RecentlyChangedServiceInstance(newServiceInstance(i % 7, i, i % 3), timestamp + i,
+                    i % 3 == 0 ? ServiceRegistry.ServiceInstanceOperation.REMOVE
+                            : ServiceRegistry.ServiceInstanceOperation.REGISTER, 1000L + i));
+        }
+        DeltaRegistry deltaRegistry = new DeltaRegistry(recentlyChangedQueue, 12345L);
+        deltaRegistry.setVersion(1099L);
+        deltaRegistry.setGap(true);
+        DeltaRegistry decodedDeltaRegistry = MessageCodec.decodeDeltaRegistry(
+                ByteBuffer.wrap(MessageCodec.encodeDeltaRegistry(deltaRegistry)));
+        check(decodedDeltaRegistry.getVersion() == 1099L && decodedDeltaRegistry.getGap()
+                && decodedDeltaRegistry.getServiceInstanceTotalCount() == 12345L
+                && decodedDeltaRegistry.getRecentlyChangedQueue().size() == 100, "增量注册表");
+        for (int i = 0; i < 100; i++) {
+            RecentlyChangedServiceInstance item = recentlyChangedQueue.get(i);
+            RecentlyChangedServiceInstance decodedItem = decodedDeltaRegistry.getRecentlyChangedQueue().get(i);
+            check(item.version == decodedItem.version
+                    && item.changedTimestamp == decodedItem.changedTimestamp
+                    && item.serviceInstanceOperation.equals(decodedItem.serviceInstanceOperation)
+                    && same(item.serviceInstance, decodedItem.serviceInstance), "增量注册表：" + i);
+        }
+        check(decodedDeltaRegistry.getFingerprint() == null, "没有指纹的增量注册表");
+        deltaRegistry.setFingerprint(-4242424242424242L);
+        decodedDeltaRegistry = MessageCodec.decodeDeltaRegistry(
+                ByteBuffer.wrap(MessageCodec.encodeDeltaRegistry(deltaRegistry)));
+        check(decodedDeltaRegistry.getFingerprint() == -4242424242424242L
+                && decodedDeltaRegistry.getRecentlyChangedQueue().size() == 100, "带指纹的增量注册表");
+
+        Map<String, Long> fingerprints = new HashMap<>();
+        for (Map.Entry<String, Map<String, ServiceInstance>> entry : applications.getRegistry().entrySet()) {
+            fingerprints.put(entry.getKey(), RegistryFingerprint.fingerprint(entry.getValue()));
+        }
+        ServiceFingerprints decodedServiceFingerprints = MessageCodec.decodeServiceFingerprints(ByteBuffer.wrap(
+                MessageCodec.encodeServiceFingerprints(new ServiceFingerprints(1099L, fingerprints))));
+        check(decodedServiceFingerprints.getVersion() == 1099L
+                && decodedServiceFingerprints.getFingerprints().equals(fingerprints), "服务的指纹");
+
+        ServiceInstanceQuery query = new ServiceInstanceQuery();
+        query.setServiceName("SERVICE-3");
+        query.setStatus(ServiceInstanceStatus.UP);
+        query.setZone("zone-1");
+        query.setVersion("2.0");
+        query.getMetadata().put("weight", "100");
+        query.setFields(ServiceInstanceQuery.FIELD_ADDRESS);
+        ServiceInstanceQuery decodedQuery = MessageCodec.decodeServiceInstanceQuery(
+                ByteBuffer.wrap(MessageCodec.encodeServiceInstanceQuery(query)));
+        check(query.toString().equals(decodedQuery.toString()), "查询服务实例的请求");
+
+        // 只要ip和端口的话，其他字段都不编码；要所有字段的话跟全量注册表里的服务实例一样
+        ServiceInstanceQueryResult queryResult = new ServiceInstanceQueryResult();
+        queryResult.setVersion(1099L);
+        queryResult.setServiceName("SERVICE-3");
+        queryResult.setServiceInstances(new ArrayList<>(applications.getRegistry().get("SERVICE-3").values()));
+        queryResult.setFields(ServiceInstanceQuery.FIELD_ADDRESS);
+        byte[] addresses = MessageCodec.encodeServiceInstanceQueryResult(queryResult);
+        ServiceInstanceQueryResult decodedQueryResult = MessageCodec.decodeServiceInstanceQueryResult(
+                ByteBuffer.wrap(addresses));
+        check(decodedQueryResult.getVersion() == 1099L
+                && decodedQueryResult.getServiceInstances().size() == queryResult.getServiceInstances().size(),
+                "查询服务实例的结果");
+        for (int i = 0; i < queryResult.getServiceInstances().size(); i++) {
+            ServiceInstance serviceInstance = queryResult.getServiceInstances().get(i);
+            ServiceInstance decodedServiceInstance = decodedQueryResult.getServiceInstances().get(i);
+            check(TestSupport.equals(serviceInstance.getIp(), decodedServiceInstance.getIp())
+                    && serviceInstance.getPort() == decodedServiceInstance.getPort()
+                    && decodedServiceInstance.getServiceInstanceId() == null
+                    && decodedServiceInstance.getHostname() == null
+                    && decodedServiceInstance.getZone() == null, "只带ip和端口的服务实例：" + serviceInstance);
+        }
+        queryResult.setFields(ServiceInstanceQuery.FIELD_ALL);
+        byte[] allFields = MessageCodec.encodeServiceInstanceQueryResult(queryResult);
+        decodedQueryResult = MessageCodec.decodeServiceInstanceQueryResult(ByteBuffer.wrap(allFields));
+        for (int i = 0; i < queryResult.getServiceInstances().size(); i++) {
+            check(same(queryResult.getServiceInstances().get(i),
+                    decodedQueryResult.getServiceInstances().get(i)), "带所有字段的服务实例：" + i);
+        }
+        check(addresses.length < allFields.length / 3, "只带ip和端口的结果：" + addresses.length + "/" + allFields.length);
+
+        RegistryMetrics.getInstance().recordRequest(MessageType.HEARTBEAT, System.nanoTime() - 12345L, false);
+        RegistryMetrics.getInstance().recordTask(RegistryMetrics.TASK_EVICTION, System.nanoTime(), true);
+        RegistryStats registryStats = RegistryMetrics.getInstance().getStats();
+        RegistryStats decodedRegistryStats = MessageCodec.decodeRegistryStats(
+                ByteBuffer.wrap(MessageCodec.encodeRegistryStats(registryStats)));
+        check(registryStats.getOperations().size() == 2
+                && registryStats.toString().equals(decodedRegistryStats.toString()), "运行统计");
+
+        WatchRequest watchRequest = new WatchRequest();
+        watchRequest.setSinceVersion(-1L);
+        watchRequest.setTimeout(30 * 1000L);
+        WatchRequest decodedWatchRequest = MessageCodec.decodeWatchRequest(
+                ByteBuffer.wrap(MessageCodec.encodeWatchRequest(watchRequest)));
+        check(watchRequest.toString().equals(decodedWatchRequest.toString()), "监听请求");
+        watchRequest.setServiceNames(Arrays.asList("SERVICE-0", "SERVICE-1"));
+        decodedWatchRequest = MessageCodec.decodeWatchRequest(
+                ByteBuffer.wrap(MessageCodec.encodeWatchRequest(watchRequest)));
+        check(watchRequest.toString().equals(decodedWatchRequest.toString()), "订阅了服务的监听请求");
+
+        FetchDeltaRegistryRequest fetchDeltaRegistryRequest = new FetchDeltaRegistryRequest();
+        fetchDeltaRegistryRequest.setSinceVersion(1099L);
+        fetchDeltaRegistryRequest.setServiceNames(Arrays.asList("SERVICE-0", "SERVICE-1"));
+        FetchDeltaRegistryRequest decodedFetchDeltaRegistryRequest = MessageCodec.decodeFetchDeltaRegistryRequest(
+                ByteBuffer.wrap(MessageCodec.encodeFetchDeltaRegistryRequest(fetchDeltaRegistryRequest)));
+        check(fetchDeltaRegistryRequest.toString().equals(decodedFetchDeltaRegistryRequest.toString()), "拉取增量注册表请求");
+        // 只有版本号的老消息体也要能解码
+        decodedFetchDeltaRegistryRequest = MessageCodec.decodeFetchDeltaRegistryRequest(
+                ByteBuffer.wrap(MessageCodec.encodeLong(1099L)));
+        check(decodedFetchDeltaRegistryRequest.getSinceVersion() == 1099L
+                && decodedFetchDeltaRegistryRequest.getServiceNames().isEmpty(), "只有版本号的拉取增量注册表请求");
+        check(MessageCodec.decodeServiceNames(ByteBuffer.wrap(MessageCodec.encodeServiceNames(
+                fetchDeltaRegistryRequest.getServiceNames()))).equals(fetchDeltaRegistryRequest.getServiceNames())
+                && MessageCodec.decodeServiceNames(ByteBuffer.allocate(0)).isEmpty(), "订阅的服务名称");
+
+        for (long value : new long[]{-1L, 0L, 1L, 127L, 128L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            check(MessageCodec.decodeLong(ByteBuffer.wrap(MessageCodec.encodeLong(value))) == value, "long：" + value);
+        }
+
+        // 解码要能处理从一个大缓冲区中间切出来的消息体
+        byte[] heartbeat = MessageCodec.encodeHeartbeatRequest(newBatchHeartbeatRequest(1).getHeartbeatRequests().get(0));
+        ByteBuffer frame = ByteBuffer.allocate(heartbeat.length + 16);
+        frame.position(7);
+        frame.put(heartbeat);
+        frame.position(7);
+        frame.limit(7 + heartbeat.length);
+        HeartbeatRequest decodedHeartbeatRequest = MessageCodec.decodeHeartbeatRequest(frame.slice());
+        check("SERVICE-0".equals(decodedHeartbeatRequest.getServiceName()), "从缓冲区中间解码");
+    }
+
+    private static void testThroughput(int iterations) {
+        HeartbeatRequest heartbeatRequest = newBatchHeartbeatRequest(1).getHeartbeatRequests().get(0);
+        BatchHeartbeatRequest batchHeartbeatRequest = newBatchHeartbeatRequest(500);
+        Applications applications = newApplications(200, 50);
+
+        byte[] heartbeat = MessageCodec.encodeHeartbeatRequest(heartbeatRequest);
+        byte[] batchHeartbeat = MessageCodec.encodeBatchHeartbeatRequest(batchHeartbeatRequest);
+        byte[] fullRegistry = MessageCodec.encodeApplications(applications);
+        System.out.println("心跳请求：" + heartbeat.length + "字节，500个实例的批量心跳请求：" + batchHeartbeat.length
+                + "字节，10000个实例的全量注册表：" + fullRegistry.length + "字节，压缩之后"
+                + MessageCodec.encodeCompressedApplications(applications).length + "字节");
+
+        // 先跑一遍预热，再正式计时
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+
+            long start = System.nanoTime();
+            long bytes = 0;
+            for (int i = 0; i < iterations; i++) {
+                bytes += MessageCodec.encodeHeartbeatRequest(heartbeatRequest).length;
+            }
+            report(print, "心跳请求编码", iterations, start, bytes);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                bytes += MessageCodec.decodeHeartbeatRequest(ByteBuffer.wrap(heartbeat)).getServiceInstanceId().length();
+            }
+            report(print, "心跳请求解码", iterations, start, bytes);
+
+            int batchIterations = Math.max(1, iterations / 500);
+            start = System.nanoTime();
+            for (int i = 0; i < batchIterations; i++) {
+                bytes += MessageCodec.encodeBatchHeartbeatRequest(batchHeartbeatRequest).length;
+            }
+            report(print, "批量心跳请求编码", batchIterations, start, bytes);
+
+            start = System.nanoTime();
+            for (int i = 0; i < batchIterations; i++) {
+                bytes += MessageCodec.decodeBatchHeartbeatRequest(ByteBuffer.wrap(batchHeartbeat)).getHeartbeatRequests().size();
+            }
+            report(print, "批量心跳请求解码", batchIterations, start, bytes);
+
+            int fullIterations = Math.max(1, iterations / 10000);
+            start = System.nanoTime();
+            for (int i = 0; i < fullIterations; i++) {
+                bytes += MessageCodec.encodeApplications(applications).length;
+            }
+            report(print, "全量注册表编码", fullIterations, start, bytes);
+
+            start = System.nanoTime();
+            for (int i = 0; i < fullIterations; i++) {
+                bytes += MessageCodec.decodeApplications(ByteBuffer.wrap(fullRegistry)).getRegistry().size();
+            }
+            report(print, "全量注册表解码", fullIterations, start, bytes);
+        }
+    }
+
+    private static void report(boolean print, String name, int iterations, long start, long blackhole) {
+        long elapsed = System.nanoTime() - start;
+        if (print) {
+            System.out.println(name + "：" + (long) (iterations * 1e9 / elapsed) + "次/秒，平均"
+                    + (elapsed / iterations) + "纳秒" + (blackhole == 42 ? " " : ""));
+        }
+    }
+
+    private static BatchHeartbeatRequest newBatchHeartbeatRequest(int count) {
+        BatchHeartbeatRequest request = new BatchHeartbeatRequest();
+        for (int i = 0; i < count; i++) {
+            request.add("SERVICE-" + (i % 10), "SERVICE-" + (i % 10) + "-192.168.31." + (i % 250) + ":" + (9000 + i));
+        }
+        return request;
+    }
+
+    private static Applications newApplications(int serviceCount, int instancesPerService) {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        for (int i = 0; i < serviceCount; i++) {
+            Map<String, ServiceInstance> serviceInstanceMap = new HashMap<>();
+            for (int j = 0; j < instancesPerService; j++) {
+                ServiceInstance serviceInstance = newServiceInstance(i, j, 0);
+                serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+            }
+            registry.put("SERVICE-" + i, serviceInstanceMap);
+        }
+        Applications applications = new Applications(registry);
+        applications.setVersion(987654321L);
+        return applications;
+    }
+}
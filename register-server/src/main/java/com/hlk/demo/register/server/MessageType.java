@@ -0,0 +1,72 @@
+package com.hlk.demo.register.server;
+
+/**
+ * 网络通信的消息类型
+ *
+ * 每一帧的格式：4字节的帧长度（不包含自己） + 1字节的消息类型 + 4字节的请求id + 消息体
+ * 响应的消息类型和请求id跟请求是一样的，客户端根据请求id把响应对应到请求上
+ *
+ * @author huanglk
+ */
+public class MessageType {
+
+    /**
+     * 请求处理出错，消息体是错误信息
+     */
+    public static final byte ERROR = 0;
+    /**
+     * 服务注册
+     */
+    public static final byte REGISTER = 1;
+    /**
+     * 心跳
+     */
+    public static final byte HEARTBEAT = 2;
+    /**
+     * 批量心跳
+     */
+    public static final byte BATCH_HEARTBEAT = 3;
+    /**
+     * 拉取全量注册表
+     */
+    public static final byte FETCH_FULL_REGISTRY = 4;
+    /**
+     * 拉取增量注册表
+     */
+    public static final byte FETCH_DELTA_REGISTRY = 5;
+    /**
+     * 服务下线
+     */
+    public static final byte CANCEL = 6;
+    /**
+     * register-server节点之间批量转发注册、心跳、下线操作
+     */
+    public static final byte REPLICATE_BATCH = 7;
+    /**
+     * 监听注册表变更：服务端挂住请求，注册表有了新的变更或者超时了才响应，响应是一个增量注册表
+     */
+    public static final byte WATCH = 8;
+    /**
+     * 拉取每个服务的指纹，消息体是服务名称，为空的话就是所有服务
+     */
+    public static final byte FETCH_SERVICE_FINGERPRINTS = 9;
+    /**
+     * 查询register-server的运行统计：每种请求和后台任务的耗时分布、计数器，消息体为空
+     */
+    public static final byte FETCH_STATS = 10;
+    /**
+     * 拉取gzip压缩过的全量注册表，消息体是客户端手上的全量注册表的版本号（zigzag编码，没有的话是-1）
+     * 跟服务端当前的全量注册表版本号一样的话响应空的消息体，表示没有变化，不然响应压缩过的全量注册表
+     */
+    public static final byte FETCH_COMPRESSED_FULL_REGISTRY = 11;
+    /**
+     * 按条件查询一个服务的服务实例：状态、机房、版本标签、元数据，响应里只带上请求里指定的字段
+     */
+    public static final byte QUERY_SERVICE_INSTANCES = 12;
+
+    /**
+     * 帧头的长度：消息类型 + 请求id
+     */
+    public static final int HEADER_LENGTH = 1 + 4;
+
+}
@@ -0,0 +1,277 @@
+package com.hlk.demo.register.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接NioServer的一个简单客户端，用来在本机通过回环地址测试网络服务器
+ *
+ * 一个客户端对象就是一条长连接，多个线程可以同时在这条连接上发请求，
+ * 请求一发出去就返回一个future，后台的读线程收到响应之后按照请求id完成对应的future
+ *
+ * @author huanglk
+ */
+public class NioClient {
+
+    /**
+     * 同步调用的超时时间
+     */
+    private static final long CALL_TIMEOUT = 30 * 1000L;
+
+    private final SocketChannel channel;
+    private final AtomicInteger requestIdGenerator = new AtomicInteger(0);
+    /**
+     * 还没收到响应的请求
+     */
+    private final Map<Integer, CompletableFuture<ByteBuffer>> inflightRequests = new ConcurrentHashMap<>();
+    private final Reader reader;
+    private volatile boolean closed = false;
+
+    public NioClient(String host, int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        this.channel.socket().setTcpNoDelay(true);
+        this.reader = new Reader();
+        this.reader.setDaemon(true);
+        this.reader.setName("NioClientReader-" + channel.socket().getLocalPort());
+        this.reader.start();
+    }
+
+    /**
+     * 发送一个请求，不等响应
+     *
+     * @param messageType 消息类型
+     * @param payload     消息体
+     * @return 响应的消息体
+     */
+    public CompletableFuture<ByteBuffer> send(byte messageType, byte[] payload) {
+        int requestId = requestIdGenerator.incrementAndGet();
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        inflightRequests.put(requestId, future);
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + MessageType.HEADER_LENGTH + payload.length);
+        frame.putInt(MessageType.HEADER_LENGTH + payload.length);
+        frame.put(messageType);
+        frame.putInt(requestId);
+        frame.put(payload);
+        frame.flip();
+
+        try {
+            synchronized (channel) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            inflightRequests.remove(requestId);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 发送一个请求，等待响应
+     */
+    public ByteBuffer call(byte messageType, byte[] payload) throws IOException {
+        try {
+            return send(messageType, payload).get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("请求超时", e);
+        }
+    }
+
+    public RegisterResponse register(RegisterRequest request) throws IOException {
+        return MessageCodec.decodeRegisterResponse(
+                call(MessageType.REGISTER, MessageCodec.encodeRegisterRequest(request)));
+    }
+
+    public HeartbeatResponse heartbeat(HeartbeatRequest request) throws IOException {
+        return MessageCodec.decodeHeartbeatResponse(
+                call(MessageType.HEARTBEAT, MessageCodec.encodeHeartbeatRequest(request)));
+    }
+
+    public BatchHeartbeatResponse batchHeartbeat(BatchHeartbeatRequest request) throws IOException {
+        return MessageCodec.decodeBatchHeartbeatResponse(
+                call(MessageType.BATCH_HEARTBEAT, MessageCodec.encodeBatchHeartbeatRequest(request)));
+    }
+
+    public Applications fetchFullRegistry() throws IOException {
+        return MessageCodec.decodeApplications(call(MessageType.FETCH_FULL_REGISTRY, new byte[0]));
+    }
+
+    public DeltaRegistry fetchDeltaRegistry(long sinceVersion) throws IOException {
+        return MessageCodec.decodeDeltaRegistry(
+                call(MessageType.FETCH_DELTA_REGISTRY, MessageCodec.encodeLong(sinceVersion)));
+    }
+
+    /**
+     * 只拉取订阅的这几个服务的全量注册表
+     */
+    public Applications fetchFullRegistry(List<String> serviceNames) throws IOException {
+        return MessageCodec.decodeApplications(
+                call(MessageType.FETCH_FULL_REGISTRY, MessageCodec.encodeServiceNames(serviceNames)));
+    }
+
+    /**
+     * 拉取gzip压缩过的全量注册表
+     *
+     * @param version 手上的全量注册表的版本号，没有的话传-1
+     * @return 服务端的全量注册表跟手上的版本一样的话返回null
+     */
+    public Applications fetchCompressedFullRegistry(long version) throws IOException {
+        return MessageCodec.decodeCompressedApplications(
+                call(MessageType.FETCH_COMPRESSED_FULL_REGISTRY, MessageCodec.encodeLong(version)));
+    }
+
+    /**
+     * 按条件查询一个服务的服务实例
+     */
+    public ServiceInstanceQueryResult queryServiceInstances(ServiceInstanceQuery query) throws IOException {
+        return MessageCodec.decodeServiceInstanceQueryResult(
+                call(MessageType.QUERY_SERVICE_INSTANCES, MessageCodec.encodeServiceInstanceQuery(query)));
+    }
+
+    /**
+     * 只拉取订阅的这几个服务的增量注册表
+     */
+    public DeltaRegistry fetchDeltaRegistry(FetchDeltaRegistryRequest request) throws IOException {
+        return MessageCodec.decodeDeltaRegistry(
+                call(MessageType.FETCH_DELTA_REGISTRY, MessageCodec.encodeFetchDeltaRegistryRequest(request)));
+    }
+
+    /**
+     * 拉取每个服务的指纹
+     */
+    public ServiceFingerprints fetchServiceFingerprints(List<String> serviceNames) throws IOException {
+        return MessageCodec.decodeServiceFingerprints(
+                call(MessageType.FETCH_SERVICE_FINGERPRINTS, MessageCodec.encodeServiceNames(serviceNames)));
+    }
+
+    /**
+     * 查询服务端的运行统计
+     */
+    public RegistryStats fetchStats() throws IOException {
+        return MessageCodec.decodeRegistryStats(call(MessageType.FETCH_STATS, new byte[0]));
+    }
+
+    /**
+     * 监听注册表的变更，一直等到注册表比sinceVersion新了或者服务端超时响应
+     */
+    public DeltaRegistry watch(WatchRequest request) throws IOException {
+        try {
+            return MessageCodec.decodeDeltaRegistry(send(MessageType.WATCH, MessageCodec.encodeWatchRequest(request))
+                    .get(request.getTimeout() + CALL_TIMEOUT, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("请求超时", e);
+        }
+    }
+
+    public void cancel(String serviceName, String serviceInstanceId) throws IOException {
+        HeartbeatRequest request = new HeartbeatRequest();
+        request.setServiceName(serviceName);
+        request.setServiceInstanceId(serviceInstanceId);
+        call(MessageType.CANCEL, MessageCodec.encodeHeartbeatRequest(request));
+    }
+
+    /**
+     * 关闭连接
+     */
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        failInflightRequests(new IOException("连接已关闭"));
+    }
+
+    /**
+     * 连接是否已经关闭或者断开了
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void failInflightRequests(IOException e) {
+        for (Integer requestId : inflightRequests.keySet()) {
+            CompletableFuture<ByteBuffer> future = inflightRequests.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 读响应的后台线程
+     */
+    private class Reader extends Thread {
+
+        @Override
+        public void run() {
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            try {
+                while (!closed) {
+                    lengthBuffer.clear();
+                    readFully(lengthBuffer);
+                    int frameLength = lengthBuffer.getInt(0);
+
+                    ByteBuffer frame = ByteBuffer.allocate(frameLength);
+                    readFully(frame);
+                    frame.flip();
+                    byte messageType = frame.get();
+                    int requestId = frame.getInt();
+                    ByteBuffer payload = frame.slice();
+
+                    CompletableFuture<ByteBuffer> future = inflightRequests.remove(requestId);
+                    if (future == null) {
+                        continue;
+                    }
+                    if (messageType == MessageType.ERROR) {
+                        future.completeExceptionally(new IOException(
+                                "服务端处理请求出错：" + MessageCodec.readString(payload)));
+                    } else {
+                        future.complete(payload);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        channel.close();
+                    } catch (IOException closeException) {
+                        // 连接本来就已经断了
+                    }
+                    failInflightRequests(e);
+                }
+            }
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("连接已被服务端关闭");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.hlk.demo.register.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个客户端的长连接
+ *
+ * 读写都只在NioServer的selector线程里做，工作线程处理完请求之后，
+ * 只是把响应放到写队列里，再通知selector线程去写
+ *
+ * 读到的请求先放进这个连接自己的请求队列，同一时刻最多只有一个工作线程在处理这个连接的请求，
+ * 所以同一个连接上的请求是按发送的顺序一个一个执行的，注册、心跳、下线不会乱序；
+ * 请求队列积压满了就先不读这个连接，让对方的发送缓冲区堵住，处理掉一半之后再接着读
+ *
+ * 写队列按字节数记账：对方读得慢，积压超过高水位就不再处理这个连接的请求、也不再读，
+ * 写到低水位以下再恢复；监听推送之类不经过请求队列的响应还在往里放，积压到硬上限就直接关掉连接
+ *
+ * @author huanglk
+ */
+public class NioConnection {
+
+    /**
+     * 读缓冲区的初始大小
+     */
+    private static final int INITIAL_READ_BUFFER_SIZE = 4 * 1024;
+    /**
+     * 一个连接上最多积压多少个还没处理的请求
+     */
+    static final int MAX_PENDING_REQUESTS = 1024;
+    /**
+     * 工作线程每次最多连续处理同一个连接的多少个请求，没处理完的重新排到线程池的队尾，别的连接也能轮到
+     */
+    private static final int MAX_REQUESTS_PER_RUN = 64;
+    /**
+     * 写队列积压到多少字节就暂停处理请求和读
+     */
+    static final long WRITE_HIGH_WATER_MARK = 4L * 1024 * 1024;
+    /**
+     * 写队列降到多少字节以下恢复处理请求和读
+     */
+    static final long WRITE_LOW_WATER_MARK = 1024L * 1024;
+    /**
+     * 写队列最多积压多少字节，超过了就关闭连接
+     */
+    static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+    private final NioServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    /**
+     * 读缓冲区，一次可能读到多个请求帧（请求流水线），也可能只读到半个帧
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    /**
+     * 等待写出去的响应帧，每个帧是帧头和消息体两个缓冲区，用gathering write一起写出去
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer[]> writeQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * 写队列里积压的字节数
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+    /**
+     * 写队列积压超过了硬上限，等selector线程来关闭连接
+     */
+    private volatile boolean writeOverflowed = false;
+    /**
+     * 最近一次有读写的时间，用来关闭长时间空闲的连接
+     */
+    private volatile long latestActiveTimestamp = System.currentTimeMillis();
+    private volatile boolean closed = false;
+    /**
+     * 读到了还没处理的请求，下面两个标志也用它来加锁
+     */
+    private final ArrayDeque<PendingRequest> pendingRequests = new ArrayDeque<>();
+    /**
+     * 是不是已经有工作线程在处理（或者排队等着处理）这个连接的请求了
+     */
+    private boolean processing = false;
+    /**
+     * 是不是因为请求积压满了暂停了读
+     */
+    private boolean readSuspended = false;
+    /**
+     * 是不是因为写队列积压超过了高水位暂停了处理请求和读
+     */
+    private boolean writeBlocked = false;
+    /**
+     * 在工作线程里按顺序处理请求队列
+     */
+    private final Runnable processor = new Runnable() {
+        @Override
+        public void run() {
+            processPendingRequests();
+        }
+    };
+
+    NioConnection(NioServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * 发送一个响应帧，任何线程都可以调用
+     *
+     * 消息体不拷贝，只包一层ByteBuffer放进写队列，缓存起来的同一份响应可以同时发给很多连接，
+     * 调用方发送之后不能再修改payload
+     *
+     * @param messageType 消息类型
+     * @param requestId   请求id
+     * @param payload     消息体
+     */
+    public void send(byte messageType, int requestId, byte[] payload) {
+        if (closed) {
+            return;
+        }
+        if (queuedBytes.get() >= MAX_QUEUED_BYTES) {
+            writeOverflowed = true;
+            server.requestFlush(this);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(4 + MessageType.HEADER_LENGTH);
+        header.putInt(MessageType.HEADER_LENGTH + payload.length);
+        header.put(messageType);
+        header.putInt(requestId);
+        header.flip();
+        queuedBytes.addAndGet(header.remaining() + payload.length);
+        writeQueue.offer(new ByteBuffer[]{header, ByteBuffer.wrap(payload)});
+        server.requestFlush(this);
+    }
+
+    /**
+     * 从socket里读数据，把读到的完整的请求帧交给工作线程处理
+     * 只在selector线程里调用
+     *
+     * @return 连接已经被对方关闭的话返回false
+     */
+    boolean read() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            return false;
+        }
+        latestActiveTimestamp = System.currentTimeMillis();
+        processFrames();
+        return true;
+    }
+
+    /**
+     * 请求队列处理掉一半了，先把读缓冲区里已经收到的请求帧放进队列，没有再积压满的话恢复读
+     * 只在selector线程里调用
+     */
+    void resumeRead() throws IOException {
+        processFrames();
+        synchronized (pendingRequests) {
+            if (readSuspended || writeBlocked) {
+                return;
+            }
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * 把读缓冲区里完整的请求帧放进请求队列，队列积压满了就停下来，暂停读这个连接
+     */
+    private void processFrames() throws IOException {
+        readBuffer.flip();
+        boolean dispatched = false;
+        boolean suspended = false;
+        while (readBuffer.remaining() >= 4) {
+            int frameLength = readBuffer.getInt(readBuffer.position());
+            if (frameLength < MessageType.HEADER_LENGTH || frameLength > NioServer.MAX_FRAME_LENGTH) {
+                throw new IOException("非法的帧长度：" + frameLength);
+            }
+            if (readBuffer.remaining() < 4 + frameLength) {
+                break;
+            }
+            if (suspendReadIfFull()) {
+                suspended = true;
+                break;
+            }
+            readBuffer.getInt();
+            byte messageType = readBuffer.get();
+            int requestId = readBuffer.getInt();
+            // 消息体不拷贝，直接切一个视图交给工作线程解码
+            int payloadEnd = readBuffer.position() + frameLength - MessageType.HEADER_LENGTH;
+            ByteBuffer payload = readBuffer.duplicate();
+            payload.limit(payloadEnd);
+            enqueue(new PendingRequest(messageType, requestId, payload.slice()));
+            readBuffer.position(payloadEnd);
+            dispatched = true;
+        }
+
+        if (dispatched) {
+            // 读缓冲区已经被切给工作线程了，不能再复用，剩下的半个帧搬到一个新的缓冲区里
+            ByteBuffer newReadBuffer = ByteBuffer.allocate(
+                    Math.max(INITIAL_READ_BUFFER_SIZE, readBuffer.remaining() * 2));
+            newReadBuffer.put(readBuffer);
+            readBuffer = newReadBuffer;
+        } else if (!suspended && readBuffer.remaining() == readBuffer.capacity()) {
+            // 半个大帧放不下的话，扩容读缓冲区
+            ByteBuffer newReadBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            newReadBuffer.put(readBuffer);
+            readBuffer = newReadBuffer;
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * 请求队列积压满了的话暂停读，等工作线程处理掉一半之后再恢复
+     *
+     * @return 是不是暂停了
+     */
+    private boolean suspendReadIfFull() {
+        synchronized (pendingRequests) {
+            if (pendingRequests.size() < MAX_PENDING_REQUESTS) {
+                return false;
+            }
+            readSuspended = true;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        return true;
+    }
+
+    private void enqueue(PendingRequest request) {
+        synchronized (pendingRequests) {
+            pendingRequests.offer(request);
+            if (processing || writeBlocked) {
+                return;
+            }
+            processing = true;
+        }
+        server.execute(processor);
+    }
+
+    /**
+     * 在工作线程里按顺序处理这个连接的请求
+     */
+    private void processPendingRequests() {
+        for (int i = 0; i < MAX_REQUESTS_PER_RUN; i++) {
+            PendingRequest request;
+            boolean resume = false;
+            synchronized (pendingRequests) {
+                // 写队列积压太多了，先不处理，等selector线程写到低水位以下再接着处理
+                if (writeBlocked || queuedBytes.get() >= WRITE_HIGH_WATER_MARK) {
+                    writeBlocked = true;
+                    processing = false;
+                    return;
+                }
+                request = pendingRequests.poll();
+                if (request == null) {
+                    processing = false;
+                    return;
+                }
+                if (readSuspended && pendingRequests.size() <= MAX_PENDING_REQUESTS / 2) {
+                    readSuspended = false;
+                    resume = true;
+                }
+            }
+            if (resume) {
+                server.requestResume(this);
+            }
+            server.process(this, request.messageType, request.requestId, request.payload);
+        }
+        // 还没处理完，让别的连接先处理一会儿
+        server.execute(processor);
+    }
+
+    /**
+     * 把写队列里的响应尽量写出去，写不完的话关注OP_WRITE事件等下次再写
+     * 只在selector线程里调用
+     */
+    void flush() throws IOException {
+        if (writeOverflowed) {
+            throw new IOException("写队列积压超过" + MAX_QUEUED_BYTES + "字节，对方读得太慢");
+        }
+        ByteBuffer[] frame;
+        boolean drained = true;
+        while ((frame = writeQueue.peek()) != null) {
+            channel.write(frame);
+            if (frame[0].hasRemaining() || frame[1].hasRemaining()) {
+                drained = false;
+                break;
+            }
+            writeQueue.poll();
+            queuedBytes.addAndGet(-(4 + frame[0].getInt(0)));
+        }
+        if (drained) {
+            latestActiveTimestamp = System.currentTimeMillis();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        updateWriteBlocked();
+    }
+
+    /**
+     * 按写队列积压的字节数暂停或者恢复处理请求和读，只在selector线程里调用
+     */
+    private void updateWriteBlocked() {
+        long queued = queuedBytes.get();
+        boolean schedule = false;
+        boolean readable;
+        synchronized (pendingRequests) {
+            if (queued >= WRITE_HIGH_WATER_MARK) {
+                writeBlocked = true;
+            } else if (writeBlocked && queued <= WRITE_LOW_WATER_MARK) {
+                writeBlocked = false;
+                if (!processing && !pendingRequests.isEmpty()) {
+                    processing = true;
+                    schedule = true;
+                }
+            }
+            readable = !writeBlocked && !readSuspended;
+        }
+        if (readable) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        if (schedule) {
+            server.execute(processor);
+        }
+    }
+
+    /**
+     * 关闭连接
+     */
+    void close() {
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writeQueue.clear();
+        synchronized (pendingRequests) {
+            pendingRequests.clear();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    long getLatestActiveTimestamp() {
+        return latestActiveTimestamp;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * 一个读到了还没处理的请求
+     */
+    private static class PendingRequest {
+
+        final byte messageType;
+        final int requestId;
+        final ByteBuffer payload;
+
+        PendingRequest(byte messageType, int requestId, ByteBuffer payload) {
+            this.messageType = messageType;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.hlk.demo.register.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 把网络请求按照消息类型分发给RegisterServerController处理，再把响应写回连接
+ * 在NioServer的工作线程里执行
+ *
+ * @author huanglk
+ */
+public class NioRequestDispatcher {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final RegisterServerController controller;
+    /**
+     * 最近一次编码的监听响应
+     */
+    private volatile EncodedDeltaRegistry latestEncodedWatchResponse;
+
+    public NioRequestDispatcher(RegisterServerController controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * 处理一个请求
+     *
+     * @param connection  请求所在的连接
+     * @param messageType 消息类型
+     * @param requestId   请求id
+     * @param payload     消息体
+     */
+    public void dispatch(NioConnection connection, byte messageType, int requestId, ByteBuffer payload) {
+        // 耗时包括解码请求、处理、编码响应，不包括排队和写回连接
+        long startNanos = System.nanoTime();
+        RegistryMetrics metrics = RegistryMetrics.getInstance();
+        try {
+            byte[] response;
+            switch (messageType) {
+                case MessageType.REGISTER:
+                    response = MessageCodec.encodeRegisterResponse(
+                            controller.register(MessageCodec.decodeRegisterRequest(payload)));
+                    break;
+                case MessageType.HEARTBEAT:
+                    response = MessageCodec.encodeHeartbeatResponse(
+                            controller.heartbeat(MessageCodec.decodeHeartbeatRequest(payload)));
+                    break;
+                case MessageType.BATCH_HEARTBEAT:
+                    response = MessageCodec.encodeBatchHeartbeatResponse(
+                            controller.batchHeartbeat(MessageCodec.decodeBatchHeartbeatRequest(payload)));
+                    break;
+                case MessageType.FETCH_FULL_REGISTRY:
+                    // 消息体里是客户端订阅的服务名称，为空的话就是所有服务，响应缓存里存的就是编码好的字节
+                    response = controller.fetchEncodedServiceRegistry(MessageCodec.decodeServiceNames(payload));
+                    break;
+                case MessageType.FETCH_COMPRESSED_FULL_REGISTRY:
+                    // 消息体里是客户端手上的全量注册表的版本号，没有变化的话响应空的消息体
+                    CompressedApplications compressedApplications =
+                            controller.fetchCompressedServiceRegistry(MessageCodec.decodeLong(payload));
+                    response = compressedApplications == null ? EMPTY : compressedApplications.getPayload();
+                    break;
+                case MessageType.FETCH_DELTA_REGISTRY:
+                    // 没有订阅服务、版本号小于0表示拉取最近变更队列里所有的变更
+                    FetchDeltaRegistryRequest fetchRequest = MessageCodec.decodeFetchDeltaRegistryRequest(payload);
+                    response = controller.fetchEncodedDeltaServiceRegistry(
+                            fetchRequest.getSinceVersion(), fetchRequest.getServiceNames());
+                    break;
+                case MessageType.CANCEL:
+                    // 下线请求的消息体跟心跳请求一样，都是服务名称 + 服务实例id
+                    HeartbeatRequest cancelRequest = MessageCodec.decodeHeartbeatRequest(payload);
+                    controller.cancel(cancelRequest.getServiceName(), cancelRequest.getServiceInstanceId());
+                    response = EMPTY;
+                    break;
+                case MessageType.FETCH_SERVICE_FINGERPRINTS:
+                    response = MessageCodec.encodeServiceFingerprints(
+                            controller.fetchServiceFingerprints(MessageCodec.decodeServiceNames(payload)));
+                    break;
+                case MessageType.QUERY_SERVICE_INSTANCES:
+                    response = MessageCodec.encodeServiceInstanceQueryResult(
+                            controller.queryServiceInstances(MessageCodec.decodeServiceInstanceQuery(payload)));
+                    break;
+                case MessageType.FETCH_STATS:
+                    response = MessageCodec.encodeRegistryStats(controller.fetchStats());
+                    break;
+                case MessageType.WATCH:
+                    // 监听请求先挂起来，不马上响应，有了变更或者超时之后在回调里把响应写回连接
+                    // 记下来的耗时只是挂起请求的耗时，不包括等待变更的时间
+                    watch(connection, requestId, MessageCodec.decodeWatchRequest(payload));
+                    metrics.recordRequest(messageType, startNanos, false);
+                    return;
+                case MessageType.REPLICATE_BATCH:
+                    response = MessageCodec.encodeReplicationBatchResponse(
+                            controller.replicate(MessageCodec.decodeReplicationBatch(payload)));
+                    break;
+                default:
+                    connection.send(MessageType.ERROR, requestId,
+                            MessageCodec.encodeString("不支持的消息类型：" + messageType));
+                    return;
+            }
+            metrics.recordRequest(messageType, startNanos, false);
+            connection.send(messageType, requestId, response);
+        } catch (Exception e) {
+            metrics.recordRequest(messageType, startNanos, true);
+            e.printStackTrace();
+            connection.send(MessageType.ERROR, requestId, MessageCodec.encodeString(String.valueOf(e)));
+        }
+    }
+
+    private void watch(final NioConnection connection, final int requestId, WatchRequest watchRequest) {
+        controller.watch(watchRequest, new RegistryWatchManager.WatchCallback() {
+            @Override
+            public void onChanged(DeltaRegistry deltaRegistry) {
+                connection.send(MessageType.WATCH, requestId, encodeWatchResponse(deltaRegistry));
+            }
+        });
+    }
+
+    /**
+     * 一次变更会同时完成一大批监听，它们拿到的是响应缓存里的同一个增量注册表对象，只编码一次
+     */
+    private byte[] encodeWatchResponse(DeltaRegistry deltaRegistry) {
+        EncodedDeltaRegistry encoded = latestEncodedWatchResponse;
+        if (encoded != null && encoded.deltaRegistry == deltaRegistry) {
+            return encoded.payload;
+        }
+        byte[] payload = MessageCodec.encodeDeltaRegistry(deltaRegistry);
+        latestEncodedWatchResponse = new EncodedDeltaRegistry(deltaRegistry, payload);
+        return payload;
+    }
+
+    /**
+     * 编码好的增量注册表
+     */
+    private static class EncodedDeltaRegistry {
+
+        final DeltaRegistry deltaRegistry;
+        final byte[] payload;
+
+        EncodedDeltaRegistry(DeltaRegistry deltaRegistry, byte[] payload) {
+            this.deltaRegistry = deltaRegistry;
+            this.payload = payload;
+        }
+    }
+}
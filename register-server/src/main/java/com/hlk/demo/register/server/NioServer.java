@@ -0,0 +1,306 @@
+package com.hlk.demo.register.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于NIO的网络服务器，负责接收register-client发送过来的请求
+ *
+ * 一个selector线程负责所有连接的建立、读和写，连接都是长连接，
+ * 客户端可以在一个连接上连续发送多个请求，不用等上一个请求的响应（请求流水线）
+ * 读到的完整请求交给一个小的工作线程池，调用RegisterServerController处理，
+ * 所以5万个客户端的长连接也不需要5万个线程
+ *
+ * 同一个连接上的请求按顺序一个一个处理，不同连接的请求由工作线程并发处理；
+ * 监听请求挂起之后就算处理完了，它的响应会晚于后面请求的响应，客户端要根据响应里的请求id来对应
+ *
+ * 线程池的队列里每个连接最多只有一个任务，每个连接积压的请求数量是有上限的，
+ * 工作线程处理不过来的时候不会无限地占用内存，而是暂停读积压满了的连接
+ *
+ * @author huanglk
+ */
+public class NioServer {
+
+    /**
+     * 一帧最大的长度
+     */
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /**
+     * 连接空闲多久之后关闭
+     */
+    private static final long CONNECTION_IDLE_TIMEOUT = 5 * 60 * 1000L;
+    /**
+     * 检查空闲连接的间隔
+     */
+    private static final long IDLE_CHECK_INTERVAL = 30 * 1000L;
+    /**
+     * selector每次阻塞等待的最长时间
+     */
+    private static final long SELECT_TIMEOUT = 1000L;
+
+    private final String host;
+    private final int port;
+    private final NioRequestDispatcher dispatcher;
+    private final int workerThreads;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread reactorThread;
+    private volatile boolean running = false;
+    /**
+     * 有响应等着写出去的连接
+     */
+    private final ConcurrentLinkedQueue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    /**
+     * 请求积压处理掉了一半，可以恢复读的连接
+     */
+    private final ConcurrentLinkedQueue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+    /**
+     * 当前所有的连接
+     */
+    private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+
+    public NioServer(String host, int port, RegisterServerController controller) {
+        this(host, port, controller, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public NioServer(String host, int port, RegisterServerController controller, int workerThreads) {
+        this.host = host;
+        this.port = port;
+        this.dispatcher = new NioRequestDispatcher(controller);
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * 启动服务器
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(host, port), 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        // 队列里每个连接最多一个任务，长度不会超过连接数，请求本身积压在各个连接自己的有界队列里
+        final AtomicInteger workerIndex = new AtomicInteger(0);
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "NioServerWorker-" + workerIndex.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        running = true;
+        reactorThread = new Reactor();
+        reactorThread.setDaemon(true);
+        reactorThread.setName("NioServerReactor");
+        reactorThread.start();
+
+        EventLogger.getInstance().log(EventType.SERVER, EventLogger.INFO,
+                getLocalPort(), "register-server网络服务器启动，监听端口：{}");
+    }
+
+    /**
+     * 停止服务器
+     */
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+        try {
+            if (reactorThread != null) {
+                reactorThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 实际监听的端口，端口号传0的话由操作系统分配
+     *
+     * @return
+     */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * 把处理一个连接的请求队列的任务交给工作线程
+     */
+    void execute(Runnable processor) {
+        workers.execute(processor);
+    }
+
+    /**
+     * 在工作线程里处理一个请求
+     */
+    void process(NioConnection connection, byte messageType, int requestId, ByteBuffer payload) {
+        dispatcher.dispatch(connection, messageType, requestId, payload);
+    }
+
+    /**
+     * 连接的请求积压处理掉了一半，通知selector线程恢复读
+     */
+    void requestResume(NioConnection connection) {
+        pendingResumes.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * 连接有响应要写出去了，通知selector线程
+     */
+    void requestFlush(NioConnection connection) {
+        pendingFlushes.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * selector线程
+     */
+    private class Reactor extends Thread {
+
+        private long latestIdleCheckTimestamp = System.currentTimeMillis();
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+
+                    NioConnection pending;
+                    while ((pending = pendingFlushes.poll()) != null) {
+                        if (!pending.isClosed()) {
+                            flush(pending);
+                        }
+                    }
+                    while ((pending = pendingResumes.poll()) != null) {
+                        if (!pending.isClosed()) {
+                            resume(pending);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    }
+
+                    closeIdleConnections();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            closeAll();
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(NioServer.this, channel, key);
+                key.attach(connection);
+                connections.add(connection);
+            }
+        }
+
+        private void read(NioConnection connection) {
+            try {
+                if (!connection.read()) {
+                    close(connection);
+                }
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        private void resume(NioConnection connection) {
+            try {
+                connection.resumeRead();
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        private void flush(NioConnection connection) {
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        private void close(NioConnection connection) {
+            connection.close();
+            connections.remove(connection);
+        }
+
+        private void closeIdleConnections() {
+            long currentTime = System.currentTimeMillis();
+            if (currentTime - latestIdleCheckTimestamp < IDLE_CHECK_INTERVAL) {
+                return;
+            }
+            latestIdleCheckTimestamp = currentTime;
+            for (NioConnection connection : connections) {
+                if (currentTime - connection.getLatestActiveTimestamp() > CONNECTION_IDLE_TIMEOUT) {
+                    close(connection);
+                }
+            }
+        }
+
+        private void closeAll() {
+            for (NioConnection connection : connections) {
+                connection.close();
+            }
+            connections.clear();
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,781 @@
+package com.hlk.demo.register.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 堆外的服务实例存储
+ *
+ * 服务实例非常多的时候，堆内的注册表会有上百万个常驻老年代的小对象，每次老年代gc都要把它们扫一遍
+ * 这里把服务实例存成堆外内存里定长的记录，堆里只剩下每个分段的几个数组，gc基本感觉不到注册表的大小
+ *
+ * 按照服务名称分成64个分段，跟ServiceRegistry的分段锁对应，每个分段有：
+ * 1、一块direct buffer，一条记录一个槽位，下线之后槽位放进空闲链表复用，满了就翻倍扩容
+ * 2、一个开放寻址（线性探测）的索引，long数组里高32位是服务名称和服务实例id的哈希，低32位是槽位号+1，
+ *    删除的时候把后面的元素往前挪，不留墓碑
+ * 3、每个服务一条双向链表把自己的记录串起来，拉取一个服务的注册表的时候不用扫整个分段
+ *
+ * 记录的布局：
+ * 0  long 最近一次心跳的时间
+ * 8  long 上一次报告契约到期的时候的心跳时间
+ * 16 int  服务在分段里的编号
+ * 20 int  打包的ipv4地址
+ * 24 int  端口号
+ * 28 int  同一个服务的上一条记录
+ * 32 int  同一个服务的下一条记录（空闲的槽位用它串成空闲链表）
+ * 36 int  哈希
+ * 40 byte 标志位
+ * 41 byte 服务实例的状态
+ * 42 服务实例id、主机名、非ipv4的ip、机房、版本标签，每个字符串是2字节长度（-1表示null）+ utf-8，
+ *    后面是2字节的元数据个数，每一项是key、value两个字符串
+ *
+ * 续约只是在读锁里把心跳时间写回记录，不分配任何对象；注册、下线拿分段的写锁
+ * 查询的时候把记录还原成一个ServiceInstance对象，遍历的时候用一个游标（享元）直接读记录
+ *
+ * 契约的过期不用时间轮（时间轮要给每个服务实例挂一个堆内对象），而是隔几秒顺序扫一遍所有记录的心跳时间，
+ * 只有到期的记录才会还原成对象交给ServiceAliveMonitor
+ *
+ * @author huanglk
+ */
+public class OffHeapServiceInstanceStore implements ServiceInstanceStore {
+
+    /**
+     * 默认每条记录的字节数，够放机房、版本标签和几项元数据，
+     * 放不下的服务实例（比如元数据很多）会注册失败，可以通过-Dregister.server.store.record.bytes调大
+     */
+    public static final int DEFAULT_RECORD_BYTES = 192;
+    /**
+     * 分段的数量，必须是2的幂
+     */
+    private static final int SEGMENTS = 64;
+    /**
+     * 扫描契约到期的间隔，契约是90秒，晚几秒摘除没有关系
+     */
+    private static final long EXPIRY_SCAN_INTERVAL = 5000L;
+
+    private static final int HEARTBEAT = 0;
+    private static final int REPORTED_HEARTBEAT = 8;
+    private static final int SERVICE = 16;
+    private static final int IPV4 = 20;
+    private static final int PORT = 24;
+    private static final int PREV = 28;
+    private static final int NEXT = 32;
+    private static final int HASH = 36;
+    private static final int FLAGS = 40;
+    private static final int STATUS = 41;
+    private static final int STRINGS = 42;
+    /**
+     * 记录最少的字节数：五个都是null的字符串 + 元数据个数
+     */
+    private static final int MIN_RECORD_BYTES = STRINGS + 5 * 2 + 2;
+
+    private static final byte FLAG_USED = 1;
+    private static final byte FLAG_IPV4 = 2;
+
+    private static final int NONE = -1;
+
+    private final int recordBytes;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Set<String> serviceNames = ConcurrentHashMap.newKeySet();
+    /**
+     * 上一次扫描契约到期的时间，只有ServiceAliveMonitor的后台线程会读写
+     */
+    private long latestExpiryScanTimestamp = 0L;
+
+    /**
+     * @param recordBytes     每条记录的字节数
+     * @param initialCapacity 一开始给多少个服务实例分配内存，不够了会自动扩容
+     */
+    public OffHeapServiceInstanceStore(int recordBytes, int initialCapacity) {
+        if (recordBytes < MIN_RECORD_BYTES) {
+            throw new IllegalArgumentException("每条记录至少要" + MIN_RECORD_BYTES + "字节");
+        }
+        this.recordBytes = recordBytes;
+        int segmentCapacity = Math.max(16, initialCapacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    @Override
+    public ServiceInstance put(ServiceInstance serviceInstance) {
+        String serviceName = serviceInstance.getServiceName();
+        String serviceInstanceId = serviceInstance.getServiceInstanceId();
+        String ip = serviceInstance.isIpv4() ? null : serviceInstance.getIp();
+        int stringBytes = utf8Length(serviceInstanceId) + utf8Length(serviceInstance.getHostname()) + utf8Length(ip)
+                + utf8Length(serviceInstance.getZone()) + utf8Length(serviceInstance.getVersion());
+        for (Map.Entry<String, String> entry : serviceInstance.getMetadata().entrySet()) {
+            stringBytes += 4 + utf8Length(entry.getKey()) + utf8Length(entry.getValue());
+        }
+        if (MIN_RECORD_BYTES + stringBytes > recordBytes) {
+            throw new IllegalArgumentException("服务实例【" + serviceInstanceId + "】的信息太长，堆外存储的每条记录最多"
+                    + recordBytes + "字节");
+        }
+
+        serviceNames.add(serviceName);
+        Segment segment = segmentFor(serviceName);
+        int hash = hash(serviceName, serviceInstanceId);
+        long stamp = segment.lock.writeLock();
+        try {
+            ServiceHead serviceHead = segment.serviceHead(serviceName);
+            int position = segment.find(hash, serviceHead.index, serviceInstanceId);
+            if (position != NONE) {
+                // 重复注册，原地覆盖，链表和索引都不用动
+                int slot = slotOf(segment.index[position]);
+                ServiceInstance previous = segment.read(slot);
+                segment.write(slot, serviceHead.index, hash, serviceInstance, ip);
+                return previous;
+            }
+
+            int slot = segment.allocate();
+            segment.write(slot, serviceHead.index, hash, serviceInstance, ip);
+            segment.link(serviceHead, slot);
+            segment.insert(hash, slot);
+            return null;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public ServiceInstance get(String serviceName, String serviceInstanceId) {
+        Segment segment = segmentFor(serviceName);
+        int hash = hash(serviceName, serviceInstanceId);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.findSlot(serviceName, hash, serviceInstanceId);
+            return slot == NONE ? null : segment.read(slot);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId) {
+        Segment segment = segmentFor(serviceName);
+        int hash = hash(serviceName, serviceInstanceId);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.findSlot(serviceName, hash, serviceInstanceId);
+            if (slot == NONE) {
+                return false;
+            }
+            // 同一条记录的并发续约谁后写都一样，心跳时间晚一点被扫描线程看到也没有关系
+            long heartbeat = System.currentTimeMillis();
+            segment.records.putLong(slot * recordBytes + HEARTBEAT, heartbeat);
+            EventLogger.getInstance().log(EventType.RENEW, EventLogger.DEBUG,
+                    serviceName, serviceInstanceId, heartbeat, "进行续约，心跳时间：{}");
+            return true;
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public ServiceInstance remove(String serviceName, String serviceInstanceId) {
+        Segment segment = segmentFor(serviceName);
+        int hash = hash(serviceName, serviceInstanceId);
+        long stamp = segment.lock.writeLock();
+        try {
+            ServiceHead serviceHead = segment.services.get(serviceName);
+            if (serviceHead == null) {
+                return null;
+            }
+            int position = segment.find(hash, serviceHead.index, serviceInstanceId);
+            if (position == NONE) {
+                return null;
+            }
+            int slot = slotOf(segment.index[position]);
+            ServiceInstance removed = segment.read(slot);
+            segment.delete(position);
+            segment.unlink(serviceHead, slot);
+            segment.free(slot);
+            return removed;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Collection<String> getServiceNames() {
+        return serviceNames;
+    }
+
+    @Override
+    public Map<String, ServiceInstance> getServiceInstances(String serviceName) {
+        Segment segment = segmentFor(serviceName);
+        long stamp = segment.lock.readLock();
+        try {
+            ServiceHead serviceHead = segment.services.get(serviceName);
+            if (serviceHead == null) {
+                return null;
+            }
+            Map<String, ServiceInstance> serviceInstanceMap = new HashMap<>(serviceHead.count * 4 / 3 + 1);
+            for (int slot = serviceHead.first; slot != NONE;
+                 slot = segment.records.getInt(slot * recordBytes + NEXT)) {
+                ServiceInstance serviceInstance = segment.read(slot);
+                serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+            }
+            return serviceInstanceMap;
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int getServiceInstanceCount(String serviceName) {
+        Segment segment = segmentFor(serviceName);
+        long stamp = segment.lock.readLock();
+        try {
+            ServiceHead serviceHead = segment.services.get(serviceName);
+            return serviceHead == null ? 0 : serviceHead.count;
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void forEach(ServiceInstanceVisitor visitor) {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                Cursor cursor = new Cursor(segment);
+                for (int slot = 0; slot < segment.highWater; slot++) {
+                    if ((segment.records.get(slot * recordBytes + FLAGS) & FLAG_USED) != 0) {
+                        cursor.base = slot * recordBytes;
+                        visitor.visit(cursor);
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public void collectExpired(long now, Collection<ServiceInstance> expired) {
+        if (now - latestExpiryScanTimestamp < EXPIRY_SCAN_INTERVAL) {
+            return;
+        }
+        latestExpiryScanTimestamp = now;
+
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                ByteBuffer records = segment.records;
+                for (int slot = 0; slot < segment.highWater; slot++) {
+                    int base = slot * recordBytes;
+                    if ((records.get(base + FLAGS) & FLAG_USED) == 0) {
+                        continue;
+                    }
+                    long heartbeat = records.getLong(base + HEARTBEAT);
+                    // 同一次心跳只报告一次，开着自我保护机制的时候不会被反复放进待摘除的队列，
+                    // 报告之后又续约了的话心跳时间就变了，下次到期还会再报告
+                    if (now - heartbeat > ServiceInstance.NOT_ALIVE_PERIOD
+                            && records.getLong(base + REPORTED_HEARTBEAT) != heartbeat) {
+                        records.putLong(base + REPORTED_HEARTBEAT, heartbeat);
+                        expired.add(segment.read(slot));
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public boolean isExpired(ServiceInstance serviceInstance) {
+        String serviceName = serviceInstance.getServiceName();
+        String serviceInstanceId = serviceInstance.getServiceInstanceId();
+        Segment segment = segmentFor(serviceName);
+        int hash = hash(serviceName, serviceInstanceId);
+        long stamp = segment.lock.readLock();
+        try {
+            // 已经下线了；被重新注册了或者又发送了心跳的话，心跳时间是新的
+            int slot = segment.findSlot(serviceName, hash, serviceInstanceId);
+            return slot != NONE && System.currentTimeMillis()
+                    - segment.records.getLong(slot * recordBytes + HEARTBEAT) > ServiceInstance.NOT_ALIVE_PERIOD;
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 堆外内存一共分配了多少字节
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0L;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                bytes += segment.records.capacity();
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(String serviceName) {
+        int h = serviceName.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private static int hash(String serviceName, String serviceInstanceId) {
+        int h = serviceName.hashCode() * 31 + serviceInstanceId.hashCode();
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int slotOf(long entry) {
+        return (int) entry - 1;
+    }
+
+    private static int utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 一个服务在分段里的链表头
+     * 服务的数量是有限的，没有服务实例了也留着，跟堆内存储里空的服务map一样
+     */
+    private static class ServiceHead {
+
+        final String serviceName;
+        /**
+         * 服务在分段里的编号，记录里存的是这个编号
+         */
+        final int index;
+        int first = NONE;
+        int count = 0;
+
+        ServiceHead(String serviceName, int index) {
+            this.serviceName = serviceName;
+            this.index = index;
+        }
+    }
+
+    /**
+     * 一个分段
+     */
+    private class Segment {
+
+        final StampedLock lock = new StampedLock();
+        final Map<String, ServiceHead> services = new HashMap<>();
+        final List<ServiceHead> serviceHeads = new ArrayList<>();
+        ByteBuffer records;
+        long[] index;
+        /**
+         * 用过的最大槽位号+1，遍历的时候只看这之前的槽位
+         */
+        int highWater = 0;
+        int freeHead = NONE;
+
+        Segment(int capacity) {
+            this.records = ByteBuffer.allocateDirect(capacity * recordBytes);
+            this.index = new long[indexLength(capacity)];
+        }
+
+        ServiceHead serviceHead(String serviceName) {
+            ServiceHead serviceHead = services.get(serviceName);
+            if (serviceHead == null) {
+                serviceHead = new ServiceHead(serviceName, serviceHeads.size());
+                serviceHeads.add(serviceHead);
+                services.put(serviceName, serviceHead);
+            }
+            return serviceHead;
+        }
+
+        int findSlot(String serviceName, int hash, String serviceInstanceId) {
+            ServiceHead serviceHead = services.get(serviceName);
+            if (serviceHead == null) {
+                return NONE;
+            }
+            int position = find(hash, serviceHead.index, serviceInstanceId);
+            return position == NONE ? NONE : slotOf(index[position]);
+        }
+
+        /**
+         * 在索引里找一条记录
+         *
+         * @return 记录在索引里的位置，没有的话返回NONE
+         */
+        int find(int hash, int service, String serviceInstanceId) {
+            int mask = index.length - 1;
+            for (int position = hash & mask; ; position = (position + 1) & mask) {
+                long entry = index[position];
+                if (entry == 0L) {
+                    return NONE;
+                }
+                if ((int) (entry >>> 32) == hash) {
+                    int base = slotOf(entry) * recordBytes;
+                    if (records.getInt(base + SERVICE) == service
+                            && stringEquals(base + STRINGS, serviceInstanceId)) {
+                        return position;
+                    }
+                }
+            }
+        }
+
+        void insert(int hash, int slot) {
+            int mask = index.length - 1;
+            int position = hash & mask;
+            while (index[position] != 0L) {
+                position = (position + 1) & mask;
+            }
+            index[position] = ((long) hash << 32) | ((slot + 1) & 0xFFFFFFFFL);
+        }
+
+        /**
+         * 从索引里删掉一个位置，后面同一串探测序列上的元素往前挪，保证线性探测不会断
+         */
+        void delete(int position) {
+            int mask = index.length - 1;
+            int hole = position;
+            index[hole] = 0L;
+            for (int next = (hole + 1) & mask; index[next] != 0L; next = (next + 1) & mask) {
+                int home = (int) (index[next] >>> 32) & mask;
+                // home不在(hole, next]这个区间里的话，说明它的探测序列经过了hole，要挪过去
+                boolean between = hole < next ? (home > hole && home <= next) : (home > hole || home <= next);
+                if (!between) {
+                    index[hole] = index[next];
+                    index[next] = 0L;
+                    hole = next;
+                }
+            }
+        }
+
+        int allocate() {
+            int slot;
+            if (freeHead != NONE) {
+                slot = freeHead;
+                freeHead = records.getInt(slot * recordBytes + NEXT);
+            } else {
+                if (highWater == records.capacity() / recordBytes) {
+                    grow();
+                }
+                slot = highWater++;
+            }
+            return slot;
+        }
+
+        void free(int slot) {
+            int base = slot * recordBytes;
+            records.put(base + FLAGS, (byte) 0);
+            records.putInt(base + NEXT, freeHead);
+            freeHead = slot;
+        }
+
+        /**
+         * 槽位用完了，记录和索引都翻倍
+         */
+        void grow() {
+            int capacity = records.capacity() / recordBytes * 2;
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity * recordBytes);
+            ByteBuffer source = records.duplicate();
+            source.clear();
+            grown.put(source);
+            records = grown;
+
+            index = new long[indexLength(capacity)];
+            for (int slot = 0; slot < highWater; slot++) {
+                int base = slot * recordBytes;
+                if ((records.get(base + FLAGS) & FLAG_USED) != 0) {
+                    insert(records.getInt(base + HASH), slot);
+                }
+            }
+        }
+
+        void link(ServiceHead serviceHead, int slot) {
+            int base = slot * recordBytes;
+            records.putInt(base + PREV, NONE);
+            records.putInt(base + NEXT, serviceHead.first);
+            if (serviceHead.first != NONE) {
+                records.putInt(serviceHead.first * recordBytes + PREV, slot);
+            }
+            serviceHead.first = slot;
+            serviceHead.count++;
+        }
+
+        void unlink(ServiceHead serviceHead, int slot) {
+            int base = slot * recordBytes;
+            int prev = records.getInt(base + PREV);
+            int next = records.getInt(base + NEXT);
+            if (prev == NONE) {
+                serviceHead.first = next;
+            } else {
+                records.putInt(prev * recordBytes + NEXT, next);
+            }
+            if (next != NONE) {
+                records.putInt(next * recordBytes + PREV, prev);
+            }
+            serviceHead.count--;
+        }
+
+        /**
+         * 把服务实例写进一条记录，链表指针不动
+         */
+        void write(int slot, int service, int hash, ServiceInstance serviceInstance, String ip) {
+            int base = slot * recordBytes;
+            records.putLong(base + HEARTBEAT, serviceInstance.getLatestHeartbeatTime());
+            records.putLong(base + REPORTED_HEARTBEAT, 0L);
+            records.putInt(base + SERVICE, service);
+            records.putInt(base + IPV4, serviceInstance.getIpv4());
+            records.putInt(base + PORT, serviceInstance.getPort());
+            records.putInt(base + HASH, hash);
+            records.put(base + FLAGS, (byte) (FLAG_USED | (serviceInstance.isIpv4() ? FLAG_IPV4 : 0)));
+            records.put(base + STATUS, serviceInstance.getStatus());
+            int offset = writeString(base + STRINGS, serviceInstance.getServiceInstanceId());
+            offset = writeString(offset, serviceInstance.getHostname());
+            offset = writeString(offset, ip);
+            offset = writeString(offset, serviceInstance.getZone());
+            offset = writeString(offset, serviceInstance.getVersion());
+            Map<String, String> metadata = serviceInstance.getMetadata();
+            records.putShort(offset, (short) metadata.size());
+            offset += 2;
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                offset = writeString(offset, entry.getKey());
+                offset = writeString(offset, entry.getValue());
+            }
+        }
+
+        /**
+         * 把一条记录还原成服务实例
+         */
+        ServiceInstance read(int slot) {
+            int base = slot * recordBytes;
+            ServiceInstance serviceInstance = new ServiceInstance();
+            serviceInstance.setServiceName(serviceHeads.get(records.getInt(base + SERVICE)).serviceName);
+            serviceInstance.setPort(records.getInt(base + PORT));
+            serviceInstance.setLatestHeartbeatTime(records.getLong(base + HEARTBEAT));
+            serviceInstance.setStatus(records.get(base + STATUS));
+            int offset = base + STRINGS;
+            serviceInstance.setServiceInstanceId(readString(offset));
+            offset = skipString(offset);
+            serviceInstance.setHostname(readString(offset));
+            offset = skipString(offset);
+            if ((records.get(base + FLAGS) & FLAG_IPV4) != 0) {
+                serviceInstance.setIpv4(records.getInt(base + IPV4));
+            } else {
+                serviceInstance.setIp(readString(offset));
+            }
+            offset = skipString(offset);
+            serviceInstance.setZone(readString(offset));
+            offset = skipString(offset);
+            serviceInstance.setVersion(readString(offset));
+            serviceInstance.setMetadata(readMetadata(skipString(offset)));
+            return serviceInstance;
+        }
+
+        /**
+         * @param offset 元数据个数所在的位置
+         */
+        Map<String, String> readMetadata(int offset) {
+            int count = records.getShort(offset);
+            if (count == 0) {
+                return null;
+            }
+            Map<String, String> metadata = new HashMap<>(count * 4 / 3 + 1);
+            offset += 2;
+            for (int i = 0; i < count; i++) {
+                String key = readString(offset);
+                offset = skipString(offset);
+                metadata.put(key, readString(offset));
+                offset = skipString(offset);
+            }
+            return metadata;
+        }
+
+        int writeString(int offset, String value) {
+            if (value == null) {
+                records.putShort(offset, (short) -1);
+                return offset + 2;
+            }
+            int length = utf8Length(value);
+            records.putShort(offset, (short) length);
+            offset += 2;
+            if (length == value.length()) {
+                for (int i = 0; i < length; i++) {
+                    records.put(offset + i, (byte) value.charAt(i));
+                }
+            } else {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                for (int i = 0; i < utf8.length; i++) {
+                    records.put(offset + i, utf8[i]);
+                }
+            }
+            return offset + length;
+        }
+
+        String readString(int offset) {
+            int length = records.getShort(offset);
+            if (length < 0) {
+                return null;
+            }
+            byte[] utf8 = new byte[length];
+            for (int i = 0; i < length; i++) {
+                utf8[i] = records.get(offset + 2 + i);
+            }
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        int skipString(int offset) {
+            return offset + 2 + Math.max(0, records.getShort(offset));
+        }
+
+        /**
+         * 不还原成字符串，直接拿记录里的utf-8字节跟字符串比较
+         */
+        boolean stringEquals(int offset, String value) {
+            int length = records.getShort(offset);
+            if (length < 0) {
+                return value == null;
+            }
+            if (value == null) {
+                return false;
+            }
+            offset += 2;
+            if (length == value.length()) {
+                int i = 0;
+                while (i < length && value.charAt(i) < 0x80 && records.get(offset + i) == (byte) value.charAt(i)) {
+                    i++;
+                }
+                if (i == length) {
+                    return true;
+                }
+                if (value.charAt(i) < 0x80) {
+                    return false;
+                }
+            }
+            // 有非ascii字符，按utf-8编码之后再比
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (records.get(offset + i) != utf8[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static int indexLength(int capacity) {
+        int length = 1;
+        while (length < capacity * 2) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    /**
+     * 指向一条记录的游标，遍历的时候只移动游标，不为每条记录创建对象
+     */
+    private class Cursor implements ServiceInstanceView {
+
+        private final Segment segment;
+        private int base;
+
+        Cursor(Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public String getServiceName() {
+            return segment.serviceHeads.get(segment.records.getInt(base + SERVICE)).serviceName;
+        }
+
+        @Override
+        public String getServiceInstanceId() {
+            return segment.readString(base + STRINGS);
+        }
+
+        @Override
+        public String getIp() {
+            if (isIpv4()) {
+                return MessageCodec.unpackIpv4(getIpv4());
+            }
+            return segment.readString(segment.skipString(segment.skipString(base + STRINGS)));
+        }
+
+        @Override
+        public boolean isIpv4() {
+            return (segment.records.get(base + FLAGS) & FLAG_IPV4) != 0;
+        }
+
+        @Override
+        public int getIpv4() {
+            return segment.records.getInt(base + IPV4);
+        }
+
+        @Override
+        public String getHostname() {
+            return segment.readString(segment.skipString(base + STRINGS));
+        }
+
+        @Override
+        public int getPort() {
+            return segment.records.getInt(base + PORT);
+        }
+
+        @Override
+        public byte getStatus() {
+            return segment.records.get(base + STATUS);
+        }
+
+        @Override
+        public String getZone() {
+            return segment.readString(zoneOffset());
+        }
+
+        @Override
+        public String getVersion() {
+            return segment.readString(segment.skipString(zoneOffset()));
+        }
+
+        @Override
+        public Map<String, String> getMetadata() {
+            Map<String, String> metadata = segment.readMetadata(
+                    segment.skipString(segment.skipString(zoneOffset())));
+            return metadata == null ? Collections.<String, String>emptyMap() : metadata;
+        }
+
+        private int zoneOffset() {
+            return segment.skipString(segment.skipString(segment.skipString(base + STRINGS)));
+        }
+
+        @Override
+        public long getLatestHeartbeatTime() {
+            return segment.records.getLong(base + HEARTBEAT);
+        }
+    }
+}
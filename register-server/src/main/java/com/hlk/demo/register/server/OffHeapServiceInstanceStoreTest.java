@@ -0,0 +1,264 @@
+package com.hlk.demo.register.server;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+import static com.hlk.demo.register.server.TestSupport.newServiceInstance;
+import static com.hlk.demo.register.server.TestSupport.same;
+
+/**
+ * 堆外存储的测试类
+ *
+ * 同样一串随机的注册、续约、下线操作，分别作用在堆内存储和堆外存储上，每一步的结果都要一样；
+ * 再检查契约到期的扫描，以及用堆外存储的注册表写快照、读快照
+ *
+ * 另外单独检查几个边界：记录的字节数上限，索引删除时往前挪元素（不留墓碑），契约到期的扫描间隔
+ *
+ * 运行方式：java com.hlk.demo.register.server.OffHeapServiceInstanceStoreTest [操作次数]
+ *
+ * @author huanglk
+ */
+public class OffHeapServiceInstanceStoreTest {
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        // 注册表在第一次用到的时候才会选择存储引擎
+        System.setProperty("register.server.store", "offheap");
+        PrintStream stdout = TestSupport.silenceStdout();
+
+        testAgainstHeapStore(operations);
+        testExpiry();
+        testExpiryScanInterval();
+        testRecordLimit();
+        testBackwardShiftDelete();
+        testSnapshot();
+
+        stdout.println("堆外存储校验通过");
+    }
+
+    private static void testAgainstHeapStore(int operations) {
+        HeapServiceInstanceStore heapStore = new HeapServiceInstanceStore();
+        // 初始容量故意给得很小，让每个分段都扩容几次
+        OffHeapServiceInstanceStore offHeapStore = new OffHeapServiceInstanceStore(
+                OffHeapServiceInstanceStore.DEFAULT_RECORD_BYTES, 16);
+
+        Random random = new Random(42L);
+        for (int i = 0; i < operations; i++) {
+            int service = random.nextInt(50);
+            int instance = random.nextInt(400);
+            String serviceName = "SERVICE-" + service;
+            String serviceInstanceId = serviceName + "-" + instance;
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                ServiceInstance serviceInstance = newServiceInstance(service, instance, random.nextInt(3));
+                check(same(heapStore.put(serviceInstance), offHeapStore.put(serviceInstance)), "注册：" + serviceInstanceId);
+            } else if (operation < 7) {
+                check(same(heapStore.remove(serviceName, serviceInstanceId),
+                        offHeapStore.remove(serviceName, serviceInstanceId)), "下线：" + serviceInstanceId);
+            } else if (operation < 9) {
+                check(heapStore.renew(serviceName, serviceInstanceId)
+                        == offHeapStore.renew(serviceName, serviceInstanceId), "续约：" + serviceInstanceId);
+            } else {
+                check(same(heapStore.get(serviceName, serviceInstanceId),
+                        offHeapStore.get(serviceName, serviceInstanceId)), "查询：" + serviceInstanceId);
+            }
+        }
+
+        check(heapStore.getServiceNames().size() == offHeapStore.getServiceNames().size(), "服务名称");
+        int total = 0;
+        for (String serviceName : heapStore.getServiceNames()) {
+            Map<String, ServiceInstance> expected = heapStore.getServiceInstances(serviceName);
+            Map<String, ServiceInstance> actual = offHeapStore.getServiceInstances(serviceName);
+            check(expected.keySet().equals(actual.keySet())
+                    && offHeapStore.getServiceInstanceCount(serviceName) == expected.size(), "服务：" + serviceName);
+            for (ServiceInstance serviceInstance : expected.values()) {
+                check(same(serviceInstance, actual.get(serviceInstance.getServiceInstanceId())),
+                        "服务实例：" + serviceInstance.getServiceInstanceId());
+            }
+            total += expected.size();
+        }
+
+        final int[] visited = {0};
+        offHeapStore.forEach(new ServiceInstanceStore.ServiceInstanceVisitor() {
+            @Override
+            public void visit(ServiceInstanceView serviceInstance) {
+                visited[0]++;
+            }
+        });
+        check(visited[0] == total, "遍历：" + visited[0] + "/" + total);
+    }
+
+    private static void testExpiry() {
+        OffHeapServiceInstanceStore store = new OffHeapServiceInstanceStore(
+                OffHeapServiceInstanceStore.DEFAULT_RECORD_BYTES, 1024);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            ServiceInstance serviceInstance = newServiceInstance(0, i, 0);
+            if (i % 2 == 0) {
+                serviceInstance.setLatestHeartbeatTime(now - ServiceInstance.NOT_ALIVE_PERIOD - 1000L);
+            }
+            store.put(serviceInstance);
+        }
+
+        List<ServiceInstance> expired = new ArrayList<>();
+        store.collectExpired(now, expired);
+        check(expired.size() == 5, "到期的服务实例：" + expired.size());
+        for (ServiceInstance serviceInstance : expired) {
+            check(store.isExpired(serviceInstance), "确认到期：" + serviceInstance.getServiceInstanceId());
+        }
+
+        // 同一次心跳只报告一次；续约之后不再算到期
+        store.renew("SERVICE-0", "SERVICE-0-0");
+        expired.clear();
+        store.collectExpired(now + 10 * 1000L, expired);
+        check(expired.isEmpty(), "重复报告到期的服务实例：" + expired.size());
+        check(!store.isExpired(newServiceInstance(0, 0, 0)), "续约之后还是到期");
+    }
+
+    /**
+     * 两次扫描至少隔5秒，间隔之内再调用不扫描，到期的服务实例留到下一次扫描再报告
+     */
+    private static void testExpiryScanInterval() {
+        OffHeapServiceInstanceStore store = new OffHeapServiceInstanceStore(
+                OffHeapServiceInstanceStore.DEFAULT_RECORD_BYTES, 1024);
+        long now = System.currentTimeMillis();
+        List<ServiceInstance> expired = new ArrayList<>();
+        store.collectExpired(now, expired);
+        check(expired.isEmpty(), "空的存储有到期的服务实例");
+
+        ServiceInstance serviceInstance = newServiceInstance(1, 1, 0);
+        serviceInstance.setLatestHeartbeatTime(now - ServiceInstance.NOT_ALIVE_PERIOD - 1000L);
+        store.put(serviceInstance);
+        store.collectExpired(now + 4999L, expired);
+        check(expired.isEmpty(), "扫描间隔之内又扫描了一次");
+        store.collectExpired(now + 5000L, expired);
+        check(expired.size() == 1 && same(expired.get(0), serviceInstance), "过了扫描间隔没有报告到期的服务实例");
+    }
+
+    /**
+     * 正好放满一条记录的服务实例能注册，多一个字节就注册失败，原来的记录不受影响
+     */
+    private static void testRecordLimit() {
+        int recordBytes = OffHeapServiceInstanceStore.DEFAULT_RECORD_BYTES;
+        OffHeapServiceInstanceStore store = new OffHeapServiceInstanceStore(recordBytes, 1024);
+        // 记录头42字节，服务实例id、主机名、ip、机房、版本标签五个字符串各2字节长度，再加2字节的元数据个数
+        int overhead = 42 + 5 * 2 + 2;
+        ServiceInstance fits = newServiceInstance(2, 1, 0);
+        fits.setStatus((byte) 0);
+        fits.setZone(null);
+        fits.setVersion(null);
+        fits.setMetadata(new HashMap<String, String>());
+        fits.setHostname("h");
+        fits.setServiceInstanceId(repeat('x', recordBytes - overhead - 1));
+        check(store.put(fits) == null && same(store.get("SERVICE-2", fits.getServiceInstanceId()), fits),
+                "正好放满一条记录的服务实例");
+
+        ServiceInstance tooLong = newServiceInstance(2, 1, 0);
+        tooLong.setZone(null);
+        tooLong.setVersion(null);
+        tooLong.setMetadata(new HashMap<String, String>());
+        tooLong.setHostname("hh");
+        tooLong.setServiceInstanceId(fits.getServiceInstanceId());
+        try {
+            store.put(tooLong);
+            check(false, "超过记录字节数上限的服务实例注册成功了");
+        } catch (IllegalArgumentException e) {
+            // 期望的结果
+        }
+        check(same(store.get("SERVICE-2", fits.getServiceInstanceId()), fits)
+                && store.getServiceInstanceCount("SERVICE-2") == 1, "注册失败之后原来的记录变了");
+
+        // 多字节的字符按utf-8的长度算，元数据每一项还有两个长度
+        ServiceInstance chinese = newServiceInstance(2, 2, 0);
+        chinese.setMetadata(new HashMap<String, String>());
+        chinese.setZone(null);
+        chinese.setVersion(null);
+        chinese.setHostname("h");
+        chinese.setServiceInstanceId(repeat('中', (recordBytes - overhead - 1) / 3 + 1));
+        try {
+            store.put(chinese);
+            check(false, "按utf-8长度超过上限的服务实例注册成功了");
+        } catch (IllegalArgumentException e) {
+            // 期望的结果
+        }
+        check(store.getServiceInstanceCount("SERVICE-2") == 1, "注册失败之后服务实例数量变了");
+    }
+
+    /**
+     * 同一个分段里反复注册、下线，索引一直不扩容：删除的时候往前挪元素不留墓碑，探测序列不会断，
+     * 索引也不会被墓碑占满（占满了的话查一个不存在的key会一直探测下去）
+     */
+    private static void testBackwardShiftDelete() {
+        OffHeapServiceInstanceStore store = new OffHeapServiceInstanceStore(
+                OffHeapServiceInstanceStore.DEFAULT_RECORD_BYTES, 16);
+        long allocatedBytes = store.getAllocatedBytes();
+        // 同一个服务在同一个分段里，分段的初始容量是16个槽位，最多同时有12个服务实例
+        Random random = new Random(7L);
+        Map<String, ServiceInstance> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            int instance = random.nextInt(1000);
+            String serviceInstanceId = "SERVICE-3-" + instance;
+            if (expected.size() < 12 && !expected.containsKey(serviceInstanceId)) {
+                ServiceInstance serviceInstance = newServiceInstance(3, instance, 0);
+                check(store.put(serviceInstance) == null, "注册：" + serviceInstanceId);
+                expected.put(serviceInstanceId, serviceInstance);
+            } else if (!expected.isEmpty()) {
+                // 随机删掉一个，删的位置可能在探测序列的中间
+                String removedId = expected.keySet().iterator().next();
+                if (random.nextBoolean()) {
+                    for (String id : expected.keySet()) {
+                        removedId = id;
+                    }
+                }
+                check(same(store.remove("SERVICE-3", removedId), expected.remove(removedId)), "下线：" + removedId);
+                for (ServiceInstance serviceInstance : expected.values()) {
+                    check(same(store.get("SERVICE-3", serviceInstance.getServiceInstanceId()), serviceInstance),
+                            "删除之后查不到探测序列后面的服务实例：" + serviceInstance.getServiceInstanceId());
+                }
+            }
+            check(store.get("SERVICE-3", "SERVICE-3-absent-" + i) == null, "查到了不存在的服务实例");
+        }
+        check(store.getServiceInstanceCount("SERVICE-3") == expected.size(), "服务实例数量");
+        check(store.getAllocatedBytes() == allocatedBytes, "反复注册、下线之后扩容了");
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static void testSnapshot() throws Exception {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        for (int i = 0; i < 10000; i++) {
+            registry.register(newServiceInstance(i % 37, i, i % 3));
+        }
+        File directory = Files.createTempDirectory("off-heap-snapshot").toFile();
+        try {
+            File file = RegistrySnapshot.write(directory, registry.getVersion(), 1L, registry);
+            Map<String, Map<String, ServiceInstance>> restored = RegistrySnapshot.read(file).getRegistry();
+            int total = 0;
+            for (Map<String, ServiceInstance> serviceInstanceMap : restored.values()) {
+                for (ServiceInstance serviceInstance : serviceInstanceMap.values()) {
+                    check(same(serviceInstance, registry.getServiceInstance(
+                            serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId())),
+                            "快照：" + serviceInstance.getServiceInstanceId());
+                    total++;
+                }
+            }
+            check(total == registry.getServiceInstanceTotalCount(), "快照里的服务实例数量：" + total);
+        } finally {
+            TestSupport.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.hlk.demo.register.server;
+
+/**
+ * 一种操作的次数和耗时分布，耗时的单位都是纳秒
+ * @author huanglk
+ *
+ */
+public class OperationStats {
+
+	/**
+	 * 操作名称
+	 */
+	private String name;
+	/**
+	 * 启动以来的次数
+	 */
+	private long count;
+	/**
+	 * 出错的次数
+	 */
+	private long errorCount;
+	/**
+	 * 平均耗时
+	 */
+	private long mean;
+	private long p50;
+	private long p90;
+	private long p99;
+	private long p999;
+	/**
+	 * 最大耗时
+	 */
+	private long max;
+	
+	public String getName() {
+		return name;
+	}
+	public void setName(String name) {
+		this.name = name;
+	}
+	public long getCount() {
+		return count;
+	}
+	public void setCount(long count) {
+		this.count = count;
+	}
+	public long getErrorCount() {
+		return errorCount;
+	}
+	public void setErrorCount(long errorCount) {
+		this.errorCount = errorCount;
+	}
+	public long getMean() {
+		return mean;
+	}
+	public void setMean(long mean) {
+		this.mean = mean;
+	}
+	public long getP50() {
+		return p50;
+	}
+	public void setP50(long p50) {
+		this.p50 = p50;
+	}
+	public long getP90() {
+		return p90;
+	}
+	public void setP90(long p90) {
+		this.p90 = p90;
+	}
+	public long getP99() {
+		return p99;
+	}
+	public void setP99(long p99) {
+		this.p99 = p99;
+	}
+	public long getP999() {
+		return p999;
+	}
+	public void setP999(long p999) {
+		this.p999 = p999;
+	}
+	public long getMax() {
+		return max;
+	}
+	public void setMax(long max) {
+		this.max = max;
+	}
+
+	@Override
+	public String toString() {
+		return "OperationStats [name=" + name + ", count=" + count + ", errorCount=" + errorCount + ", mean=" + mean
+				+ ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 + ", p999=" + p999 + ", max=" + max + "]";
+	}
+	
+}
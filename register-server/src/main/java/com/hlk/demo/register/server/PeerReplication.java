@@ -0,0 +1,107 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * register-server节点之间的对等复制
+ *
+ * 每个节点都是对等的，客户端的注册、心跳、下线请求发到哪个节点，就由哪个节点转发给其他所有节点，
+ * 从其他节点转发过来的操作只在本节点执行，不会再往外转发
+ * 服务实例的摘除不转发，每个节点根据自己收到的心跳各自判断
+ *
+ * 对等节点通过-Dregister.server.peers=host1:port1,host2:port2指定，没有配置的话就是单机模式
+ *
+ * @author huanglk
+ */
+public class PeerReplication {
+
+    private static PeerReplication instance = new PeerReplication();
+
+    /**
+     * 每个对等节点一个转发器，启动之后不再变化
+     */
+    private volatile List<PeerReplicator> replicators = Collections.emptyList();
+
+    private PeerReplication() {
+
+    }
+
+    public static PeerReplication getInstance() {
+        return instance;
+    }
+
+    /**
+     * 启动到各个对等节点的转发
+     *
+     * @param peers 对等节点列表，格式是host1:port1,host2:port2
+     */
+    public synchronized void start(String peers) {
+        if (!replicators.isEmpty() || peers == null || peers.trim().isEmpty()) {
+            return;
+        }
+        List<PeerReplicator> newReplicators = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int separator = peer.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("对等节点的格式应该是host:port：" + peer);
+            }
+            PeerReplicator replicator = new PeerReplicator(
+                    peer.substring(0, separator), Integer.parseInt(peer.substring(separator + 1)));
+            replicator.start();
+            newReplicators.add(replicator);
+            EventLogger.getInstance().log(EventType.REPLICATION, EventLogger.INFO,
+                    "开始向对等节点" + replicator.getPeer() + "转发注册表的变更");
+        }
+        replicators = Collections.unmodifiableList(newReplicators);
+    }
+
+    /**
+     * 停止转发
+     */
+    public synchronized void shutdown() {
+        for (PeerReplicator replicator : replicators) {
+            replicator.shutdown();
+        }
+        replicators = Collections.emptyList();
+    }
+
+    public void replicateRegister(ServiceInstance serviceInstance) {
+        List<PeerReplicator> targets = replicators;
+        if (targets.isEmpty()) {
+            return;
+        }
+        replicate(targets, ReplicationOperation.register(serviceInstance));
+    }
+
+    public void replicateHeartbeat(String serviceName, String serviceInstanceId) {
+        List<PeerReplicator> targets = replicators;
+        if (targets.isEmpty()) {
+            return;
+        }
+        replicate(targets, ReplicationOperation.heartbeat(serviceName, serviceInstanceId));
+    }
+
+    public void replicateCancel(String serviceName, String serviceInstanceId) {
+        List<PeerReplicator> targets = replicators;
+        if (targets.isEmpty()) {
+            return;
+        }
+        replicate(targets, ReplicationOperation.cancel(serviceName, serviceInstanceId));
+    }
+
+    public List<PeerReplicator> getReplicators() {
+        return replicators;
+    }
+
+    private void replicate(List<PeerReplicator> targets, ReplicationOperation operation) {
+        for (PeerReplicator replicator : targets) {
+            replicator.replicate(operation);
+        }
+    }
+}
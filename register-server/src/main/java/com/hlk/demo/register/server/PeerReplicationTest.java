@@ -0,0 +1,279 @@
+package com.hlk.demo.register.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+
+/**
+ * 对等复制的测试类
+ *
+ * 注册表是进程里的单例，所以每个register-server节点单独起一个jvm进程，节点之间通过回环地址互相转发
+ * 测试进程通过NioClient把注册请求分散发到各个节点上，看所有节点的注册表多久能一致，
+ * 再在一个节点上下线一部分服务实例，看其他节点多久能跟上；
+ * 最后在一个节点上把同一个服务实例注册完马上下线，看其他节点上是不是按同样的顺序执行的
+ *
+ * 运行方式：java com.hlk.demo.register.server.PeerReplicationTest [节点数量] [服务实例数量]
+ *
+ * @author huanglk
+ */
+public class PeerReplicationTest {
+
+    /**
+     * 等待所有节点一致的最长时间
+     */
+    private static final long CONVERGE_TIMEOUT = 30 * 1000L;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "node".equals(args[0])) {
+            runNode(Integer.parseInt(args[1]), args.length > 2 ? args[2] : "");
+            return;
+        }
+
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int instanceCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        int[] ports = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            ports[i] = freePort();
+        }
+
+        List<Process> processes = new ArrayList<>();
+        List<NioClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                processes.add(startNode(ports, i));
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                clients.add(connect(ports[i]));
+            }
+            System.out.println(nodeCount + "个节点已启动，端口：" + Arrays.toString(ports));
+
+            // 注册请求轮流发给各个节点
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < instanceCount; i++) {
+                RegisterRequest registerRequest = new RegisterRequest();
+                registerRequest.setServiceName("SERVICE-" + (i % 100));
+                registerRequest.setIp("10.0." + (i / 250 % 250) + "." + (i % 250));
+                registerRequest.setHostname("host-" + i);
+                registerRequest.setPort(9000);
+                registerRequest.setServiceInstanceId("SERVICE-" + (i % 100) + "-" + i);
+                registerRequest.setZone("zone-" + (char) ('a' + i % 3));
+                registerRequest.setVersion(i % 4 == 0 ? "2.0" : "1.0");
+                registerRequest.setStatus(i % 7 == 0 ? ServiceInstanceStatus.OUT_OF_SERVICE : ServiceInstanceStatus.UP);
+                clients.get(i % nodeCount).register(registerRequest);
+            }
+            long registered = System.currentTimeMillis();
+            long converged = waitForConvergence(clients, instanceCount);
+            System.out.println("注册" + instanceCount + "个服务实例耗时" + (registered - startTime)
+                    + "毫秒，所有节点一致还要" + (converged - registered) + "毫秒");
+
+            // 在第一个节点上下线十分之一的服务实例
+            int cancelCount = 0;
+            startTime = System.currentTimeMillis();
+            for (int i = 0; i < instanceCount; i += 10) {
+                clients.get(0).cancel("SERVICE-" + (i % 100), "SERVICE-" + (i % 100) + "-" + i);
+                cancelCount++;
+            }
+            long cancelled = System.currentTimeMillis();
+            converged = waitForConvergence(clients, instanceCount - cancelCount);
+            System.out.println("下线" + cancelCount + "个服务实例耗时" + (cancelled - startTime)
+                    + "毫秒，所有节点一致还要" + (converged - cancelled) + "毫秒");
+
+            // 在最后一个节点上批量心跳，其他节点上的服务实例也要能续约成功
+            BatchHeartbeatRequest batchHeartbeatRequest = new BatchHeartbeatRequest();
+            for (int i = 1; i < instanceCount; i++) {
+                if (i % 10 != 0) {
+                    batchHeartbeatRequest.add("SERVICE-" + (i % 100), "SERVICE-" + (i % 100) + "-" + i);
+                }
+            }
+            BatchHeartbeatResponse batchHeartbeatResponse = clients.get(nodeCount - 1).batchHeartbeat(batchHeartbeatRequest);
+            check(batchHeartbeatResponse.getSuccessCount() == instanceCount - cancelCount,
+                    "批量心跳成功" + batchHeartbeatResponse.getSuccessCount() + "个");
+
+            // 每个节点都收到过转发过来的批次，运行统计里要能看到
+            for (NioClient client : clients) {
+                RegistryStats stats = client.fetchStats();
+                boolean replicated = false;
+                for (OperationStats operationStats : stats.getOperations()) {
+                    replicated |= "replicateBatch".equals(operationStats.getName()) && operationStats.getCount() > 0;
+                }
+                check(replicated && stats.getCounters().get("serviceInstances") == instanceCount - cancelCount,
+                        "运行统计：" + stats);
+            }
+
+            // 压缩过的全量注册表：第一次拉到完整的数据，带着拉到的版本号再拉一次，服务端响应没有变化
+            Applications compressedApplications = clients.get(0).fetchCompressedFullRegistry(-1L);
+            int compressedCount = 0;
+            for (Map<String, ServiceInstance> serviceInstanceMap : compressedApplications.getRegistry().values()) {
+                compressedCount += serviceInstanceMap.size();
+            }
+            check(compressedCount == instanceCount - cancelCount, "压缩过的全量注册表：" + compressedCount);
+            check(clients.get(0).fetchCompressedFullRegistry(compressedApplications.getVersion()) == null,
+                    "全量注册表没有变化");
+
+            // 服务实例的属性也要转发过去，每个节点上按条件查出来的都一样
+            ServiceInstanceQuery query = new ServiceInstanceQuery();
+            query.setServiceName("SERVICE-1");
+            query.setZone("zone-b");
+            query.setVersion("1.0");
+            query.setStatus(ServiceInstanceStatus.UP);
+            query.setFields(ServiceInstanceQuery.FIELD_ADDRESS);
+            int expected = 0;
+            for (int i = 1; i < instanceCount; i += 100) {
+                if (i % 3 == 1 && i % 4 != 0 && i % 7 != 0) {
+                    expected++;
+                }
+            }
+            for (NioClient client : clients) {
+                ServiceInstanceQueryResult result = client.queryServiceInstances(query);
+                check(result.getServiceInstances().size() == expected,
+                        "按条件查询：" + result.getServiceInstances().size() + "个");
+            }
+
+            testRegisterThenCancel(clients, instanceCount - cancelCount);
+
+            System.out.println("对等复制测试通过");
+        } finally {
+            for (NioClient client : clients) {
+                client.close();
+            }
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * 在第一个节点上把同一个服务实例注册完马上下线，注册和下线会被转发到两个同时在途的批次里，
+     * 对方节点要按顺序执行这两个批次，不然先下线再注册，这个服务实例会一直留在对方节点上
+     */
+    private static void testRegisterThenCancel(List<NioClient> clients, int currentCount) throws Exception {
+        int flappingCount = 2000;
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < flappingCount; i++) {
+            RegisterRequest registerRequest = new RegisterRequest();
+            registerRequest.setServiceName("SERVICE-" + (i % 100));
+            registerRequest.setIp("10.1." + (i / 250 % 250) + "." + (i % 250));
+            registerRequest.setHostname("flapping-" + i);
+            registerRequest.setPort(9000);
+            registerRequest.setServiceInstanceId("FLAPPING-" + i);
+            clients.get(0).register(registerRequest);
+            if (i % 4 == 0) {
+                // 隔开一个攒批的时间窗口，下线就会落到下一个批次里
+                Thread.sleep(6);
+            }
+            clients.get(0).cancel("SERVICE-" + (i % 100), "FLAPPING-" + i);
+        }
+
+        // 最后注册一个服务实例，每个节点上都有了它，说明前面转发过去的批次都执行完了
+        RegisterRequest sentinel = new RegisterRequest();
+        sentinel.setServiceName("SENTINEL-SERVICE");
+        sentinel.setIp("10.2.0.1");
+        sentinel.setHostname("sentinel");
+        sentinel.setPort(9000);
+        sentinel.setServiceInstanceId("SENTINEL");
+        check(RegisterResponse.SUCCESS.equals(clients.get(0).register(sentinel).getStatus()), "注册哨兵服务实例");
+        ServiceInstanceQuery query = new ServiceInstanceQuery();
+        query.setServiceName("SENTINEL-SERVICE");
+        query.setFields(ServiceInstanceQuery.FIELD_SERVICE_INSTANCE_ID);
+        long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT;
+        for (NioClient client : clients) {
+            while (client.queryServiceInstances(query).getServiceInstances().isEmpty()) {
+                check(System.currentTimeMillis() < deadline, "哨兵服务实例没有转发过去");
+                Thread.sleep(5);
+            }
+            long count = client.fetchDeltaRegistry(Long.MAX_VALUE).getServiceInstanceTotalCount();
+            check(count == currentCount + 1, "注册完马上下线之后还剩" + (count - currentCount - 1) + "个服务实例");
+        }
+        System.out.println(flappingCount + "个服务实例注册完马上下线，耗时"
+                + (System.currentTimeMillis() - startTime) + "毫秒，所有节点都没有留下");
+    }
+
+    /**
+     * 等所有节点上的服务实例数量都变成期望的数量
+     *
+     * @return 一致的时间
+     */
+    private static long waitForConvergence(List<NioClient> clients, int expectedCount) throws Exception {
+        long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT;
+        while (true) {
+            boolean converged = true;
+            for (NioClient client : clients) {
+                // 用一个不可能的版本号拉增量，只会拿到一个断层标记和服务实例总数，不会带上一堆变更
+                if (client.fetchDeltaRegistry(Long.MAX_VALUE).getServiceInstanceTotalCount() != expectedCount) {
+                    converged = false;
+                    break;
+                }
+            }
+            long currentTime = System.currentTimeMillis();
+            if (converged) {
+                return currentTime;
+            }
+            check(currentTime < deadline, "等待" + CONVERGE_TIMEOUT + "毫秒之后各个节点还是不一致");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * 起一个子进程跑一个节点
+     */
+    private static Process startNode(int[] ports, int index) throws IOException {
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < ports.length; i++) {
+            if (i != index) {
+                peers.append(peers.length() == 0 ? "" : ",").append("127.0.0.1:").append(ports[i]);
+            }
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                PeerReplicationTest.class.getName(), "node", String.valueOf(ports[index]), peers.toString());
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        return processBuilder.start();
+    }
+
+    /**
+     * 子进程里跑的节点，标准输入关闭（父进程退出）的时候就退出
+     */
+    private static void runNode(int port, String peers) throws Exception {
+        // 屏蔽注册表的打印输出
+        TestSupport.silenceStdout();
+        // 先启动转发再开始接收请求，不然最早的几个注册可能赶在转发器就绪之前，不会转发给其他节点
+        PeerReplication.getInstance().start(peers);
+        NioServer nioServer = new NioServer("127.0.0.1", port, new RegisterServerController());
+        nioServer.start();
+
+        while (System.in.read() >= 0) {
+            // 等父进程退出
+        }
+        PeerReplication.getInstance().shutdown();
+        nioServer.shutdown();
+    }
+
+    private static NioClient connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT;
+        while (true) {
+            try {
+                return new NioClient("127.0.0.1", port);
+            } catch (IOException e) {
+                check(System.currentTimeMillis() < deadline, "节点" + port + "启动超时");
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        try {
+            return serverSocket.getLocalPort();
+        } finally {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.hlk.demo.register.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * 把操作转发给一个对等节点
+ *
+ * 要转发的操作先放进一个有界队列，后台线程每隔几毫秒把队列里攒下的操作打成一个批次发出去，
+ * 发出去之后不等响应就接着发下一批，响应回来的时候再异步处理，同时在途的批次数量是有上限的
+ *
+ * 所有批次都在同一个连接上按顺序发出去，对方节点按连接串行处理请求，所以在途的几个批次也是按发送的顺序执行的，
+ * 同一个服务实例先注册后下线，对方节点上不会变成先下线后注册；
+ * 只有在途的批次长时间没有响应、断开重连的时候，老连接上还没执行完的批次跟新连接上的批次之间不保证顺序
+ *
+ * 对方节点挂了或者太慢的时候，队列满了就直接丢掉新的操作，不会拖慢本节点处理客户端的请求，
+ * 丢掉的心跳下一个周期会再转发，丢掉的注册会在心跳转发失败的时候补上
+ *
+ * @author huanglk
+ */
+public class PeerReplicator {
+
+    /**
+     * 每个对等节点最多积压多少个操作
+     */
+    private static final int BACKLOG_CAPACITY = 64 * 1024;
+    /**
+     * 一个批次最多多少个操作
+     */
+    private static final int MAX_BATCH_SIZE = 1000;
+    /**
+     * 攒批的时间窗口
+     */
+    private static final long BATCH_WINDOW_MS = 5L;
+    /**
+     * 同时在途（发出去了还没收到响应）的批次数量上限，这些批次在对方节点上还是一个一个执行的
+     */
+    private static final int MAX_INFLIGHT_BATCHES = 8;
+    /**
+     * 等在途批次的响应最多等多久，超过了就认为连接有问题，断开重连
+     */
+    private static final long INFLIGHT_TIMEOUT_MS = 10 * 1000L;
+    /**
+     * 连接失败之后隔多久重试
+     */
+    private static final long RECONNECT_INTERVAL_MS = 1000L;
+
+    private final String host;
+    private final int port;
+    private final BlockingQueue<ReplicationOperation> backlog = new ArrayBlockingQueue<>(BACKLOG_CAPACITY);
+    private final Semaphore inflightBatches = new Semaphore(MAX_INFLIGHT_BATCHES);
+    private final Sender sender = new Sender();
+    private volatile boolean running = false;
+    private NioClient client;
+
+    /**
+     * 转发成功的操作数
+     */
+    private final AtomicLong replicated = new AtomicLong(0L);
+    /**
+     * 因为队列满了被丢掉的操作数
+     */
+    private final AtomicLong dropped = new AtomicLong(0L);
+    /**
+     * 因为网络问题发送失败的操作数
+     */
+    private final AtomicLong failed = new AtomicLong(0L);
+
+    public PeerReplicator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void start() {
+        running = true;
+        sender.setDaemon(true);
+        sender.setName("PeerReplicator-" + getPeer());
+        sender.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        sender.interrupt();
+    }
+
+    /**
+     * 转发一个操作，队列满了就丢掉
+     *
+     * @param operation 要转发的操作
+     */
+    public void replicate(ReplicationOperation operation) {
+        if (!backlog.offer(operation)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public String getPeer() {
+        return host + ":" + port;
+    }
+
+    public int getBacklogSize() {
+        return backlog.size();
+    }
+
+    public long getReplicated() {
+        return replicated.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * 处理一个批次的响应
+     * 对方节点上没有这个服务实例，心跳会失败，把本节点上的服务实例重新注册过去
+     */
+    private void onAcknowledged(List<ReplicationOperation> operations, ReplicationBatchResponse response) {
+        List<String> statuses = response.getStatuses();
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        for (int i = 0; i < operations.size(); i++) {
+            ReplicationOperation operation = operations.get(i);
+            boolean success = i < statuses.size() && HeartbeatResponse.SUCCESS.equals(statuses.get(i));
+            if (success || operation.getAction() != ReplicationOperation.HEARTBEAT) {
+                replicated.incrementAndGet();
+                continue;
+            }
+            ServiceInstance serviceInstance = registry.getServiceInstance(
+                    operation.getServiceName(), operation.getServiceInstanceId());
+            if (serviceInstance != null) {
+                replicate(ReplicationOperation.register(serviceInstance));
+            }
+        }
+    }
+
+    /**
+     * 攒批和发送的后台线程
+     */
+    private class Sender extends Thread {
+
+        @Override
+        public void run() {
+            List<ReplicationOperation> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            while (running) {
+                try {
+                    ReplicationOperation first = backlog.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    // 在时间窗口里尽量多攒一些操作
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+                    while (batch.size() < MAX_BATCH_SIZE) {
+                        if (backlog.drainTo(batch, MAX_BATCH_SIZE - batch.size()) > 0) {
+                            continue;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        ReplicationOperation next = backlog.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+
+                    send(new ArrayList<>(batch));
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        break;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    batch.clear();
+                }
+            }
+            closeClient();
+        }
+
+        private void send(final List<ReplicationOperation> operations) throws InterruptedException {
+            // 在途的批次太多了，说明对方处理不过来或者连接卡住了
+            if (!inflightBatches.tryAcquire(INFLIGHT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                EventLogger.getInstance().log(EventType.REPLICATION, EventLogger.WARN,
+                        "转发给" + getPeer() + "的批次长时间没有响应，重新建立连接");
+                closeClient();
+                inflightBatches.acquire();
+            }
+
+            NioClient connectedClient = connect();
+            if (connectedClient == null) {
+                inflightBatches.release();
+                failed.addAndGet(operations.size());
+                Thread.sleep(RECONNECT_INTERVAL_MS);
+                return;
+            }
+
+            final long startNanos = System.nanoTime();
+            byte[] payload = MessageCodec.encodeReplicationBatch(new ReplicationBatch(operations));
+            connectedClient.send(MessageType.REPLICATE_BATCH, payload).whenComplete(
+                    new BiConsumer<ByteBuffer, Throwable>() {
+                        @Override
+                        public void accept(ByteBuffer response, Throwable throwable) {
+                            inflightBatches.release();
+                            RegistryMetrics.getInstance().recordTask(
+                                    RegistryMetrics.TASK_REPLICATION, startNanos, throwable != null);
+                            if (throwable != null) {
+                                failed.addAndGet(operations.size());
+                                return;
+                            }
+                            onAcknowledged(operations, MessageCodec.decodeReplicationBatchResponse(response));
+                        }
+                    });
+        }
+
+        private NioClient connect() {
+            if (client != null && !client.isClosed()) {
+                return client;
+            }
+            try {
+                client = new NioClient(host, port);
+                return client;
+            } catch (IOException e) {
+                client = null;
+                return null;
+            }
+        }
+
+        private void closeClient() {
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.hlk.demo.register.server;
+
+import com.hlk.demo.register.server.ServiceRegistry.RecentlyChangedServiceInstance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 最近变更服务实例的队列
+ *
+ * 基于一个固定大小的环形数组实现，每一条变更都会分配一个单调递增的版本号
+ * 版本号为v的变更就放在数组的 v & mask 这个位置上，所以按照版本号定位是O(1)的
+ *
+ * 队列的容量有两个上限：条数上限和估算的字节数上限，超过了就把最老的变更挤掉
+ * 后台线程只需要从队头开始摘除过期的变更，碰到第一个没过期的就停下来
+ *
+ * 每个服务在队列里的变更按照版本号从新到旧串成一条链：每条变更记着同一个服务上一条变更的版本号，
+ * 再记下每个服务最新一条变更的版本号，只关心几个服务的客户端拉增量的时候，顺着这几条链往回走就行了，
+ * 不用扫描整个队列
+ *
+ * 注册表的指纹也在这里维护：每条变更带着它给指纹带来的增量，跟版本号在同一把锁里累加，
+ * 所以拉增量的时候拿到的变更、版本号、指纹三者是严格对应的，客户端按顺序合并完变更之后，
+ * 自己算出来的指纹跟服务端给的指纹对不上，就一定是本地缓存出了问题
+ *
+ * @author huanglk
+ */
+public class RecentlyChangedQueue {
+
+    /**
+     * 每条变更除了字符串之外的大致内存开销
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    /**
+     * 按照版本号从小到大排序
+     */
+    private static final Comparator<RecentlyChangedServiceInstance> VERSION_ORDER =
+            new Comparator<RecentlyChangedServiceInstance>() {
+                @Override
+                public int compare(RecentlyChangedServiceInstance o1, RecentlyChangedServiceInstance o2) {
+                    return Long.compare(o1.version, o2.version);
+                }
+            };
+
+    /**
+     * 环形数组
+     */
+    private final RecentlyChangedServiceInstance[] ring;
+    /**
+     * 计算数组下标的掩码
+     */
+    private final int mask;
+    /**
+     * 字节数上限
+     */
+    private final long maxBytes;
+
+    /**
+     * 最新的一条变更的版本号，也就是注册表当前的版本号
+     */
+    private volatile long latestVersion = 0L;
+    /**
+     * 已经被摘除掉的最大的版本号，队列里最老的变更的版本号就是它+1
+     */
+    private long trimmedVersion = 0L;
+    /**
+     * 队列里所有变更估算的字节数
+     */
+    private long bytes = 0L;
+    /**
+     * 每个服务在队列里最新的一条变更的版本号，服务在队列里没有变更的话就没有这个key
+     */
+    private final Map<String, Long> latestVersionByService = new HashMap<>();
+    /**
+     * 整个注册表的指纹
+     */
+    private long fingerprint = 0L;
+    /**
+     * 每个服务的指纹，服务没有服务实例的话就没有这个key
+     */
+    private final Map<String, Long> serviceFingerprints = new HashMap<>();
+
+    /**
+     * @param capacity 条数上限，会向上取整到2的幂
+     * @param maxBytes 字节数上限
+     */
+    public RecentlyChangedQueue(int capacity, long maxBytes) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.ring = new RecentlyChangedServiceInstance[size];
+        this.mask = size - 1;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 追加一条变更，分配一个新的版本号
+     *
+     * @param serviceInstance          服务实例
+     * @param changedTimestamp         变更的时间戳
+     * @param serviceInstanceOperation 变更操作
+     * @param fingerprintDelta         这次变更给服务的指纹带来的增量，见RegistryFingerprint
+     * @return 这条变更的版本号
+     */
+    public synchronized long offer(ServiceInstance serviceInstance,
+                                   long changedTimestamp,
+                                   String serviceInstanceOperation,
+                                   long fingerprintDelta) {
+        long version = latestVersion + 1;
+        RecentlyChangedServiceInstance recentlyChangedItem = new RecentlyChangedServiceInstance(
+                serviceInstance, changedTimestamp, serviceInstanceOperation, version);
+        long itemBytes = estimateBytes(recentlyChangedItem);
+
+        // 满了就把最老的变更挤掉
+        while (version - trimmedVersion > ring.length
+                || (bytes + itemBytes > maxBytes && trimmedVersion < latestVersion)) {
+            removeOldest();
+        }
+
+        // 挂到这个服务的变更链上
+        Long previousServiceVersion = latestVersionByService.put(serviceInstance.getServiceName(), version);
+        recentlyChangedItem.previousServiceVersion = previousServiceVersion == null ? 0L : previousServiceVersion;
+
+        ring[(int) (version & mask)] = recentlyChangedItem;
+        bytes += itemBytes;
+        addFingerprint(serviceInstance.getServiceName(), fingerprintDelta);
+        latestVersion = version;
+        return version;
+    }
+
+    /**
+     * 注册表从快照和日志恢复之后，把版本号接着恢复之前的版本号往下编
+     * 恢复之前的变更不在队列里，客户端从更老的版本号拉增量会拿到断层，重新拉全量注册表
+     *
+     * @param version             恢复之后的注册表版本号
+     * @param restoredFingerprints 恢复之后每个服务的指纹
+     */
+    public synchronized void restoreVersion(long version, Map<String, Long> restoredFingerprints) {
+        while (trimmedVersion < latestVersion) {
+            removeOldest();
+        }
+        latestVersion = version;
+        trimmedVersion = version;
+        fingerprint = 0L;
+        serviceFingerprints.clear();
+        for (Map.Entry<String, Long> entry : restoredFingerprints.entrySet()) {
+            addFingerprint(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 摘除所有在指定时间之前发生的变更
+     *
+     * @param expiredTimestamp 变更时间戳小于等于这个值的都会被摘除
+     * @return 摘除的条数
+     */
+    public synchronized int trimExpired(long expiredTimestamp) {
+        int trimmed = 0;
+        while (trimmedVersion < latestVersion) {
+            RecentlyChangedServiceInstance oldest = ring[(int) ((trimmedVersion + 1) & mask)];
+            // 队头没有过期的话，后面的肯定也没有过期
+            if (oldest.changedTimestamp > expiredTimestamp) {
+                break;
+            }
+            removeOldest();
+            trimmed++;
+        }
+        return trimmed;
+    }
+
+    /**
+     * 获取某个版本号之后的所有变更
+     *
+     * @param sinceVersion 客户端已经拿到的版本号
+     * @return 版本号大于sinceVersion的变更，以及当前的版本号和整个注册表的指纹，
+     * 如果sinceVersion之后的变更已经有一部分被摘除了，就返回null，说明出现了断层
+     */
+    public synchronized Changes since(long sinceVersion) {
+        if (sinceVersion < trimmedVersion || sinceVersion > latestVersion) {
+            return null;
+        }
+        LinkedList<RecentlyChangedServiceInstance> recentlyChangedItems = new LinkedList<>();
+        for (long version = sinceVersion + 1; version <= latestVersion; version++) {
+            recentlyChangedItems.add(ring[(int) (version & mask)]);
+        }
+        return new Changes(recentlyChangedItems, latestVersion, fingerprint);
+    }
+
+    /**
+     * 获取某个版本号之后，指定的这几个服务的变更
+     *
+     * @param sinceVersion 客户端已经拿到的版本号
+     * @param serviceNames 服务名称，不能有重复的
+     * @return 这几个服务版本号大于sinceVersion的变更，按照版本号从小到大排好，
+     * 以及当前的版本号和这几个服务的指纹之和，
+     * 如果sinceVersion之后的变更已经有一部分被摘除了，就返回null，说明出现了断层
+     */
+    public synchronized Changes since(long sinceVersion, Collection<String> serviceNames) {
+        if (sinceVersion < trimmedVersion || sinceVersion > latestVersion) {
+            return null;
+        }
+        List<RecentlyChangedServiceInstance> recentlyChangedItems = new ArrayList<>();
+        for (String serviceName : serviceNames) {
+            // 链上的版本号都大于sinceVersion，也就都大于trimmedVersion，一定还在数组里
+            Long version = latestVersionByService.get(serviceName);
+            while (version != null && version > sinceVersion) {
+                RecentlyChangedServiceInstance recentlyChangedItem = ring[(int) (version & mask)];
+                recentlyChangedItems.add(recentlyChangedItem);
+                version = recentlyChangedItem.previousServiceVersion;
+            }
+        }
+        if (serviceNames.size() > 1) {
+            Collections.sort(recentlyChangedItems, VERSION_ORDER);
+        } else {
+            Collections.reverse(recentlyChangedItems);
+        }
+        return new Changes(new LinkedList<>(recentlyChangedItems), latestVersion, getFingerprint(serviceNames));
+    }
+
+    /**
+     * 获取这几个服务的指纹，以及对应的版本号
+     *
+     * @param serviceNames 服务名称，为空的话就是所有的服务
+     * @return 没有服务实例的服务不在里面
+     */
+    public synchronized ServiceFingerprints getServiceFingerprints(Collection<String> serviceNames) {
+        Map<String, Long> fingerprints;
+        if (serviceNames.isEmpty()) {
+            fingerprints = new HashMap<>(serviceFingerprints);
+        } else {
+            fingerprints = new HashMap<>();
+            for (String serviceName : serviceNames) {
+                Long serviceFingerprint = serviceFingerprints.get(serviceName);
+                if (serviceFingerprint != null) {
+                    fingerprints.put(serviceName, serviceFingerprint);
+                }
+            }
+        }
+        return new ServiceFingerprints(latestVersion, fingerprints);
+    }
+
+    /**
+     * 某个版本号之后，指定的这几个服务有没有变更
+     *
+     * @param sinceVersion 客户端已经拿到的版本号
+     * @param serviceNames 服务名称
+     * @return 有变更或者出现了断层都返回true
+     */
+    public synchronized boolean hasChangedSince(long sinceVersion, Collection<String> serviceNames) {
+        if (sinceVersion < trimmedVersion || sinceVersion > latestVersion) {
+            return true;
+        }
+        for (String serviceName : serviceNames) {
+            Long version = latestVersionByService.get(serviceName);
+            if (version != null && version > sinceVersion) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 某个版本号之后有变更的服务，以及每个服务在这之后最新一条变更的版本号
+     * 只扫描这个版本号之后的变更，后台线程定时拿上一次扫描时的版本号来调用，每次只有几条
+     *
+     * @param sinceVersion 已经处理过的版本号
+     * @return 如果sinceVersion之后的变更已经有一部分被摘除了，就返回null，说明出现了断层
+     */
+    public synchronized Map<String, Long> changedServicesSince(long sinceVersion) {
+        if (sinceVersion < trimmedVersion || sinceVersion > latestVersion) {
+            return null;
+        }
+        Map<String, Long> changedServices = new HashMap<>();
+        for (long version = sinceVersion + 1; version <= latestVersion; version++) {
+            changedServices.put(ring[(int) (version & mask)].serviceInstance.getServiceName(), version);
+        }
+        return changedServices;
+    }
+
+    /**
+     * 获取队列里所有的变更
+     *
+     * @return
+     */
+    public synchronized Changes all() {
+        return since(trimmedVersion);
+    }
+
+    /**
+     * 获取最新的版本号
+     *
+     * @return
+     */
+    public long getLatestVersion() {
+        return latestVersion;
+    }
+
+    /**
+     * 获取已经被摘除掉的最大的版本号
+     *
+     * @return
+     */
+    public synchronized long getTrimmedVersion() {
+        return trimmedVersion;
+    }
+
+    /**
+     * 队列里变更的条数
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return (int) (latestVersion - trimmedVersion);
+    }
+
+    /**
+     * 摘除最老的一条变更
+     */
+    private void removeOldest() {
+        int index = (int) ((trimmedVersion + 1) & mask);
+        RecentlyChangedServiceInstance oldest = ring[index];
+        bytes -= estimateBytes(oldest);
+        // 这个服务在队列里已经没有更新的变更了，整条链都没了
+        String serviceName = oldest.serviceInstance.getServiceName();
+        Long latestServiceVersion = latestVersionByService.get(serviceName);
+        if (latestServiceVersion != null && latestServiceVersion == oldest.version) {
+            latestVersionByService.remove(serviceName);
+        }
+        ring[index] = null;
+        trimmedVersion++;
+    }
+
+    private void addFingerprint(String serviceName, long fingerprintDelta) {
+        if (fingerprintDelta == 0L) {
+            return;
+        }
+        fingerprint += fingerprintDelta;
+        Long serviceFingerprint = serviceFingerprints.get(serviceName);
+        long updated = (serviceFingerprint == null ? 0L : serviceFingerprint) + fingerprintDelta;
+        // 服务的最后一个服务实例没了，指纹回到0，不用再留着这个key
+        if (updated == 0L) {
+            serviceFingerprints.remove(serviceName);
+        } else {
+            serviceFingerprints.put(serviceName, updated);
+        }
+    }
+
+    private long getFingerprint(Collection<String> serviceNames) {
+        long sum = 0L;
+        for (String serviceName : serviceNames) {
+            Long serviceFingerprint = serviceFingerprints.get(serviceName);
+            if (serviceFingerprint != null) {
+                sum += serviceFingerprint;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 估算一条变更占用的字节数
+     * 服务名称和主机名是字符串池里共用的，ipv4地址是打包成int的，都不算在这条变更头上
+     */
+    private static long estimateBytes(RecentlyChangedServiceInstance recentlyChangedItem) {
+        ServiceInstance serviceInstance = recentlyChangedItem.serviceInstance;
+        return ENTRY_OVERHEAD_BYTES
+                + length(serviceInstance.getServiceInstanceId())
+                + (serviceInstance.isIpv4() ? 0 : length(serviceInstance.getIp()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length() * 2;
+    }
+
+    /**
+     * 一次拉取到的变更，以及拉取的时候注册表的版本号和指纹
+     */
+    static class Changes {
+
+        final LinkedList<RecentlyChangedServiceInstance> items;
+        final long version;
+        final long fingerprint;
+
+        Changes(LinkedList<RecentlyChangedServiceInstance> items, long version, long fingerprint) {
+            this.items = items;
+            this.version = version;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.hlk.demo.register.server;
+
+import com.hlk.demo.register.server.ServiceRegistry.RecentlyChangedServiceInstance;
+import com.hlk.demo.register.server.ServiceRegistry.ServiceInstanceOperation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+import static com.hlk.demo.register.server.TestSupport.newServiceInstance;
+
+/**
+ * 最近变更队列的测试类
+ *
+ * 1、sinceVersion之后的变更被摘除了一部分（或者sinceVersion比最新的版本号还新）的时候返回null，表示断层
+ * 2、按时间摘除过期的变更；条数上限和字节数上限满了之后挤掉最老的变更，队列里的字节数不会超过上限
+ * 3、一串随机的变更、摘除之后，顺着每个服务的变更链拉出来的增量，跟拉全部增量再按服务过滤的结果一样，
+ *    指纹、有没有变更、上一次之后变了哪些服务也都对得上
+ *
+ * 运行方式：java com.hlk.demo.register.server.RecentlyChangedQueueTest [变更次数]
+ *
+ * @author huanglk
+ */
+public class RecentlyChangedQueueTest {
+
+    /**
+     * 每条变更除了字符串之外的大致内存开销，跟RecentlyChangedQueue里的一样
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    public static void main(String[] args) {
+        int changes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        testGap();
+        testTrimExpired();
+        testCapacity();
+        testPerServiceDelta(changes);
+
+        System.out.println("最近变更队列校验通过");
+    }
+
+    private static void testGap() {
+        RecentlyChangedQueue queue = new RecentlyChangedQueue(16, Long.MAX_VALUE);
+        for (int i = 0; i < 40; i++) {
+            offer(queue, newServiceInstance(i % 3, i), 0L);
+        }
+        // 条数上限是16，前24条被挤掉了
+        check(queue.getLatestVersion() == 40 && queue.getTrimmedVersion() == 24 && queue.size() == 16, "条数上限");
+        check(queue.since(23L) == null, "被挤掉的版本号之后的增量没有断层");
+        check(queue.since(23L, Collections.singletonList("SERVICE-0")) == null, "被挤掉的版本号之后的服务增量没有断层");
+        check(queue.changedServicesSince(23L) == null, "被挤掉的版本号之后变了哪些服务没有断层");
+        check(queue.hasChangedSince(23L, Collections.singletonList("SERVICE-0")), "断层的时候没有报告变更");
+        check(queue.since(41L) == null, "比最新的版本号还新的版本号没有断层");
+
+        RecentlyChangedQueue.Changes changes = queue.since(24L);
+        check(changes != null && changes.items.size() == 16 && changes.version == 40L, "最老的版本号之后的增量");
+        check(changes.items.getFirst().version == 25L && changes.items.getLast().version == 40L, "增量的顺序");
+        check(queue.since(40L).items.isEmpty(), "最新的版本号之后的增量");
+        check(queue.all().items.size() == 16, "队列里所有的变更");
+
+        // 从快照恢复之后，之前的版本号都是断层
+        queue.restoreVersion(100L, Collections.<String, Long>emptyMap());
+        check(queue.getLatestVersion() == 100L && queue.size() == 0 && queue.since(99L) == null
+                && queue.since(100L) != null, "恢复版本号");
+        check(offer(queue, newServiceInstance(0, 0), 0L) == 101L, "恢复之后接着编版本号");
+    }
+
+    private static void testTrimExpired() {
+        RecentlyChangedQueue queue = new RecentlyChangedQueue(1024, Long.MAX_VALUE);
+        long timestamp = 1000000L;
+        for (int i = 0; i < 100; i++) {
+            offer(queue, newServiceInstance(i % 5, i), timestamp + i * 10L);
+        }
+        // 时间戳小于等于过期时间的都摘掉，碰到第一个没过期的就停下来
+        check(queue.trimExpired(timestamp - 1L) == 0, "没有过期的变更被摘除了");
+        check(queue.trimExpired(timestamp + 295L) == 30, "摘除过期的变更");
+        check(queue.getTrimmedVersion() == 30L && queue.size() == 70, "摘除之后的版本号");
+        check(queue.since(29L) == null && queue.since(30L).items.size() == 70, "摘除之后的断层");
+        check(queue.trimExpired(timestamp + 295L) == 0, "重复摘除");
+        check(queue.trimExpired(Long.MAX_VALUE) == 70 && queue.size() == 0, "全部过期");
+        check(queue.since(100L).items.isEmpty(), "全部过期之后从最新的版本号拉增量");
+    }
+
+    private static void testCapacity() {
+        // 每条变更的服务实例id长度一样，估算的字节数也一样
+        ServiceInstance sample = newServiceInstance(0, 100);
+        long itemBytes = estimateBytes(sample);
+        long maxBytes = itemBytes * 10 + itemBytes / 2;
+        RecentlyChangedQueue queue = new RecentlyChangedQueue(1024, maxBytes);
+        for (int i = 0; i < 1000; i++) {
+            offer(queue, newServiceInstance(i % 7, 100 + i % 900), 0L);
+            check(queue.size() * itemBytes <= maxBytes, "超过了字节数上限：" + queue.size());
+        }
+        check(queue.size() == 10 && queue.getTrimmedVersion() == 990L, "字节数上限满了之后的条数：" + queue.size());
+
+        // 一条变更就超过上限的话也要留着它，不然拉增量永远是断层
+        RecentlyChangedQueue tiny = new RecentlyChangedQueue(1024, 1L);
+        offer(tiny, sample, 0L);
+        offer(tiny, sample, 0L);
+        check(tiny.size() == 1 && tiny.since(1L).items.size() == 1, "超过字节数上限的单条变更");
+
+        // 非ipv4的ip地址也算在字节数里
+        ServiceInstance ipv6 = newServiceInstance(0, 100);
+        ipv6.setIp("fe80::1");
+        check(estimateBytes(ipv6) > itemBytes, "ipv6地址的字节数");
+        RecentlyChangedQueue mixed = new RecentlyChangedQueue(1024, estimateBytes(ipv6) * 5);
+        for (int i = 0; i < 100; i++) {
+            offer(mixed, ipv6, 0L);
+        }
+        check(mixed.size() == 5, "ipv6地址的变更条数：" + mixed.size());
+    }
+
+    private static void testPerServiceDelta(int changes) {
+        Random random = new Random(42L);
+        RecentlyChangedQueue queue = new RecentlyChangedQueue(4096, 4096L * 200);
+        List<String> serviceNames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            serviceNames.add("SERVICE-" + i);
+        }
+
+        long timestamp = 0L;
+        for (int i = 0; i < changes; i++) {
+            ServiceInstance serviceInstance = newServiceInstance(random.nextInt(20), random.nextInt(100),
+                    random.nextInt(3));
+            offer(queue, serviceInstance, timestamp++);
+            if (random.nextInt(100) == 0) {
+                queue.trimExpired(timestamp - random.nextInt(3000));
+            }
+            if (i % 97 != 0) {
+                continue;
+            }
+
+            long trimmedVersion = queue.getTrimmedVersion();
+            long sinceVersion = trimmedVersion + random.nextInt((int) (queue.getLatestVersion() - trimmedVersion) + 1);
+            List<String> subscribed = new ArrayList<>();
+            for (String serviceName : serviceNames) {
+                if (random.nextInt(5) == 0) {
+                    subscribed.add(serviceName);
+                }
+            }
+            Set<String> subscribedSet = new HashSet<>(subscribed);
+
+            RecentlyChangedQueue.Changes all = queue.since(sinceVersion);
+            RecentlyChangedQueue.Changes filtered = queue.since(sinceVersion, subscribed);
+            check(all != null && filtered != null && all.version == filtered.version, "增量的版本号：" + sinceVersion);
+
+            List<RecentlyChangedServiceInstance> expected = new ArrayList<>();
+            Set<String> changedServices = new HashSet<>();
+            for (RecentlyChangedServiceInstance item : all.items) {
+                changedServices.add(item.serviceInstance.getServiceName());
+                if (subscribedSet.contains(item.serviceInstance.getServiceName())) {
+                    expected.add(item);
+                }
+            }
+            check(expected.equals(new ArrayList<>(filtered.items)),
+                    "按服务拉的增量跟过滤出来的不一样：" + sinceVersion + " " + subscribed);
+            check(queue.hasChangedSince(sinceVersion, subscribed) == !expected.isEmpty(), "有没有变更：" + sinceVersion);
+
+            Map<String, Long> changedServicesSince = queue.changedServicesSince(sinceVersion);
+            check(changedServicesSince.keySet().equals(changedServices), "变了哪些服务：" + sinceVersion);
+            for (RecentlyChangedServiceInstance item : all.items) {
+                check(changedServicesSince.get(item.serviceInstance.getServiceName()) >= item.version,
+                        "服务最新的变更版本号：" + item.serviceInstance.getServiceName());
+            }
+
+            // 订阅的服务的指纹之和，整个注册表的指纹是所有服务的指纹之和
+            Map<String, Long> fingerprints = queue.getServiceFingerprints(
+                    Collections.<String>emptyList()).getFingerprints();
+            long subscribedFingerprint = 0L;
+            long totalFingerprint = 0L;
+            for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+                totalFingerprint += entry.getValue();
+                if (subscribedSet.contains(entry.getKey())) {
+                    subscribedFingerprint += entry.getValue();
+                }
+            }
+            check(filtered.fingerprint == subscribedFingerprint && all.fingerprint == totalFingerprint, "指纹");
+        }
+    }
+
+    private static long offer(RecentlyChangedQueue queue, ServiceInstance serviceInstance, long changedTimestamp) {
+        return queue.offer(serviceInstance, changedTimestamp, ServiceInstanceOperation.REGISTER,
+                RegistryFingerprint.hash(serviceInstance));
+    }
+
+    private static long estimateBytes(ServiceInstance serviceInstance) {
+        return ENTRY_OVERHEAD_BYTES + serviceInstance.getServiceInstanceId().length() * 2
+                + (serviceInstance.isIpv4() ? 0 : serviceInstance.getIp().length() * 2);
+    }
+}
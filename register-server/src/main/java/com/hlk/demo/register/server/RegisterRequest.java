@@ -1,5 +1,8 @@
 package com.hlk.demo.register.server;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 注册请求
  * @author huanglk
@@ -27,6 +30,22 @@ public class RegisterRequest {
 	 * 服务实例
 	 */
 	private String serviceInstanceId;
+	/**
+	 * 服务实例的状态，ServiceInstanceStatus里的常量
+	 */
+	private byte status = ServiceInstanceStatus.UP;
+	/**
+	 * 服务实例所在的机房
+	 */
+	private String zone;
+	/**
+	 * 服务实例的版本标签
+	 */
+	private String version;
+	/**
+	 * 服务实例自定义的元数据
+	 */
+	private Map<String, String> metadata = new HashMap<String, String>();
 	
 	public String getServiceName() {
 		return serviceName;
@@ -58,11 +77,36 @@ public class RegisterRequest {
 	public void setServiceInstanceId(String serviceInstanceId) {
 		this.serviceInstanceId = serviceInstanceId;
 	}
+	public byte getStatus() {
+		return status;
+	}
+	public void setStatus(byte status) {
+		this.status = status;
+	}
+	public String getZone() {
+		return zone;
+	}
+	public void setZone(String zone) {
+		this.zone = zone;
+	}
+	public String getVersion() {
+		return version;
+	}
+	public void setVersion(String version) {
+		this.version = version;
+	}
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+	public void setMetadata(Map<String, String> metadata) {
+		this.metadata = metadata;
+	}
 	
 	@Override
 	public String toString() {
 		return "RegisterRequest [serviceName=" + serviceName + ", ip=" + ip + ", hostname=" + hostname + ", port="
-				+ port + ", serviceInstanceId=" + serviceInstanceId + "]";
+				+ port + ", serviceInstanceId=" + serviceInstanceId + ", status=" + ServiceInstanceStatus.toString(status)
+				+ ", zone=" + zone + ", version=" + version + ", metadata=" + metadata + "]";
 	}
 	
 }
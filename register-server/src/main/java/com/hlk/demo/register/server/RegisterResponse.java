@@ -9,11 +9,19 @@ public class RegisterResponse {
 	
 	public static final String SUCCESS = "success";
 	public static final String FAILURE = "failure";
+	/**
+	 * 注册请求太多被限流了，客户端过retryAfter毫秒之后再重试
+	 */
+	public static final String THROTTLED = "throttled";
 
 	/**
-	 * 注册响应状态：SUCCESS、FAILURE
+	 * 注册响应状态：SUCCESS、FAILURE、THROTTLED
 	 */
 	private String status;
+	/**
+	 * 被限流的时候，建议客户端多少毫秒之后重试
+	 */
+	private long retryAfter;
 	
 	public String getStatus() {
 		return status;
@@ -21,5 +29,11 @@ public class RegisterResponse {
 	public void setStatus(String status) {
 		this.status = status;
 	}
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+	public void setRetryAfter(long retryAfter) {
+		this.retryAfter = retryAfter;
+	}
 	
 }
@@ -1,5 +1,7 @@
 package com.hlk.demo.register.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.UUID;
 import com.hlk.demo.register.server.HeartbeatResponse;
 
@@ -11,8 +13,40 @@ import com.hlk.demo.register.server.HeartbeatResponse;
  */
 public class RegisterServer {
 
-    public static void main(String[] args) throws InterruptedException {
+    /**
+     * 网络服务器默认监听的端口
+     */
+    public static final int DEFAULT_PORT = 8761;
+    /**
+     * 默认的数据目录，存放注册表的快照和变更日志，可以通过-Dregister.server.data.dir指定
+     */
+    public static final String DEFAULT_DATA_DIR = "data";
+
+    public static void main(String[] args) throws Exception {
         RegisterServerController controller = new RegisterServerController();
+
+        // 先从快照和变更日志恢复注册表，再开始接收请求
+        final RegistryPersistence registryPersistence = RegistryPersistence.getInstance();
+        registryPersistence.start(new File(System.getProperty("register.server.data.dir", DEFAULT_DATA_DIR)));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    registryPersistence.shutdown();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        // 启动网络服务器，接收register-client发送过来的请求
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        NioServer nioServer = new NioServer("0.0.0.0", port, controller);
+        nioServer.start();
+
+        // 把注册、心跳、下线转发给其他register-server节点，通过-Dregister.server.peers=host1:port1,host2:port2指定
+        PeerReplication.getInstance().start(System.getProperty("register.server.peers"));
+
         String serviceInstanceId = UUID.randomUUID().toString().replace("-", "");
 
         // 模拟发起一个服务注册的请求
@@ -1,8 +1,8 @@
 package com.hlk.demo.register.server;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 
 /**
  * 这个controller是负责接收register-client发送过来的请求的
@@ -13,6 +13,14 @@ import java.util.Map;
  */
 public class RegisterServerController {
     private ServiceRegistry registry = ServiceRegistry.getInstance();
+    /**
+     * 注册表的响应缓存
+     */
+    private ResponseCache responseCache = ResponseCache.getInstance();
+    /**
+     * 把操作转发给其他register-server节点
+     */
+    private PeerReplication peerReplication = PeerReplication.getInstance();
 
     /**
      * 服务注册
@@ -21,6 +29,30 @@ public class RegisterServerController {
      * @return 注册响应
      */
     public RegisterResponse register(RegisterRequest registerRequest) {
+        // 客户端直接发过来的注册要先过准入控制，被限流的话告诉客户端多久之后重试
+        AdmissionControl admissionControl = AdmissionControl.getInstance();
+        long retryAfter = admissionControl.tryAdmitRegister(registerRequest.getServiceName());
+        if (retryAfter > 0) {
+            RegisterResponse registerResponse = new RegisterResponse();
+            registerResponse.setStatus(RegisterResponse.THROTTLED);
+            registerResponse.setRetryAfter(retryAfter);
+            return registerResponse;
+        }
+        try {
+            return register(registerRequest, false);
+        } finally {
+            admissionControl.registerCompleted();
+        }
+    }
+
+    /**
+     * 服务注册
+     *
+     * @param registerRequest 注册请求
+     * @param isReplication   是不是其他节点转发过来的，转发过来的就不用再往外转发了
+     * @return 注册响应
+     */
+    private RegisterResponse register(RegisterRequest registerRequest, boolean isReplication) {
         RegisterResponse registerResponse = new RegisterResponse();
 
         try {
@@ -30,15 +62,19 @@ public class RegisterServerController {
             serviceInstance.setPort(registerRequest.getPort());
             serviceInstance.setServiceInstanceId(registerRequest.getServiceInstanceId());
             serviceInstance.setServiceName(registerRequest.getServiceName());
+            serviceInstance.setStatus(registerRequest.getStatus());
+            serviceInstance.setZone(registerRequest.getZone());
+            serviceInstance.setVersion(registerRequest.getVersion());
+            serviceInstance.setMetadata(new HashMap<>(registerRequest.getMetadata()));
 
-            registry.register(serviceInstance);
-            // 更新自我保护机制的阈值
-            synchronized (SelfProtectionPolicy.class) {
-                SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
-                selfProtectionPolicy.setExpectedHeartbeatRate(selfProtectionPolicy.getExpectedHeartbeatRate() + 2);
-                selfProtectionPolicy.setExpectedHeartbeatThreshold((long) (selfProtectionPolicy.getExpectedHeartbeatRate() * 0.850));
+            // 更新自我保护机制的阈值，重复注册的话不用再加了
+            if (registry.register(serviceInstance)) {
+                SelfProtectionPolicy.getInstance().instanceRegistered();
             }
 
+            if (!isReplication) {
+                peerReplication.replicateRegister(serviceInstance);
+            }
 
             registerResponse.setStatus(RegisterResponse.SUCCESS);
         } catch (Exception e) {
@@ -56,17 +92,36 @@ public class RegisterServerController {
      * @return 心跳响应
      */
     public HeartbeatResponse heartbeat(HeartbeatRequest heartbeatRequest) {
+        return heartbeat(heartbeatRequest, false);
+    }
+
+    /**
+     * 发送心跳
+     *
+     * @param heartbeatRequest 心跳请求
+     * @param isReplication    是不是其他节点转发过来的
+     * @return 心跳响应
+     */
+    private HeartbeatResponse heartbeat(HeartbeatRequest heartbeatRequest, boolean isReplication) {
         HeartbeatResponse heartbeatResponse = new HeartbeatResponse();
 
         try {
             // 对服务实例进行续约
-            ServiceInstance serviceInstance = registry.getServiceInstance(
-                    heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId());
-            serviceInstance.renew();
+            if (!registry.renew(heartbeatRequest.getServiceName(),
+                    heartbeatRequest.getServiceInstanceId())) {
+                heartbeatResponse.setStatus(HeartbeatResponse.FAILURE);
+                return heartbeatResponse;
+            }
 
             // 记录一下每分钟的心跳的次数
-            HeartbeatCounter heartbeatMessuredRate = HeartbeatCounter.getInstance();
-            heartbeatMessuredRate.increment();
+            // 转发过来的心跳也要算，每个节点上期望的心跳次数都是按全部服务实例算的
+            HeartbeatCounter heartbeatCounter = HeartbeatCounter.getInstance();
+            heartbeatCounter.increment();
+
+            if (!isReplication) {
+                peerReplication.replicateHeartbeat(heartbeatRequest.getServiceName(),
+                        heartbeatRequest.getServiceInstanceId());
+            }
 
             heartbeatResponse.setStatus(HeartbeatResponse.SUCCESS);
         } catch (Exception e) {
@@ -78,12 +133,70 @@ public class RegisterServerController {
     }
 
     /**
-     * 拉取服务注册表
+     * 批量发送心跳
+     *
+     * @param batchHeartbeatRequest 批量心跳请求
+     * @return 每个服务实例的心跳结果
+     */
+    public BatchHeartbeatResponse batchHeartbeat(BatchHeartbeatRequest batchHeartbeatRequest) {
+        BatchHeartbeatResponse batchHeartbeatResponse = new BatchHeartbeatResponse();
+        List<HeartbeatRequest> heartbeatRequests = batchHeartbeatRequest.getHeartbeatRequests();
+        List<String> statuses = new ArrayList<>(heartbeatRequests.size());
+
+        try {
+            // 一次遍历把所有服务实例都续约了
+            boolean[] renewed = registry.renew(heartbeatRequests);
+
+            int successCount = 0;
+            for (int i = 0; i < renewed.length; i++) {
+                if (renewed[i]) {
+                    successCount++;
+                    statuses.add(HeartbeatResponse.SUCCESS);
+                    HeartbeatRequest heartbeatRequest = heartbeatRequests.get(i);
+                    peerReplication.replicateHeartbeat(heartbeatRequest.getServiceName(),
+                            heartbeatRequest.getServiceInstanceId());
+                } else {
+                    statuses.add(HeartbeatResponse.FAILURE);
+                }
+            }
+
+            // 每个续约成功的服务实例都算一次心跳，自我保护机制看到的心跳次数才是对的
+            HeartbeatCounter.getInstance().increment(successCount);
+
+            batchHeartbeatResponse.setSuccessCount(successCount);
+        } catch (Exception e) {
+            e.printStackTrace();
+            statuses.clear();
+            for (int i = 0; i < heartbeatRequests.size(); i++) {
+                statuses.add(HeartbeatResponse.FAILURE);
+            }
+            batchHeartbeatResponse.setSuccessCount(0);
+        }
+
+        batchHeartbeatResponse.setStatuses(statuses);
+        return batchHeartbeatResponse;
+    }
+
+    /**
+     * 拉取全量服务注册表
      *
      * @return
      */
-    public DeltaRegistry fetchServiceRegistry() {
-        return registry.getDeltaRegistry();
+    public Applications fetchServiceRegistry() {
+        return responseCache.getApplications();
+    }
+
+    /**
+     * 拉取gzip压缩过的全量服务注册表
+     *
+     * @param version 客户端手上的全量注册表的版本号，没有的话是-1
+     * @return 跟注册表当前的版本号一样的话返回null，客户端不用重新下载
+     */
+    public CompressedApplications fetchCompressedServiceRegistry(long version) {
+        if (version == registry.getVersion()) {
+            return null;
+        }
+        return responseCache.getCompressedApplications();
     }
 
     /**
@@ -91,23 +204,164 @@ public class RegisterServerController {
      *
      * @return
      */
-    public LinkedList<ServiceRegistry.RecentlyChangedServiceInstance> fetchDeltaServiceRegistry() {
-        return registry.getRecentlyChangedQueue();
+    public DeltaRegistry fetchDeltaServiceRegistry() {
+        return responseCache.getDeltaRegistry();
+    }
+
+    /**
+     * 拉取某个版本号之后的增量服务注册表
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号
+     * @return 版本号之后的变更已经被摘除的话，返回的增量注册表会标记断层，客户端要重新拉全量
+     */
+    public DeltaRegistry fetchDeltaServiceRegistry(long sinceVersion) {
+        return responseCache.getDeltaRegistry(sinceVersion);
+    }
+    /**
+     * 拉取客户端订阅的这几个服务的全量注册表
+     *
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public Applications fetchServiceRegistry(List<String> serviceNames) {
+        return responseCache.getApplications(serviceNames);
+    }
+
+    /**
+     * 拉取某个版本号之后，客户端订阅的这几个服务的增量注册表
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public DeltaRegistry fetchDeltaServiceRegistry(long sinceVersion, List<String> serviceNames) {
+        return responseCache.getDeltaRegistry(sinceVersion, serviceNames);
+    }
+
+    /**
+     * 拉取编码好的全量服务注册表，长连接上直接把这份字节发给客户端
+     *
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public byte[] fetchEncodedServiceRegistry(List<String> serviceNames) {
+        return responseCache.getEncodedApplications(serviceNames);
+    }
+
+    /**
+     * 拉取编码好的增量服务注册表，长连接上直接把这份字节发给客户端
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号，小于0并且没有订阅服务的话拉取最近变更队列里所有的变更
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public byte[] fetchEncodedDeltaServiceRegistry(long sinceVersion, List<String> serviceNames) {
+        if (sinceVersion < 0 && serviceNames.isEmpty()) {
+            return responseCache.getEncodedDeltaRegistry();
+        }
+        return responseCache.getEncodedDeltaRegistry(sinceVersion, serviceNames);
+    }
+
+    /**
+     * 拉取每个服务的指纹
+     * 客户端合并完增量之后的指纹跟服务端对不上的时候，用来找出是哪几个服务不一致
+     *
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public ServiceFingerprints fetchServiceFingerprints(List<String> serviceNames) {
+        return registry.getServiceFingerprints(serviceNames);
+    }
+
+    /**
+     * 按条件查询一个服务的服务实例，只需要少数几个服务实例的调用方不用再拉全量注册表
+     *
+     * @param query 查询条件，以及响应里要带上的字段
+     * @return
+     */
+    public ServiceInstanceQueryResult queryServiceInstances(ServiceInstanceQuery query) {
+        return registry.query(query);
     }
 
+    /**
+     * 查询register-server的运行统计：每种请求和后台任务的次数、耗时分布，以及自我保护机制等计数器
+     *
+     * @return
+     */
+    public RegistryStats fetchStats() {
+        return RegistryMetrics.getInstance().getStats();
+    }
+
+    /**
+     * 监听注册表的变更
+     * 请求会被挂起，注册表比客户端的版本号新了或者超时了才会回调，回调里拿到的是版本号之后的增量注册表
+     *
+     * @param watchRequest 监听请求
+     * @param callback     拿到增量注册表之后的回调
+     */
+    public void watch(WatchRequest watchRequest, RegistryWatchManager.WatchCallback callback) {
+        RegistryWatchManager.getInstance().watch(watchRequest, callback);
+    }
 
     /**
      * 服务下线
      */
     public void cancel(String serviceName,String serviceInstanceId){
-        registry.remove(serviceName,serviceInstanceId);
-        // 更新自我保护机制的阈值
-        synchronized(SelfProtectionPolicy.class) {
-            SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
-            selfProtectionPolicy.setExpectedHeartbeatRate(
-                    selfProtectionPolicy.getExpectedHeartbeatRate() - 2);
-            selfProtectionPolicy.setExpectedHeartbeatThreshold(
-                    (long)(selfProtectionPolicy.getExpectedHeartbeatRate() * 0.85));
+        cancel(serviceName, serviceInstanceId, false);
+    }
+
+    /**
+     * 服务下线
+     *
+     * @param isReplication 是不是其他节点转发过来的
+     * @return 服务实例不存在的话返回false
+     */
+    private boolean cancel(String serviceName, String serviceInstanceId, boolean isReplication) {
+        // 更新自我保护机制的阈值，重复下线的话不用再减了
+        if (!registry.remove(serviceName, serviceInstanceId)) {
+            return false;
+        }
+        SelfProtectionPolicy.getInstance().instanceRemoved();
+        if (!isReplication) {
+            peerReplication.replicateCancel(serviceName, serviceInstanceId);
+        }
+        return true;
+    }
+
+    /**
+     * 执行其他register-server节点转发过来的一批操作，执行完不会再往外转发
+     *
+     * @param replicationBatch 一批操作
+     * @return 每个操作的结果
+     */
+    public ReplicationBatchResponse replicate(ReplicationBatch replicationBatch) {
+        List<ReplicationOperation> operations = replicationBatch.getOperations();
+        List<String> statuses = new ArrayList<>(operations.size());
+        HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+
+        for (ReplicationOperation operation : operations) {
+            switch (operation.getAction()) {
+                case ReplicationOperation.REGISTER:
+                    statuses.add(register(operation.getRegisterRequest(), true).getStatus());
+                    break;
+                case ReplicationOperation.HEARTBEAT:
+                    heartbeatRequest.setServiceName(operation.getServiceName());
+                    heartbeatRequest.setServiceInstanceId(operation.getServiceInstanceId());
+                    statuses.add(heartbeat(heartbeatRequest, true).getStatus());
+                    break;
+                case ReplicationOperation.CANCEL:
+                    // 对方节点上已经没有这个服务实例了，也算成功
+                    cancel(operation.getServiceName(), operation.getServiceInstanceId(), true);
+                    statuses.add(HeartbeatResponse.SUCCESS);
+                    break;
+                default:
+                    statuses.add(HeartbeatResponse.FAILURE);
+                    break;
+            }
         }
+
+        ReplicationBatchResponse response = new ReplicationBatchResponse();
+        response.setStatuses(statuses);
+        return response;
     }
 }
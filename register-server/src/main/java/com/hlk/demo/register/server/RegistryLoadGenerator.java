@@ -0,0 +1,567 @@
+package com.hlk.demo.register.server;
+
+import com.hlk.demo.register.server.ServiceRegistry.RecentlyChangedServiceInstance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * 注册中心的负载生成工具，上线之前用来估算一个节点能扛多少服务实例
+ *
+ * 模拟大量服务实例的完整生命周期：先全部注册，然后每个服务实例按照自己的节奏发心跳、拉增量注册表，
+ * 中间不停地有服务实例重启（先下线再用新的id注册），到某个时间点有一部分服务实例直接挂掉（不下线也不再心跳）
+ *
+ * 模拟的服务实例共用少量几条长连接，请求都是异步发出去的，在途的请求数有上限；
+ * 请求的耗时从计划发送的时间开始算，服务端处理不过来导致请求发晚了，这段时间也算在耗时里；
+ * 注册被服务端限流的话按照服务端给的时间重试，等待重试的时间也算在注册的耗时里
+ *
+ * 最后报告：
+ * 1、每种请求的吞吐量和耗时分位数
+ * 2、摘除的准确性：挂掉的服务实例有多少被摘除了、从最后一次心跳到被摘除用了多久，有没有活着的服务实例被误摘除
+ * 3、增量注册表的传播延迟：一个变更从发生到被拉增量的服务实例看到用了多久
+ * 4、服务端自己的运行统计
+ *
+ * 没有指定register.load.server的话，在进程里启动一个register-server，走回环地址访问，
+ * 这时候服务端和负载生成共用cpu，结果会偏保守
+ *
+ * 运行方式：java [-D参数] com.hlk.demo.register.server.RegistryLoadGenerator
+ * -Dregister.load.server=host:port      压测已经启动的register-server，默认在进程里启动一个
+ * -Dregister.load.clients=100000        模拟的服务实例数量
+ * -Dregister.load.connections=32        连接数
+ * -Dregister.load.inflight=4096         在途请求数的上限
+ * -Dregister.load.duration=180          注册完之后持续压测的秒数，要看到摘除的话至少要比挂掉的时间多90多秒
+ * -Dregister.load.heartbeat.interval=30 每个服务实例发心跳的间隔秒数
+ * -Dregister.load.fetch.interval=30     每个服务实例拉增量注册表的间隔秒数
+ * -Dregister.load.restarts=5            每秒重启的服务实例数量
+ * -Dregister.load.crash.ratio=0.01      挂掉的服务实例的比例
+ * -Dregister.load.crash.after=20        注册完之后多少秒挂掉
+ *
+ * @author huanglk
+ */
+public class RegistryLoadGenerator {
+
+    private static final int INSTANCES_PER_SERVICE = 100;
+    /**
+     * 调度线程每一轮的间隔
+     */
+    private static final long TICK_MILLIS = 10L;
+    /**
+     * 观察摘除情况的间隔
+     */
+    private static final long OBSERVE_INTERVAL = 1000L;
+
+    private static final int REGISTER = 0;
+    private static final int HEARTBEAT = 1;
+    private static final int FETCH_DELTA = 2;
+    private static final int CANCEL = 3;
+    private static final String[] OPERATION_NAMES = {"注册", "心跳", "拉取增量", "下线"};
+
+    /**
+     * 响应的处理结果
+     */
+    private static final int SUCCEEDED = 0;
+    private static final int FAILED = 1;
+    /**
+     * 被限流了，已经安排重试，这次不算耗时
+     */
+    private static final int RETRYING = 2;
+
+    private final String server = System.getProperty("register.load.server");
+    private final int clientCount = Integer.getInteger("register.load.clients", 100000);
+    private final int connectionCount = Integer.getInteger("register.load.connections", 32);
+    private final int maxInflight = Integer.getInteger("register.load.inflight", 4096);
+    private final long duration = Long.getLong("register.load.duration", 180L) * 1000L;
+    private final long heartbeatInterval = Long.getLong("register.load.heartbeat.interval", 30L) * 1000L;
+    private final long fetchInterval = Long.getLong("register.load.fetch.interval", 30L) * 1000L;
+    private final int restartsPerSecond = Integer.getInteger("register.load.restarts", 5);
+    private final double crashRatio = Double.parseDouble(System.getProperty("register.load.crash.ratio", "0.01"));
+    private final long crashAfter = Long.getLong("register.load.crash.after", 20L) * 1000L;
+
+    private NioClient[] connections;
+    private final Semaphore inflight = new Semaphore(maxInflight);
+    private final Random random = new Random();
+    /**
+     * 被限流的注册按照服务端给的时间重试
+     */
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RegistryLoadRetryScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final AtomicInteger pendingRetries = new AtomicInteger(0);
+    private final LongAdder throttledRegistrations = new LongAdder();
+
+    /**
+     * 每个模拟的服务实例的状态，下标是服务实例的编号，只有调度线程会改
+     */
+    private final String[] serviceNames = new String[clientCount];
+    private final int[] generations = new int[clientCount];
+    private final boolean[] crashed = new boolean[clientCount];
+    private final long[] latestHeartbeatTimes = new long[clientCount];
+    /**
+     * 每个服务实例拉到的注册表版本号，在收到响应的线程里更新
+     */
+    private final long[] versions = new long[clientCount];
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATION_NAMES.length];
+    private final LongAdder[] errors = new LongAdder[OPERATION_NAMES.length];
+    /**
+     * 变更从发生到被拉增量的服务实例看到的延迟，毫秒
+     */
+    private final LatencyHistogram propagationDelays = new LatencyHistogram();
+    /**
+     * 挂掉的服务实例从最后一次心跳到被摘除的时间，毫秒
+     */
+    private final LatencyHistogram evictionDelays = new LatencyHistogram();
+    private final LongAdder deltaGaps = new LongAdder();
+
+    /**
+     * 挂掉了、还没被摘除的服务实例，value是最后一次心跳的时间
+     */
+    private final Map<String, Long> crashedInstances = new ConcurrentHashMap<>();
+    /**
+     * 重启的时候主动下线的服务实例，看到下线的变更之后就删掉
+     */
+    private final Set<String> cancelledInstances = ConcurrentHashMap.newKeySet();
+    private final LongAdder falseEvictions = new LongAdder();
+    private volatile boolean observing = true;
+
+    public static void main(String[] args) throws Exception {
+        new RegistryLoadGenerator().run();
+    }
+
+    private RegistryLoadGenerator() {
+        for (int i = 0; i < OPERATION_NAMES.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    private void run() throws Exception {
+        String host = "127.0.0.1";
+        int port;
+        NioServer nioServer = null;
+        if (server == null) {
+            nioServer = startServer();
+            port = nioServer.getLocalPort();
+        } else {
+            int separator = server.lastIndexOf(':');
+            host = server.substring(0, separator);
+            port = Integer.parseInt(server.substring(separator + 1));
+        }
+
+        connections = new NioClient[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = new NioClient(host, port);
+        }
+        NioClient observerConnection = new NioClient(host, port);
+        System.out.println("压测" + (nioServer == null ? server : "进程内的register-server，端口" + port)
+                + "，服务实例" + clientCount + "个，连接" + connectionCount + "条，持续" + duration / 1000 + "秒");
+
+        try {
+            long registerStart = System.nanoTime();
+            registerAll();
+            long registerElapsed = System.nanoTime() - registerStart;
+            System.out.println("注册完成，耗时" + TimeUnit.NANOSECONDS.toMillis(registerElapsed) + "毫秒，"
+                    + (clientCount * 1000000000L / Math.max(1L, registerElapsed)) + "次/秒");
+
+            // 注册完之后的版本号作为所有服务实例拉增量的起点，也是观察摘除的起点
+            long version = observerConnection.fetchDeltaRegistry(Long.MAX_VALUE).getVersion();
+            for (int i = 0; i < clientCount; i++) {
+                versions[i] = version;
+            }
+            Observer observer = new Observer(observerConnection, version);
+            observer.start();
+
+            long[] countsBefore = operationCounts();
+            long steadyStart = System.currentTimeMillis();
+            runSteadyState(steadyStart);
+            long steadyElapsed = System.currentTimeMillis() - steadyStart;
+
+            // 等在途的请求都回来
+            awaitCompletion();
+            Thread.sleep(2 * OBSERVE_INTERVAL);
+            observing = false;
+            observer.join();
+
+            report(countsBefore, steadyElapsed, observerConnection);
+        } finally {
+            for (NioClient connection : connections) {
+                connection.close();
+            }
+            observerConnection.close();
+            retryScheduler.shutdownNow();
+            if (nioServer != null) {
+                nioServer.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 在进程里启动一个register-server，事件日志只留警告，不然几十万条注册日志会把报告淹掉
+     */
+    private NioServer startServer() throws IOException {
+        if (System.getProperty("register.server.log.level") == null) {
+            for (int type = 0; type < EventType.COUNT; type++) {
+                EventLogger.getInstance().setLevel(type, EventLogger.WARN);
+            }
+        }
+        NioServer nioServer = new NioServer("127.0.0.1", 0, new RegisterServerController());
+        nioServer.start();
+        new ServiceAliveMonitor().start();
+        return nioServer;
+    }
+
+    private void registerAll() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < clientCount; i++) {
+            serviceNames[i] = "SERVICE-" + (i / INSTANCES_PER_SERVICE);
+            latestHeartbeatTimes[i] = now;
+            register(i, System.nanoTime());
+        }
+        awaitCompletion();
+    }
+
+    /**
+     * 等在途的请求和等待重试的注册都完成
+     * 安排重试在释放在途的名额之前，重试发出去之后才减掉等待重试的数量，所以两个都是0的时候就真的都完成了
+     */
+    private void awaitCompletion() throws InterruptedException {
+        while (true) {
+            inflight.acquire(maxInflight);
+            inflight.release(maxInflight);
+            if (pendingRetries.get() == 0) {
+                return;
+            }
+            Thread.sleep(TICK_MILLIS);
+        }
+    }
+
+    /**
+     * 持续压测：心跳和拉取增量都按照服务实例的编号均匀地分散在一个间隔里
+     */
+    private void runSteadyState(long steadyStart) throws InterruptedException {
+        int heartbeatCursor = 0;
+        int fetchCursor = 0;
+        long heartbeatsDue = 0L;
+        long fetchesDue = 0L;
+        long restartsDue = 0L;
+        boolean crashedYet = false;
+        long latestTick = steadyStart;
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            long elapsed = now - steadyStart;
+            if (elapsed >= duration) {
+                break;
+            }
+            if (!crashedYet && elapsed >= crashAfter) {
+                crash();
+                crashedYet = true;
+            }
+
+            // 这一轮应该完成的心跳、拉取、重启的数量
+            long tick = now - latestTick;
+            latestTick = now;
+            heartbeatsDue += tick * clientCount;
+            fetchesDue += tick * clientCount;
+            restartsDue += tick * restartsPerSecond;
+            long intendedNanos = System.nanoTime();
+
+            for (; heartbeatsDue >= heartbeatInterval; heartbeatsDue -= heartbeatInterval) {
+                int client = heartbeatCursor;
+                heartbeatCursor = (heartbeatCursor + 1) % clientCount;
+                if (!crashed[client]) {
+                    latestHeartbeatTimes[client] = now;
+                    heartbeat(client, intendedNanos);
+                }
+            }
+            for (; fetchesDue >= fetchInterval; fetchesDue -= fetchInterval) {
+                int client = fetchCursor;
+                fetchCursor = (fetchCursor + 1) % clientCount;
+                if (!crashed[client]) {
+                    fetchDelta(client, intendedNanos);
+                }
+            }
+            for (; restartsDue >= 1000L; restartsDue -= 1000L) {
+                restart(random.nextInt(clientCount), now, intendedNanos);
+            }
+
+            Thread.sleep(TICK_MILLIS);
+        }
+    }
+
+    /**
+     * 一部分服务实例直接挂掉，不下线也不再发心跳
+     */
+    private void crash() {
+        int crashCount = (int) (clientCount * crashRatio);
+        for (int i = 0; i < crashCount; i++) {
+            int client = random.nextInt(clientCount);
+            if (!crashed[client]) {
+                crashed[client] = true;
+                crashedInstances.put(serviceInstanceId(client), latestHeartbeatTimes[client]);
+            }
+        }
+        System.out.println(crashedInstances.size() + "个服务实例挂掉了");
+    }
+
+    /**
+     * 服务实例重启：先下线，再用新的服务实例id注册
+     */
+    private void restart(int client, long now, long intendedNanos) throws InterruptedException {
+        if (crashed[client]) {
+            return;
+        }
+        String serviceInstanceId = serviceInstanceId(client);
+        cancelledInstances.add(serviceInstanceId);
+        HeartbeatRequest cancelRequest = new HeartbeatRequest();
+        cancelRequest.setServiceName(serviceNames[client]);
+        cancelRequest.setServiceInstanceId(serviceInstanceId);
+        send(CANCEL, client, MessageType.CANCEL, MessageCodec.encodeHeartbeatRequest(cancelRequest), intendedNanos, null);
+
+        generations[client]++;
+        latestHeartbeatTimes[client] = now;
+        register(client, intendedNanos);
+    }
+
+    private void register(int client, long intendedNanos) throws InterruptedException {
+        RegisterRequest registerRequest = new RegisterRequest();
+        registerRequest.setServiceName(serviceNames[client]);
+        registerRequest.setServiceInstanceId(serviceInstanceId(client));
+        registerRequest.setIp("10." + (client >>> 16 & 0xFF) + "." + (client >>> 8 & 0xFF) + "." + (client & 0xFF));
+        registerRequest.setHostname("host-" + client / 10);
+        registerRequest.setPort(8000 + client % 10);
+        sendRegister(client, MessageCodec.encodeRegisterRequest(registerRequest), intendedNanos);
+    }
+
+    private void sendRegister(final int client, final byte[] payload, final long intendedNanos)
+            throws InterruptedException {
+        send(REGISTER, client, MessageType.REGISTER, payload, intendedNanos, new ResponseHandler() {
+            @Override
+            public int handle(ByteBuffer response) {
+                RegisterResponse registerResponse = MessageCodec.decodeRegisterResponse(response);
+                if (!RegisterResponse.THROTTLED.equals(registerResponse.getStatus())) {
+                    return RegisterResponse.SUCCESS.equals(registerResponse.getStatus()) ? SUCCEEDED : FAILED;
+                }
+                // 跟register-client一样在建议的间隔上加随机的抖动；响应线程里不能等在途的名额，交给重试线程去发
+                throttledRegistrations.increment();
+                pendingRetries.incrementAndGet();
+                retryScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sendRegister(client, payload, intendedNanos);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            pendingRetries.decrementAndGet();
+                        }
+                    }
+                }, registerResponse.getRetryAfter() + ThreadLocalRandom.current().nextLong(
+                        registerResponse.getRetryAfter() + 1), TimeUnit.MILLISECONDS);
+                return RETRYING;
+            }
+        });
+    }
+
+    private void heartbeat(int client, long intendedNanos) throws InterruptedException {
+        HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+        heartbeatRequest.setServiceName(serviceNames[client]);
+        heartbeatRequest.setServiceInstanceId(serviceInstanceId(client));
+        send(HEARTBEAT, client, MessageType.HEARTBEAT, MessageCodec.encodeHeartbeatRequest(heartbeatRequest),
+                intendedNanos, new ResponseHandler() {
+                    @Override
+                    public int handle(ByteBuffer response) {
+                        // 心跳失败说明服务实例已经不在注册表里了
+                        return HeartbeatResponse.SUCCESS.equals(
+                                MessageCodec.decodeHeartbeatResponse(response).getStatus()) ? SUCCEEDED : FAILED;
+                    }
+                });
+    }
+
+    private void fetchDelta(final int client, long intendedNanos) throws InterruptedException {
+        send(FETCH_DELTA, client, MessageType.FETCH_DELTA_REGISTRY, MessageCodec.encodeLong(versions[client]),
+                intendedNanos, new ResponseHandler() {
+                    @Override
+                    public int handle(ByteBuffer response) {
+                        DeltaRegistry deltaRegistry = MessageCodec.decodeDeltaRegistry(response);
+                        if (deltaRegistry.getGap()) {
+                            // 真正的客户端这时候要重新拉全量，这里只记一下次数
+                            deltaGaps.increment();
+                        }
+                        long now = System.currentTimeMillis();
+                        for (RecentlyChangedServiceInstance recentlyChangedItem : deltaRegistry.getRecentlyChangedQueue()) {
+                            propagationDelays.record(now - recentlyChangedItem.changedTimestamp);
+                        }
+                        versions[client] = deltaRegistry.getVersion();
+                        return SUCCEEDED;
+                    }
+                });
+    }
+
+    /**
+     * 异步发一个请求，在途的请求太多的话先等着
+     */
+    private void send(final int operation, int client, byte messageType, byte[] payload,
+                      final long intendedNanos, final ResponseHandler handler) throws InterruptedException {
+        inflight.acquire();
+        connections[client % connectionCount].send(messageType, payload).whenComplete(
+                new BiConsumer<ByteBuffer, Throwable>() {
+                    @Override
+                    public void accept(ByteBuffer response, Throwable throwable) {
+                        try {
+                            int result = throwable != null ? FAILED
+                                    : handler != null ? handler.handle(response) : SUCCEEDED;
+                            if (result == RETRYING) {
+                                return;
+                            }
+                            latencies[operation].record(System.nanoTime() - intendedNanos);
+                            if (result == FAILED) {
+                                errors[operation].increment();
+                            }
+                        } catch (Exception e) {
+                            errors[operation].increment();
+                        } finally {
+                            inflight.release();
+                        }
+                    }
+                });
+    }
+
+    private String serviceInstanceId(int client) {
+        return serviceNames[client] + "-" + client + "-" + generations[client];
+    }
+
+    private long[] operationCounts() {
+        long[] counts = new long[OPERATION_NAMES.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencies[i].snapshot().getCount();
+        }
+        return counts;
+    }
+
+    private void report(long[] countsBefore, long steadyElapsed, NioClient connection) throws IOException {
+        System.out.println();
+        System.out.println("==== 请求（耗时从计划发送的时间算起，单位微秒） ====");
+        for (int i = 0; i < OPERATION_NAMES.length; i++) {
+            LatencyHistogram.Snapshot snapshot = latencies[i].snapshot();
+            System.out.println(String.format("%s：持续压测阶段%d次/秒，出错%d次，p50=%d p90=%d p99=%d p999=%d max=%d",
+                    OPERATION_NAMES[i], (snapshot.getCount() - countsBefore[i]) * 1000L / Math.max(1L, steadyElapsed),
+                    errors[i].sum(),
+                    micros(snapshot.getValueAtPercentile(50.0)), micros(snapshot.getValueAtPercentile(90.0)),
+                    micros(snapshot.getValueAtPercentile(99.0)), micros(snapshot.getValueAtPercentile(99.9)),
+                    micros(snapshot.getMax())));
+        }
+        System.out.println("注册被限流" + throttledRegistrations.sum() + "次，都已经重试");
+
+        System.out.println("==== 摘除 ====");
+        LatencyHistogram.Snapshot evicted = evictionDelays.snapshot();
+        System.out.println(String.format("挂掉的服务实例：%d个被摘除，%d个还没被摘除；误摘除活着的服务实例%d个",
+                evicted.getCount(), crashedInstances.size(), falseEvictions.sum()));
+        System.out.println(String.format("从最后一次心跳到被摘除（毫秒）：p50=%d p99=%d max=%d",
+                evicted.getValueAtPercentile(50.0), evicted.getValueAtPercentile(99.0), evicted.getMax()));
+
+        System.out.println("==== 增量注册表的传播延迟（毫秒） ====");
+        LatencyHistogram.Snapshot propagated = propagationDelays.snapshot();
+        System.out.println(String.format("看到%d次变更，断层%d次：p50=%d p90=%d p99=%d max=%d",
+                propagated.getCount(), deltaGaps.sum(),
+                propagated.getValueAtPercentile(50.0), propagated.getValueAtPercentile(90.0),
+                propagated.getValueAtPercentile(99.0), propagated.getMax()));
+
+        System.out.println("==== 服务端的运行统计（耗时单位微秒） ====");
+        RegistryStats stats = connection.fetchStats();
+        for (OperationStats operationStats : stats.getOperations()) {
+            System.out.println(String.format("%s：%d次，出错%d次，p50=%d p99=%d p999=%d max=%d",
+                    operationStats.getName(), operationStats.getCount(), operationStats.getErrorCount(),
+                    micros(operationStats.getP50()), micros(operationStats.getP99()),
+                    micros(operationStats.getP999()), micros(operationStats.getMax())));
+        }
+        System.out.println(stats.getCounters());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * 处理响应
+     */
+    private interface ResponseHandler {
+
+        /**
+         * @return SUCCEEDED、FAILED或者RETRYING
+         */
+        int handle(ByteBuffer response);
+    }
+
+    /**
+     * 每秒拉一次增量注册表，根据下线的变更判断摘除得对不对
+     */
+    private class Observer extends Thread {
+
+        private final NioClient connection;
+        private long version;
+
+        Observer(NioClient connection, long version) {
+            this.connection = connection;
+            this.version = version;
+            setDaemon(true);
+            setName("RegistryLoadObserver");
+        }
+
+        @Override
+        public void run() {
+            while (observing) {
+                try {
+                    DeltaRegistry deltaRegistry = connection.fetchDeltaRegistry(version);
+                    if (deltaRegistry.getGap()) {
+                        deltaGaps.increment();
+                    }
+                    for (RecentlyChangedServiceInstance recentlyChangedItem : deltaRegistry.getRecentlyChangedQueue()) {
+                        if (ServiceRegistry.ServiceInstanceOperation.REMOVE.equals(
+                                recentlyChangedItem.serviceInstanceOperation)) {
+                            removed(recentlyChangedItem);
+                        }
+                    }
+                    version = deltaRegistry.getVersion();
+                    Thread.sleep(OBSERVE_INTERVAL);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void removed(RecentlyChangedServiceInstance recentlyChangedItem) {
+            String serviceInstanceId = recentlyChangedItem.serviceInstance.getServiceInstanceId();
+            if (cancelledInstances.remove(serviceInstanceId)) {
+                return;
+            }
+            Long latestHeartbeatTime = crashedInstances.remove(serviceInstanceId);
+            if (latestHeartbeatTime != null) {
+                evictionDelays.record(recentlyChangedItem.changedTimestamp - latestHeartbeatTime);
+            } else {
+                falseEvictions.increment();
+            }
+        }
+    }
+}
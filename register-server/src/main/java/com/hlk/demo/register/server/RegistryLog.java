@@ -0,0 +1,254 @@
+package com.hlk.demo.register.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 注册表变更的追加日志
+ *
+ * 日志分成多个段文件，每个段文件预先分配好固定的大小，通过内存映射追加写入，
+ * 写一条日志就是往MappedByteBuffer里put几十个字节，不需要系统调用
+ * 写进映射内存的数据进程挂了也不会丢，后台线程每秒force一次，保证机器掉电最多丢1秒的变更
+ *
+ * 每条日志：4字节的长度 + 4字节的crc32 + 日志内容，长度为0说明后面还没有写过
+ * 重放的时候碰到长度为0或者crc对不上的日志就认为这个段到头了（最后一条写了一半）
+ *
+ * 做快照之前先切换到一个新的段，快照写好之后，新段之前的段就都可以删掉了
+ *
+ * @author huanglk
+ */
+public class RegistryLog {
+
+    /**
+     * 每个段文件的大小
+     */
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    /**
+     * 每条日志的头：长度 + crc32
+     */
+    private static final int RECORD_HEADER_LENGTH = 4 + 4;
+
+    private static final String SEGMENT_FILE_PREFIX = "registry-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+
+    /**
+     * 日志所在的目录
+     */
+    private final File directory;
+    /**
+     * 当前在写的段的序号，段文件名里的序号是递增的
+     */
+    private long segmentSequence;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segmentBuffer;
+    private final CRC32 crc32 = new CRC32();
+    /**
+     * 上一次force之后有没有写过日志
+     */
+    private boolean dirty = false;
+    /**
+     * 从上一次切换段之后写了多少条日志
+     */
+    private long recordsSinceRoll = 0L;
+
+    /**
+     * @param directory     日志所在的目录
+     * @param firstSequence 第一个段的序号，要比目录里已有的段都大
+     */
+    public RegistryLog(File directory, long firstSequence) throws IOException {
+        this.directory = directory;
+        this.segmentSequence = firstSequence - 1;
+        roll();
+    }
+
+    /**
+     * 追加一条日志
+     *
+     * @param record 日志内容
+     */
+    public synchronized void append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (RECORD_HEADER_LENGTH + length + 4 > SEGMENT_SIZE) {
+            throw new IOException("日志太大了：" + length);
+        }
+        // 当前段剩下的空间不够，换一个新的段，最后要留4个字节写结束标记（长度0）
+        if (segmentBuffer.remaining() < RECORD_HEADER_LENGTH + length + 4) {
+            roll();
+        }
+        crc32.reset();
+        crc32.update(record.array(), record.arrayOffset() + record.position(), length);
+        segmentBuffer.putInt(length);
+        segmentBuffer.putInt((int) crc32.getValue());
+        segmentBuffer.put(record);
+        dirty = true;
+        recordsSinceRoll++;
+    }
+
+    /**
+     * 切换到一个新的段
+     *
+     * @return 新段的序号
+     */
+    public synchronized long roll() throws IOException {
+        closeSegment();
+        segmentSequence++;
+        File file = segmentFile(directory, segmentSequence);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(SEGMENT_SIZE);
+        segmentChannel = randomAccessFile.getChannel();
+        segmentBuffer = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        recordsSinceRoll = 0L;
+        return segmentSequence;
+    }
+
+    /**
+     * 把映射内存里的日志刷到磁盘上
+     */
+    public synchronized void force() {
+        if (!dirty) {
+            return;
+        }
+        segmentBuffer.force();
+        dirty = false;
+    }
+
+    /**
+     * 删除序号小于指定序号的段
+     *
+     * @param sequence 段序号
+     */
+    public synchronized void deleteSegmentsBefore(long sequence) {
+        for (long existing : listSegments(directory)) {
+            if (existing < sequence && !segmentFile(directory, existing).delete()) {
+                EventLogger.getInstance().log(EventType.PERSISTENCE, EventLogger.WARN,
+                        "删除日志段失败：" + segmentFile(directory, existing));
+            }
+        }
+    }
+
+    public synchronized long getSegmentSequence() {
+        return segmentSequence;
+    }
+
+    public synchronized long getRecordsSinceRoll() {
+        return recordsSinceRoll;
+    }
+
+    /**
+     * 关闭日志
+     */
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    private void closeSegment() throws IOException {
+        if (segmentChannel == null) {
+            return;
+        }
+        if (segmentBuffer.hasRemaining() && segmentBuffer.remaining() >= 4) {
+            segmentBuffer.putInt(segmentBuffer.position(), 0);
+        }
+        segmentBuffer.force();
+        segmentChannel.close();
+        segmentChannel = null;
+        segmentBuffer = null;
+        dirty = false;
+    }
+
+    /**
+     * 重放一个段里所有完整的日志
+     *
+     * @param directory 日志所在的目录
+     * @param sequence  段序号
+     * @param visitor   每条日志的回调，传进去的ByteBuffer只在回调里有效
+     * @return 重放的日志条数
+     */
+    public static long replay(File directory, long sequence, RecordVisitor visitor) throws IOException {
+        File file = segmentFile(directory, sequence);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc32 = new CRC32();
+            byte[] record = new byte[256];
+            long count = 0L;
+            while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - 4) {
+                    break;
+                }
+                int checksum = buffer.getInt();
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+                buffer.get(record, 0, length);
+                crc32.reset();
+                crc32.update(record, 0, length);
+                if ((int) crc32.getValue() != checksum) {
+                    EventLogger.getInstance().log(EventType.PERSISTENCE, EventLogger.WARN, "日志段" + file + "在"
+                            + (buffer.position() - length) + "处的日志校验失败，后面的日志不再重放");
+                    break;
+                }
+                try {
+                    visitor.visit(ByteBuffer.wrap(record, 0, length));
+                } catch (IllegalArgumentException e) {
+                    // crc对得上但是内容解不出来，跟crc对不上一样当作这个段到头了
+                    EventLogger.getInstance().log(EventType.PERSISTENCE, EventLogger.WARN, "日志段" + file + "在"
+                            + (buffer.position() - length) + "处的日志解析失败（" + e.getMessage() + "），后面的日志不再重放");
+                    break;
+                }
+                count++;
+            }
+            return count;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * 目录里所有段的序号，从小到大
+     */
+    public static List<Long> listSegments(File directory) {
+        List<Long> sequences = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return sequences;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                try {
+                    sequences.add(Long.parseLong(name.substring(
+                            SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // 不是日志段文件，忽略
+                }
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    /**
+     * 段文件，测试里会直接改段文件的内容
+     */
+    static File segmentFile(File directory, long sequence) {
+        return new File(directory, SEGMENT_FILE_PREFIX + String.format("%020d", sequence) + SEGMENT_FILE_SUFFIX);
+    }
+
+    /**
+     * 重放日志的回调
+     */
+    public interface RecordVisitor {
+
+        void visit(ByteBuffer record);
+    }
+}
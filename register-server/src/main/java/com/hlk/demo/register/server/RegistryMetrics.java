@@ -0,0 +1,191 @@
+package com.hlk.demo.register.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * register-server的运行指标
+ *
+ * 每种请求（按消息类型）和每种后台任务各有一个耗时直方图和一个出错计数器，
+ * 再加上自我保护机制、摘除服务实例的计数器，通过FETCH_STATS请求查询
+ *
+ * 记录一次只是两次System.nanoTime()加上一次原子加，一直开着也没有关系
+ *
+ * @author huanglk
+ */
+public class RegistryMetrics {
+
+    /**
+     * 摘除到期服务实例的一轮检查
+     */
+    public static final int TASK_EVICTION = 0;
+    /**
+     * 注册表快照
+     */
+    public static final int TASK_SNAPSHOT = 1;
+    /**
+     * 转发给对等节点的一个批次，从发出去到收到响应
+     */
+    public static final int TASK_REPLICATION = 2;
+
+    /**
+     * 请求的名称，下标是消息类型
+     */
+    private static final String[] REQUEST_NAMES = {
+            "error", "register", "heartbeat", "batchHeartbeat", "fetchFullRegistry", "fetchDeltaRegistry",
+            "cancel", "replicateBatch", "watch", "fetchServiceFingerprints", "fetchStats",
+            "fetchCompressedFullRegistry", "queryServiceInstances"
+    };
+    private static final String[] TASK_NAMES = {"eviction", "snapshot", "replication"};
+
+    private static RegistryMetrics instance = new RegistryMetrics();
+
+    private final LatencyHistogram[] requestLatencies = new LatencyHistogram[REQUEST_NAMES.length];
+    private final LongAdder[] requestErrors = new LongAdder[REQUEST_NAMES.length];
+    private final LatencyHistogram[] taskLatencies = new LatencyHistogram[TASK_NAMES.length];
+    private final LongAdder[] taskErrors = new LongAdder[TASK_NAMES.length];
+
+    /**
+     * 检查过几次要不要开启自我保护机制
+     */
+    private final LongAdder selfProtectionChecks = new LongAdder();
+    /**
+     * 其中有几次开启了自我保护机制
+     */
+    private final LongAdder selfProtectionTrips = new LongAdder();
+    /**
+     * 因为契约到期摘除的服务实例数量
+     */
+    private final LongAdder evictedInstances = new LongAdder();
+    /**
+     * 被准入控制限流的注册请求数量
+     */
+    private final LongAdder throttledRegistrations = new LongAdder();
+    /**
+     * 响应缓存没有命中、但是等了别的线程构建结果的次数
+     */
+    private final LongAdder coalescedCacheLoads = new LongAdder();
+
+    private RegistryMetrics() {
+        for (int i = 0; i < REQUEST_NAMES.length; i++) {
+            requestLatencies[i] = new LatencyHistogram();
+            requestErrors[i] = new LongAdder();
+        }
+        for (int i = 0; i < TASK_NAMES.length; i++) {
+            taskLatencies[i] = new LatencyHistogram();
+            taskErrors[i] = new LongAdder();
+        }
+    }
+
+    public static RegistryMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * 记录一个请求的处理耗时
+     *
+     * @param messageType 消息类型
+     * @param startNanos  开始处理的System.nanoTime()
+     * @param failed      是不是处理出错了
+     */
+    public void recordRequest(byte messageType, long startNanos, boolean failed) {
+        if (messageType < 0 || messageType >= REQUEST_NAMES.length) {
+            return;
+        }
+        requestLatencies[messageType].record(System.nanoTime() - startNanos);
+        if (failed) {
+            requestErrors[messageType].increment();
+        }
+    }
+
+    /**
+     * 记录一次后台任务的耗时
+     *
+     * @param task       后台任务，TASK_开头的常量
+     * @param startNanos 开始执行的System.nanoTime()
+     * @param failed     是不是执行失败了
+     */
+    public void recordTask(int task, long startNanos, boolean failed) {
+        taskLatencies[task].record(System.nanoTime() - startNanos);
+        if (failed) {
+            taskErrors[task].increment();
+        }
+    }
+
+    /**
+     * 记录一次自我保护机制的检查
+     */
+    public void selfProtectionChecked(boolean enabled) {
+        selfProtectionChecks.increment();
+        if (enabled) {
+            selfProtectionTrips.increment();
+        }
+    }
+
+    /**
+     * 摘除了一批到期的服务实例
+     */
+    public void instancesEvicted(int count) {
+        evictedInstances.add(count);
+    }
+
+    /**
+     * 一个注册请求被限流了
+     */
+    public void registerThrottled() {
+        throttledRegistrations.increment();
+    }
+
+    /**
+     * 响应缓存没有命中，等了别的线程正在构建的结果
+     */
+    public void cacheLoadCoalesced() {
+        coalescedCacheLoads.increment();
+    }
+
+    /**
+     * 当前的运行统计
+     */
+    public RegistryStats getStats() {
+        RegistryStats stats = new RegistryStats();
+        stats.setTimestamp(System.currentTimeMillis());
+        for (int i = 0; i < REQUEST_NAMES.length; i++) {
+            addOperationStats(stats, REQUEST_NAMES[i], requestLatencies[i], requestErrors[i]);
+        }
+        for (int i = 0; i < TASK_NAMES.length; i++) {
+            addOperationStats(stats, TASK_NAMES[i], taskLatencies[i], taskErrors[i]);
+        }
+
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        stats.getCounters().put("registryVersion", registry.getVersion());
+        stats.getCounters().put("serviceInstances", registry.getServiceInstanceTotalCount());
+        stats.getCounters().put("latestMinuteHeartbeats", HeartbeatCounter.getInstance().get());
+        stats.getCounters().put("expectedHeartbeatThreshold",
+                SelfProtectionPolicy.getInstance().getExpectedHeartbeatThreshold());
+        stats.getCounters().put("selfProtectionChecks", selfProtectionChecks.sum());
+        stats.getCounters().put("selfProtectionTrips", selfProtectionTrips.sum());
+        stats.getCounters().put("evictedInstances", evictedInstances.sum());
+        stats.getCounters().put("throttledRegistrations", throttledRegistrations.sum());
+        stats.getCounters().put("coalescedCacheLoads", coalescedCacheLoads.sum());
+        stats.getCounters().put("droppedLogEvents", EventLogger.getInstance().getDropped());
+        return stats;
+    }
+
+    private static void addOperationStats(RegistryStats stats, String name,
+                                          LatencyHistogram histogram, LongAdder errors) {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        if (snapshot.getCount() == 0) {
+            return;
+        }
+        OperationStats operationStats = new OperationStats();
+        operationStats.setName(name);
+        operationStats.setCount(snapshot.getCount());
+        operationStats.setErrorCount(errors.sum());
+        operationStats.setMean(snapshot.getMean());
+        operationStats.setP50(snapshot.getValueAtPercentile(50.0));
+        operationStats.setP90(snapshot.getValueAtPercentile(90.0));
+        operationStats.setP99(snapshot.getValueAtPercentile(99.0));
+        operationStats.setP999(snapshot.getValueAtPercentile(99.9));
+        operationStats.setMax(snapshot.getMax());
+        stats.getOperations().add(operationStats);
+    }
+}
@@ -0,0 +1,295 @@
+package com.hlk.demo.register.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 注册表的持久化：快照 + 变更日志
+ *
+ * 注册表的每一次变更（注册、下线、摘除）都会追加一条日志，后台线程定期把整个注册表写成一个快照，
+ * 快照写好之后，快照之前的日志就可以删掉了
+ *
+ * register-server重启的时候，先读最新的快照，再重放快照之后的日志，注册表就恢复到了重启之前的样子，
+ * 所有服务实例的契约都从恢复的时间点重新开始算，客户端有完整的90秒时间发心跳，不会被一下子全部摘除
+ *
+ * 没有调用start()的话，持久化是关闭的，注册表的变更不会写日志
+ *
+ * @author huanglk
+ */
+public class RegistryPersistence {
+
+    /**
+     * 日志里的变更操作
+     */
+    private static final byte OPERATION_REGISTER = 1;
+    private static final byte OPERATION_REMOVE = 2;
+
+    /**
+     * 检查要不要做快照的间隔
+     */
+    private static final long SNAPSHOT_CHECK_INTERVAL = 30 * 1000L;
+    /**
+     * 日志条数超过这个数量就做一次快照
+     */
+    private static final long SNAPSHOT_RECORD_THRESHOLD = 200 * 1000L;
+    /**
+     * 距离上一次快照超过这个时间，并且有新的日志，也做一次快照
+     */
+    private static final long SNAPSHOT_MAX_INTERVAL = 10 * 60 * 1000L;
+    /**
+     * 把日志刷到磁盘上的间隔
+     */
+    private static final long FORCE_INTERVAL = 1000L;
+
+    private static RegistryPersistence instance = new RegistryPersistence();
+
+    /**
+     * 数据目录
+     */
+    private File directory;
+    /**
+     * 变更日志，没有启动的时候是null
+     */
+    private volatile RegistryLog registryLog;
+    /**
+     * 上一次快照对应的注册表版本号
+     */
+    private long latestSnapshotVersion = -1L;
+    private long latestSnapshotTimestamp = System.currentTimeMillis();
+
+    private RegistryPersistence() {
+
+    }
+
+    public static RegistryPersistence getInstance() {
+        return instance;
+    }
+
+    /**
+     * 从数据目录恢复注册表，然后开始记录变更日志
+     * 要在网络服务器开始接收请求之前调用
+     *
+     * @param directory 数据目录
+     */
+    public synchronized void start(File directory) throws IOException {
+        if (registryLog != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("创建数据目录失败：" + directory);
+        }
+        this.directory = directory;
+
+        long startTime = System.currentTimeMillis();
+        long[] restored = restore();
+        long restoredVersion = restored[0];
+        long restoredInstances = restored[1];
+        long snapshotVersion = restored[2];
+
+        // 重启之后总是从一个新的段开始写，老的段等下一次快照之后删掉
+        List<Long> segments = RegistryLog.listSegments(directory);
+        long nextSegment = segments.isEmpty() ? 1L : segments.get(segments.size() - 1) + 1;
+        this.registryLog = new RegistryLog(directory, nextSegment);
+        // 重放过日志的话，尽快做一次快照，下次重启就不用再重放这些日志了
+        this.latestSnapshotVersion = snapshotVersion;
+        this.latestSnapshotTimestamp = restoredVersion > snapshotVersion ? 0L : System.currentTimeMillis();
+
+        // 恢复出来的服务实例要算进期望的心跳次数里，最近一分钟的心跳次数是从0开始的，
+        // 所以刚重启的这一段时间里自我保护机制是开着的，不会因为心跳还没跟上就摘除服务实例
+        SelfProtectionPolicy.getInstance().recalibrate(restoredInstances);
+
+        EventLogger.getInstance().log(EventType.PERSISTENCE, EventLogger.INFO, "注册表恢复完成，服务实例数量："
+                + restoredInstances + "，版本号：" + restoredVersion + "，耗时" + (System.currentTimeMillis() - startTime) + "毫秒");
+
+        Daemon daemon = new Daemon();
+        daemon.setDaemon(true);
+        daemon.setName("RegistryPersistence");
+        daemon.start();
+    }
+
+    /**
+     * 记录一次注册
+     * 在注册表的分段锁里调用，同一个服务实例的日志顺序跟注册表里的变更顺序一致
+     */
+    public void logRegister(ServiceInstance serviceInstance, long version, long timestamp) {
+        RegistryLog log = registryLog;
+        if (log == null) {
+            return;
+        }
+        MessageCodec.Output output = new MessageCodec.Output(96);
+        output.writeByte(OPERATION_REGISTER);
+        output.writeVarLong(version);
+        output.writeVarLong(timestamp);
+        MessageCodec.writeServiceInstance(output, serviceInstance);
+        append(log, output.toByteBuffer());
+    }
+
+    /**
+     * 记录一次下线或者摘除
+     */
+    public void logRemove(String serviceName, String serviceInstanceId, long version, long timestamp) {
+        RegistryLog log = registryLog;
+        if (log == null) {
+            return;
+        }
+        MessageCodec.Output output = new MessageCodec.Output(64);
+        output.writeByte(OPERATION_REMOVE);
+        output.writeVarLong(version);
+        output.writeVarLong(timestamp);
+        output.writeInternedString(serviceName);
+        output.writeString(serviceInstanceId);
+        append(log, output.toByteBuffer());
+    }
+
+    /**
+     * 做一次快照，并删除快照之前的日志和快照
+     */
+    public void snapshot() throws IOException {
+        RegistryLog log = registryLog;
+        if (log == null) {
+            return;
+        }
+        // 先切换日志段再读版本号：老的段里的变更版本号都不会超过这个版本号，快照里都包含了
+        long firstLogSegment = log.roll();
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        long version = registry.getVersion();
+
+        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        File file;
+        try {
+            file = RegistrySnapshot.write(directory, version, firstLogSegment, registry);
+        } catch (IOException e) {
+            RegistryMetrics.getInstance().recordTask(RegistryMetrics.TASK_SNAPSHOT, startNanos, true);
+            throw e;
+        }
+        RegistryMetrics.getInstance().recordTask(RegistryMetrics.TASK_SNAPSHOT, startNanos, false);
+
+        log.deleteSegmentsBefore(firstLogSegment);
+        RegistrySnapshot.deleteSnapshotsBefore(directory, version);
+        latestSnapshotVersion = version;
+        latestSnapshotTimestamp = System.currentTimeMillis();
+
+        EventLogger.getInstance().log(EventType.PERSISTENCE, EventLogger.INFO,
+                "注册表快照完成：" + file + "，耗时" + (latestSnapshotTimestamp - startTime) + "毫秒");
+    }
+
+    /**
+     * 停止持久化，把还没刷盘的日志刷到磁盘上
+     */
+    public synchronized void shutdown() throws IOException {
+        RegistryLog log = registryLog;
+        registryLog = null;
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * 读最新的快照，重放快照之后的日志，把结果放进注册表
+     *
+     * @return 恢复之后的注册表版本号、服务实例数量、快照的版本号
+     */
+    private long[] restore() throws IOException {
+        RegistrySnapshot snapshot = RegistrySnapshot.readLatest(directory);
+        final Map<String, Map<String, ServiceInstance>> restored = snapshot == null
+                ? new HashMap<String, Map<String, ServiceInstance>>() : snapshot.getRegistry();
+        final long snapshotVersion = snapshot == null ? 0L : snapshot.getVersion();
+        long firstLogSegment = snapshot == null ? 0L : snapshot.getFirstLogSegment();
+        final long[] latestVersion = {snapshotVersion};
+
+        for (long segment : RegistryLog.listSegments(directory)) {
+            if (segment < firstLogSegment) {
+                continue;
+            }
+            RegistryLog.replay(directory, segment, new RegistryLog.RecordVisitor() {
+                @Override
+                public void visit(ByteBuffer record) {
+                    MessageCodec.Input input = new MessageCodec.Input(record);
+                    byte operation = record.get();
+                    long version = input.readVarLong();
+                    input.readVarLong();
+                    // 快照里已经包含了这个版本号之前的变更
+                    if (version <= snapshotVersion) {
+                        return;
+                    }
+                    latestVersion[0] = Math.max(latestVersion[0], version);
+                    if (operation == OPERATION_REGISTER) {
+                        // 老版本写的注册记录没有服务实例的属性
+                        ServiceInstance serviceInstance = MessageCodec.readServiceInstance(input, false);
+                        if (input.hasRemaining()) {
+                            MessageCodec.readAttributes(input, serviceInstance);
+                        }
+                        Map<String, ServiceInstance> serviceInstanceMap = restored.get(serviceInstance.getServiceName());
+                        if (serviceInstanceMap == null) {
+                            serviceInstanceMap = new HashMap<>();
+                            restored.put(serviceInstance.getServiceName(), serviceInstanceMap);
+                        }
+                        serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+                    } else if (operation == OPERATION_REMOVE) {
+                        String serviceName = input.readInternedString();
+                        String serviceInstanceId = input.readString();
+                        Map<String, ServiceInstance> serviceInstanceMap = restored.get(serviceName);
+                        if (serviceInstanceMap != null) {
+                            serviceInstanceMap.remove(serviceInstanceId);
+                            if (serviceInstanceMap.isEmpty()) {
+                                restored.remove(serviceName);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        long count = ServiceRegistry.getInstance().restore(restored, latestVersion[0]);
+        return new long[]{latestVersion[0], count, snapshotVersion};
+    }
+
+    private void append(RegistryLog log, ByteBuffer record) {
+        try {
+            log.append(record);
+        } catch (IOException e) {
+            // 写日志失败不能影响注册表本身，最多就是重启之后少恢复一些变更
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 负责刷盘和做快照的后台线程
+     */
+    private class Daemon extends Thread {
+
+        @Override
+        public void run() {
+            long latestSnapshotCheckTimestamp = System.currentTimeMillis();
+            while (registryLog != null) {
+                try {
+                    Thread.sleep(FORCE_INTERVAL);
+                    RegistryLog log = registryLog;
+                    if (log == null) {
+                        break;
+                    }
+                    log.force();
+
+                    long currentTime = System.currentTimeMillis();
+                    if (currentTime - latestSnapshotCheckTimestamp < SNAPSHOT_CHECK_INTERVAL) {
+                        continue;
+                    }
+                    latestSnapshotCheckTimestamp = currentTime;
+                    long records = log.getRecordsSinceRoll();
+                    boolean changed = ServiceRegistry.getInstance().getVersion() != latestSnapshotVersion;
+                    if (records >= SNAPSHOT_RECORD_THRESHOLD
+                            || (changed && currentTime - latestSnapshotTimestamp > SNAPSHOT_MAX_INTERVAL)) {
+                        snapshot();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
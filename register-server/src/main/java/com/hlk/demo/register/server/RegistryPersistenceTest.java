@@ -0,0 +1,250 @@
+package com.hlk.demo.register.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+import static com.hlk.demo.register.server.TestSupport.newServiceInstance;
+
+/**
+ * 注册表持久化的测试类
+ *
+ * 注册表是进程里的单例，所以恢复要在一个新的jvm进程里做：
+ * 1、注册、下线一批服务实例，做一次快照，再接着注册、下线、重复注册，再做一次快照，再变更一些
+ * 2、把第一次快照之后的日志段改成最新的序号放回数据目录，里面的变更版本号都不比第二次快照新，重放的时候要跳过，
+ *    不然已经下线的服务实例会被恢复回来
+ * 3、最后写三条注册日志，把中间一条的内容改坏，重放到这条就停下来，后面两条都不会恢复
+ * 4、在子进程里恢复注册表，服务实例、版本号、每个服务的指纹都要跟预期的一样
+ *
+ * 运行方式：java com.hlk.demo.register.server.RegistryPersistenceTest [服务实例数量]
+ *
+ * @author huanglk
+ */
+public class RegistryPersistenceTest {
+
+    /**
+     * 子进程输出恢复结果的行的前缀，跟事件日志的输出区分开
+     */
+    private static final String RESULT_PREFIX = "restored ";
+    /**
+     * 最后三条日志所在的服务，前面的变更都不会用到这个服务
+     */
+    private static final int TAIL_SERVICE = 99;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "restore".equals(args[0])) {
+            runRestore(new File(args[1]));
+            return;
+        }
+
+        int instanceCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        File directory = Files.createTempDirectory("registry-persistence-test").toFile();
+        PrintStream stdout = TestSupport.silenceStdout();
+        try {
+            test(directory, instanceCount, stdout);
+        } finally {
+            TestSupport.delete(directory);
+        }
+        stdout.println("注册表持久化校验通过");
+    }
+
+    private static void test(File directory, int instanceCount, PrintStream stdout) throws Exception {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        RegistryPersistence persistence = RegistryPersistence.getInstance();
+        persistence.start(directory);
+
+        // 第一次快照之前：注册一批，下线其中十分之一
+        for (int i = 0; i < instanceCount; i++) {
+            registry.register(newServiceInstance(i % 10, i, i % 3));
+        }
+        for (int i = 0; i < instanceCount; i += 10) {
+            check(registry.remove("SERVICE-" + i % 10, "SERVICE-" + i % 10 + "-" + i), "下线：" + i);
+        }
+        persistence.snapshot();
+        List<Long> segments = RegistryLog.listSegments(directory);
+        check(segments.size() == 1, "第一次快照之后的日志段：" + segments);
+        long firstSegment = segments.get(0);
+
+        // 第一次快照之后：再注册一批，重复注册一部分（端口变了），再下线一部分
+        for (int i = instanceCount; i < instanceCount * 3 / 2; i++) {
+            registry.register(newServiceInstance(i % 10, i, i % 3));
+        }
+        for (int i = 1; i < instanceCount; i += 7) {
+            ServiceInstance serviceInstance = newServiceInstance(i % 10, i, i % 3);
+            serviceInstance.setPort(serviceInstance.getPort() + 1);
+            registry.register(serviceInstance);
+        }
+        for (int i = instanceCount + 1; i < instanceCount * 3 / 2; i += 5) {
+            registry.remove("SERVICE-" + i % 10, "SERVICE-" + i % 10 + "-" + i);
+        }
+        long secondSnapshotVersion = registry.getVersion();
+        File staleSegment = new File(directory.getParentFile(), directory.getName() + ".stale");
+        Files.copy(RegistryLog.segmentFile(directory, firstSegment).toPath(), staleSegment.toPath());
+
+        persistence.snapshot();
+        long secondSegment = RegistryLog.listSegments(directory).get(0);
+        check(secondSegment > firstSegment, "第二次快照之后的日志段：" + secondSegment);
+
+        // 第二次快照之后：下线一部分第一次快照之后注册的服务实例，重放老的日志段的话它们会被恢复回来
+        for (int i = instanceCount; i < instanceCount * 3 / 2; i += 3) {
+            registry.remove("SERVICE-" + i % 10, "SERVICE-" + i % 10 + "-" + i);
+        }
+        for (int i = instanceCount * 3 / 2; i < instanceCount * 3 / 2 + 100; i++) {
+            registry.register(newServiceInstance(i % 10, i, i % 3));
+        }
+        check(registry.getVersion() > secondSnapshotVersion, "第二次快照之后的变更");
+
+        // 预期恢复出来的注册表：到这里为止的注册表，再加上最后三条日志里的第一条
+        Map<String, Long> expectedHashes = new HashMap<>();
+        collectHashes(registry, expectedHashes);
+        Map<String, Long> expectedFingerprints = nonZero(
+                registry.getServiceFingerprints(Collections.<String>emptyList()).getFingerprints());
+
+        ServiceInstance first = newServiceInstance(TAIL_SERVICE, 1, 1);
+        registry.register(first);
+        long expectedVersion = registry.getVersion();
+        registry.register(newServiceInstance(TAIL_SERVICE, 2, 1));
+        registry.register(newServiceInstance(TAIL_SERVICE, 3, 1));
+        expectedHashes.put(first.getServiceInstanceId(), RegistryFingerprint.hash(first));
+        expectedFingerprints.put(first.getServiceName(), RegistryFingerprint.hash(first));
+        persistence.shutdown();
+
+        // 老的日志段改成比当前段还新的序号，恢复的时候在当前段之后重放
+        Files.move(staleSegment.toPath(), RegistryLog.segmentFile(directory, secondSegment + 1).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        corruptSecondLastRecord(RegistryLog.segmentFile(directory, secondSegment));
+
+        Map<String, Long> restoredHashes = new HashMap<>();
+        Map<String, Long> restoredFingerprints = new HashMap<>();
+        long[] restoredVersion = new long[1];
+        restoreInChildProcess(directory, restoredHashes, restoredFingerprints, restoredVersion);
+
+        check(restoredVersion[0] == expectedVersion,
+                "恢复的版本号：" + restoredVersion[0] + "，预期：" + expectedVersion);
+        check(restoredHashes.keySet().equals(expectedHashes.keySet()),
+                "恢复的服务实例：" + restoredHashes.size() + "个，预期：" + expectedHashes.size() + "个");
+        check(restoredHashes.equals(expectedHashes), "恢复的服务实例内容");
+        check(restoredFingerprints.equals(expectedFingerprints), "恢复的服务指纹：" + restoredFingerprints);
+        stdout.println("恢复了" + restoredHashes.size() + "个服务实例，版本号：" + restoredVersion[0]);
+    }
+
+    /**
+     * 把日志段里倒数第二条日志的最后一个字节改掉，crc就对不上了
+     */
+    private static void corruptSecondLastRecord(File segment) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            List<Long> recordEnds = new ArrayList<>();
+            long position = 0L;
+            while (position + 8 <= file.length()) {
+                file.seek(position);
+                int length = file.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                position += 8 + length;
+                recordEnds.add(position);
+            }
+            check(recordEnds.size() >= 3, "日志段里的日志条数：" + recordEnds.size());
+            long offset = recordEnds.get(recordEnds.size() - 2) - 1;
+            file.seek(offset);
+            int value = file.read();
+            file.seek(offset);
+            file.write(value ^ 0xFF);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 起一个子进程恢复注册表，读回恢复出来的服务实例、服务指纹和版本号
+     */
+    private static void restoreInChildProcess(File directory, Map<String, Long> hashes,
+                                              Map<String, Long> fingerprints, long[] version) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-Dfile.encoding=UTF-8",
+                "-cp", System.getProperty("java.class.path"),
+                RegistryPersistenceTest.class.getName(), "restore", directory.getAbsolutePath());
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        StringBuilder output = new StringBuilder();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith(RESULT_PREFIX)) {
+                output.append(line).append('\n');
+                continue;
+            }
+            String[] fields = line.substring(RESULT_PREFIX.length()).split(" ");
+            if ("instance".equals(fields[0])) {
+                hashes.put(fields[1], Long.parseLong(fields[2]));
+            } else if ("fingerprint".equals(fields[0])) {
+                fingerprints.put(fields[1], Long.parseLong(fields[2]));
+            } else if ("version".equals(fields[0])) {
+                version[0] = Long.parseLong(fields[1]);
+            }
+        }
+        check(process.waitFor() == 0, "恢复注册表的子进程失败：\n" + output);
+    }
+
+    /**
+     * 子进程里恢复注册表，把结果打印出来
+     */
+    private static void runRestore(File directory) throws Exception {
+        PrintStream stdout = TestSupport.silenceStdout();
+        RegistryPersistence.getInstance().start(directory);
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+
+        Map<String, Long> hashes = new HashMap<>();
+        collectHashes(registry, hashes);
+        for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+            stdout.println(RESULT_PREFIX + "instance " + entry.getKey() + " " + entry.getValue());
+        }
+        Map<String, Long> fingerprints = nonZero(
+                registry.getServiceFingerprints(Collections.<String>emptyList()).getFingerprints());
+        for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+            stdout.println(RESULT_PREFIX + "fingerprint " + entry.getKey() + " " + entry.getValue());
+        }
+        stdout.println(RESULT_PREFIX + "version " + registry.getVersion());
+        RegistryPersistence.getInstance().shutdown();
+        stdout.flush();
+    }
+
+    /**
+     * 注册表里每个服务实例的哈希，服务实例的内容有一点不一样哈希就不一样
+     */
+    private static void collectHashes(ServiceRegistry registry, final Map<String, Long> hashes) {
+        registry.forEach(new ServiceInstanceStore.ServiceInstanceVisitor() {
+            @Override
+            public void visit(ServiceInstanceView serviceInstance) {
+                hashes.put(serviceInstance.getServiceInstanceId(), RegistryFingerprint.hash(serviceInstance));
+            }
+        });
+    }
+
+    /**
+     * 服务实例全部下线的服务在变更队列里还留着一个0的指纹，恢复出来的注册表里没有这个服务
+     */
+    private static Map<String, Long> nonZero(Map<String, Long> fingerprints) {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+            if (entry.getValue() != 0L) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,312 @@
+package com.hlk.demo.register.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 注册表快照文件
+ *
+ * 文件头：4字节魔数 + 4字节格式版本 + 8字节注册表版本号 + 8字节快照之后第一个日志段的序号
+ * 后面是一个一个的数据块：4字节长度 + 4字节crc32 + 块内容（varint实例数 + 每个服务实例），长度为0表示结束
+ * 每个数据块各自用MessageCodec编码，块里的服务名称走块自己的字符串表
+ *
+ * 写的时候直接遍历注册表边遍历边编码，不会先拷贝出一份注册表（堆外存储拷贝出来就是上百万个对象）；
+ * 先写到临时文件，force之后再改名，所以目录里的快照文件要么是完整的，要么不存在
+ * 读的时候整个文件映射到内存里直接解码
+ *
+ * @author huanglk
+ */
+public class RegistrySnapshot {
+
+    private static final int MAGIC = 0x52534E50;
+    /**
+     * 2：服务实例带上了状态、机房、版本标签、元数据；1的快照还能读，读出来的服务实例都是UP、没有其他属性
+     */
+    private static final int FORMAT_VERSION = 2;
+    private static final int FORMAT_VERSION_WITHOUT_ATTRIBUTES = 1;
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8;
+    /**
+     * 每个数据块最多放多少个服务实例
+     */
+    private static final int INSTANCES_PER_CHUNK = 4096;
+
+    private static final String SNAPSHOT_FILE_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_FILE_SUFFIX = ".snap";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * 快照对应的注册表版本号，快照里的数据只会比这个版本号更新
+     */
+    private final long version;
+    /**
+     * 快照之后第一个日志段的序号，重放日志从这个段开始
+     */
+    private final long firstLogSegment;
+    /**
+     * 快照里的注册表
+     */
+    private final Map<String, Map<String, ServiceInstance>> registry;
+
+    public RegistrySnapshot(long version, long firstLogSegment,
+                            Map<String, Map<String, ServiceInstance>> registry) {
+        this.version = version;
+        this.firstLogSegment = firstLogSegment;
+        this.registry = registry;
+    }
+
+    /**
+     * 把注册表写成一个快照
+     *
+     * @param directory       快照所在的目录
+     * @param version         快照对应的注册表版本号
+     * @param firstLogSegment 快照之后第一个日志段的序号
+     * @param serviceRegistry 注册表
+     * @return 快照文件
+     */
+    public static File write(File directory, long version, long firstLogSegment,
+                             ServiceRegistry serviceRegistry) throws IOException {
+        File file = snapshotFile(directory, version);
+        File tempFile = new File(directory, file.getName() + TEMP_FILE_SUFFIX);
+
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            final FileChannel channel = outputStream.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putLong(version);
+            header.putLong(firstLogSegment);
+            header.flip();
+            writeFully(channel, header);
+
+            final ChunkWriter chunkWriter = new ChunkWriter(channel);
+            final IOException[] failure = new IOException[1];
+            serviceRegistry.forEach(new ServiceInstanceStore.ServiceInstanceVisitor() {
+                @Override
+                public void visit(ServiceInstanceView serviceInstance) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        chunkWriter.add(serviceInstance);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            chunkWriter.flush();
+            ByteBuffer end = ByteBuffer.allocate(4);
+            end.putInt(0);
+            end.flip();
+            writeFully(channel, end);
+
+            channel.force(true);
+        } finally {
+            outputStream.close();
+        }
+
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /**
+     * 读取目录里最新的一个快照
+     *
+     * @param directory 快照所在的目录
+     * @return 目录里没有快照的话返回null
+     */
+    public static RegistrySnapshot readLatest(File directory) throws IOException {
+        File latest = null;
+        long latestVersion = -1L;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        for (File file : files) {
+            long fileVersion = parseVersion(file.getName());
+            if (fileVersion > latestVersion) {
+                latestVersion = fileVersion;
+                latest = file;
+            }
+        }
+        return latest == null ? null : read(latest);
+    }
+
+    /**
+     * 读取一个快照文件
+     *
+     * @param file 快照文件
+     * @return
+     */
+    public static RegistrySnapshot read(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+                throw new IOException("不是注册表快照文件：" + file);
+            }
+            int formatVersion = buffer.getInt();
+            if (formatVersion != FORMAT_VERSION && formatVersion != FORMAT_VERSION_WITHOUT_ATTRIBUTES) {
+                throw new IOException("不支持的快照格式版本：" + formatVersion);
+            }
+            long version = buffer.getLong();
+            long firstLogSegment = buffer.getLong();
+
+            Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+            CRC32 crc32 = new CRC32();
+            while (true) {
+                int length = buffer.getInt();
+                if (length == 0) {
+                    break;
+                }
+                int checksum = buffer.getInt();
+                ByteBuffer chunk = buffer.slice();
+                chunk.limit(length);
+                crc32.reset();
+                crc32.update(chunk.duplicate());
+                if ((int) crc32.getValue() != checksum) {
+                    throw new IOException("快照文件" + file + "校验失败");
+                }
+
+                MessageCodec.Input input = new MessageCodec.Input(chunk);
+                int count = input.readCount();
+                for (int i = 0; i < count; i++) {
+                    ServiceInstance serviceInstance = MessageCodec.readServiceInstance(
+                            input, formatVersion != FORMAT_VERSION_WITHOUT_ATTRIBUTES);
+                    Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceInstance.getServiceName());
+                    if (serviceInstanceMap == null) {
+                        serviceInstanceMap = new HashMap<>();
+                        registry.put(serviceInstance.getServiceName(), serviceInstanceMap);
+                    }
+                    serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+                }
+                buffer.position(buffer.position() + length);
+            }
+            return new RegistrySnapshot(version, firstLogSegment, registry);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * 删除版本号小于指定版本号的快照，以及没写完的临时文件
+     *
+     * @param directory 快照所在的目录
+     * @param version   注册表版本号
+     */
+    public static void deleteSnapshotsBefore(File directory, long version) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            boolean stale = name.startsWith(SNAPSHOT_FILE_PREFIX)
+                    && (name.endsWith(TEMP_FILE_SUFFIX) || parseVersion(name) < version);
+            if (stale && !file.delete()) {
+                EventLogger.getInstance().log(EventType.PERSISTENCE, EventLogger.WARN, "删除快照文件失败：" + file);
+            }
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getFirstLogSegment() {
+        return firstLogSegment;
+    }
+
+    public Map<String, Map<String, ServiceInstance>> getRegistry() {
+        return registry;
+    }
+
+    /**
+     * 边遍历边把服务实例编码进当前的数据块，攒够一个块就写出去
+     * 块的开头是实例数，要等块写满了才知道，所以先单独编码实例，写出去的时候再把实例数拼在前面
+     */
+    private static class ChunkWriter {
+
+        private final FileChannel channel;
+        private final CRC32 crc32 = new CRC32();
+        private MessageCodec.Output output;
+        private int chunkSize = 0;
+
+        ChunkWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void add(ServiceInstanceView serviceInstance) throws IOException {
+            if (output == null) {
+                output = new MessageCodec.Output(INSTANCES_PER_CHUNK * 64);
+            }
+            MessageCodec.writeServiceInstance(output, serviceInstance);
+            if (++chunkSize == INSTANCES_PER_CHUNK) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (chunkSize == 0) {
+                return;
+            }
+            MessageCodec.Output count = new MessageCodec.Output(5);
+            count.writeVarInt(chunkSize);
+            ByteBuffer countBuffer = count.toByteBuffer();
+            ByteBuffer body = output.toByteBuffer();
+            crc32.reset();
+            crc32.update(countBuffer.array(), countBuffer.arrayOffset() + countBuffer.position(), countBuffer.remaining());
+            crc32.update(body.array(), body.arrayOffset() + body.position(), body.remaining());
+
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(countBuffer.remaining() + body.remaining());
+            header.putInt((int) crc32.getValue());
+            header.flip();
+            writeFully(channel, header);
+            writeFully(channel, countBuffer);
+            writeFully(channel, body);
+
+            output = null;
+            chunkSize = 0;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static File snapshotFile(File directory, long version) {
+        return new File(directory, SNAPSHOT_FILE_PREFIX + String.format("%020d", version) + SNAPSHOT_FILE_SUFFIX);
+    }
+
+    /**
+     * 从快照文件名里解析出版本号，不是快照文件的话返回-1
+     */
+    private static long parseVersion(String name) {
+        if (!name.startsWith(SNAPSHOT_FILE_PREFIX) || !name.endsWith(SNAPSHOT_FILE_SUFFIX)) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(name.substring(
+                    SNAPSHOT_FILE_PREFIX.length(), name.length() - SNAPSHOT_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+}
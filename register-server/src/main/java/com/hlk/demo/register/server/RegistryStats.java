@@ -0,0 +1,52 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * register-server的运行统计：每种请求和后台任务的耗时分布，以及一些计数器
+ * @author huanglk
+ *
+ */
+public class RegistryStats {
+
+	/**
+	 * 统计的时间
+	 */
+	private long timestamp;
+	/**
+	 * 每种请求、后台任务的次数和耗时分布，没有发生过的不在里面
+	 */
+	private List<OperationStats> operations = new ArrayList<OperationStats>();
+	/**
+	 * 计数器，key是计数器的名称
+	 */
+	private Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+	public List<OperationStats> getOperations() {
+		return operations;
+	}
+	public void setOperations(List<OperationStats> operations) {
+		this.operations = operations;
+	}
+	public Map<String, Long> getCounters() {
+		return counters;
+	}
+	public void setCounters(Map<String, Long> counters) {
+		this.counters = counters;
+	}
+
+	@Override
+	public String toString() {
+		return "RegistryStats [timestamp=" + timestamp + ", operations=" + operations + ", counters=" + counters + "]";
+	}
+	
+}
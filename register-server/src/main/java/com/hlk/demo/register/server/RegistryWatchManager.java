@@ -0,0 +1,319 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * 注册表变更的监听（长轮询）
+ *
+ * 客户端带着自己已经拿到的注册表版本号发一个监听请求，注册表已经比这个版本号新了就马上响应，
+ * 否则就把请求挂起来，等注册表有了新的变更或者超时了，再把这个版本号之后的增量注册表响应回去
+ *
+ * 挂起的监听只是内存里的一个对象，不占线程：注册表变更的时候只是打个标记再唤醒后台线程，
+ * 后台线程把挂起的监听一次性全部完成掉，一段时间里的多次变更会合并成一次通知；
+ * 超时用一个100毫秒一格的时间轮来管理，完成的时候从时间轮上摘掉
+ *
+ * 只订阅了几个服务的监听，只有这几个服务有变更才会被完成，其他服务的变更不会打扰它：
+ * 挂起的监听按订阅的服务建了索引，后台线程从最近变更队列里拿到上一次通知之后有变更的服务，
+ * 只检查这些服务下面的监听和订阅了所有服务的监听，不用每次都扫一遍所有挂起的监听
+ *
+ * 同一个版本号之后的增量注册表在响应缓存里只会构建一次，几千个监听拿到的都是同一个对象
+ *
+ * @author huanglk
+ */
+public class RegistryWatchManager {
+
+    /**
+     * 时间轮每一格的时间跨度
+     */
+    private static final long TICK_MS = 100L;
+    /**
+     * 时间轮的格子数，必须是2的幂，转一圈的时间要比最长的超时时间长
+     */
+    private static final int WHEEL_SIZE = 2048;
+    /**
+     * 监听的最短超时时间，太短的超时时间在时间轮上会错过自己的格子
+     */
+    public static final long MIN_WATCH_TIMEOUT = 1000L;
+    /**
+     * 监听的最长超时时间
+     */
+    public static final long MAX_WATCH_TIMEOUT = 120 * 1000L;
+
+    /**
+     * 单例实例
+     */
+    private static RegistryWatchManager instance = new RegistryWatchManager();
+
+    /**
+     * 等着注册表变更的监听
+     */
+    private final Set<Watcher> parkedWatchers = ConcurrentHashMap.newKeySet();
+    /**
+     * 只订阅了部分服务的监听，按服务名称分组，一个监听订阅了几个服务就在几个分组里
+     */
+    private final ConcurrentHashMap<String, Set<Watcher>> watchersByService = new ConcurrentHashMap<>();
+    /**
+     * 订阅了所有服务的监听
+     */
+    private final Set<Watcher> allServicesWatchers = ConcurrentHashMap.newKeySet();
+    /**
+     * 超时时间轮，每一格里是在这一格到期的监听
+     */
+    private final List<Set<Watcher>> wheel = new ArrayList<>(WHEEL_SIZE);
+    /**
+     * 上一次通知之后注册表有没有变过
+     */
+    private final AtomicBoolean changed = new AtomicBoolean(false);
+    private final Notifier notifier = new Notifier();
+
+    private RegistryWatchManager() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(ConcurrentHashMap.<Watcher>newKeySet());
+        }
+        notifier.setDaemon(true);
+        notifier.setName("RegistryWatchNotifier");
+        notifier.start();
+    }
+
+    public static RegistryWatchManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * 监听注册表的变更，回调可能在调用线程里执行，也可能在后台线程里执行
+     *
+     * @param watchRequest 监听请求
+     * @param callback     拿到增量注册表之后的回调，只会被调用一次
+     */
+    public void watch(WatchRequest watchRequest, WatchCallback callback) {
+        long sinceVersion = watchRequest.getSinceVersion();
+        long timeout = Math.min(watchRequest.getTimeout(), MAX_WATCH_TIMEOUT);
+        long deadline = System.currentTimeMillis() + Math.max(timeout, MIN_WATCH_TIMEOUT);
+        Watcher watcher = new Watcher(sinceVersion, watchRequest.getServiceNames(), deadline, callback);
+
+        // 客户端的版本号已经落后了（或者超前了，比如服务端重启过），不用挂起，马上响应
+        if (timeout <= 0 || hasChanged(watcher)) {
+            complete(watcher);
+            return;
+        }
+
+        parkedWatchers.add(watcher);
+        index(watcher);
+        wheel.get(watcher.slot).add(watcher);
+        // 挂起之前注册表刚好变了的话，通知可能已经发过了，这里再检查一次
+        if (hasChanged(watcher)) {
+            complete(watcher);
+        }
+    }
+
+    /**
+     * 注册表发生了变更，在注册、下线、摘除之后调用
+     * 这里只是打个标记再唤醒后台线程，不会拖慢注册表的写操作
+     */
+    public void registryChanged() {
+        if (parkedWatchers.isEmpty()) {
+            return;
+        }
+        if (changed.compareAndSet(false, true)) {
+            LockSupport.unpark(notifier);
+        }
+    }
+
+    /**
+     * 当前挂起的监听数量
+     */
+    public int getWatcherCount() {
+        return parkedWatchers.size();
+    }
+
+    /**
+     * 监听的版本号之后，它订阅的服务有没有变更
+     */
+    private boolean hasChanged(Watcher watcher) {
+        return ServiceRegistry.getInstance().hasChangedSince(watcher.sinceVersion, watcher.serviceNames);
+    }
+
+    /**
+     * 完成一个监听，把它版本号之后的增量注册表交给回调
+     */
+    private void complete(Watcher watcher) {
+        if (!watcher.completed.compareAndSet(false, true)) {
+            return;
+        }
+        parkedWatchers.remove(watcher);
+        unindex(watcher);
+        wheel.get(watcher.slot).remove(watcher);
+        try {
+            watcher.callback.onChanged(ResponseCache.getInstance().getDeltaRegistry(
+                    watcher.sinceVersion, watcher.serviceNames));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 按订阅的服务把监听放进索引
+     */
+    private void index(final Watcher watcher) {
+        if (watcher.serviceNames.isEmpty()) {
+            allServicesWatchers.add(watcher);
+            return;
+        }
+        for (String serviceName : watcher.serviceNames) {
+            // 跟unindex一样在compute里改分组，不会把监听加到一个刚被删掉的空分组里
+            watchersByService.compute(serviceName, new BiFunction<String, Set<Watcher>, Set<Watcher>>() {
+                @Override
+                public Set<Watcher> apply(String serviceName, Set<Watcher> watchers) {
+                    if (watchers == null) {
+                        watchers = ConcurrentHashMap.newKeySet();
+                    }
+                    watchers.add(watcher);
+                    return watchers;
+                }
+            });
+        }
+    }
+
+    /**
+     * 把监听从索引里摘掉，分组空了就把分组也删掉，客户端随便传的服务名称不会一直留在内存里
+     */
+    private void unindex(final Watcher watcher) {
+        if (watcher.serviceNames.isEmpty()) {
+            allServicesWatchers.remove(watcher);
+            return;
+        }
+        for (String serviceName : watcher.serviceNames) {
+            watchersByService.computeIfPresent(serviceName, new BiFunction<String, Set<Watcher>, Set<Watcher>>() {
+                @Override
+                public Set<Watcher> apply(String serviceName, Set<Watcher> watchers) {
+                    watchers.remove(watcher);
+                    return watchers.isEmpty() ? null : watchers;
+                }
+            });
+        }
+    }
+
+    /**
+     * 通知上一次通知之后的变更
+     *
+     * @param notifiedVersion 上一次通知的时候注册表的版本号
+     * @return 这一次通知的时候注册表的版本号
+     */
+    private long notifyChanged(long notifiedVersion) {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        // 先拿版本号再取变更，取到的变更只会比这个版本号多，下一次从这个版本号开始取，一条都不会漏
+        long version = registry.getVersion();
+        Map<String, Long> changedServices = registry.getChangedServicesSince(notifiedVersion);
+        if (changedServices == null) {
+            // 上一次通知之后的变更已经被摘除了一部分（或者注册表刚恢复过），只能逐个检查
+            for (Watcher watcher : parkedWatchers) {
+                if (hasChanged(watcher)) {
+                    complete(watcher);
+                }
+            }
+            return version;
+        }
+
+        for (Watcher watcher : allServicesWatchers) {
+            if (watcher.sinceVersion < version) {
+                complete(watcher);
+            }
+        }
+        for (Map.Entry<String, Long> entry : changedServices.entrySet()) {
+            Set<Watcher> watchers = watchersByService.get(entry.getKey());
+            if (watchers == null) {
+                continue;
+            }
+            // 这个服务最新的变更发生在监听挂起之前的话，监听还要接着等
+            for (Watcher watcher : watchers) {
+                if (watcher.sinceVersion < entry.getValue()) {
+                    complete(watcher);
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * 一个挂起的监听
+     */
+    private static class Watcher {
+
+        final long sinceVersion;
+        /**
+         * 订阅的服务名称，为空的话就是所有服务
+         */
+        final List<String> serviceNames;
+        final long deadline;
+        /**
+         * 在时间轮上的格子，超时时间向上取整到格子的边界，所以这个格子到期的时候一定已经超时了
+         */
+        final int slot;
+        final WatchCallback callback;
+        final AtomicBoolean completed = new AtomicBoolean(false);
+
+        Watcher(long sinceVersion, List<String> serviceNames, long deadline, WatchCallback callback) {
+            this.sinceVersion = sinceVersion;
+            this.serviceNames = serviceNames;
+            this.deadline = deadline;
+            this.slot = (int) (((deadline + TICK_MS - 1) / TICK_MS) & (WHEEL_SIZE - 1));
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * 拿到增量注册表之后的回调
+     */
+    public interface WatchCallback {
+
+        void onChanged(DeltaRegistry deltaRegistry);
+    }
+
+    /**
+     * 负责通知变更和处理超时的后台线程
+     */
+    private class Notifier extends Thread {
+
+        @Override
+        public void run() {
+            long currentTick = System.currentTimeMillis() / TICK_MS;
+            long notifiedVersion = ServiceRegistry.getInstance().getVersion();
+            while (true) {
+                try {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(TICK_MS));
+
+                    if (changed.getAndSet(false)) {
+                        notifiedVersion = notifyChanged(notifiedVersion);
+                    } else {
+                        // 没有挂起的监听的时候变更不会打标记，跟上注册表的版本号，下一次不用扫描这段时间的变更；
+                        // 先拿版本号再看有没有挂起的监听，之后挂起的监听的版本号不会比它小
+                        long version = ServiceRegistry.getInstance().getVersion();
+                        if (parkedWatchers.isEmpty()) {
+                            notifiedVersion = version;
+                        }
+                    }
+
+                    long currentTime = System.currentTimeMillis();
+                    while (currentTick < currentTime / TICK_MS) {
+                        currentTick++;
+                        for (Watcher watcher : wheel.get((int) (currentTick & (WHEEL_SIZE - 1)))) {
+                            if (watcher.deadline <= currentTime) {
+                                complete(watcher);
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一批转发给其他register-server节点的操作
+ * @author huanglk
+ *
+ */
+public class ReplicationBatch {
+
+	private List<ReplicationOperation> operations = new ArrayList<ReplicationOperation>();
+
+	public ReplicationBatch() {
+		
+	}
+	
+	public ReplicationBatch(List<ReplicationOperation> operations) {
+		this.operations = operations;
+	}
+
+	public List<ReplicationOperation> getOperations() {
+		return operations;
+	}
+	public void setOperations(List<ReplicationOperation> operations) {
+		this.operations = operations;
+	}
+	
+}
@@ -0,0 +1,26 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量转发操作的响应
+ * @author huanglk
+ *
+ */
+public class ReplicationBatchResponse {
+
+	/**
+	 * 每个操作的结果：SUCCESS、FAILURE，顺序跟请求里的一致
+	 * 心跳失败说明对方节点上没有这个服务实例，需要把注册操作再转发一次
+	 */
+	private List<String> statuses = new ArrayList<String>();
+	
+	public List<String> getStatuses() {
+		return statuses;
+	}
+	public void setStatuses(List<String> statuses) {
+		this.statuses = statuses;
+	}
+	
+}
@@ -0,0 +1,89 @@
+package com.hlk.demo.register.server;
+
+/**
+ * 转发给其他register-server节点的一个操作：注册、心跳或者下线
+ * @author huanglk
+ *
+ */
+public class ReplicationOperation {
+
+	public static final byte REGISTER = 1;
+	public static final byte HEARTBEAT = 2;
+	public static final byte CANCEL = 3;
+
+	/**
+	 * 操作类型：REGISTER、HEARTBEAT、CANCEL
+	 */
+	private byte action;
+	/**
+	 * 注册操作的服务实例信息，心跳和下线的时候是null
+	 */
+	private RegisterRequest registerRequest;
+	/**
+	 * 服务名称
+	 */
+	private String serviceName;
+	/**
+	 * 服务实例id
+	 */
+	private String serviceInstanceId;
+
+	public static ReplicationOperation register(ServiceInstance serviceInstance) {
+		RegisterRequest registerRequest = new RegisterRequest();
+		registerRequest.setServiceName(serviceInstance.getServiceName());
+		registerRequest.setIp(serviceInstance.getIp());
+		registerRequest.setHostname(serviceInstance.getHostname());
+		registerRequest.setPort(serviceInstance.getPort());
+		registerRequest.setServiceInstanceId(serviceInstance.getServiceInstanceId());
+		registerRequest.setStatus(serviceInstance.getStatus());
+		registerRequest.setZone(serviceInstance.getZone());
+		registerRequest.setVersion(serviceInstance.getVersion());
+		registerRequest.setMetadata(serviceInstance.getMetadata());
+		return register(registerRequest);
+	}
+
+	public static ReplicationOperation register(RegisterRequest registerRequest) {
+		ReplicationOperation operation = new ReplicationOperation();
+		operation.action = REGISTER;
+		operation.registerRequest = registerRequest;
+		operation.serviceName = registerRequest.getServiceName();
+		operation.serviceInstanceId = registerRequest.getServiceInstanceId();
+		return operation;
+	}
+
+	public static ReplicationOperation heartbeat(String serviceName, String serviceInstanceId) {
+		return of(HEARTBEAT, serviceName, serviceInstanceId);
+	}
+
+	public static ReplicationOperation cancel(String serviceName, String serviceInstanceId) {
+		return of(CANCEL, serviceName, serviceInstanceId);
+	}
+
+	private static ReplicationOperation of(byte action, String serviceName, String serviceInstanceId) {
+		ReplicationOperation operation = new ReplicationOperation();
+		operation.action = action;
+		operation.serviceName = serviceName;
+		operation.serviceInstanceId = serviceInstanceId;
+		return operation;
+	}
+
+	public byte getAction() {
+		return action;
+	}
+	public RegisterRequest getRegisterRequest() {
+		return registerRequest;
+	}
+	public String getServiceName() {
+		return serviceName;
+	}
+	public String getServiceInstanceId() {
+		return serviceInstanceId;
+	}
+
+	@Override
+	public String toString() {
+		return "ReplicationOperation [action=" + action + ", serviceName=" + serviceName
+				+ ", serviceInstanceId=" + serviceInstanceId + "]";
+	}
+
+}
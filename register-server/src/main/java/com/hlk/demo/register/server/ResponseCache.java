@@ -0,0 +1,433 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 注册表的响应缓存
+ *
+ * 分成两级：
+ * 读写缓存（readWriteMap）：注册表变更之后就失效，下一次读的时候按照最新版本重新构建
+ * 只读缓存（readOnlyMap）：客户端拉取的时候优先读这里，完全不加锁，
+ * 后台线程定时把读写缓存同步过来，所以最多会有一个同步周期的延迟
+ *
+ * 这样几千个客户端每隔30秒来拉一次注册表，注册表只需要构建一次
+ *
+ * 读写缓存没有命中的时候，同一个key、同一个版本号同时只有一个线程在构建，
+ * 其他线程等着用它构建出来的结果；服务端重启或者客户端对账不一致的时候成千上万个客户端同时来拉全量注册表，
+ * 也只会遍历一次注册表
+ *
+ * 长连接上拉注册表的响应直接缓存编码好的字节，key跟对象的缓存key对应，同一个版本只编码一次，
+ * 所有连接共用同一份字节发出去
+ *
+ * @author huanglk
+ */
+public class ResponseCache {
+
+    /**
+     * 全量注册表的缓存key
+     */
+    public static final String FULL_SERVICE_REGISTRY_CACHE_KEY = "full_service_registry";
+    /**
+     * gzip压缩过的全量注册表的缓存key
+     */
+    public static final String COMPRESSED_FULL_SERVICE_REGISTRY_CACHE_KEY = "compressed_full_service_registry";
+    /**
+     * 增量注册表的缓存key
+     */
+    public static final String DELTA_SERVICE_REGISTRY_CACHE_KEY = "delta_service_registry";
+    /**
+     * 某个版本号之后的增量注册表的缓存key前缀，后面拼上版本号
+     */
+    public static final String DELTA_SINCE_SERVICE_REGISTRY_CACHE_KEY_PREFIX = "delta_since_service_registry:";
+    /**
+     * 订阅了部分服务的全量注册表的缓存key前缀，后面拼上服务名称
+     */
+    public static final String SUBSCRIBED_FULL_SERVICE_REGISTRY_CACHE_KEY_PREFIX = "subscribed_full_service_registry:";
+    /**
+     * 订阅了部分服务的增量注册表的缓存key前缀，后面拼上版本号和服务名称
+     */
+    public static final String SUBSCRIBED_DELTA_SERVICE_REGISTRY_CACHE_KEY_PREFIX = "subscribed_delta_service_registry:";
+    /**
+     * 编码好的全量注册表的缓存key
+     */
+    public static final String ENCODED_FULL_SERVICE_REGISTRY_CACHE_KEY = "encoded_full_service_registry";
+    /**
+     * 编码好的增量注册表的缓存key
+     */
+    public static final String ENCODED_DELTA_SERVICE_REGISTRY_CACHE_KEY = "encoded_delta_service_registry";
+    /**
+     * 带版本号、服务名称的注册表编码好之后的缓存key前缀，后面拼上对象的缓存key
+     */
+    public static final String ENCODED_CACHE_KEY_PREFIX = "encoded:";
+    /**
+     * 只读缓存和读写缓存的同步间隔
+     */
+    private static final Long CACHE_SYNC_INTERVAL = 30 * 1000L;
+    /**
+     * 带版本号、服务名称的缓存key最多缓存多少个
+     * 这类key是客户端传上来的参数拼出来的，注册表一直没有变更的时候不会失效，不限制的话可以一直加下去
+     */
+    private static final int MAX_PARAMETERIZED_ENTRIES = 4096;
+
+    /**
+     * 单例实例
+     */
+    private static ResponseCache instance = new ResponseCache();
+
+    /**
+     * 只读缓存
+     */
+    private Map<String, CacheEntry> readOnlyMap = new ConcurrentHashMap<>();
+    /**
+     * 读写缓存
+     */
+    private Map<String, CacheEntry> readWriteMap = new ConcurrentHashMap<>();
+    /**
+     * 读写缓存里带版本号、服务名称的那部分key，跟读写缓存一起失效，数量满了之后新的key就不缓存了，直接构建
+     * 大部分客户端都停留在最新的几个版本号上、订阅的也是那几组服务，失效之后最先被访问到的就是它们
+     */
+    private Map<String, CacheEntry> parameterizedMap = new ConcurrentHashMap<>();
+    /**
+     * 正在构建的数据，key是缓存key加上版本号
+     */
+    private Map<String, CompletableFuture<CacheEntry>> loadingMap = new ConcurrentHashMap<>();
+
+    private ResponseCache() {
+        CacheSyncDaemon daemon = new CacheSyncDaemon();
+        daemon.setDaemon(true);
+        daemon.setName("ResponseCacheSync");
+        daemon.start();
+    }
+
+    public static ResponseCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * 获取全量注册表
+     *
+     * @return
+     */
+    public Applications getApplications() {
+        return (Applications) get(FULL_SERVICE_REGISTRY_CACHE_KEY);
+    }
+
+    /**
+     * 获取gzip压缩过的全量注册表
+     * 每个版本只压缩一次，所有来拉的客户端共用同一份字节
+     *
+     * 客户端要拿它的版本号跟自己手上的比，只读缓存最多落后一个同步周期，比出来的结果不对，
+     * 所以只放在读写缓存里，拿到的总是注册表当前版本的
+     *
+     * @return
+     */
+    public CompressedApplications getCompressedApplications() {
+        return (CompressedApplications) getFromReadWriteMap(COMPRESSED_FULL_SERVICE_REGISTRY_CACHE_KEY).value;
+    }
+
+    /**
+     * 获取增量注册表
+     *
+     * @return
+     */
+    public DeltaRegistry getDeltaRegistry() {
+        return (DeltaRegistry) get(DELTA_SERVICE_REGISTRY_CACHE_KEY);
+    }
+
+    /**
+     * 获取某个版本号之后的增量注册表
+     *
+     * 大部分客户端都停留在最新的那几个版本号上，所以按照版本号缓存起来
+     * 这类数据只放在读写缓存里，注册表一变就整个失效，缓存的key的数量有上限
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号
+     * @return
+     */
+    public DeltaRegistry getDeltaRegistry(long sinceVersion) {
+        return (DeltaRegistry) getFromReadWriteMap(parameterizedMap,
+                DELTA_SINCE_SERVICE_REGISTRY_CACHE_KEY_PREFIX + sinceVersion, null).value;
+    }
+
+    /**
+     * 获取客户端订阅的这几个服务的全量注册表
+     * 订阅了同样几个服务的客户端共用一份缓存，只放在读写缓存里
+     *
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public Applications getApplications(Collection<String> serviceNames) {
+        if (serviceNames.isEmpty()) {
+            return getApplications();
+        }
+        final List<String> normalizedServiceNames = normalize(serviceNames);
+        return (Applications) getFromReadWriteMap(parameterizedMap,
+                SUBSCRIBED_FULL_SERVICE_REGISTRY_CACHE_KEY_PREFIX + join(normalizedServiceNames),
+                new Loader() {
+                    @Override
+                    public Object load(ServiceRegistry registry) {
+                        return registry.getApplications(normalizedServiceNames);
+                    }
+                }).value;
+    }
+
+    /**
+     * 获取某个版本号之后，客户端订阅的这几个服务的增量注册表
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public DeltaRegistry getDeltaRegistry(final long sinceVersion, Collection<String> serviceNames) {
+        if (serviceNames.isEmpty()) {
+            return getDeltaRegistry(sinceVersion);
+        }
+        final List<String> normalizedServiceNames = normalize(serviceNames);
+        return (DeltaRegistry) getFromReadWriteMap(parameterizedMap,
+                SUBSCRIBED_DELTA_SERVICE_REGISTRY_CACHE_KEY_PREFIX + sinceVersion + ":" + join(normalizedServiceNames),
+                new Loader() {
+                    @Override
+                    public Object load(ServiceRegistry registry) {
+                        return registry.getDeltaRegistry(sinceVersion, normalizedServiceNames);
+                    }
+                }).value;
+    }
+
+    /**
+     * 获取编码好的全量注册表，或者客户端订阅的这几个服务的全量注册表
+     *
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public byte[] getEncodedApplications(Collection<String> serviceNames) {
+        if (serviceNames.isEmpty()) {
+            return (byte[]) get(ENCODED_FULL_SERVICE_REGISTRY_CACHE_KEY);
+        }
+        final List<String> normalizedServiceNames = normalize(serviceNames);
+        return (byte[]) getFromReadWriteMap(parameterizedMap, ENCODED_CACHE_KEY_PREFIX
+                        + SUBSCRIBED_FULL_SERVICE_REGISTRY_CACHE_KEY_PREFIX + join(normalizedServiceNames),
+                new Loader() {
+                    @Override
+                    public Object load(ServiceRegistry registry) {
+                        return MessageCodec.encodeApplications(getApplications(normalizedServiceNames));
+                    }
+                }).value;
+    }
+
+    /**
+     * 获取编码好的增量注册表
+     *
+     * @return
+     */
+    public byte[] getEncodedDeltaRegistry() {
+        return (byte[]) get(ENCODED_DELTA_SERVICE_REGISTRY_CACHE_KEY);
+    }
+
+    /**
+     * 获取编码好的、某个版本号之后，客户端订阅的这几个服务的增量注册表
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public byte[] getEncodedDeltaRegistry(final long sinceVersion, Collection<String> serviceNames) {
+        final List<String> normalizedServiceNames = normalize(serviceNames);
+        String cacheKey = normalizedServiceNames.isEmpty()
+                ? DELTA_SINCE_SERVICE_REGISTRY_CACHE_KEY_PREFIX + sinceVersion
+                : SUBSCRIBED_DELTA_SERVICE_REGISTRY_CACHE_KEY_PREFIX + sinceVersion + ":" + join(normalizedServiceNames);
+        return (byte[]) getFromReadWriteMap(parameterizedMap, ENCODED_CACHE_KEY_PREFIX + cacheKey,
+                new Loader() {
+                    @Override
+                    public Object load(ServiceRegistry registry) {
+                        return MessageCodec.encodeDeltaRegistry(getDeltaRegistry(sinceVersion, normalizedServiceNames));
+                    }
+                }).value;
+    }
+
+    /**
+     * 从缓存中获取数据
+     * 先读只读缓存，没有的话再读读写缓存，然后放到只读缓存里去
+     *
+     * @param cacheKey
+     * @return
+     */
+    private Object get(String cacheKey) {
+        CacheEntry entry = readOnlyMap.get(cacheKey);
+        if (entry == null) {
+            entry = getFromReadWriteMap(cacheKey);
+            readOnlyMap.put(cacheKey, entry);
+        }
+        return entry.value;
+    }
+
+    /**
+     * 从读写缓存中获取数据，缓存的版本跟注册表的版本不一致的话就重新构建
+     *
+     * @param cacheKey
+     * @return
+     */
+    private CacheEntry getFromReadWriteMap(String cacheKey) {
+        return getFromReadWriteMap(readWriteMap, cacheKey, null);
+    }
+
+    /**
+     * 从读写缓存中获取数据，缓存的版本跟注册表的版本不一致的话就用loader重新构建
+     *
+     * @param cache    readWriteMap或者parameterizedMap
+     * @param cacheKey
+     * @param loader   为null的话按照cacheKey构建
+     * @return
+     */
+    private CacheEntry getFromReadWriteMap(Map<String, CacheEntry> cache, String cacheKey, Loader loader) {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        long version = registry.getVersion();
+
+        CacheEntry entry = cache.get(cacheKey);
+        if (entry != null && entry.version == version) {
+            return entry;
+        }
+
+        // 同一个版本已经有线程在构建了，等着用它的结果
+        String loadingKey = cacheKey + "@" + version;
+        CompletableFuture<CacheEntry> future = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> loading = loadingMap.putIfAbsent(loadingKey, future);
+        if (loading != null) {
+            RegistryMetrics.getInstance().cacheLoadCoalesced();
+            try {
+                return loading.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        try {
+            // 抢到构建权之前别的线程可能刚构建完
+            entry = cache.get(cacheKey);
+            if (entry == null || entry.version != version) {
+                entry = new CacheEntry(version, load(registry, cacheKey, loader));
+                // 几个线程同时放不同的key的时候可能多出几个，多出来的数量不会超过工作线程数
+                if (cache != parameterizedMap || cache.containsKey(cacheKey)
+                        || cache.size() < MAX_PARAMETERIZED_ENTRIES) {
+                    cache.put(cacheKey, entry);
+                }
+            }
+            future.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingMap.remove(loadingKey, future);
+        }
+    }
+
+    /**
+     * 构建数据
+     * 先拿版本号再构建，构建期间注册表又变了的话，下一次读的时候版本号对不上还会重新构建
+     */
+    private Object load(ServiceRegistry registry, String cacheKey, Loader loader) {
+        if (loader != null) {
+            return loader.load(registry);
+        } else if (FULL_SERVICE_REGISTRY_CACHE_KEY.equals(cacheKey)) {
+            return registry.getApplications();
+        } else if (COMPRESSED_FULL_SERVICE_REGISTRY_CACHE_KEY.equals(cacheKey)) {
+            // 直接压缩读写缓存里的全量注册表，不用再遍历一遍注册表
+            return new CompressedApplications(
+                    (Applications) getFromReadWriteMap(FULL_SERVICE_REGISTRY_CACHE_KEY).value);
+        } else if (DELTA_SERVICE_REGISTRY_CACHE_KEY.equals(cacheKey)) {
+            return registry.getDeltaRegistry();
+        } else if (ENCODED_FULL_SERVICE_REGISTRY_CACHE_KEY.equals(cacheKey)) {
+            return MessageCodec.encodeApplications(
+                    (Applications) getFromReadWriteMap(FULL_SERVICE_REGISTRY_CACHE_KEY).value);
+        } else if (ENCODED_DELTA_SERVICE_REGISTRY_CACHE_KEY.equals(cacheKey)) {
+            return MessageCodec.encodeDeltaRegistry(
+                    (DeltaRegistry) getFromReadWriteMap(DELTA_SERVICE_REGISTRY_CACHE_KEY).value);
+        } else {
+            long sinceVersion = Long.parseLong(cacheKey.substring(
+                    DELTA_SINCE_SERVICE_REGISTRY_CACHE_KEY_PREFIX.length()));
+            return registry.getDeltaRegistry(sinceVersion);
+        }
+    }
+
+    /**
+     * 注册表发生变更的时候，让读写缓存失效
+     */
+    public void invalidate() {
+        readWriteMap.clear();
+        parameterizedMap.clear();
+    }
+
+    /**
+     * 服务名称去重、排好序，订阅了同样几个服务的客户端就能命中同一个缓存key
+     */
+    private static List<String> normalize(Collection<String> serviceNames) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String serviceName : serviceNames) {
+            if (serviceName != null) {
+                sorted.add(serviceName);
+            }
+        }
+        return new ArrayList<>(sorted);
+    }
+
+    private static String join(List<String> serviceNames) {
+        StringBuilder builder = new StringBuilder();
+        for (String serviceName : serviceNames) {
+            builder.append(serviceName).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 缓存没有命中的时候构建数据
+     */
+    private interface Loader {
+
+        Object load(ServiceRegistry registry);
+    }
+
+    /**
+     * 缓存的数据，带上构建时候的注册表版本号
+     */
+    private static class CacheEntry {
+
+        final long version;
+        final Object value;
+
+        CacheEntry(long version, Object value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    /**
+     * 定时把读写缓存同步到只读缓存的后台线程
+     */
+    private class CacheSyncDaemon extends Thread {
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(CACHE_SYNC_INTERVAL);
+
+                    for (String cacheKey : readOnlyMap.keySet()) {
+                        CacheEntry readOnlyEntry = readOnlyMap.get(cacheKey);
+                        CacheEntry readWriteEntry = getFromReadWriteMap(cacheKey);
+                        if (readOnlyEntry != readWriteEntry) {
+                            readOnlyMap.put(cacheKey, readWriteEntry);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -1,20 +1,32 @@
 package com.hlk.demo.register.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * 自我保护机制
+ *
+ * 期望的心跳次数用AtomicLong来维护，注册、下线、摘除的时候直接CAS累加，不再对整个类加锁
+ * 期望的心跳次数的阈值不单独存储，读的时候根据期望的心跳次数现算，两个值永远是一致的
+ *
  * @author huanglk
  *
  */
 public class SelfProtectionPolicy {
 
-    private static SelfProtectionPolicy instance=new SelfProtectionPolicy();
     /**
-     * 期望的一个心跳的次数，如果你有10个服务实例，这个数值就是10 * 2 = 20
+     * 每个服务实例每分钟期望的心跳次数，30秒一次心跳，一分钟就是2次
      */
-    private long expectedHeartbeatRate = 0L;
+    private static final long HEARTBEATS_PER_INSTANCE = 2L;
     /**
-     * 期望的心跳次数的阈值，10 * 2 * 0.85 = 17，每分钟至少得有17次心跳，才不用进入自我保护机制
+     * 期望的心跳次数的阈值比例
+     */
+    private static final double EXPECTED_HEARTBEAT_THRESHOLD_RATIO = 0.85;
+
+    private static SelfProtectionPolicy instance=new SelfProtectionPolicy();
+    /**
+     * 期望的一个心跳的次数，如果你有10个服务实例，这个数值就是10 * 2 = 20
      */
-    private long expectedHeartbeatThreshold = 0L;
+    private AtomicLong expectedHeartbeatRate = new AtomicLong(0L);
     /**
      * 返回实例
      * @return
@@ -27,32 +39,71 @@ public class SelfProtectionPolicy {
      * @return
      */
     public Boolean isEnable() {
-        HeartbeatMessuredRate heartbeatMessuredRate = HeartbeatMessuredRate.getInstance();
-        long latestMinuteHeartbeatRate = heartbeatMessuredRate.get();
+        HeartbeatCounter heartbeatCounter = HeartbeatCounter.getInstance();
+        long latestMinuteHeartbeatRate = heartbeatCounter.get();
+        long expectedHeartbeatThreshold = getExpectedHeartbeatThreshold();
 
-        if (latestMinuteHeartbeatRate<this.expectedHeartbeatThreshold){
-            System.out.println("【自我保护机制开启】最近一分钟心跳次数=" + latestMinuteHeartbeatRate + ", 期望心跳次数=" + this.expectedHeartbeatThreshold);
+        EventLogger eventLogger = EventLogger.getInstance();
+        boolean enabled = latestMinuteHeartbeatRate < expectedHeartbeatThreshold;
+        RegistryMetrics.getInstance().selfProtectionChecked(enabled);
+        if (enabled){
+            if (eventLogger.isLoggable(EventType.SELF_PROTECTION, EventLogger.INFO)) {
+                eventLogger.log(EventType.SELF_PROTECTION, EventLogger.INFO, "【自我保护机制开启】最近一分钟心跳次数="
+                        + latestMinuteHeartbeatRate + ", 期望心跳次数=" + expectedHeartbeatThreshold);
+            }
             return true;
         }
-        System.out.println("【自我保护机制未开启】最近一分钟心跳次数=" + latestMinuteHeartbeatRate + ", 期望心跳次数=" + this.expectedHeartbeatThreshold);
+        if (eventLogger.isLoggable(EventType.SELF_PROTECTION, EventLogger.DEBUG)) {
+            eventLogger.log(EventType.SELF_PROTECTION, EventLogger.DEBUG, "【自我保护机制未开启】最近一分钟心跳次数="
+                    + latestMinuteHeartbeatRate + ", 期望心跳次数=" + expectedHeartbeatThreshold);
+        }
         return false;
 
     }
 
+    /**
+     * 注册了一个服务实例，期望的心跳次数增加
+     */
+    public void instanceRegistered() {
+        expectedHeartbeatRate.addAndGet(HEARTBEATS_PER_INSTANCE);
+    }
 
-        public long getExpectedHeartbeatRate() {
-        return expectedHeartbeatRate;
+    /**
+     * 下线或者摘除了一个服务实例，期望的心跳次数减少，最少减到0
+     */
+    public void instanceRemoved() {
+        while (true) {
+            long expectedValue = expectedHeartbeatRate.get();
+            long newValue = Math.max(0L, expectedValue - HEARTBEATS_PER_INSTANCE);
+            if (expectedHeartbeatRate.compareAndSet(expectedValue, newValue)) {
+                break;
+            }
+        }
     }
 
-    public void setExpectedHeartbeatRate(long expectedHeartbeatRate) {
-        this.expectedHeartbeatRate = expectedHeartbeatRate;
+    /**
+     * 根据注册表里实际的服务实例数量重新校准期望的心跳次数
+     * 漏掉的增减（比如重复注册、重复下线）会在这里被纠正过来
+     *
+     * @param serviceInstanceCount 注册表里的服务实例数量
+     */
+    public void recalibrate(long serviceInstanceCount) {
+        expectedHeartbeatRate.set(serviceInstanceCount * HEARTBEATS_PER_INSTANCE);
     }
 
-    public long getExpectedHeartbeatThreshold() {
-        return expectedHeartbeatThreshold;
+    public long getExpectedHeartbeatRate() {
+        return expectedHeartbeatRate.get();
     }
 
-    public void setExpectedHeartbeatThreshold(long expectedHeartbeatThreshold) {
-        this.expectedHeartbeatThreshold = expectedHeartbeatThreshold;
+    public void setExpectedHeartbeatRate(long expectedHeartbeatRate) {
+        this.expectedHeartbeatRate.set(expectedHeartbeatRate);
+    }
+
+    /**
+     * 期望的心跳次数的阈值，10 * 2 * 0.85 = 17，每分钟至少得有17次心跳，才不用进入自我保护机制
+     * @return
+     */
+    public long getExpectedHeartbeatThreshold() {
+        return (long) (expectedHeartbeatRate.get() * EXPECTED_HEARTBEAT_THRESHOLD_RATIO);
     }
 }
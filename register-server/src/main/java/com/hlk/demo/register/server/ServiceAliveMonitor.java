@@ -1,17 +1,29 @@
 package com.hlk.demo.register.server;
 
-import java.util.Map;
+import java.util.ArrayDeque;
 
 /**
  * 微服务存活状态监控组件
  *
+ * 不再每隔一段时间把所有服务实例扫一遍，而是每秒推进一次契约时间轮，
+ * 只处理时间轮里到期的那些契约，所以每次检查的开销跟过期的数量有关，跟注册表的大小无关
+ * （堆外存储没有时间轮，是隔几秒顺序扫一遍记录里的心跳时间，见OffHeapServiceInstanceStore）
+ *
  * @author huanglk
  */
 public class ServiceAliveMonitor {
     /**
-     * 检查服务实例是否存活的间隔
+     * 推进契约时间轮的间隔
+     */
+    private static final Long CHECK_ALIVE_INTERVAL = 1000L;
+    /**
+     * 每次最多摘除多少个服务实例，剩下的等到下一次再摘除
+     */
+    private static final int EVICTION_BATCH_SIZE = 1000;
+    /**
+     * 根据注册表里实际的服务实例数量校准自我保护机制的间隔
      */
-    private static final Long CHECK_ALIVE_INTERVAL = 60 * 1000L;
+    private static final Long SELF_PROTECTION_RECALIBRATE_INTERVAL = 15 * 60 * 1000L;
 
     /**
      * 负责监控微服务存活状态的后台线程
@@ -43,42 +55,39 @@ public class ServiceAliveMonitor {
      */
     private class Daemon extends Thread {
         private ServiceRegistry serviceRegistry = ServiceRegistry.getInstance();
+        /**
+         * 时间轮里到期了、还没来得及摘除的服务实例
+         */
+        private ArrayDeque<ServiceInstance> expiredQueue = new ArrayDeque<>();
+        /**
+         * 上一次校准自我保护机制的时间
+         */
+        private long latestRecalibrateTimestamp = System.currentTimeMillis();
 
         @Override
         public void run() {
-            Map<String, Map<String, ServiceInstance>> registryMap = null;
             while (true) {
                 try {
-                    // 可以判断一下是否要开启自我保护机制
-                    SelfProtectionPolicy protectionPolicy = SelfProtectionPolicy.getInstance();
-                    if (protectionPolicy.isEnable()){
-                        Thread.sleep(CHECK_ALIVE_INTERVAL);
-                        continue;
-                    }
+                    long startNanos = System.nanoTime();
+                    long currentTime = System.currentTimeMillis();
+                    serviceRegistry.collectExpired(currentTime, expiredQueue);
 
-                    registryMap = serviceRegistry.getRegistry();
-
-                    for (String serviceName : registryMap.keySet()) {
-                        Map<String, ServiceInstance> serviceInstanceMap =
-                                registryMap.get(serviceName);
+                    // 定时用注册表里实际的服务实例数量校准一下期望的心跳次数
+                    if (currentTime - latestRecalibrateTimestamp > SELF_PROTECTION_RECALIBRATE_INTERVAL) {
+                        SelfProtectionPolicy.getInstance().recalibrate(
+                                serviceRegistry.getServiceInstanceTotalCount());
+                        latestRecalibrateTimestamp = currentTime;
+                    }
 
-                        for (ServiceInstance serviceInstance : serviceInstanceMap.values()) {
-                            // 说明服务实例距离上一次发送心跳已经超过90秒了
-                            // 认为这个服务就死了
-                            // 从注册表中摘除这个服务实例
-                            if (!serviceInstance.isAlive()) {
-                                serviceRegistry.remove(serviceName, serviceInstance.getServiceInstanceId());
-                                // 更新自我保护机制的阈值
-                                synchronized(SelfProtectionPolicy.class) {
-                                    SelfProtectionPolicy selfProtectionPolicy = protectionPolicy;
-                                    selfProtectionPolicy.setExpectedHeartbeatRate(
-                                            selfProtectionPolicy.getExpectedHeartbeatRate() - 2);
-                                    selfProtectionPolicy.setExpectedHeartbeatThreshold(
-                                            (long)(selfProtectionPolicy.getExpectedHeartbeatRate() * 0.85));
-                                }
-                            }
+                    // 有到期的契约，才需要判断一下是否要开启自我保护机制
+                    // 开启了自我保护机制的话，到期的契约先留着，等关闭了再摘除
+                    if (!expiredQueue.isEmpty()) {
+                        SelfProtectionPolicy protectionPolicy = SelfProtectionPolicy.getInstance();
+                        if (!protectionPolicy.isEnable()) {
+                            evict();
                         }
                     }
+                    RegistryMetrics.getInstance().recordTask(RegistryMetrics.TASK_EVICTION, startNanos, false);
 
                     Thread.sleep(CHECK_ALIVE_INTERVAL);
                 } catch (Exception e) {
@@ -86,5 +95,32 @@ public class ServiceAliveMonitor {
                 }
             }
         }
+
+        /**
+         * 摘除一批到期的服务实例
+         */
+        private void evict() {
+            int evicted = 0;
+            for (int i = 0; i < EVICTION_BATCH_SIZE && !expiredQueue.isEmpty(); i++) {
+                ServiceInstance serviceInstance = expiredQueue.poll();
+                String serviceName = serviceInstance.getServiceName();
+                String serviceInstanceId = serviceInstance.getServiceInstanceId();
+
+                // 已经下线、被重新注册了，或者等待摘除的时候又发送了心跳，这个契约就作废了
+                if (!serviceRegistry.isExpired(serviceInstance)) {
+                    continue;
+                }
+
+                // 说明服务实例距离上一次发送心跳已经超过90秒了
+                // 认为这个服务就死了
+                // 从注册表中摘除这个服务实例
+                if (serviceRegistry.remove(serviceName, serviceInstanceId)) {
+                    // 更新自我保护机制的阈值
+                    SelfProtectionPolicy.getInstance().instanceRemoved();
+                    evicted++;
+                }
+            }
+            RegistryMetrics.getInstance().instancesEvicted(evicted);
+        }
     }
 }
@@ -1,28 +1,48 @@
 package com.hlk.demo.register.server;
 
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * 代表了一个服务实例
  * 里面包含了一个服务实例的所有信息
  * 比如说服务名称、ip地址、hostname、端口号、服务实例id
- * 还有就是契约信息（Lease）
+ * 还有就是契约信息（最近一次心跳的时间）
+ *
+ * 百万级的注册表里每个服务实例省下的每一个字节都会乘上一百万，所以字段尽量紧凑：
+ * 服务名称和主机名走字符串池，同样内容的只保留一份；规范的ipv4地址打包成一个int；
+ * 契约直接用一个long记录最近一次心跳的时间，不再单独创建一个契约对象；
+ * 机房、版本标签在同一个注册表里只有少数几种取值，也走字符串池，状态是一个byte，没有元数据的话不占map
  *
  * @author huanglk
  *
  */
-public class ServiceInstance {
+public class ServiceInstance implements ServiceInstanceView {
     /**
      * 判断一个服务实例不再存活的周期
      */
-    private static final long NOT_ALIVE_PERIOD =90*1000L;
+    static final long NOT_ALIVE_PERIOD =90*1000L;
+    /**
+     * 服务名称和主机名的字符串池，一台机器上往往跑着好几个服务实例，主机名也是重复的
+     */
+    private static final StringInterner INTERNED_STRINGS = new StringInterner(256 * 1024);
+
     /**
      * 服务名称
      */
     private String serviceName;
     /**
-     * ip地址
+     * 打包成int的ipv4地址
+     */
+    private int ipv4;
+    /**
+     * 不是规范ipv4地址的ip（比如ipv6、null），原样保存，是ipv4地址的话这里是null
      */
     private String ip;
+    /**
+     * ip地址是不是打包成了ipv4
+     */
+    private boolean packedIpv4;
     /**
      * 主机名
      */
@@ -36,18 +56,34 @@ public class ServiceInstance {
      */
     private String serviceInstanceId;
     /**
-     * 契约
+     * 状态，ServiceInstanceStatus里的常量
      */
-    private Lease lease;
-    public ServiceInstance() {
-        this.lease = new Lease();
-    }
+    private byte status = ServiceInstanceStatus.UP;
+    /**
+     * 所在的机房
+     */
+    private String zone;
+    /**
+     * 版本标签
+     */
+    private String version;
+    /**
+     * 自定义的元数据，没有的话是null
+     */
+    private Map<String, String> metadata;
+    /**
+     * 最近一次心跳的时间
+     */
+    private volatile long latestHeartbeatTime = System.currentTimeMillis();
 
     /**
-     * 服务续约
+     * 服务续约，你只要发送一次心跳，就相当于把register-client和register-server之间维护的一个契约
+     * 进行了续约，我还存活着，我们俩的契约可以维持着
      */
     public void renew() {
-        this.lease.renew();
+        this.latestHeartbeatTime = System.currentTimeMillis();
+        EventLogger.getInstance().log(EventType.RENEW, EventLogger.DEBUG,
+                serviceName, serviceInstanceId, latestHeartbeatTime, "进行续约，心跳时间：{}");
     }
 
     /**
@@ -55,79 +91,126 @@ public class ServiceInstance {
      * @return
      */
     public Boolean isAlive() {
-        return this.lease.isAlive();
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - latestHeartbeatTime > NOT_ALIVE_PERIOD) {
+            EventLogger.getInstance().log(EventType.ALIVE_CHECK, EventLogger.INFO,
+                    serviceName, serviceInstanceId, latestHeartbeatTime, "不再存活，最近一次心跳时间：{}");
+            return false;
+        }
+        EventLogger.getInstance().log(EventType.ALIVE_CHECK, EventLogger.DEBUG,
+                serviceName, serviceInstanceId, latestHeartbeatTime, "保持存活，最近一次心跳时间：{}");
+        return true;
     }
 
+    /**
+     * 契约的过期时间，超过这个时间还没有心跳就认为服务实例不再存活
+     * @return
+     */
+    public long getLeaseExpirationTime() {
+        return latestHeartbeatTime + NOT_ALIVE_PERIOD;
+    }
 
-    private class Lease{
-        /**
-         * 最近一次心跳的时间
-         */
-        private volatile Long latestHeartbeatTime = System.currentTimeMillis();
-
-        /**
-         * 续约，你只要发送一次心跳，就相当于把register-client和register-server之间维护的一个契约
-         * 进行了续约，我还存活着，我们俩的契约可以维持着
-         * @param latestHeartbeatTime
-         */
-        public void renew(){
-            this.latestHeartbeatTime =System.currentTimeMillis();
-            System.out.println("服务实例【" + serviceInstanceId + "】，进行续约：" + latestHeartbeatTime);
-        }
-        /**
-         * 判断当前服务实例的契约是否还存活
-         * @return
-         */
-        public Boolean isAlive(){
-            Long currentTime = System.currentTimeMillis();
-            if (currentTime >NOT_ALIVE_PERIOD){
-                System.out.println("服务实例【" + serviceInstanceId + "】，不再存活");
-                return false;
-            }
-            System.out.println("服务实例【" + serviceInstanceId + "】，保持存活");
-            return true;
-        }
+    @Override
+    public long getLatestHeartbeatTime() {
+        return latestHeartbeatTime;
     }
+    /**
+     * 从堆外存储还原服务实例的时候，带上记录里的心跳时间
+     */
+    void setLatestHeartbeatTime(long latestHeartbeatTime) {
+        this.latestHeartbeatTime = latestHeartbeatTime;
+    }
+    @Override
     public String getServiceName() {
         return serviceName;
     }
     public void setServiceName(String serviceName) {
-        this.serviceName = serviceName;
+        this.serviceName = INTERNED_STRINGS.intern(serviceName);
     }
+    @Override
     public String getIp() {
-        return ip;
+        return packedIpv4 ? MessageCodec.unpackIpv4(ipv4) : ip;
     }
     public void setIp(String ip) {
-        this.ip = ip;
+        Integer packed = MessageCodec.packIpv4(ip);
+        this.packedIpv4 = packed != null;
+        this.ipv4 = packedIpv4 ? packed : 0;
+        this.ip = packedIpv4 ? null : ip;
+    }
+    /**
+     * 已经打包好的ipv4地址，不用再解析一遍字符串
+     */
+    void setIpv4(int ipv4) {
+        this.packedIpv4 = true;
+        this.ipv4 = ipv4;
+        this.ip = null;
     }
+    @Override
+    public boolean isIpv4() {
+        return packedIpv4;
+    }
+    @Override
+    public int getIpv4() {
+        return ipv4;
+    }
+    @Override
     public String getHostname() {
         return hostname;
     }
     public void setHostname(String hostname) {
-        this.hostname = hostname;
+        this.hostname = INTERNED_STRINGS.intern(hostname);
     }
+    @Override
     public int getPort() {
         return port;
     }
     public void setPort(int port) {
         this.port = port;
     }
+    @Override
     public String getServiceInstanceId() {
         return serviceInstanceId;
     }
     public void setServiceInstanceId(String serviceInstanceId) {
         this.serviceInstanceId = serviceInstanceId;
     }
-    public Lease getLease() {
-        return lease;
+    @Override
+    public byte getStatus() {
+        return status;
+    }
+    public void setStatus(byte status) {
+        this.status = status;
     }
-    public void setLease(Lease lease) {
-        this.lease = lease;
+    @Override
+    public String getZone() {
+        return zone;
+    }
+    public void setZone(String zone) {
+        this.zone = INTERNED_STRINGS.intern(zone);
+    }
+    @Override
+    public String getVersion() {
+        return version;
+    }
+    public void setVersion(String version) {
+        this.version = INTERNED_STRINGS.intern(version);
+    }
+    @Override
+    public Map<String, String> getMetadata() {
+        return metadata == null ? Collections.<String, String>emptyMap() : metadata;
+    }
+    /**
+     * 传进来的map之后不能再修改
+     */
+    public void setMetadata(Map<String, String> metadata) {
+        this.metadata = metadata == null || metadata.isEmpty() ? null : Collections.unmodifiableMap(metadata);
     }
 
     @Override
     public String toString() {
-        return "ServiceInstance [serviceName=" + serviceName + ", ip=" + ip + ", hostname=" + hostname + ", port="
-                + port + ", serviceInstanceId=" + serviceInstanceId + ", lease=" + lease + "]";
+        return "ServiceInstance [serviceName=" + serviceName + ", ip=" + getIp() + ", hostname=" + hostname + ", port="
+                + port + ", serviceInstanceId=" + serviceInstanceId + ", status=" + ServiceInstanceStatus.toString(status)
+                + ", zone=" + zone + ", version=" + version + ", metadata=" + getMetadata()
+                + ", latestHeartbeatTime=" + latestHeartbeatTime + "]";
     }
 }
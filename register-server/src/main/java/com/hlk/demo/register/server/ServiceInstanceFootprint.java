@@ -0,0 +1,130 @@
+package com.hlk.demo.register.server;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * 服务实例内存占用的对比报告
+ *
+ * 分别创建一批老的布局（四个独立的字符串 + 契约对象 + 装箱的Long）和现在的紧凑布局的服务实例，
+ * 用gc之后的堆内存增量除以服务实例数量，得到平均每个服务实例占用的字节数
+ * 字符串都是按照从网络上解码出来的方式新建的，跟register-server里实际收到注册请求的情况一样
+ *
+ * 运行方式：java -Xmx2g com.hlk.demo.register.server.ServiceInstanceFootprint [服务实例数量] [服务数量] [每台机器的服务实例数量]
+ *
+ * @author huanglk
+ */
+public class ServiceInstanceFootprint {
+
+    public static void main(String[] args) throws Exception {
+        int instanceCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int serviceCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int instancesPerHost = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        // 屏蔽掉服务实例的打印输出
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        stdout.println("服务实例数量=" + instanceCount + ", 服务数量=" + serviceCount
+                + ", 每台机器的服务实例数量=" + instancesPerHost);
+
+        long before = usedHeap();
+        Object[] legacy = new Object[instanceCount];
+        for (int i = 0; i < instanceCount; i++) {
+            legacy[i] = newLegacyServiceInstance(i, serviceCount, instancesPerHost);
+        }
+        long legacyBytes = usedHeap() - before;
+        stdout.println("老的布局：" + legacyBytes / instanceCount + "字节/服务实例，共"
+                + legacyBytes / 1024 / 1024 + "MB");
+        legacy = null;
+
+        before = usedHeap();
+        Object[] compact = new Object[instanceCount];
+        for (int i = 0; i < instanceCount; i++) {
+            compact[i] = newServiceInstance(i, serviceCount, instancesPerHost);
+        }
+        long compactBytes = usedHeap() - before;
+        stdout.println("紧凑布局：" + compactBytes / instanceCount + "字节/服务实例，共"
+                + compactBytes / 1024 / 1024 + "MB");
+        stdout.println("节省了" + (legacyBytes - compactBytes) * 100 / legacyBytes + "%");
+
+        // 防止对象在测量之前被回收
+        if (compact.length != instanceCount || legacy != null) {
+            stdout.println(compact.length);
+        }
+    }
+
+    private static ServiceInstance newServiceInstance(int i, int serviceCount, int instancesPerHost) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName(i, serviceCount));
+        serviceInstance.setIp(ip(i / instancesPerHost));
+        serviceInstance.setHostname(hostname(i / instancesPerHost));
+        serviceInstance.setPort(8000 + i % instancesPerHost);
+        serviceInstance.setServiceInstanceId(serviceInstanceId(i, serviceCount));
+        return serviceInstance;
+    }
+
+    private static LegacyServiceInstance newLegacyServiceInstance(int i, int serviceCount, int instancesPerHost) {
+        LegacyServiceInstance serviceInstance = new LegacyServiceInstance();
+        serviceInstance.serviceName = serviceName(i, serviceCount);
+        serviceInstance.ip = ip(i / instancesPerHost);
+        serviceInstance.hostname = hostname(i / instancesPerHost);
+        serviceInstance.port = 8000 + i % instancesPerHost;
+        serviceInstance.serviceInstanceId = serviceInstanceId(i, serviceCount);
+        return serviceInstance;
+    }
+
+    private static String serviceName(int i, int serviceCount) {
+        return "SERVICE-" + i % serviceCount;
+    }
+
+    private static String serviceInstanceId(int i, int serviceCount) {
+        return "SERVICE-" + i % serviceCount + "-" + i;
+    }
+
+    private static String ip(int host) {
+        return "10." + (host >>> 16 & 0xFF) + "." + (host >>> 8 & 0xFF) + "." + (host & 0xFF);
+    }
+
+    private static String hostname(int host) {
+        return "host-" + host + ".example.com";
+    }
+
+    /**
+     * gc之后已经使用的堆内存
+     */
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, memoryMXBean.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    /**
+     * 老的服务实例布局，只用来对比内存占用
+     */
+    private static class LegacyServiceInstance {
+
+        String serviceName;
+        String ip;
+        String hostname;
+        int port;
+        String serviceInstanceId;
+        Lease lease = new Lease();
+
+        private class Lease {
+
+            volatile Long latestHeartbeatTime = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.hlk.demo.register.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务实例的二级索引
+ *
+ * 每个服务按照机房、版本标签、状态各建一个倒排索引：属性值 -> 服务实例id的集合，注册、下线的时候跟着增量维护；
+ * 按条件查询的时候从条件对应的几个集合里挑最小的一个，只核对这些候选的服务实例，不用把整个服务扫一遍
+ *
+ * 绝大多数服务实例都是UP的，UP的集合跟整个服务差不多大，对缩小范围没有帮助，所以状态只给不是UP的建索引；
+ * 没有机房、版本标签的服务实例（老的客户端注册的）不会进任何索引，不多占内存
+ *
+ * 写操作跟注册表的写操作一样按服务串行（持有服务的分段锁，或者在服务所在的分片线程上），读操作不加锁；
+ * 索引跟存储不是同一时刻更新的，查询拿到候选的服务实例之后要再核对一遍条件
+ *
+ * @author huanglk
+ */
+public class ServiceInstanceIndex {
+
+    /**
+     * 服务名称 -> 这个服务的索引，服务的数量是有限的，没有服务实例了也留着
+     */
+    private final Map<String, ServiceIndex> services = new ConcurrentHashMap<>();
+
+    /**
+     * 服务实例放进注册表之后更新索引，属性没变的话什么都不做
+     *
+     * @param serviceInstance 新的服务实例
+     * @param previous        被覆盖掉的同一个服务实例，没有的话是null
+     */
+    public void put(ServiceInstanceView serviceInstance, ServiceInstanceView previous) {
+        ServiceIndex serviceIndex = services.get(serviceInstance.getServiceName());
+        if (serviceIndex == null) {
+            // 服务还没有索引，说明之前的服务实例都不在索引里
+            if (!isIndexed(serviceInstance)) {
+                return;
+            }
+            serviceIndex = new ServiceIndex();
+            services.put(serviceInstance.getServiceName(), serviceIndex);
+        }
+        String serviceInstanceId = serviceInstance.getServiceInstanceId();
+        serviceIndex.zones.update(previous == null ? null : previous.getZone(),
+                serviceInstance.getZone(), serviceInstanceId);
+        serviceIndex.versions.update(previous == null ? null : previous.getVersion(),
+                serviceInstance.getVersion(), serviceInstanceId);
+        serviceIndex.statuses.update(previous == null ? null : statusKey(previous.getStatus()),
+                statusKey(serviceInstance.getStatus()), serviceInstanceId);
+    }
+
+    /**
+     * 服务实例从注册表删除之后更新索引
+     *
+     * @param serviceInstance 被删除的服务实例
+     */
+    public void remove(ServiceInstanceView serviceInstance) {
+        ServiceIndex serviceIndex = services.get(serviceInstance.getServiceName());
+        if (serviceIndex == null) {
+            return;
+        }
+        String serviceInstanceId = serviceInstance.getServiceInstanceId();
+        serviceIndex.zones.update(serviceInstance.getZone(), null, serviceInstanceId);
+        serviceIndex.versions.update(serviceInstance.getVersion(), null, serviceInstanceId);
+        serviceIndex.statuses.update(statusKey(serviceInstance.getStatus()), null, serviceInstanceId);
+    }
+
+    /**
+     * 找出查询的候选服务实例
+     *
+     * @param query 查询条件
+     * @return 满足各个能用上索引的条件的服务实例id里最小的那个集合，只读，不一定满足其他条件；
+     * 查询里没有能用上索引的条件的话返回null，要扫整个服务
+     */
+    public Set<String> candidates(ServiceInstanceQuery query) {
+        ServiceIndex serviceIndex = services.get(query.getServiceName());
+        Set<String> candidates = null;
+        if (query.getZone() != null) {
+            candidates = smaller(candidates, serviceIndex == null
+                    ? Collections.<String>emptySet() : serviceIndex.zones.get(query.getZone()));
+        }
+        if (query.getVersion() != null) {
+            candidates = smaller(candidates, serviceIndex == null
+                    ? Collections.<String>emptySet() : serviceIndex.versions.get(query.getVersion()));
+        }
+        Byte statusKey = statusKey(query.getStatus());
+        if (query.getStatus() != ServiceInstanceQuery.ANY_STATUS && statusKey != null) {
+            candidates = smaller(candidates, serviceIndex == null
+                    ? Collections.<String>emptySet() : serviceIndex.statuses.get(statusKey));
+        }
+        return candidates;
+    }
+
+    private static boolean isIndexed(ServiceInstanceView serviceInstance) {
+        return serviceInstance.getZone() != null || serviceInstance.getVersion() != null
+                || statusKey(serviceInstance.getStatus()) != null;
+    }
+
+    /**
+     * UP不建索引
+     */
+    private static Byte statusKey(byte status) {
+        return status == ServiceInstanceStatus.UP ? null : Byte.valueOf(status);
+    }
+
+    private static Set<String> smaller(Set<String> a, Set<String> b) {
+        return a == null || b.size() < a.size() ? b : a;
+    }
+
+    /**
+     * 一个服务的索引
+     */
+    private static class ServiceIndex {
+
+        final Postings zones = new Postings();
+        final Postings versions = new Postings();
+        final Postings statuses = new Postings();
+    }
+
+    /**
+     * 一个属性的倒排索引：属性值 -> 服务实例id的集合
+     */
+    private static class Postings {
+
+        private final Map<Object, Set<String>> postings = new ConcurrentHashMap<>();
+
+        /**
+         * 服务实例的属性值变了，从老的集合挪到新的集合，null表示不在索引里
+         */
+        void update(Object previous, Object current, String serviceInstanceId) {
+            if (Objects.equals(previous, current)) {
+                return;
+            }
+            if (previous != null) {
+                Set<String> serviceInstanceIds = postings.get(previous);
+                if (serviceInstanceIds != null) {
+                    serviceInstanceIds.remove(serviceInstanceId);
+                    // 写操作是按服务串行的，这里删掉的集合不会同时被加进新的id
+                    if (serviceInstanceIds.isEmpty()) {
+                        postings.remove(previous);
+                    }
+                }
+            }
+            if (current != null) {
+                Set<String> serviceInstanceIds = postings.get(current);
+                if (serviceInstanceIds == null) {
+                    serviceInstanceIds = ConcurrentHashMap.newKeySet();
+                    postings.put(current, serviceInstanceIds);
+                }
+                serviceInstanceIds.add(serviceInstanceId);
+            }
+        }
+
+        Set<String> get(Object value) {
+            Set<String> serviceInstanceIds = postings.get(value);
+            return serviceInstanceIds == null
+                    ? Collections.<String>emptySet() : Collections.unmodifiableSet(serviceInstanceIds);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.hlk.demo.register.server;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+
+/**
+ * 二级索引和按条件查询的测试类
+ *
+ * 1、一串随机的注册、改属性重新注册、下线，每隔一段时间用随机的条件查询，结果要跟直接过滤所有服务实例一样
+ * 2、一个很大的服务里只有少数服务实例满足条件，比较一下走索引和扫整个服务的耗时
+ *
+ * 注册表用的存储引擎可以通过-Dregister.server.store指定，默认是堆内存储
+ *
+ * 运行方式：java com.hlk.demo.register.server.ServiceInstanceIndexTest [操作次数]
+ *
+ * @author huanglk
+ */
+public class ServiceInstanceIndexTest {
+
+    private static final String[] ZONES = {"zone-a", "zone-b", "zone-c", null};
+    private static final String[] VERSIONS = {"1.0", "2.0", "canary", null};
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        PrintStream stdout = TestSupport.silenceStdout();
+        for (int type = 0; type < EventType.COUNT; type++) {
+            EventLogger.getInstance().setLevel(type, EventLogger.WARN);
+        }
+
+        testAgainstFilter(operations);
+        testSelectiveQuery(stdout);
+
+        stdout.println("二级索引校验通过");
+    }
+
+    private static void testAgainstFilter(int operations) {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        Map<String, Map<String, ServiceInstance>> expected = new HashMap<>();
+        Random random = new Random(42L);
+        for (int i = 0; i < operations; i++) {
+            int service = random.nextInt(10);
+            int instance = random.nextInt(500);
+            String serviceName = "INDEXED-SERVICE-" + service;
+            Map<String, ServiceInstance> serviceInstances = expected.get(serviceName);
+            if (serviceInstances == null) {
+                serviceInstances = new HashMap<>();
+                expected.put(serviceName, serviceInstances);
+            }
+
+            // 注册和重新注册都会改属性，比如发布的时候先OUT_OF_SERVICE，换了版本再UP
+            if (random.nextInt(10) < 7) {
+                ServiceInstance serviceInstance = newServiceInstance(serviceName, instance, random);
+                registry.register(serviceInstance);
+                serviceInstances.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+            } else {
+                String serviceInstanceId = serviceName + "-" + instance;
+                registry.remove(serviceName, serviceInstanceId);
+                serviceInstances.remove(serviceInstanceId);
+            }
+
+            if (i % 500 == 0) {
+                ServiceInstanceQuery query = newQuery(serviceName, random);
+                Set<String> matched = new HashSet<>();
+                for (ServiceInstance serviceInstance : serviceInstances.values()) {
+                    if (query.matches(serviceInstance)) {
+                        matched.add(serviceInstance.getServiceInstanceId());
+                    }
+                }
+                check(matched.equals(ids(registry.query(query))), "查询结果：" + query);
+            }
+        }
+
+        // 最后每个服务的每种条件组合都查一遍
+        for (String serviceName : expected.keySet()) {
+            for (String zone : ZONES) {
+                for (String version : VERSIONS) {
+                    for (byte status = ServiceInstanceQuery.ANY_STATUS; status < ServiceInstanceStatus.COUNT; status++) {
+                        ServiceInstanceQuery query = new ServiceInstanceQuery();
+                        query.setServiceName(serviceName);
+                        query.setZone(zone);
+                        query.setVersion(version);
+                        query.setStatus(status);
+                        Set<String> matched = new HashSet<>();
+                        for (ServiceInstance serviceInstance : expected.get(serviceName).values()) {
+                            if (query.matches(serviceInstance)) {
+                                matched.add(serviceInstance.getServiceInstanceId());
+                            }
+                        }
+                        check(matched.equals(ids(registry.query(query))), "查询结果：" + query);
+                    }
+                }
+            }
+        }
+
+        ServiceInstanceQuery query = new ServiceInstanceQuery();
+        query.setServiceName("NO-SUCH-SERVICE");
+        query.setZone("zone-a");
+        check(registry.query(query).getServiceInstances().isEmpty(), "不存在的服务");
+    }
+
+    private static void testSelectiveQuery(PrintStream stdout) {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        int instanceCount = 50000;
+        for (int i = 0; i < instanceCount; i++) {
+            ServiceInstance serviceInstance = new ServiceInstance();
+            serviceInstance.setServiceName("ORDER-SERVICE");
+            serviceInstance.setServiceInstanceId("ORDER-SERVICE-" + i);
+            serviceInstance.setHostname("order-" + i);
+            serviceInstance.setIp("10.1." + i / 256 % 256 + "." + i % 256);
+            serviceInstance.setPort(9000);
+            // 每个机房里都有两个版本，2.0只有一小部分，其中少数几个还被摘了流量
+            serviceInstance.setZone(ZONES[i % 3]);
+            serviceInstance.setVersion(i % 100 == 0 ? "2.0" : "1.0");
+            serviceInstance.setStatus(i % 700 == 0 ? ServiceInstanceStatus.OUT_OF_SERVICE : ServiceInstanceStatus.UP);
+            registry.register(serviceInstance);
+        }
+
+        // zone-a里UP的2.0版本的服务实例
+        ServiceInstanceQuery indexed = new ServiceInstanceQuery();
+        indexed.setServiceName("ORDER-SERVICE");
+        indexed.setZone("zone-a");
+        indexed.setVersion("2.0");
+        indexed.setStatus(ServiceInstanceStatus.UP);
+        indexed.setFields(ServiceInstanceQuery.FIELD_ADDRESS);
+        int expected = 0;
+        for (int i = 0; i < instanceCount; i++) {
+            if (i % 3 == 0 && i % 100 == 0 && i % 700 != 0) {
+                expected++;
+            }
+        }
+        check(registry.query(indexed).getServiceInstances().size() == expected, "zone-a里UP的2.0版本");
+
+        // 元数据没有索引，同样的条件换成元数据就只能扫整个服务，用来对比
+        ServiceInstanceQuery scanned = new ServiceInstanceQuery();
+        scanned.setServiceName("ORDER-SERVICE");
+        scanned.getMetadata().put("weight", "100");
+        scanned.setFields(ServiceInstanceQuery.FIELD_ADDRESS);
+
+        int iterations = 2000;
+        long blackhole = 0L;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole += registry.query(indexed).getServiceInstances().size();
+        }
+        long indexedNanos = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations / 10; i++) {
+            blackhole += registry.query(scanned).getServiceInstances().size();
+        }
+        long scannedNanos = (System.nanoTime() - start) / (iterations / 10);
+        // 没有服务实例带weight元数据
+        check(blackhole == (long) expected * iterations, "反复查询的结果");
+        stdout.println(instanceCount + "个服务实例里查" + expected + "个：走索引平均"
+                + TimeUnit.NANOSECONDS.toMicros(indexedNanos) + "微秒，扫整个服务平均"
+                + TimeUnit.NANOSECONDS.toMicros(scannedNanos) + "微秒");
+    }
+
+    private static ServiceInstance newServiceInstance(String serviceName, int instance, Random random) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setServiceInstanceId(serviceName + "-" + instance);
+        serviceInstance.setHostname("host-" + instance);
+        serviceInstance.setIp("10.0." + instance / 256 + "." + instance % 256);
+        serviceInstance.setPort(8000 + instance);
+        serviceInstance.setStatus((byte) random.nextInt(ServiceInstanceStatus.COUNT));
+        serviceInstance.setZone(ZONES[random.nextInt(ZONES.length)]);
+        serviceInstance.setVersion(VERSIONS[random.nextInt(VERSIONS.length)]);
+        if (random.nextBoolean()) {
+            Map<String, String> metadata = new HashMap<>();
+            metadata.put("weight", String.valueOf(random.nextInt(3) * 50));
+            serviceInstance.setMetadata(metadata);
+        }
+        return serviceInstance;
+    }
+
+    private static ServiceInstanceQuery newQuery(String serviceName, Random random) {
+        ServiceInstanceQuery query = new ServiceInstanceQuery();
+        query.setServiceName(serviceName);
+        query.setZone(ZONES[random.nextInt(ZONES.length)]);
+        query.setVersion(VERSIONS[random.nextInt(VERSIONS.length)]);
+        query.setStatus((byte) (random.nextInt(ServiceInstanceStatus.COUNT + 1) - 1));
+        if (random.nextInt(4) == 0) {
+            query.getMetadata().put("weight", String.valueOf(random.nextInt(3) * 50));
+        }
+        return query;
+    }
+
+    private static Set<String> ids(ServiceInstanceQueryResult result) {
+        Set<String> ids = new HashSet<>();
+        for (ServiceInstance serviceInstance : result.getServiceInstances()) {
+            check(ids.add(serviceInstance.getServiceInstanceId()), "重复的服务实例：" + serviceInstance);
+        }
+        return ids;
+    }
+}
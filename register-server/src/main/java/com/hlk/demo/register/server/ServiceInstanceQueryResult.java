@@ -0,0 +1,62 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按条件查询服务实例的结果
+ * 服务实例只有查询里指定的那几个字段会被编码，解码出来的服务实例其他字段都是空的
+ * @author huanglk
+ *
+ */
+public class ServiceInstanceQueryResult {
+
+	/**
+	 * 查询的时候注册表的版本号
+	 */
+	private long version;
+	/**
+	 * 服务名称
+	 */
+	private String serviceName;
+	/**
+	 * 服务实例带上了哪些字段，ServiceInstanceQuery里FIELD_开头的常量
+	 */
+	private int fields;
+	/**
+	 * 满足条件的服务实例
+	 */
+	private List<ServiceInstance> serviceInstances = new ArrayList<ServiceInstance>();
+
+	public long getVersion() {
+		return version;
+	}
+	public void setVersion(long version) {
+		this.version = version;
+	}
+	public String getServiceName() {
+		return serviceName;
+	}
+	public void setServiceName(String serviceName) {
+		this.serviceName = serviceName;
+	}
+	public int getFields() {
+		return fields;
+	}
+	public void setFields(int fields) {
+		this.fields = fields;
+	}
+	public List<ServiceInstance> getServiceInstances() {
+		return serviceInstances;
+	}
+	public void setServiceInstances(List<ServiceInstance> serviceInstances) {
+		this.serviceInstances = serviceInstances;
+	}
+
+	@Override
+	public String toString() {
+		return "ServiceInstanceQueryResult [version=" + version + ", serviceName=" + serviceName + ", fields=" + fields
+				+ ", serviceInstances=" + serviceInstances + "]";
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.hlk.demo.register.server;
+
+/**
+ * 服务实例的状态
+ *
+ * 注册的时候由服务实例自己带上来，状态变了就用新的状态再注册一次；
+ * 老的客户端注册的时候不带状态，当成UP
+ *
+ * @author huanglk
+ */
+public class ServiceInstanceStatus {
+
+    /**
+     * 正常提供服务
+     */
+    public static final byte UP = 0;
+    /**
+     * 服务实例自己检查出来有问题，暂时不能提供服务
+     */
+    public static final byte DOWN = 1;
+    /**
+     * 被人工摘掉了流量，比如发布、排查问题的时候，进程还在、还会发心跳
+     */
+    public static final byte OUT_OF_SERVICE = 2;
+
+    /**
+     * 状态的数量，编码的时候占2位
+     */
+    public static final int COUNT = 3;
+
+    private static final String[] NAMES = {"UP", "DOWN", "OUT_OF_SERVICE"};
+
+    private ServiceInstanceStatus() {
+
+    }
+
+    public static String toString(byte status) {
+        return status >= 0 && status < COUNT ? NAMES[status] : String.valueOf(status);
+    }
+
+    /**
+     * @param name 状态的名称，比如UP
+     * @return 不认识的名称返回-1
+     */
+    public static byte parse(String name) {
+        for (byte status = 0; status < COUNT; status++) {
+            if (NAMES[status].equals(name)) {
+                return status;
+            }
+        }
+        return -1;
+    }
+}
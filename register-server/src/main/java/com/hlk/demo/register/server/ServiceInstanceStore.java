@@ -0,0 +1,99 @@
+package com.hlk.demo.register.server;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 注册表里服务实例的存储引擎
+ *
+ * 注册表的版本号、变更队列、指纹、持久化这些都在ServiceRegistry里，存储引擎只管服务实例本身放在哪里：
+ * 默认是堆内的两层ConcurrentHashMap，服务实例非常多的时候可以换成堆外的存储，不给老年代gc添负担
+ *
+ * 同一个服务的写操作（put、remove）由ServiceRegistry的分段锁保证串行，读操作和续约可以跟写操作并发；
+ * 分片存储是例外，它的写操作由服务所在的分片线程串行执行，ServiceRegistry不加锁
+ *
+ * 通过-Dregister.server.store=offheap选择堆外存储，-Dregister.server.store=sharded选择分片存储，默认是堆内存储
+ *
+ * @author huanglk
+ */
+public interface ServiceInstanceStore {
+
+    /**
+     * 放入一个服务实例，已经有同一个服务实例id的话覆盖掉
+     *
+     * @param serviceInstance 服务实例
+     * @return 被覆盖掉的服务实例，没有的话返回null
+     */
+    ServiceInstance put(ServiceInstance serviceInstance);
+
+    /**
+     * 查找一个服务实例
+     *
+     * @return 服务实例，不存在的话返回null
+     */
+    ServiceInstance get(String serviceName, String serviceInstanceId);
+
+    /**
+     * 服务实例续约，只更新最近一次心跳的时间
+     *
+     * @return 服务实例不存在的话返回false
+     */
+    boolean renew(String serviceName, String serviceInstanceId);
+
+    /**
+     * 删除一个服务实例
+     *
+     * @return 被删除的服务实例，不存在的话返回null
+     */
+    ServiceInstance remove(String serviceName, String serviceInstanceId);
+
+    /**
+     * 所有的服务名称
+     */
+    Collection<String> getServiceNames();
+
+    /**
+     * 一个服务的所有服务实例，返回的是拷贝出来的map，不会跟着注册表一起变化
+     *
+     * @param serviceName 服务名称
+     * @return 没有这个服务的话返回null
+     */
+    Map<String, ServiceInstance> getServiceInstances(String serviceName);
+
+    /**
+     * 一个服务的服务实例数量
+     */
+    int getServiceInstanceCount(String serviceName);
+
+    /**
+     * 遍历所有的服务实例，交给visitor的视图只在visit()里面有效，不能保存下来
+     *
+     * @param visitor
+     */
+    void forEach(ServiceInstanceVisitor visitor);
+
+    /**
+     * 找出契约已经到期的服务实例，只会被ServiceAliveMonitor的后台线程调用
+     *
+     * @param now     当前时间
+     * @param expired 到期的服务实例会放到这里面去
+     */
+    void collectExpired(long now, Collection<ServiceInstance> expired);
+
+    /**
+     * 摘除之前再确认一下这个到期的服务实例是不是真的要摘除：
+     * 已经下线了、被重新注册了、或者又发送了心跳的话，就不用摘除了
+     *
+     * @param serviceInstance collectExpired()找出来的服务实例
+     * @return 还是要摘除的话返回true
+     */
+    boolean isExpired(ServiceInstance serviceInstance);
+
+    /**
+     * 遍历服务实例的回调
+     */
+    interface ServiceInstanceVisitor {
+
+        void visit(ServiceInstanceView serviceInstance);
+    }
+}
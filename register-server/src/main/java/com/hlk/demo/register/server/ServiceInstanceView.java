@@ -0,0 +1,63 @@
+package com.hlk.demo.register.server;
+
+import java.util.Map;
+
+/**
+ * 服务实例的只读视图
+ *
+ * 编解码、指纹这些只需要读服务实例字段的地方都面向这个接口，不关心服务实例在内存里是怎么存的：
+ * 可以是一个ServiceInstance对象，也可以是一个指向紧凑存储的游标（享元），
+ * 遍历的时候移动游标就行，不用为每个服务实例都创建一个对象
+ *
+ * @author huanglk
+ */
+public interface ServiceInstanceView {
+
+    String getServiceName();
+
+    String getServiceInstanceId();
+
+    /**
+     * ip地址，ipv4地址每次都会重新拼出一个字符串，热点路径上先看isIpv4()
+     */
+    String getIp();
+
+    /**
+     * ip地址是不是打包成int的ipv4地址
+     */
+    boolean isIpv4();
+
+    /**
+     * 打包成int的ipv4地址，isIpv4()是true的时候才有意义
+     */
+    int getIpv4();
+
+    String getHostname();
+
+    int getPort();
+
+    /**
+     * 最近一次心跳的时间
+     */
+    long getLatestHeartbeatTime();
+
+    /**
+     * 状态，ServiceInstanceStatus里的常量
+     */
+    byte getStatus();
+
+    /**
+     * 所在的机房（可用区），没有的话是null
+     */
+    String getZone();
+
+    /**
+     * 版本标签，比如2.1.0、canary，没有的话是null
+     */
+    String getVersion();
+
+    /**
+     * 自定义的元数据，没有的话是空的map，不能修改
+     */
+    Map<String, String> getMetadata();
+}
@@ -1,39 +1,88 @@
 package com.hlk.demo.register.server;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 注册表
  *
+ * 服务实例放在存储引擎（ServiceInstanceStore）里，默认是堆内的ConcurrentHashMap，读操作不加锁；
+ * 也可以通过-Dregister.server.store=offheap换成堆外存储
+ * 写操作（注册、下线）按照服务名称做分段锁，不同服务之间的写操作互不竞争
+ *
+ * 通过-Dregister.server.store=sharded换成分片存储的话，写操作不加锁，
+ * 而是交给服务所在的分片线程执行，见ShardedServiceInstanceStore
+ *
+ * 写操作的同时维护按机房、版本标签、状态的二级索引（ServiceInstanceIndex），按条件查询服务实例的时候用
+ *
  * @author huanglk
  */
 public class ServiceRegistry {
     public static final Long RECENTLY_CHANGED_ITEM_CHECK_INTERVAL = 3000L;
     public static final Long RECENTLY_CHANGED_ITEM_EXPIRED = 3 * 60 * 1000L;
+    /**
+     * 最近变更队列最多保留多少条变更
+     */
+    public static final int RECENTLY_CHANGED_QUEUE_CAPACITY = 64 * 1024;
+    /**
+     * 最近变更队列最多占用多少内存
+     */
+    public static final long RECENTLY_CHANGED_QUEUE_MAX_BYTES = 32 * 1024 * 1024L;
+    /**
+     * 分段锁的数量，必须是2的幂
+     */
+    private static final int LOCK_STRIPES = 64;
+    /**
+     * 堆外存储一开始分配多少个服务实例的内存，可以通过-Dregister.server.store.capacity指定
+     */
+    private static final int DEFAULT_OFF_HEAP_CAPACITY = 64 * 1024;
 
     /**
      * 注册表是一个单例
      */
     private static ServiceRegistry instance = new ServiceRegistry();
     /**
-     * 核心的内存数据结构：注册表
-     * <p>
-     * Map：key是服务名称，value是这个服务的所有的服务实例
-     * Map<String, ServiceInstance>：key是服务实例id，value是服务实例的信息
+     * 核心的数据结构：注册表里的服务实例
+     */
+    private final ServiceInstanceStore store = createStore();
+    /**
+     * 选了分片存储的话就是store，写操作交给分片线程执行；不然是null，写操作走分段锁
      */
-    private Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+    private final ShardedServiceInstanceStore shardedStore =
+            store instanceof ShardedServiceInstanceStore ? (ShardedServiceInstanceStore) store : null;
     /**
-     * 最近变更服务实例的队列
+     * 服务实例的二级索引，跟存储在同一个地方（分段锁里或者分片线程上）更新
      */
-    private LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue =
-            new LinkedList<>();
+    private final ServiceInstanceIndex index = new ServiceInstanceIndex();
+    /**
+     * 最近变更服务实例的队列，队列里的版本号也就是注册表的版本号
+     */
+    private RecentlyChangedQueue recentlyChangedQueue = new RecentlyChangedQueue(
+            RECENTLY_CHANGED_QUEUE_CAPACITY, RECENTLY_CHANGED_QUEUE_MAX_BYTES);
+    /**
+     * 注册表中服务实例的总数
+     */
+    private AtomicLong serviceInstanceTotalCount = new AtomicLong(0L);
+    /**
+     * 按照服务名称分段的写锁
+     * 同一个服务的注册和下线需要串行，保证注册表和变更队列的顺序一致
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
 
     /**
      * 构造函数
      */
     private ServiceRegistry() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
         // 启动后台线程监控最近变更的队列
         RecentlyChangedQueueMonitor recentlyChangedQueueMonitor =
                 new RecentlyChangedQueueMonitor();
@@ -45,33 +94,111 @@ public class ServiceRegistry {
         return instance;
     }
 
+    /**
+     * 根据系统属性选择存储引擎
+     */
+    private static ServiceInstanceStore createStore() {
+        if ("sharded".equals(System.getProperty("register.server.store"))) {
+            // 每一批命令执行完之后才让响应缓存失效、通知挂起的监听
+            return new ShardedServiceInstanceStore(
+                    Integer.getInteger("register.server.store.shards", Runtime.getRuntime().availableProcessors()),
+                    Integer.getInteger("register.server.store.batch", ShardedServiceInstanceStore.DEFAULT_BATCH_SIZE),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            registryChanged();
+                        }
+                    });
+        }
+        if ("offheap".equals(System.getProperty("register.server.store"))) {
+            return new OffHeapServiceInstanceStore(
+                    Integer.getInteger("register.server.store.record.bytes",
+                            OffHeapServiceInstanceStore.DEFAULT_RECORD_BYTES),
+                    Integer.getInteger("register.server.store.capacity", DEFAULT_OFF_HEAP_CAPACITY));
+        }
+        return new HeapServiceInstanceStore();
+    }
+
     /**
      * 服务注册
      *
      * @param serviceInstance 服务实例
+     * @return 是否是一个新的服务实例，重复注册的话返回false
      */
-    public synchronized void register(ServiceInstance serviceInstance) {
-        //将服务实例放入注册表
-        Map<String, ServiceInstance> serviceInstanceMap =
-                registry.get(serviceInstance.getServiceName());
+    public boolean register(final ServiceInstance serviceInstance) {
+        String serviceName = serviceInstance.getServiceName();
+        if (shardedStore != null) {
+            // 分片线程独占这个服务，不用加锁；发布了快照之后再写变更队列，
+            // 响应缓存失效、通知监听由分片线程每一批做一次
+            return (Boolean) shardedStore.execute(serviceName, new ShardedServiceInstanceStore.Command() {
+                private ServiceInstance previous;
+
+                @Override
+                protected Object execute() {
+                    previous = putServiceInstance(serviceInstance);
+                    return previous == null;
+                }
 
-        if (serviceInstanceMap == null) {
-            serviceInstanceMap = new HashMap<>();
-            registry.put(serviceInstance.getServiceName(), serviceInstanceMap);
+                @Override
+                protected void afterPublish() {
+                    registered(serviceInstance, previous);
+                }
+            });
         }
 
-        serviceInstanceMap.put(serviceInstance.getServiceInstanceId(),
-                serviceInstance);
+        ServiceInstance previous;
+        synchronized (lockFor(serviceName)) {
+            previous = putServiceInstance(serviceInstance);
+            registered(serviceInstance, previous);
+        }
+        // 注册表变了，响应缓存要失效掉，再通知挂起的监听
+        registryChanged();
+        return previous == null;
+    }
+
+    /**
+     * 服务实例放入注册表，调用的时候要持有服务的分段锁，或者在服务所在的分片线程上
+     *
+     * @return 被覆盖掉的服务实例
+     */
+    private ServiceInstance putServiceInstance(ServiceInstance serviceInstance) {
+        //将服务实例放入注册表，契约从这时候开始算，过期了就会被摘除
+        ServiceInstance previous = store.put(serviceInstance);
+        if (previous == null) {
+            serviceInstanceTotalCount.incrementAndGet();
+        }
+        index.put(serviceInstance, previous);
+        return previous;
+    }
+
+    /**
+     * 服务实例放入注册表之后，写最近变更队列和变更日志
+     */
+    private void registered(ServiceInstance serviceInstance, ServiceInstance previous) {
+        // 重复注册的话，指纹里要先减掉老的服务实例
+        long fingerprintDelta = RegistryFingerprint.hash(serviceInstance)
+                - (previous == null ? 0L : RegistryFingerprint.hash(previous));
 
         //将服务实例放入最近的队列中
-        RecentlyChangedServiceInstance recentlyChangedItem =
-                new RecentlyChangedServiceInstance(serviceInstance,
-                        System.currentTimeMillis(),
-                        ServiceInstanceOperation.REGISTER);
-        recentlyChangedQueue.offer(recentlyChangedItem);
+        long changedTimestamp = System.currentTimeMillis();
+        long version = recentlyChangedQueue.offer(serviceInstance,
+                changedTimestamp,
+                ServiceInstanceOperation.REGISTER,
+                fingerprintDelta);
+        // 记一条变更日志，重启的时候用来恢复注册表
+        RegistryPersistence.getInstance().logRegister(serviceInstance, version, changedTimestamp);
+
+        // 只记字段，不在这里把服务实例拼成字符串，放进日志的环形队列就返回
+        EventLogger.getInstance().log(EventType.REGISTER, EventLogger.INFO, serviceInstance.getServiceName(),
+                serviceInstance.getServiceInstanceId(), version, "完成注册，注册表版本号：{}");
+    }
 
-        System.out.println("服务实例【" + serviceInstance + "】，完成注册......");
-        System.out.println("注册表：" + registry);
+    /**
+     * 注册表变了，响应缓存要失效掉，再通知挂起的监听
+     */
+    private static void registryChanged() {
+        ResponseCache.getInstance().invalidate();
+        RegistryWatchManager.getInstance().registryChanged();
     }
 
     /**
@@ -79,21 +206,70 @@ public class ServiceRegistry {
      *
      * @param serviceName       服务名称
      * @param serviceInstanceId 服务实例id
-     * @return 服务实例
+     * @return 服务实例，不存在的话返回null
      */
-    public synchronized ServiceInstance getServiceInstance(String serviceName,
-                                                           String serviceInstanceId) {
-        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
-        return serviceInstanceMap.get(serviceInstanceId);
+    public ServiceInstance getServiceInstance(String serviceName,
+                                              String serviceInstanceId) {
+        return store.get(serviceName, serviceInstanceId);
     }
 
     /**
-     * 获取整个注册表
+     * 服务实例续约
      *
-     * @return
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例id
+     * @return 服务实例不存在的话返回false
      */
-    public synchronized Map<String, Map<String, ServiceInstance>> getRegistry() {
-        return registry;
+    public boolean renew(String serviceName, String serviceInstanceId) {
+        return store.renew(serviceName, serviceInstanceId);
+    }
+
+    /**
+     * 批量续约
+     *
+     * @param heartbeatRequests 每个服务实例的心跳
+     * @return 每个服务实例是否续约成功，顺序跟请求一致
+     */
+    public boolean[] renew(List<HeartbeatRequest> heartbeatRequests) {
+        boolean[] renewed = new boolean[heartbeatRequests.size()];
+        int i = 0;
+        for (HeartbeatRequest heartbeatRequest : heartbeatRequests) {
+            String serviceName = heartbeatRequest.getServiceName();
+            String serviceInstanceId = heartbeatRequest.getServiceInstanceId();
+            renewed[i++] = serviceName != null && serviceInstanceId != null
+                    && store.renew(serviceName, serviceInstanceId);
+        }
+        return renewed;
+    }
+
+    /**
+     * 遍历注册表里所有的服务实例，用来做快照
+     * 交给visitor的视图只在visit()里面有效
+     *
+     * @param visitor
+     */
+    public void forEach(ServiceInstanceStore.ServiceInstanceVisitor visitor) {
+        store.forEach(visitor);
+    }
+
+    /**
+     * 找出契约已经到期的服务实例，只会被ServiceAliveMonitor的后台线程调用
+     *
+     * @param now     当前时间
+     * @param expired 到期的服务实例会放到这里面去
+     */
+    public void collectExpired(long now, Collection<ServiceInstance> expired) {
+        store.collectExpired(now, expired);
+    }
+
+    /**
+     * 摘除之前再确认一下到期的服务实例是不是真的要摘除
+     *
+     * @param serviceInstance collectExpired()找出来的服务实例
+     * @return 已经下线、被重新注册了、或者又发送了心跳的话返回false
+     */
+    public boolean isExpired(ServiceInstance serviceInstance) {
+        return store.isExpired(serviceInstance);
     }
 
 
@@ -102,55 +278,371 @@ public class ServiceRegistry {
      *
      * @return
      */
-    public synchronized LinkedList<RecentlyChangedServiceInstance> getRecentlyChangedQueue() {
-        return recentlyChangedQueue;
+    public LinkedList<RecentlyChangedServiceInstance> getRecentlyChangedQueue() {
+        return recentlyChangedQueue.all().items;
     }
 
     /**
      * 获取最近有变化的注册表
      * @return
      */
-    public synchronized DeltaRegistry getDeltaRegistry() {
-        Long totalCount = 0L;
-        for(Map<String, ServiceInstance> serviceInstanceMap : registry.values()) {
-            totalCount += serviceInstanceMap.size();
+    public DeltaRegistry getDeltaRegistry() {
+        long totalCount = serviceInstanceTotalCount.get();
+        RecentlyChangedQueue.Changes changes = recentlyChangedQueue.all();
+
+        DeltaRegistry deltaRegistry = new DeltaRegistry(changes.items, totalCount);
+        deltaRegistry.setVersion(changes.version);
+        deltaRegistry.setFingerprint(changes.fingerprint);
+        return deltaRegistry;
+    }
+
+    /**
+     * 获取某个版本号之后有变化的注册表
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号
+     * @return 如果这个版本号之后的变更已经被摘除了一部分，返回的增量注册表会标记为断层，
+     * 客户端需要重新拉取全量注册表
+     */
+    public DeltaRegistry getDeltaRegistry(long sinceVersion) {
+        // 先拿总数再拿变更，客户端合并完变更之后的数量只会比这个总数更新
+        long totalCount = serviceInstanceTotalCount.get();
+        RecentlyChangedQueue.Changes changes = recentlyChangedQueue.since(sinceVersion);
+        if (changes == null) {
+            return gap(totalCount);
+        }
+
+        // 变更、版本号、指纹是在同一把锁里拿到的，客户端合并完这些变更之后的指纹应该正好是这个指纹
+        DeltaRegistry deltaRegistry = new DeltaRegistry(changes.items, totalCount);
+        deltaRegistry.setVersion(changes.version);
+        deltaRegistry.setFingerprint(changes.fingerprint);
+        deltaRegistry.setGap(false);
+        return deltaRegistry;
+    }
+
+    /**
+     * 获取某个版本号之后，客户端订阅的这几个服务的增量注册表
+     * 返回的服务实例总数也只算这几个服务的，客户端拿来跟本地缓存的数量对账
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号
+     * @param serviceNames 客户端订阅的服务名称，不能有重复的，为空的话就是所有服务
+     * @return
+     */
+    public DeltaRegistry getDeltaRegistry(long sinceVersion, Collection<String> serviceNames) {
+        if (serviceNames.isEmpty()) {
+            return getDeltaRegistry(sinceVersion);
+        }
+        long totalCount = getServiceInstanceCount(serviceNames);
+        RecentlyChangedQueue.Changes changes = recentlyChangedQueue.since(sinceVersion, serviceNames);
+        if (changes == null) {
+            return gap(totalCount);
         }
 
-        DeltaRegistry deltaRegistry = new DeltaRegistry(
-                recentlyChangedQueue, totalCount);
+        // 这几个服务在sinceVersion之后的变更都在里面了，
+        // 中间其他服务的变更跟客户端无关，客户端可以直接跳到最新的版本号
+        DeltaRegistry deltaRegistry = new DeltaRegistry(changes.items, totalCount);
+        deltaRegistry.setVersion(changes.version);
+        deltaRegistry.setFingerprint(changes.fingerprint);
+        deltaRegistry.setGap(false);
+        return deltaRegistry;
+    }
 
+    /**
+     * 客户端的版本号之后的变更已经被摘除了一部分，返回一个断层标记，客户端要重新拉全量注册表
+     */
+    private DeltaRegistry gap(long totalCount) {
+        DeltaRegistry deltaRegistry = new DeltaRegistry(
+                new LinkedList<RecentlyChangedServiceInstance>(), totalCount);
+        deltaRegistry.setVersion(recentlyChangedQueue.getLatestVersion());
+        deltaRegistry.setGap(true);
         return deltaRegistry;
     }
 
+    /**
+     * 某个版本号之后，这几个服务有没有变更
+     *
+     * @param sinceVersion 客户端已经拿到的注册表版本号
+     * @param serviceNames 服务名称，为空的话就是所有服务
+     * @return 有变更，或者版本号之后的变更已经被摘除了一部分，都返回true
+     */
+    public boolean hasChangedSince(long sinceVersion, Collection<String> serviceNames) {
+        if (serviceNames.isEmpty()) {
+            return recentlyChangedQueue.getLatestVersion() != sinceVersion;
+        }
+        return recentlyChangedQueue.hasChangedSince(sinceVersion, serviceNames);
+    }
+
+    /**
+     * 某个版本号之后有变更的服务
+     *
+     * @param sinceVersion 已经处理过的版本号
+     * @return 服务名称到这个服务最新一条变更的版本号，版本号之后的变更已经被摘除了一部分的话返回null
+     */
+    public Map<String, Long> getChangedServicesSince(long sinceVersion) {
+        return recentlyChangedQueue.changedServicesSince(sinceVersion);
+    }
+
+    /**
+     * 获取全量注册表的一份快照
+     * 快照里的每个服务的实例map都是拷贝出来的，不会跟着注册表一起变化
+     *
+     * @return
+     */
+    public Applications getApplications() {
+        // 先拿版本号再遍历，快照里的数据只会比这个版本号更新，客户端再从这个版本号开始拉增量是安全的
+        long snapshotVersion = recentlyChangedQueue.getLatestVersion();
+        Collection<String> serviceNames = store.getServiceNames();
+        Map<String, Map<String, ServiceInstance>> snapshot =
+                new HashMap<>(serviceNames.size() * 4 / 3 + 1);
+        for (String serviceName : serviceNames) {
+            Map<String, ServiceInstance> serviceInstanceMap = store.getServiceInstances(serviceName);
+            if (serviceInstanceMap != null) {
+                snapshot.put(serviceName, Collections.unmodifiableMap(serviceInstanceMap));
+            }
+        }
+        Applications applications = new Applications(Collections.unmodifiableMap(snapshot));
+        applications.setVersion(snapshotVersion);
+        return applications;
+    }
+
+    /**
+     * 获取客户端订阅的这几个服务的全量注册表的一份快照
+     *
+     * @param serviceNames 客户端订阅的服务名称，为空的话就是所有服务
+     * @return
+     */
+    public Applications getApplications(Collection<String> serviceNames) {
+        if (serviceNames.isEmpty()) {
+            return getApplications();
+        }
+        long snapshotVersion = recentlyChangedQueue.getLatestVersion();
+        Map<String, Map<String, ServiceInstance>> snapshot =
+                new HashMap<>(serviceNames.size() * 4 / 3 + 1);
+        for (String serviceName : serviceNames) {
+            Map<String, ServiceInstance> serviceInstanceMap = store.getServiceInstances(serviceName);
+            if (serviceInstanceMap != null) {
+                snapshot.put(serviceName, Collections.unmodifiableMap(serviceInstanceMap));
+            }
+        }
+        Applications applications = new Applications(Collections.unmodifiableMap(snapshot));
+        applications.setVersion(snapshotVersion);
+        return applications;
+    }
+
+    /**
+     * 按条件查询一个服务的服务实例
+     * 条件里有机房、版本标签或者不是UP的状态的话，先用二级索引找出候选的服务实例，不然扫整个服务
+     *
+     * @param query 查询条件
+     * @return 满足条件的服务实例，编码的时候才按照查询里的fields只写需要的字段
+     */
+    public ServiceInstanceQueryResult query(ServiceInstanceQuery query) {
+        String serviceName = query.getServiceName();
+        if (serviceName == null) {
+            throw new IllegalArgumentException("查询服务实例必须指定服务名称");
+        }
+        // 先拿版本号再查，查出来的数据只会比这个版本号更新
+        long version = recentlyChangedQueue.getLatestVersion();
+        List<ServiceInstance> matched = new ArrayList<>();
+        Set<String> candidates = index.candidates(query);
+        if (candidates == null) {
+            Map<String, ServiceInstance> serviceInstanceMap = store.getServiceInstances(serviceName);
+            if (serviceInstanceMap != null) {
+                for (ServiceInstance serviceInstance : serviceInstanceMap.values()) {
+                    if (query.matches(serviceInstance)) {
+                        matched.add(serviceInstance);
+                    }
+                }
+            }
+        } else {
+            for (String serviceInstanceId : candidates) {
+                // 索引跟存储不是同一时刻更新的，拿到服务实例之后再核对一遍条件
+                ServiceInstance serviceInstance = store.get(serviceName, serviceInstanceId);
+                if (serviceInstance != null && query.matches(serviceInstance)) {
+                    matched.add(serviceInstance);
+                }
+            }
+        }
+
+        ServiceInstanceQueryResult result = new ServiceInstanceQueryResult();
+        result.setVersion(version);
+        result.setServiceName(serviceName);
+        result.setFields(query.getFields());
+        result.setServiceInstances(matched);
+        return result;
+    }
+
+    /**
+     * 获取这几个服务的指纹，客户端的指纹对不上的时候，用来找出是哪几个服务不一致
+     *
+     * @param serviceNames 服务名称，为空的话就是所有服务
+     * @return
+     */
+    public ServiceFingerprints getServiceFingerprints(Collection<String> serviceNames) {
+        return recentlyChangedQueue.getServiceFingerprints(serviceNames);
+    }
+
+    /**
+     * 获取注册表当前的版本号
+     *
+     * @return
+     */
+    public long getVersion() {
+        return recentlyChangedQueue.getLatestVersion();
+    }
+
+    /**
+     * 获取注册表中服务实例的总数
+     *
+     * @return
+     */
+    public long getServiceInstanceTotalCount() {
+        return serviceInstanceTotalCount.get();
+    }
+
+
+    /**
+     * 获取这几个服务的服务实例数量
+     *
+     * @param serviceNames 服务名称
+     * @return
+     */
+    public long getServiceInstanceCount(Collection<String> serviceNames) {
+        long count = 0L;
+        for (String serviceName : serviceNames) {
+            count += store.getServiceInstanceCount(serviceName);
+        }
+        return count;
+    }
 
     /**
      * 从注册表删除一个服务实例
      *
      * @param serviceName
      * @param serviceInstanceId
+     * @return 服务实例不存在的话返回false
      */
-    public synchronized void remove(String serviceName, String serviceInstanceId) {
-        System.out.println("服务实例【" + serviceInstanceId + "】，从注册表中进行摘除");
-        //获取服务实例
-        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
-        ServiceInstance serviceInstance = serviceInstanceMap.get(serviceInstanceId);
-        //将服务实例变更信息放入队列中
-        RecentlyChangedServiceInstance recentlyChangedItem =
-                new RecentlyChangedServiceInstance(serviceInstance,
-                        System.currentTimeMillis(),
-                        ServiceInstanceOperation.REGISTER);
-        recentlyChangedQueue.offer(recentlyChangedItem);
+    public boolean remove(final String serviceName, final String serviceInstanceId) {
+        if (shardedStore != null) {
+            return (Boolean) shardedStore.execute(serviceName, new ShardedServiceInstanceStore.Command() {
+                private ServiceInstance removed;
+
+                @Override
+                protected Object execute() {
+                    removed = removeServiceInstance(serviceName, serviceInstanceId);
+                    return removed != null;
+                }
 
+                @Override
+                protected void afterPublish() {
+                    if (removed != null) {
+                        removed(removed);
+                    }
+                }
+            });
+        }
+
+        synchronized (lockFor(serviceName)) {
+            ServiceInstance serviceInstance = removeServiceInstance(serviceName, serviceInstanceId);
+            if (serviceInstance == null) {
+                return false;
+            }
+            removed(serviceInstance);
+        }
+        registryChanged();
+        return true;
+    }
+
+    /**
+     * 从注册表删除服务实例，调用的时候要持有服务的分段锁，或者在服务所在的分片线程上
+     *
+     * @return 被删除的服务实例，不存在的话返回null
+     */
+    private ServiceInstance removeServiceInstance(String serviceName, String serviceInstanceId) {
         //从服务注册表删除服务实例
-        serviceInstanceMap.remove(serviceInstanceId);
+        ServiceInstance serviceInstance = store.remove(serviceName, serviceInstanceId);
+        if (serviceInstance != null) {
+            serviceInstanceTotalCount.decrementAndGet();
+            index.remove(serviceInstance);
+        }
+        return serviceInstance;
+    }
+
+    /**
+     * 服务实例从注册表删除之后，写最近变更队列和变更日志
+     */
+    private void removed(ServiceInstance serviceInstance) {
+        String serviceName = serviceInstance.getServiceName();
+        String serviceInstanceId = serviceInstance.getServiceInstanceId();
+
+        //将服务实例变更信息放入队列中
+        long changedTimestamp = System.currentTimeMillis();
+        long version = recentlyChangedQueue.offer(serviceInstance,
+                changedTimestamp,
+                ServiceInstanceOperation.REMOVE,
+                -RegistryFingerprint.hash(serviceInstance));
+        RegistryPersistence.getInstance().logRemove(serviceName, serviceInstanceId, version, changedTimestamp);
 
+        EventLogger.getInstance().log(EventType.REMOVE, EventLogger.INFO, serviceName,
+                serviceInstanceId, version, "从注册表中摘除，注册表版本号：{}");
+    }
 
+    /**
+     * 用从快照和日志恢复出来的数据填充注册表
+     * 只在启动的时候、网络服务器开始接收请求之前调用
+     *
+     * 恢复出来的服务实例的契约都是从现在开始算的，相当于每个服务实例刚刚发过一次心跳
+     *
+     * @param restored 恢复出来的注册表
+     * @param version  恢复出来的注册表版本号
+     * @return 恢复的服务实例数量
+     */
+    public long restore(Map<String, Map<String, ServiceInstance>> restored, long version) {
+        long count = 0L;
+        Map<String, Long> fingerprints = new HashMap<>();
+        for (final Map.Entry<String, Map<String, ServiceInstance>> entry : restored.entrySet()) {
+            if (shardedStore != null) {
+                // 一个服务一条命令，不用每个服务实例都等一次分片线程
+                shardedStore.execute(entry.getKey(), new ShardedServiceInstanceStore.Command() {
+                    @Override
+                    protected Object execute() {
+                        for (ServiceInstance serviceInstance : entry.getValue().values()) {
+                            store.put(serviceInstance);
+                            index.put(serviceInstance, null);
+                        }
+                        return null;
+                    }
+                });
+            } else {
+                for (ServiceInstance serviceInstance : entry.getValue().values()) {
+                    store.put(serviceInstance);
+                    index.put(serviceInstance, null);
+                }
+            }
+            count += entry.getValue().size();
+            fingerprints.put(entry.getKey(), RegistryFingerprint.fingerprint(entry.getValue()));
+        }
+        serviceInstanceTotalCount.set(count);
+        recentlyChangedQueue.restoreVersion(version, fingerprints);
+        ResponseCache.getInstance().invalidate();
+        return count;
+    }
+
+    /**
+     * 获取服务名称对应的分段锁
+     *
+     * @param serviceName 服务名称
+     * @return
+     */
+    private Object lockFor(String serviceName) {
+        int h = serviceName.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (LOCK_STRIPES - 1)];
     }
 
     /**
      * 最近变化的服务实例
      */
-    class RecentlyChangedServiceInstance {
+    static class RecentlyChangedServiceInstance {
         /**
          * 服务实例
          */
@@ -163,13 +655,23 @@ public class ServiceRegistry {
          * 变更操作
          */
         String serviceInstanceOperation;
+        /**
+         * 变更之后注册表的版本号
+         */
+        long version;
+        /**
+         * 同一个服务上一条变更的版本号，没有的话是0，由最近变更队列维护
+         */
+        long previousServiceVersion;
 
         public RecentlyChangedServiceInstance(ServiceInstance serviceInstance,
                                               long changedTimestamp,
-                                              String serviceInstanceOperation) {
+                                              String serviceInstanceOperation,
+                                              long version) {
             this.serviceInstance = serviceInstance;
             this.changedTimestamp = changedTimestamp;
             this.serviceInstanceOperation = serviceInstanceOperation;
+            this.version = version;
         }
     }
 
@@ -196,18 +698,10 @@ public class ServiceRegistry {
         public void run() {
             while (true) {
                 try {
-                    synchronized (instance) {
-                        RecentlyChangedServiceInstance recentlyChangedItem = null;
-                        Long currentTimestamp = System.currentTimeMillis();
-                        while ((recentlyChangedItem = recentlyChangedQueue.peek()) != null) {
-                            //判读如果一个服务实例变更信息已经再队列里存在超过3分钟了
-                            //就从队列中移除
-                            if (currentTimestamp - recentlyChangedItem.changedTimestamp
-                                    > RECENTLY_CHANGED_ITEM_EXPIRED) {
-                                recentlyChangedQueue.pop();
-                            }
-                        }
-                    }
+                    //判读如果一个服务实例变更信息已经再队列里存在超过3分钟了
+                    //就从队列中移除，队头没有过期的话，后面的也都没有过期
+                    recentlyChangedQueue.trimExpired(
+                            System.currentTimeMillis() - RECENTLY_CHANGED_ITEM_EXPIRED);
                     Thread.sleep(RECENTLY_CHANGED_ITEM_CHECK_INTERVAL);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
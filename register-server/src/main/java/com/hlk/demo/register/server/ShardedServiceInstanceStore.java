@@ -0,0 +1,392 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 按服务分片、每个分片一个写线程的服务实例存储
+ *
+ * 服务按照服务名称的hash分到N个分片上（默认是cpu核数），每个分片由一个线程独占：
+ * 注册、下线这些写操作封装成命令丢进分片的邮箱，分片线程一批一批地取出来执行，
+ * 同一个服务的写操作天然是串行的，ServiceRegistry不用再加分段锁，分片的数据也只在一个线程的缓存里来回
+ *
+ * 每个服务的最新数据放在一个只有分片线程写的ConcurrentHashMap里，查询、续约直接读它；
+ * 要整个服务的服务实例的时候（构建全量注册表）读的是不可变的快照：分片线程每执行完一批，
+ * 把这一批改过的服务的快照标记为过期，下一次有人读的时候再拷贝一份新的，之后的读者共用这一份，
+ * 这样写操作不用每次都拷贝整个服务，没人读的服务也不会白拷贝
+ *
+ * 提交命令的线程要等到包含它的那一批发布了才返回，所以自己写的马上能读到；
+ * 响应缓存失效、通知挂起的监听也是每一批做一次，注册风暴的时候比每个注册都做一次省很多
+ *
+ * 命令分成两步：execute()改分片的数据，afterPublish()在快照发布之后执行，用来写最近变更队列；
+ * 这样注册表的版本号变了的时候，对应的数据一定已经能读到了，按版本号构建的全量注册表不会缺数据
+ *
+ * 续约只是更新服务实例自己的心跳时间，直接在调用线程上做，不进邮箱
+ *
+ * 通过-Dregister.server.store=sharded选择，可以再指定：
+ * -Dregister.server.store.shards=cpu核数   分片数量
+ * -Dregister.server.store.batch=256       分片线程一批最多执行的命令数量
+ *
+ * @author huanglk
+ */
+public class ShardedServiceInstanceStore implements ServiceInstanceStore {
+
+    /**
+     * 一批默认最多执行的命令数量
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final Shard[] shards;
+    private final int batchSize;
+    /**
+     * 一批命令改了注册表之后，分片线程调用一次
+     */
+    private final Runnable batchListener;
+    private final LeaseTimingWheel leaseTimingWheel = LeaseTimingWheel.getInstance();
+
+    /**
+     * @param shardCount    分片数量
+     * @param batchSize     一批最多执行的命令数量
+     * @param batchListener 一批命令改了注册表之后调用，可以为null
+     */
+    public ShardedServiceInstanceStore(int shardCount, int batchSize, Runnable batchListener) {
+        this.shards = new Shard[Math.max(1, shardCount)];
+        this.batchSize = Math.max(1, batchSize);
+        this.batchListener = batchListener;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+            shards[i].setDaemon(true);
+            shards[i].setName("RegistryShard-" + i);
+            shards[i].start();
+        }
+    }
+
+    /**
+     * 在服务所在的分片线程上执行一个命令，等到这一批发布了再返回
+     * 命令里只能操作这个服务，不能再等其他分片，不然分片之间会互相等死
+     *
+     * @param serviceName 服务名称
+     * @param command     命令
+     * @return 命令的返回值
+     */
+    public Object execute(String serviceName, Command command) {
+        Shard shard = shardFor(serviceName);
+        if (Thread.currentThread() == shard) {
+            Object result = command.execute();
+            command.afterPublish();
+            return result;
+        }
+        shard.mailbox.offer(command);
+        if (shard.waiting) {
+            LockSupport.unpark(shard);
+        }
+        try {
+            return command.future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public ServiceInstance put(final ServiceInstance serviceInstance) {
+        String serviceName = serviceInstance.getServiceName();
+        Shard shard = shardFor(serviceName);
+        if (Thread.currentThread() != shard) {
+            return (ServiceInstance) execute(serviceName, new Command() {
+                @Override
+                protected Object execute() {
+                    return put(serviceInstance);
+                }
+            });
+        }
+        ServiceEntry entry = shard.services.get(serviceName);
+        if (entry == null) {
+            entry = new ServiceEntry();
+            shard.services.put(serviceName, entry);
+        }
+        ServiceInstance previous = entry.serviceInstances.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+        shard.dirty.add(entry);
+        leaseTimingWheel.schedule(serviceInstance);
+        return previous;
+    }
+
+    @Override
+    public ServiceInstance get(String serviceName, String serviceInstanceId) {
+        ServiceEntry entry = shardFor(serviceName).services.get(serviceName);
+        return entry == null ? null : entry.serviceInstances.get(serviceInstanceId);
+    }
+
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId) {
+        ServiceInstance serviceInstance = get(serviceName, serviceInstanceId);
+        if (serviceInstance == null) {
+            return false;
+        }
+        serviceInstance.renew();
+        return true;
+    }
+
+    @Override
+    public ServiceInstance remove(final String serviceName, final String serviceInstanceId) {
+        Shard shard = shardFor(serviceName);
+        if (Thread.currentThread() != shard) {
+            return (ServiceInstance) execute(serviceName, new Command() {
+                @Override
+                protected Object execute() {
+                    return remove(serviceName, serviceInstanceId);
+                }
+            });
+        }
+        ServiceEntry entry = shard.services.get(serviceName);
+        if (entry == null) {
+            return null;
+        }
+        ServiceInstance removed = entry.serviceInstances.remove(serviceInstanceId);
+        if (removed != null) {
+            shard.dirty.add(entry);
+        }
+        return removed;
+    }
+
+    @Override
+    public Collection<String> getServiceNames() {
+        List<String> serviceNames = new ArrayList<>();
+        for (Shard shard : shards) {
+            serviceNames.addAll(shard.services.keySet());
+        }
+        return serviceNames;
+    }
+
+    /**
+     * 返回的是不可变的快照，服务没改过的话所有读者共用同一份
+     */
+    @Override
+    public Map<String, ServiceInstance> getServiceInstances(String serviceName) {
+        ServiceEntry entry = shardFor(serviceName).services.get(serviceName);
+        return entry == null ? null : entry.snapshot();
+    }
+
+    @Override
+    public int getServiceInstanceCount(String serviceName) {
+        ServiceEntry entry = shardFor(serviceName).services.get(serviceName);
+        return entry == null ? 0 : entry.serviceInstances.size();
+    }
+
+    @Override
+    public void forEach(ServiceInstanceVisitor visitor) {
+        for (Shard shard : shards) {
+            for (ServiceEntry entry : shard.services.values()) {
+                for (ServiceInstance serviceInstance : entry.serviceInstances.values()) {
+                    visitor.visit(serviceInstance);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void collectExpired(long now, Collection<ServiceInstance> expired) {
+        leaseTimingWheel.advance(now, expired);
+    }
+
+    @Override
+    public boolean isExpired(ServiceInstance serviceInstance) {
+        // 已经下线或者被重新注册了，时间轮里的这个契约就作废了
+        if (get(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId()) != serviceInstance) {
+            return false;
+        }
+        // 等待摘除的时候又发送了心跳，重新挂到时间轮上去
+        if (serviceInstance.isAlive()) {
+            leaseTimingWheel.schedule(serviceInstance);
+            return false;
+        }
+        return true;
+    }
+
+    private Shard shardFor(String serviceName) {
+        int h = serviceName.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * 交给分片线程执行的命令
+     */
+    public abstract static class Command {
+
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private Object result;
+        private Throwable failure;
+
+        /**
+         * 在分片线程上执行
+         *
+         * @return 返回给提交命令的线程的结果
+         */
+        protected abstract Object execute();
+
+        /**
+         * 这一批的快照发布之后在分片线程上执行，按照命令的顺序
+         * 在分片线程上提交的命令是直接执行的，execute()之后马上调用
+         */
+        protected void afterPublish() {
+        }
+    }
+
+    /**
+     * 一个服务的数据
+     */
+    private static class ServiceEntry {
+
+        /**
+         * 最新的服务实例，只有分片线程写
+         */
+        final Map<String, ServiceInstance> serviceInstances = new ConcurrentHashMap<>();
+        /**
+         * 服务被改过几批，分片线程每发布一批加一
+         */
+        volatile long modCount = 0L;
+        /**
+         * 最近一次拷贝出来的快照
+         */
+        volatile Snapshot snapshot;
+
+        /**
+         * 快照过期了就重新拷贝一份
+         * 先读modCount再拷贝，拷贝的时候分片线程又改了的话，拷出来的数据只会更新，
+         * 而且下一批发布之后modCount对不上，会再拷贝一次
+         */
+        Map<String, ServiceInstance> snapshot() {
+            long currentModCount = modCount;
+            Snapshot current = snapshot;
+            if (current != null && current.modCount == currentModCount) {
+                return current.serviceInstances;
+            }
+            Map<String, ServiceInstance> copied = Collections.unmodifiableMap(new HashMap<>(serviceInstances));
+            snapshot = new Snapshot(currentModCount, copied);
+            return copied;
+        }
+    }
+
+    private static class Snapshot {
+
+        final long modCount;
+        final Map<String, ServiceInstance> serviceInstances;
+
+        Snapshot(long modCount, Map<String, ServiceInstance> serviceInstances) {
+            this.modCount = modCount;
+            this.serviceInstances = serviceInstances;
+        }
+    }
+
+    /**
+     * 一个分片，也就是独占这个分片的写线程
+     */
+    private class Shard extends Thread {
+
+        /**
+         * 邮箱，多个线程往里放命令，只有分片线程自己取
+         */
+        private final ConcurrentLinkedQueue<Command> mailbox = new ConcurrentLinkedQueue<>();
+        /**
+         * 分片线程正在等新的命令，放命令的线程要叫醒它
+         */
+        private volatile boolean waiting = false;
+        /**
+         * 分片上的服务，只有分片线程写
+         */
+        private final Map<String, ServiceEntry> services = new ConcurrentHashMap<>();
+        /**
+         * 这一批改过的服务，只有分片线程自己用
+         */
+        private final Set<ServiceEntry> dirty = new HashSet<>();
+
+        private final List<Command> batch = new ArrayList<>();
+
+        @Override
+        public void run() {
+            while (true) {
+                Command command = mailbox.poll();
+                if (command == null) {
+                    // 先标记再检查一次，放命令的线程要么看到标记来叫醒，要么命令在这次检查里被取到
+                    waiting = true;
+                    command = mailbox.poll();
+                    if (command == null) {
+                        LockSupport.park(this);
+                        waiting = false;
+                        continue;
+                    }
+                    waiting = false;
+                }
+
+                do {
+                    try {
+                        command.result = command.execute();
+                    } catch (Throwable e) {
+                        command.failure = e;
+                    }
+                    batch.add(command);
+                } while (batch.size() < batchSize && (command = mailbox.poll()) != null);
+
+                boolean changed = publish();
+                for (Command executed : batch) {
+                    if (executed.failure == null) {
+                        try {
+                            executed.afterPublish();
+                        } catch (Throwable e) {
+                            executed.failure = e;
+                        }
+                    }
+                    if (executed.failure != null) {
+                        executed.future.completeExceptionally(executed.failure);
+                    } else {
+                        executed.future.complete(executed.result);
+                    }
+                }
+                batch.clear();
+
+                if (changed && batchListener != null) {
+                    try {
+                        batchListener.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        /**
+         * 发布这一批：改过的服务的快照都过期了
+         *
+         * @return 这一批有没有改过数据
+         */
+        private boolean publish() {
+            if (dirty.isEmpty()) {
+                return false;
+            }
+            for (ServiceEntry entry : dirty) {
+                // 只有分片线程写，不用原子加
+                entry.modCount = entry.modCount + 1;
+            }
+            dirty.clear();
+            return true;
+        }
+    }
+}
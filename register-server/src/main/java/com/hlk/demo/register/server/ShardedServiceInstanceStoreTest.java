@@ -0,0 +1,305 @@
+package com.hlk.demo.register.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.hlk.demo.register.server.TestSupport.check;
+import static com.hlk.demo.register.server.TestSupport.newServiceInstance;
+
+/**
+ * 分片存储的测试类
+ *
+ * 1、同样一串随机的注册、续约、下线操作，分别作用在堆内存储和分片存储上，每一步的结果都要一样
+ * 2、多个线程同时往同一批服务里写，每个线程自己写的马上能读到，最后的数据跟每个线程记下来的一致
+ * 3、发布出去的快照不能被改，也不会跟着后面的写操作变化；服务没改过的话读到的是同一份快照，改过之后第一次读才重新拷贝
+ * 4、邮箱里的命令按放进去的顺序执行，afterPublish()也按同样的顺序在快照发布之后执行
+ * 5、用分片存储的注册表并发注册、下线，服务实例数量、全量注册表、每个服务的指纹都要对得上，顺便看一下吞吐量
+ *
+ * 运行方式：java com.hlk.demo.register.server.ShardedServiceInstanceStoreTest [线程数] [每个线程的操作次数]
+ *
+ * @author huanglk
+ */
+public class ShardedServiceInstanceStoreTest {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+        // 注册表在第一次用到的时候才会选择存储引擎
+        System.setProperty("register.server.store", "sharded");
+        PrintStream stdout = TestSupport.silenceStdout();
+        for (int type = 0; type < EventType.COUNT; type++) {
+            EventLogger.getInstance().setLevel(type, EventLogger.WARN);
+        }
+
+        testAgainstHeapStore(operations);
+        testConcurrentWriters(threads, operations);
+        testSnapshotIsImmutable();
+        testLazySnapshotRefresh();
+        testMailboxOrdering(threads, Math.min(operations, 5000));
+        testRegistry(stdout, threads, operations);
+
+        stdout.println("分片存储校验通过");
+    }
+
+    private static void testAgainstHeapStore(int operations) {
+        HeapServiceInstanceStore heapStore = new HeapServiceInstanceStore();
+        ShardedServiceInstanceStore shardedStore = new ShardedServiceInstanceStore(4, 16, null);
+
+        Random random = new Random(42L);
+        for (int i = 0; i < operations; i++) {
+            int service = random.nextInt(50);
+            int instance = random.nextInt(400);
+            String serviceName = "SERVICE-" + service;
+            String serviceInstanceId = serviceName + "-" + instance;
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                ServiceInstance serviceInstance = newServiceInstance(service, instance);
+                check(heapStore.put(serviceInstance) == shardedStore.put(serviceInstance), "注册：" + serviceInstanceId);
+            } else if (operation < 7) {
+                check(heapStore.remove(serviceName, serviceInstanceId)
+                        == shardedStore.remove(serviceName, serviceInstanceId), "下线：" + serviceInstanceId);
+            } else if (operation < 9) {
+                check(heapStore.renew(serviceName, serviceInstanceId)
+                        == shardedStore.renew(serviceName, serviceInstanceId), "续约：" + serviceInstanceId);
+            } else {
+                check(heapStore.get(serviceName, serviceInstanceId)
+                        == shardedStore.get(serviceName, serviceInstanceId), "查询：" + serviceInstanceId);
+            }
+        }
+
+        check(heapStore.getServiceNames().size() == shardedStore.getServiceNames().size(), "服务名称");
+        int total = 0;
+        for (String serviceName : heapStore.getServiceNames()) {
+            Map<String, ServiceInstance> expected = heapStore.getServiceInstances(serviceName);
+            check(expected.equals(shardedStore.getServiceInstances(serviceName))
+                    && shardedStore.getServiceInstanceCount(serviceName) == expected.size(), "服务：" + serviceName);
+            total += expected.size();
+        }
+
+        final int[] visited = {0};
+        shardedStore.forEach(new ServiceInstanceStore.ServiceInstanceVisitor() {
+            @Override
+            public void visit(ServiceInstanceView serviceInstance) {
+                visited[0]++;
+            }
+        });
+        check(visited[0] == total, "遍历：" + visited[0] + "/" + total);
+    }
+
+    private static void testConcurrentWriters(int threads, final int operations) throws Exception {
+        final ShardedServiceInstanceStore store = new ShardedServiceInstanceStore(4, 64, null);
+        final List<Map<String, ServiceInstance>> expectedByThread = new ArrayList<>();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            final Map<String, ServiceInstance> expected = new HashMap<>();
+            expectedByThread.add(expected);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // 每个线程用自己的服务实例编号，但是服务是大家共用的，同一个分片上会有很多线程在写
+                        Random random = new Random(thread);
+                        for (int i = 0; i < operations; i++) {
+                            int instance = thread * 1000 + random.nextInt(1000);
+                            ServiceInstance serviceInstance = newServiceInstance(instance % 20, instance);
+                            String serviceName = serviceInstance.getServiceName();
+                            String serviceInstanceId = serviceInstance.getServiceInstanceId();
+                            if (random.nextInt(3) < 2) {
+                                store.put(serviceInstance);
+                                expected.put(serviceInstanceId, serviceInstance);
+                                check(store.get(serviceName, serviceInstanceId) == serviceInstance,
+                                        "读不到自己刚注册的：" + serviceInstanceId);
+                            } else {
+                                check(store.remove(serviceName, serviceInstanceId)
+                                        == expected.remove(serviceInstanceId), "下线：" + serviceInstanceId);
+                                check(store.get(serviceName, serviceInstanceId) == null,
+                                        "还能读到自己刚下线的：" + serviceInstanceId);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e.toString());
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        check(done.await(60, TimeUnit.SECONDS), "并发写超时");
+        check(failure.get() == null, String.valueOf(failure.get()));
+
+        int total = 0;
+        for (Map<String, ServiceInstance> expected : expectedByThread) {
+            for (ServiceInstance serviceInstance : expected.values()) {
+                check(store.get(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId())
+                        == serviceInstance, "并发写之后的服务实例：" + serviceInstance.getServiceInstanceId());
+            }
+            total += expected.size();
+        }
+        int stored = 0;
+        for (String serviceName : store.getServiceNames()) {
+            stored += store.getServiceInstanceCount(serviceName);
+        }
+        check(stored == total, "并发写之后的服务实例数量：" + stored + "/" + total);
+    }
+
+    private static void testSnapshotIsImmutable() {
+        ShardedServiceInstanceStore store = new ShardedServiceInstanceStore(2, 16, null);
+        store.put(newServiceInstance(0, 0));
+        Map<String, ServiceInstance> snapshot = store.getServiceInstances("SERVICE-0");
+        store.put(newServiceInstance(0, 1));
+        store.remove("SERVICE-0", "SERVICE-0-0");
+        check(snapshot.size() == 1 && snapshot.containsKey("SERVICE-0-0"), "快照跟着写操作变了");
+        check(store.getServiceInstances("SERVICE-0").keySet().equals(Collections.singleton("SERVICE-0-1")),
+                "新的快照");
+        try {
+            snapshot.remove("SERVICE-0-0");
+            check(false, "快照可以被修改");
+        } catch (UnsupportedOperationException e) {
+            // 期望的结果
+        }
+    }
+
+    private static void testLazySnapshotRefresh() {
+        // 一个分片，两个服务在同一个分片上
+        ShardedServiceInstanceStore store = new ShardedServiceInstanceStore(1, 16, null);
+        store.put(newServiceInstance(0, 0));
+        store.put(newServiceInstance(1, 0));
+        Map<String, ServiceInstance> snapshot = store.getServiceInstances("SERVICE-0");
+        Map<String, ServiceInstance> otherSnapshot = store.getServiceInstances("SERVICE-1");
+        check(store.getServiceInstances("SERVICE-0") == snapshot, "没有写操作的时候重新拷贝了快照");
+
+        // 续约不进邮箱，不算改过服务
+        check(store.renew("SERVICE-0", "SERVICE-0-0"), "续约");
+        check(store.getServiceInstances("SERVICE-0") == snapshot, "续约之后重新拷贝了快照");
+
+        // 连着写好几批，中间没人读，读的时候拷贝一次，之后的读者共用这一份
+        for (int i = 1; i <= 10; i++) {
+            store.put(newServiceInstance(0, i));
+        }
+        Map<String, ServiceInstance> refreshed = store.getServiceInstances("SERVICE-0");
+        check(refreshed != snapshot && refreshed.size() == 11, "写操作之后的快照：" + refreshed.size());
+        check(store.getServiceInstances("SERVICE-0") == refreshed, "写操作之后重复拷贝了快照");
+        check(store.getServiceInstances("SERVICE-1") == otherSnapshot, "同一个分片上别的服务的快照也重新拷贝了");
+
+        // 下线一个不存在的服务实例没有改数据，快照不过期
+        check(store.remove("SERVICE-0", "SERVICE-0-absent") == null, "下线不存在的服务实例");
+        check(store.getServiceInstances("SERVICE-0") == refreshed, "没有改数据的下线让快照过期了");
+        store.remove("SERVICE-0", "SERVICE-0-0");
+        check(!store.getServiceInstances("SERVICE-0").containsKey("SERVICE-0-0"), "下线之后的快照");
+    }
+
+    private static void testMailboxOrdering(int threads, final int operations) throws Exception {
+        // 一批最多8个命令，很多线程同时提交，一批里会混着好几个线程的命令
+        final ShardedServiceInstanceStore store = new ShardedServiceInstanceStore(1, 8, null);
+        // 这两个列表只有分片线程写
+        final List<Long> executed = new ArrayList<>();
+        final List<Long> published = new ArrayList<>();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < operations; i++) {
+                            final long sequence = (long) thread << 32 | i;
+                            final ServiceInstance serviceInstance = newServiceInstance(0, thread * operations + i);
+                            store.execute("SERVICE-0", new ShardedServiceInstanceStore.Command() {
+                                @Override
+                                protected Object execute() {
+                                    executed.add(sequence);
+                                    return store.put(serviceInstance);
+                                }
+
+                                @Override
+                                protected void afterPublish() {
+                                    published.add(sequence);
+                                }
+                            });
+                            // 命令返回的时候这一批已经发布了，快照里一定有它（每个命令都拷贝一次快照太慢，隔一段检查一次）
+                            if (i % 100 == 0) {
+                                check(store.getServiceInstances("SERVICE-0").containsKey(
+                                        serviceInstance.getServiceInstanceId()), "命令返回之后快照里没有：" + sequence);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e.toString());
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        check(done.await(60, TimeUnit.SECONDS), "邮箱顺序测试超时");
+        check(failure.get() == null, String.valueOf(failure.get()));
+
+        check(executed.size() == threads * operations, "执行的命令数量：" + executed.size());
+        check(executed.equals(published), "afterPublish()跟execute()的顺序不一样");
+        int[] nextByThread = new int[threads];
+        for (long sequence : executed) {
+            int thread = (int) (sequence >>> 32);
+            check((int) sequence == nextByThread[thread]++, "同一个线程的命令乱序了：" + thread);
+        }
+        check(store.getServiceInstanceCount("SERVICE-0") == threads * operations, "邮箱顺序测试的服务实例数量");
+    }
+
+    private static void testRegistry(PrintStream stdout, int threads, final int operations) throws Exception {
+        final ServiceRegistry registry = ServiceRegistry.getInstance();
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // 注册完之后下线其中三分之一
+                        for (int i = 0; i < operations; i++) {
+                            int instance = thread * operations + i;
+                            registry.register(newServiceInstance(instance % 500, instance));
+                        }
+                        for (int i = 0; i < operations; i += 3) {
+                            int instance = thread * operations + i;
+                            registry.remove("SERVICE-" + instance % 500, "SERVICE-" + instance % 500 + "-" + instance);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        check(done.await(120, TimeUnit.SECONDS), "注册表并发写超时");
+        long elapsed = System.nanoTime() - start;
+        long writes = (long) threads * (operations + (operations + 2) / 3);
+        stdout.println(threads + "个线程注册、下线" + writes + "次，耗时" + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                + "毫秒，" + writes * 1000000000L / Math.max(1L, elapsed) + "次/秒");
+
+        long expectedTotal = (long) threads * (operations - (operations + 2) / 3);
+        check(registry.getServiceInstanceTotalCount() == expectedTotal,
+                "服务实例总数：" + registry.getServiceInstanceTotalCount() + "/" + expectedTotal);
+
+        Applications applications = registry.getApplications();
+        Map<String, Long> fingerprints = registry.getServiceFingerprints(
+                Collections.<String>emptyList()).getFingerprints();
+        long total = 0L;
+        for (Map.Entry<String, Map<String, ServiceInstance>> entry : applications.getRegistry().entrySet()) {
+            total += entry.getValue().size();
+            check(fingerprints.get(entry.getKey()) == RegistryFingerprint.fingerprint(entry.getValue()),
+                    "服务的指纹：" + entry.getKey());
+        }
+        check(total == expectedTotal, "全量注册表里的服务实例数量：" + total + "/" + expectedTotal);
+    }
+}
@@ -0,0 +1,55 @@
+package com.hlk.demo.register.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字符串池
+ *
+ * 服务名称、主机名这种大量重复的字符串，每个服务实例都各自持有一份的话，
+ * 百万级的注册表里会有上百万个内容一样的字符串，池化之后同样内容的字符串只保留一份
+ *
+ * 没有用String.intern()，是因为池子要有上限：有人拿随机的字符串来注册的话，池子不能无限膨胀，
+ * 满了之后就不再池化，直接返回原来的字符串
+ *
+ * @author huanglk
+ */
+public class StringInterner {
+
+    private final int maxSize;
+    private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxSize 池子里最多放多少个字符串
+     */
+    public StringInterner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 返回池子里跟这个字符串内容一样的那一份
+     *
+     * @param value 字符串，可以是null
+     * @return 池子满了的话返回原来的字符串
+     */
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String interned = strings.get(value);
+        if (interned != null) {
+            return interned;
+        }
+        if (strings.size() >= maxSize) {
+            return value;
+        }
+        interned = strings.putIfAbsent(value, value);
+        return interned == null ? value : interned;
+    }
+
+    /**
+     * 池子里的字符串数量
+     */
+    public int size() {
+        return strings.size();
+    }
+}
@@ -0,0 +1,127 @@
+package com.hlk.demo.register.server;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 各个测试类共用的工具方法：校验、造服务实例、比较服务实例、屏蔽标准输出、删临时目录
+ *
+ * @author huanglk
+ */
+public class TestSupport {
+
+    private TestSupport() {
+
+    }
+
+    /**
+     * 校验一个条件，不成立就抛异常，测试的main方法直接失败退出
+     *
+     * @param condition 条件
+     * @param name      校验的是什么
+     */
+    public static void check(boolean condition, String name) {
+        if (!condition) {
+            throw new IllegalStateException("校验失败：" + name);
+        }
+    }
+
+    /**
+     * 屏蔽标准输出，注册表、服务存活监控这些类会往标准输出打很多日志
+     *
+     * @return 原来的标准输出，测试结果还要打印到这里
+     */
+    public static PrintStream silenceStdout() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        return stdout;
+    }
+
+    /**
+     * 造一个只有基本信息的服务实例，服务名称是SERVICE-service，服务实例id是SERVICE-service-instance
+     */
+    public static ServiceInstance newServiceInstance(int service, int instance) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName("SERVICE-" + service);
+        serviceInstance.setServiceInstanceId("SERVICE-" + service + "-" + instance);
+        serviceInstance.setHostname("host-" + instance);
+        serviceInstance.setIp("10.0." + instance / 256 % 256 + "." + instance % 256);
+        serviceInstance.setPort(8000 + instance % 1000);
+        return serviceInstance;
+    }
+
+    /**
+     * 造一个各种信息都可能有的服务实例：
+     * 属性有的全有、有的全没有，元数据里有中文，主机名有的是中文，记录的长度、编码出来的长度各不一样
+     *
+     * @param ipKind 0是ipv4，1是ipv6，2是没有ip
+     */
+    public static ServiceInstance newServiceInstance(int service, int instance, int ipKind) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName("SERVICE-" + service);
+        serviceInstance.setServiceInstanceId("SERVICE-" + service + "-" + instance);
+        serviceInstance.setHostname(instance % 5 == 0 ? "主机-" + instance : "host-" + instance);
+        serviceInstance.setIp(ipKind == 0 ? "10." + service % 256 + "." + instance / 256 % 256 + "." + instance % 256
+                : ipKind == 1 ? "fe80::" + Integer.toHexString(instance) : null);
+        serviceInstance.setPort(8000 + instance % 1000);
+        if (instance % 3 != 0) {
+            serviceInstance.setStatus((byte) (instance % ServiceInstanceStatus.COUNT));
+            serviceInstance.setZone("zone-" + instance % 4);
+            serviceInstance.setVersion(instance % 2 == 0 ? "2.0.0" : null);
+        }
+        if (instance % 3 == 1) {
+            Map<String, String> metadata = new HashMap<>();
+            metadata.put("weight", String.valueOf(instance % 100));
+            metadata.put("机房", "华东");
+            serviceInstance.setMetadata(metadata);
+        }
+        return serviceInstance;
+    }
+
+    /**
+     * 两个服务实例的内容是不是一样，都是null也算一样
+     */
+    public static boolean same(ServiceInstance a, ServiceInstance b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return equals(a.getServiceName(), b.getServiceName())
+                && equals(a.getServiceInstanceId(), b.getServiceInstanceId())
+                && equals(a.getIp(), b.getIp())
+                && equals(a.getHostname(), b.getHostname())
+                && a.getPort() == b.getPort()
+                && a.getStatus() == b.getStatus()
+                && equals(a.getZone(), b.getZone())
+                && equals(a.getVersion(), b.getVersion())
+                && a.getMetadata().equals(b.getMetadata())
+                && RegistryFingerprint.hash(a) == RegistryFingerprint.hash(b);
+    }
+
+    public static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * 删掉一个临时目录和它下面的文件
+     */
+    public static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
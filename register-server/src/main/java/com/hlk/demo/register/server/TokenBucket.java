@@ -0,0 +1,81 @@
+package com.hlk.demo.register.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶
+ *
+ * 不真的存令牌的数量，而是记一个"理论上下一个令牌到达的时间"（GCRA算法，跟令牌桶是等价的）：
+ * 每拿一个令牌，这个时间往后推一个令牌的间隔；这个时间比现在超前了整个桶的容量，说明桶空了
+ * 这样整个桶就是一个AtomicLong，拿令牌是一次CAS，不用加锁，也不需要后台线程往桶里补令牌；
+ * 被拒绝的时候顺便就能算出还要等多久才有令牌
+ *
+ * @author huanglk
+ */
+public class TokenBucket {
+
+    /**
+     * 每个令牌的间隔，纳秒
+     */
+    private final long interval;
+    /**
+     * 桶的容量对应的时间，理论到达时间最多比现在超前这么多
+     */
+    private final long capacity;
+    /**
+     * 理论上下一个令牌到达的时间，System.nanoTime()
+     */
+    private final AtomicLong theoreticalArrivalTime;
+
+    /**
+     * @param ratePerSecond 每秒补充的令牌数量
+     * @param burst         桶的容量，最多能一下子拿走多少个令牌
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.interval = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.capacity = interval * Math.max(1, burst);
+        this.theoreticalArrivalTime = new AtomicLong(System.nanoTime() - capacity);
+    }
+
+    /**
+     * 拿一个令牌
+     *
+     * @return 0表示拿到了；大于0表示桶空了，值是还要等多少纳秒才会有令牌
+     */
+    public long tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = theoreticalArrivalTime.get();
+            // 桶是满的，之前没用完的令牌不会攒下来超过容量
+            long next = Math.max(current, now - capacity) + interval;
+            if (next - now > 0) {
+                return next - now;
+            }
+            if (theoreticalArrivalTime.compareAndSet(current, next)) {
+                return 0L;
+            }
+        }
+    }
+
+    /**
+     * 把拿到的令牌还回去，比如后面的检查没通过，这次请求其实没有被放行
+     */
+    public void release() {
+        theoreticalArrivalTime.addAndGet(-interval);
+    }
+
+    /**
+     * 桶是不是满的，满的桶跟新建的桶没有区别，可以丢掉
+     */
+    public boolean isFull() {
+        return theoreticalArrivalTime.get() <= System.nanoTime() - capacity;
+    }
+
+    /**
+     * 理论上下一个令牌到达的时间，越早说明桶里攒下的令牌越多
+     */
+    long getTheoreticalArrivalTime() {
+        return theoreticalArrivalTime.get();
+    }
+}
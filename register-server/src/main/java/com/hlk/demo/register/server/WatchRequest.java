@@ -0,0 +1,50 @@
+package com.hlk.demo.register.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 监听注册表变更的请求
+ * @author huanglk
+ *
+ */
+public class WatchRequest {
+
+	/**
+	 * 客户端已经拿到的注册表版本号
+	 */
+	private long sinceVersion;
+	/**
+	 * 没有变更的话，服务端最多挂住请求多久（毫秒）
+	 */
+	private long timeout;
+	/**
+	 * 客户端订阅的服务名称，只有这几个服务有变更才会响应，为空的话就是所有服务
+	 */
+	private List<String> serviceNames = new ArrayList<String>();
+
+	public long getSinceVersion() {
+		return sinceVersion;
+	}
+	public void setSinceVersion(long sinceVersion) {
+		this.sinceVersion = sinceVersion;
+	}
+	public long getTimeout() {
+		return timeout;
+	}
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	public List<String> getServiceNames() {
+		return serviceNames;
+	}
+	public void setServiceNames(List<String> serviceNames) {
+		this.serviceNames = serviceNames;
+	}
+
+	@Override
+	public String toString() {
+		return "WatchRequest [sinceVersion=" + sinceVersion + ", timeout=" + timeout + ", serviceNames=" + serviceNames + "]";
+	}
+
+}